@@ -3,13 +3,21 @@ import com.google.protobuf.gradle.id
 plugins {
     id("java")
     id("org.springframework.boot") version "3.2.5"
-    id("io.spring.dependency-management") version "1.1.4"
-    id("com.google.protobuf") version "0.9.4"
+    id("io.spring.dependency-management") version "1.1.7"
+    id("com.google.protobuf") version "0.9.5"
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "org.twins"
 version = "1.0-SNAPSHOT"
 
+// JDK 21 for virtual threads (spring.threads.virtual.enabled)
+java {
+    toolchain {
+        languageVersion = JavaLanguageVersion.of(21)
+    }
+}
+
 repositories {
     mavenCentral()
 }
@@ -24,6 +32,9 @@ dependencies {
     implementation("org.springframework.boot:spring-boot-starter-jdbc")
     implementation("org.hibernate.orm:hibernate-core:6.4.4.Final")
     implementation("jakarta.persistence:jakarta.persistence-api:3.1.0")
+    // Schema migrations (src/main/resources/db/migration) and PostgreSQL driver
+    implementation("org.flywaydb:flyway-core")
+    runtimeOnly("org.postgresql:postgresql")
     // Lombok
     compileOnly("org.projectlombok:lombok:1.18.32")
     annotationProcessor("org.projectlombok:lombok:1.18.32")
@@ -32,6 +43,8 @@ dependencies {
 
     testImplementation(platform("org.junit:junit-bom:5.10.0"))
     testImplementation("org.junit.jupiter:junit-jupiter")
+    // Gradle 9 no longer puts the launcher on the test runtime classpath
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
     // Spring & Mockito testing utilities
     testImplementation("org.springframework.boot:spring-boot-starter-test")
     testImplementation("org.mockito:mockito-inline:5.2.0")
@@ -44,8 +57,15 @@ dependencies {
     implementation("com.google.protobuf:protobuf-java:${protobufVersion}")    // For Java 9+ compatibility
     implementation("org.apache.tomcat:annotations-api:6.0.53")
     implementation("org.springframework.boot:spring-boot-starter-web") // For RestTemplate and @Value
+    // Metrics, scraped from /actuator/prometheus
+    implementation("org.springframework.boot:spring-boot-starter-actuator")
+    runtimeOnly("io.micrometer:micrometer-registry-prometheus")
     // Resilience4j for circuit breaker
     implementation("io.github.resilience4j:resilience4j-spring-boot3:2.2.0")
+    // Caffeine for in-memory caches (token introspection results)
+    implementation("com.github.ben-manes.caffeine:caffeine")
+    // Nimbus JOSE for local JWT / JWKS validation
+    implementation("com.nimbusds:nimbus-jose-jwt:9.37.3")
 }
 
 // gRPC/protobuf plugin
@@ -69,4 +89,43 @@ protobuf {
 
 tasks.test {
     useJUnitPlatform()
+}
+
+// End-to-end load / soak harness (src/loadTest/java): ./gradlew loadTest -PloadTest.args="--clients=50000 --duration=PT30M"
+// Exits non-zero when a threshold (--max-p99-ms, --min-throughput, ...) is missed.
+sourceSets {
+    create("loadTest") {
+        compileClasspath += sourceSets.main.get().output
+        runtimeClasspath += sourceSets.main.get().output
+    }
+}
+
+val loadTestImplementation: Configuration by configurations.getting {
+    extendsFrom(configurations.implementation.get())
+}
+configurations["loadTestRuntimeOnly"].extendsFrom(configurations.runtimeOnly.get())
+
+dependencies {
+    loadTestImplementation("org.hdrhistogram:HdrHistogram:2.1.12")
+}
+
+tasks.register<JavaExec>("loadTest") {
+    group = "verification"
+    description = "Runs the end-to-end load test against an in-JVM server on a loopback port."
+    classpath = sourceSets["loadTest"].runtimeClasspath
+    mainClass.set("org.twins.horn.load.LoadTest")
+    jvmArgs("-Xms2g", "-Xmx2g", "-XX:+UseG1GC")
+    args(providers.gradleProperty("loadTest.args").orNull?.split(" ")?.filter { it.isNotBlank() } ?: emptyList<String>())
+}
+
+// Micro-benchmarks of the hot path (src/jmh/java): ./gradlew jmh, results in build/results/jmh.
+// Narrow the run with -Pjmh.includes=<regex>; the gc profiler reports allocation rates per operation.
+jmh {
+    jmhVersion.set("1.37")
+    profilers.set(listOf("gc"))
+    resultFormat.set("JSON")
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+    providers.gradleProperty("jmh.includes").orNull?.let { includes.set(listOf(it)) }
 }
\ No newline at end of file
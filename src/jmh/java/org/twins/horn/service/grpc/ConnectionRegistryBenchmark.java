@@ -0,0 +1,64 @@
+package org.twins.horn.service.grpc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto.TwinfaceSubscribeUpdate;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fan-out through {@link ConnectionRegistry}: a targeted broadcast to one client among
+ * {@code observers} registered ones, and {@code broadcastAll} to every one of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ConnectionRegistryBenchmark {
+
+    @Param({"1", "100", "100000"})
+    public int observers;
+
+    private ConnectionRegistry registry;
+    private UUID[] clientIds;
+    private TwinfaceSubscribeUpdate update;
+    private SerializedUpdate serializedUpdate;
+
+    @Setup
+    public void setUp() {
+        registry = RegistryFixtures.newRegistry();
+        clientIds = RegistryFixtures.registerClients(registry, observers);
+        update = RegistryFixtures.twinUpdate();
+        serializedUpdate = SerializedUpdate.of(update);
+    }
+
+    @TearDown
+    public void tearDown() {
+        registry.shutdown();
+    }
+
+    @Benchmark
+    public int broadcastToClient() {
+        UUID clientId = clientIds[ThreadLocalRandom.current().nextInt(clientIds.length)];
+        return registry.broadcast(clientId, serializedUpdate);
+    }
+
+    @Benchmark
+    public int broadcastToClientEncodingPerCall() {
+        UUID clientId = clientIds[ThreadLocalRandom.current().nextInt(clientIds.length)];
+        return registry.broadcast(clientId, update);
+    }
+
+    @Benchmark
+    public void broadcastAll() {
+        registry.broadcastAll(update);
+    }
+}
@@ -0,0 +1,63 @@
+package org.twins.horn.service.grpc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stream add/remove churn under contention: connecting and disconnecting threads race against
+ * threads broadcasting to the {@code clients} already registered.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RegistryChurnBenchmark {
+
+    @Param({"10000"})
+    public int clients;
+
+    private ConnectionRegistry registry;
+    private UUID[] clientIds;
+    private SerializedUpdate update;
+
+    @Setup
+    public void setUp() {
+        registry = RegistryFixtures.newRegistry();
+        clientIds = RegistryFixtures.registerClients(registry, clients);
+        update = SerializedUpdate.of(RegistryFixtures.twinUpdate());
+    }
+
+    @TearDown
+    public void tearDown() {
+        registry.shutdown();
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(3)
+    public boolean connectDisconnect() {
+        UUID clientId = clientIds[ThreadLocalRandom.current().nextInt(clientIds.length)];
+        ClientStream stream = registry.register(clientId, RegistryFixtures.DISCARDING_OBSERVER);
+        return registry.unregister(stream);
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(1)
+    public int broadcast() {
+        UUID clientId = clientIds[ThreadLocalRandom.current().nextInt(clientIds.length)];
+        return registry.broadcast(clientId, update);
+    }
+}
@@ -0,0 +1,72 @@
+package org.twins.horn.service.grpc;
+
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.util.unit.DataSize;
+import org.twins.horn.config.ConflationProperties;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto.TwinfaceSubscribeUpdate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * Registry set up as in production (default properties) for the benchmarks, with observers that
+ * accept every write immediately so only the server side is measured.
+ */
+final class RegistryFixtures {
+
+    static final StreamObserver<SerializedUpdate> DISCARDING_OBSERVER = new StreamObserver<>() {
+        @Override
+        public void onNext(SerializedUpdate value) {
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    };
+
+    private RegistryFixtures() {
+    }
+
+    static ConnectionRegistry newRegistry() {
+        return new ConnectionRegistry(new TwinSubscriptionIndex(1000), new ConflationProperties(),
+                newReplayBufferStore(), OfflineMailbox.NONE, ConnectionDirectory.NONE, 64, 256,
+                ClientStream.OverflowPolicy.DROP_OLDEST, new SimpleMeterRegistry());
+    }
+
+    /**
+     * Replay buffers with the defaults of {@code application.properties}.
+     */
+    static ReplayBufferStore newReplayBufferStore() {
+        return new ReplayBufferStore(true, 128, DataSize.ofKilobytes(64), DataSize.ofMegabytes(256),
+                Duration.ofMinutes(10));
+    }
+
+    /**
+     * @return ids of {@code clients} new clients with one stream each
+     */
+    static UUID[] registerClients(ConnectionRegistry registry, int clients) {
+        UUID[] clientIds = new UUID[clients];
+        for (int i = 0; i < clients; i++) {
+            clientIds[i] = UUID.randomUUID();
+            registry.register(clientIds[i], DISCARDING_OBSERVER);
+        }
+        return clientIds;
+    }
+
+    static TwinfaceSubscribeUpdate twinUpdate() {
+        return TwinfaceSubscribeUpdate.newBuilder()
+                .setUpdateId(UUID.randomUUID().toString())
+                .setEventType(TwinfaceSubscribeProto.TwinEventType.TWIN_UPDATE)
+                .setTimestamp(Instant.now().toString())
+                .addUpdatedTwinIds(UUID.randomUUID().toString())
+                .setStatus(TwinfaceSubscribeProto.UpdateStatus.SUCCESS)
+                .build();
+    }
+}
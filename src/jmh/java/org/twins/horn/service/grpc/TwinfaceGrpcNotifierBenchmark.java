@@ -0,0 +1,77 @@
+package org.twins.horn.service.grpc;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.twins.horn.notify.TwinsNotifyProto.ResponseStatus;
+import org.twins.horn.notify.TwinsNotifyProto.TwinsNotifyResponse;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link TwinfaceGrpcNotifier} with large {@code client_ids} lists, half of which have a
+ * connected stream on this node, for single notifications and batches of 100.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TwinfaceGrpcNotifierBenchmark {
+
+    @Param({"100", "10000"})
+    public int clientIdsPerNotification;
+
+    private ConnectionRegistry registry;
+    private TwinfaceGrpcNotifier notifier;
+    private TwinsNotifyResponse notification;
+    private List<TwinsNotifyResponse> batch;
+
+    @Setup
+    public void setUp() {
+        registry = RegistryFixtures.newRegistry();
+        notifier = new TwinfaceGrpcNotifier(registry, new SimpleMeterRegistry());
+        UUID[] connected = RegistryFixtures.registerClients(registry, clientIdsPerNotification / 2);
+        TwinsNotifyResponse.Builder builder = TwinsNotifyResponse.newBuilder()
+                .setUpdateId(UUID.randomUUID().toString())
+                .setTwinId(UUID.randomUUID().toString())
+                .setTimestamp(Instant.now().toString())
+                .setStatus(ResponseStatus.SUCCESS);
+        for (UUID clientId : connected) {
+            builder.addClientIds(clientId.toString());
+        }
+        while (builder.getClientIdsCount() < clientIdsPerNotification) {
+            builder.addClientIds(UUID.randomUUID().toString());
+        }
+        notification = builder.build();
+        batch = new ArrayList<>(100);
+        for (int i = 0; i < 100; i++) {
+            batch.add(notification.toBuilder().setTwinId(UUID.randomUUID().toString()).build());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        registry.shutdown();
+    }
+
+    @Benchmark
+    public void notifyClients() {
+        notifier.notifyClients(notification);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void notifyClientsBatch() {
+        notifier.notifyClients(batch);
+    }
+}
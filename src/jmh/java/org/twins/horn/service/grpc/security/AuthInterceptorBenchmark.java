@@ -0,0 +1,119 @@
+package org.twins.horn.service.grpc.security;
+
+import io.grpc.Attributes;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.Status;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.twins.horn.service.auth.TwinsTokenIntrospectService;
+import org.twins.horn.service.auth.dto.TokenIntrospectRsDTOv1;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto.TwinfaceSubscribeRequest;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto.TwinfaceSubscribeUpdate;
+import org.twins.horn.subscribe.TwinfaceSubscribeServiceGrpc;
+
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link AuthInterceptor#interceptCall} for a valid token against a stubbed introspection service
+ * that answers immediately (a cache hit), so only the interceptor itself is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AuthInterceptorBenchmark {
+
+    @Param({"true", "false"})
+    public boolean asyncEnabled;
+
+    private AuthInterceptor interceptor;
+    private Metadata headers;
+    private final ServerCall<TwinfaceSubscribeRequest, TwinfaceSubscribeUpdate> call = new NoopServerCall();
+    private final ServerCallHandler<TwinfaceSubscribeRequest, TwinfaceSubscribeUpdate> handler =
+            (call, headers) -> new ServerCall.Listener<>() {
+            };
+
+    @Setup
+    public void setUp() {
+        TokenIntrospectRsDTOv1 tokenInfo = new TokenIntrospectRsDTOv1();
+        tokenInfo.setActive("true");
+        tokenInfo.setClientId(UUID.randomUUID().toString());
+        tokenInfo.setExp(System.currentTimeMillis() / 1000 + 3600);
+        interceptor = new AuthInterceptor(new StubIntrospectService(tokenInfo), asyncEnabled, Runnable::run);
+        headers = new Metadata();
+        headers.put(Metadata.Key.of("authorization", Metadata.ASCII_STRING_MARSHALLER), "Bearer benchmark-token");
+    }
+
+    @Benchmark
+    public ServerCall.Listener<TwinfaceSubscribeRequest> interceptCall() {
+        return interceptor.interceptCall(call, headers, handler);
+    }
+
+    /**
+     * Introspection answered from memory; none of the collaborators of the real service are used.
+     */
+    private static final class StubIntrospectService extends TwinsTokenIntrospectService {
+        private final CompletableFuture<TokenIntrospectRsDTOv1> result;
+
+        StubIntrospectService(TokenIntrospectRsDTOv1 tokenInfo) {
+            super(null, null, null, null, "http://localhost/introspect", Duration.ofSeconds(1),
+                    Runnable::run, new SimpleMeterRegistry());
+            this.result = CompletableFuture.completedFuture(tokenInfo);
+        }
+
+        @Override
+        public TokenIntrospectRsDTOv1 validateToken(String authToken) {
+            return result.join();
+        }
+
+        @Override
+        public CompletableFuture<TokenIntrospectRsDTOv1> validateTokenAsync(String authToken) {
+            return result;
+        }
+    }
+
+    private static final class NoopServerCall extends ServerCall<TwinfaceSubscribeRequest, TwinfaceSubscribeUpdate> {
+        @Override
+        public void request(int numMessages) {
+        }
+
+        @Override
+        public void sendHeaders(Metadata headers) {
+        }
+
+        @Override
+        public void sendMessage(TwinfaceSubscribeUpdate message) {
+        }
+
+        @Override
+        public void close(Status status, Metadata trailers) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public Attributes getAttributes() {
+            return Attributes.EMPTY;
+        }
+
+        @Override
+        public MethodDescriptor<TwinfaceSubscribeRequest, TwinfaceSubscribeUpdate> getMethodDescriptor() {
+            return TwinfaceSubscribeServiceGrpc.getGetDataUpdatesMethod();
+        }
+    }
+}
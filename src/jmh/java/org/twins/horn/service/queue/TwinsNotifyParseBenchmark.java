@@ -0,0 +1,51 @@
+package org.twins.horn.service.queue;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.twins.horn.notify.TwinsNotifyProto.ResponseStatus;
+import org.twins.horn.notify.TwinsNotifyProto.TwinsNotifyResponse;
+
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code TwinsNotifyResponse.parseFrom} on payloads shaped like the ones on {@code twins-notify}:
+ * UUID ids, an ISO 8601 timestamp and {@code clientIds} audience entries (0 = routed by twin
+ * subscriptions).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TwinsNotifyParseBenchmark {
+
+    @Param({"0", "10", "1000"})
+    public int clientIds;
+
+    private byte[] payload;
+
+    @Setup
+    public void setUp() {
+        TwinsNotifyResponse.Builder builder = TwinsNotifyResponse.newBuilder()
+                .setUpdateId(UUID.randomUUID().toString())
+                .setTwinId(UUID.randomUUID().toString())
+                .setTimestamp(Instant.now().toString())
+                .setStatus(ResponseStatus.SUCCESS);
+        for (int i = 0; i < clientIds; i++) {
+            builder.addClientIds(UUID.randomUUID().toString());
+        }
+        payload = builder.build().toByteArray();
+    }
+
+    @Benchmark
+    public TwinsNotifyResponse parseFrom() throws InvalidProtocolBufferException {
+        return TwinsNotifyResponse.parseFrom(payload);
+    }
+}
@@ -0,0 +1,86 @@
+package org.twins.horn.load;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What the simulated clients observed, split by fast and slow clients. Deliveries are only counted
+ * while {@link #startMeasuring() measuring}, so warm-up traffic does not skew the results.
+ */
+final class ClientMetrics {
+
+    private static final long HIGHEST_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(10);
+
+    private final Recorder fastLatency = new Recorder(HIGHEST_LATENCY_MICROS, 3);
+    private final Recorder slowLatency = new Recorder(HIGHEST_LATENCY_MICROS, 3);
+    private final LongAdder fastDelivered = new LongAdder();
+    private final LongAdder slowDelivered = new LongAdder();
+    private final AtomicInteger failedStreams = new AtomicInteger();
+    private volatile boolean measuring;
+
+    void startMeasuring() {
+        fastLatency.reset();
+        slowLatency.reset();
+        fastDelivered.reset();
+        slowDelivered.reset();
+        measuring = true;
+    }
+
+    void stopMeasuring() {
+        measuring = false;
+    }
+
+    /**
+     * Records a twin update; its {@code timestamp} is the one the notification was injected with.
+     */
+    void delivered(boolean slowClient, String timestamp) {
+        if (!measuring) {
+            return;
+        }
+        long latencyMicros;
+        try {
+            latencyMicros = Math.max(0, Duration.between(Instant.parse(timestamp), Instant.now()).toNanos() / 1000);
+        } catch (DateTimeParseException e) {
+            return;
+        }
+        latencyMicros = Math.min(latencyMicros, HIGHEST_LATENCY_MICROS);
+        if (slowClient) {
+            slowDelivered.increment();
+            slowLatency.recordValue(latencyMicros);
+        } else {
+            fastDelivered.increment();
+            fastLatency.recordValue(latencyMicros);
+        }
+    }
+
+    void streamFailed() {
+        failedStreams.incrementAndGet();
+    }
+
+    Histogram fastLatencyMicros() {
+        return fastLatency.getIntervalHistogram();
+    }
+
+    Histogram slowLatencyMicros() {
+        return slowLatency.getIntervalHistogram();
+    }
+
+    long fastDelivered() {
+        return fastDelivered.sum();
+    }
+
+    long slowDelivered() {
+        return slowDelivered.sum();
+    }
+
+    int failedStreams() {
+        return failedStreams.get();
+    }
+}
@@ -0,0 +1,70 @@
+package org.twins.horn.load;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects stop-the-world GC pauses from the JVM's GC notifications. Beans of concurrent cycles
+ * (G1 Concurrent GC, ZGC Cycles, ...) are skipped, their duration is not a pause.
+ */
+final class GcPauseMonitor implements AutoCloseable {
+
+    private final AtomicLong pauses = new AtomicLong();
+    private final AtomicLong totalPauseMillis = new AtomicLong();
+    private final AtomicLong maxPauseMillis = new AtomicLong();
+    private final List<NotificationEmitter> emitters = new ArrayList<>();
+    private final NotificationListener listener = (notification, handback) -> {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+        GarbageCollectionNotificationInfo info =
+                GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        if (info.getGcName().contains("Concurrent") || info.getGcName().contains("Cycles")) {
+            return;
+        }
+        long duration = info.getGcInfo().getDuration();
+        pauses.incrementAndGet();
+        totalPauseMillis.addAndGet(duration);
+        maxPauseMillis.accumulateAndGet(duration, Math::max);
+    };
+
+    GcPauseMonitor() {
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter emitter) {
+                emitter.addNotificationListener(listener, null, null);
+                emitters.add(emitter);
+            }
+        }
+    }
+
+    long pauses() {
+        return pauses.get();
+    }
+
+    long totalPauseMillis() {
+        return totalPauseMillis.get();
+    }
+
+    long maxPauseMillis() {
+        return maxPauseMillis.get();
+    }
+
+    @Override
+    public void close() {
+        for (NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(listener);
+            } catch (Exception ignored) {
+                // already removed
+            }
+        }
+    }
+}
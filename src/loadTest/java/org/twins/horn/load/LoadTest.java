@@ -0,0 +1,235 @@
+package org.twins.horn.load;
+
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import io.grpc.stub.MetadataUtils;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.HdrHistogram.Histogram;
+import org.springframework.util.unit.DataSize;
+import org.twins.horn.config.ConflationProperties;
+import org.twins.horn.config.GrpcTransportProperties;
+import org.twins.horn.config.NodeIdentity;
+import org.twins.horn.notify.TwinsNotifyProto.ResponseStatus;
+import org.twins.horn.notify.TwinsNotifyProto.TwinsNotifyResponse;
+import org.twins.horn.service.auth.session.SessionExpiryScheduler;
+import org.twins.horn.service.cluster.NotificationRouter;
+import org.twins.horn.service.grpc.ClientStream;
+import org.twins.horn.service.grpc.ConnectionDirectory;
+import org.twins.horn.service.grpc.ConnectionRegistry;
+import org.twins.horn.service.grpc.OfflineMailbox;
+import org.twins.horn.service.grpc.ReplayBufferStore;
+import org.twins.horn.service.grpc.TwinSubscriptionIndex;
+import org.twins.horn.service.grpc.TwinfaceDataStreamingServer;
+import org.twins.horn.service.grpc.TwinfaceGrpcNotifier;
+import org.twins.horn.service.grpc.security.AuthInterceptor;
+import org.twins.horn.service.queue.TwinsNotificationsConsumer;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto.TwinfaceSubscribeRequest;
+import org.twins.horn.subscribe.TwinfaceSubscribeServiceGrpc;
+import org.twins.horn.util.InfrastructureErrorNotifier;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end load and soak test of one node.
+ * <p>
+ * Boots {@link TwinfaceDataStreamingServer} on a loopback port with the real Netty transport,
+ * authenticates clients against {@link StubIntrospectService}, and injects protobuf payloads
+ * straight into {@link TwinsNotificationsConsumer#handleNotification} from {@code producers}
+ * threads (standing in for the {@code twins-notify} listener threads). {@code clients} streams,
+ * a share of them slow, are opened over {@code channels} connections.
+ * <p>
+ * Reports delivered throughput, p50/p99/p99.9 delivery latency (injection to client
+ * {@code onNext}), heap growth per connection and GC pauses, and exits with status 1 when a
+ * threshold of {@link LoadTestConfig} is missed so a pipeline can gate on it. Run with
+ * {@code ./gradlew loadTest -PloadTest.args="--clients=50000 --rate=20000 --duration=PT10M"}.
+ */
+public final class LoadTest {
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTestConfig config = LoadTestConfig.parse(args);
+        System.out.println("Load test: " + config);
+        boolean passed = run(config);
+        System.exit(passed ? 0 : 1);
+    }
+
+    static boolean run(LoadTestConfig config) throws Exception {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        ConflationProperties conflationProperties = new ConflationProperties();
+        TwinSubscriptionIndex twinSubscriptionIndex = new TwinSubscriptionIndex(1000);
+        ReplayBufferStore replayBufferStore = new ReplayBufferStore(true, 128, DataSize.ofKilobytes(64),
+                DataSize.ofMegabytes(256), Duration.ofMinutes(10));
+        ConnectionRegistry registry = new ConnectionRegistry(twinSubscriptionIndex, conflationProperties,
+                replayBufferStore, OfflineMailbox.NONE, ConnectionDirectory.NONE, 64, 256,
+                ClientStream.OverflowPolicy.DROP_OLDEST, meterRegistry);
+        SessionExpiryScheduler expiryScheduler = new SessionExpiryScheduler(registry, false,
+                Duration.ofMinutes(5), Duration.ofMillis(100), 512);
+        ExecutorService callExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2);
+        TwinfaceDataStreamingServer server = new TwinfaceDataStreamingServer(
+                new AuthInterceptor(new StubIntrospectService(), true, callExecutor), registry, twinSubscriptionIndex,
+                conflationProperties, expiryScheduler, callExecutor, new GrpcTransportProperties(), 0);
+        server.start();
+        TwinsNotificationsConsumer consumer = new TwinsNotificationsConsumer(
+                new TwinfaceGrpcNotifier(registry, meterRegistry),
+                new NotificationRouter(ConnectionDirectory.NONE, null, new NodeIdentity("load-test"), false, meterRegistry),
+                CircuitBreaker.ofDefaults("load-test"),
+                new InfrastructureErrorNotifier(registry), null, TwinsNotificationsConsumer.RetryMode.SCHEDULED, 1, 1000,
+                meterRegistry);
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long heapBefore = settledHeapUsed(memory);
+
+        List<ManagedChannel> channels = new ArrayList<>(config.channels());
+        for (int i = 0; i < config.channels(); i++) {
+            channels.add(NettyChannelBuilder.forAddress("localhost", server.server.getPort()).usePlaintext().build());
+        }
+        ScheduledExecutorService slowReader = Executors.newScheduledThreadPool(2);
+        ClientMetrics metrics = new ClientMetrics();
+        CountDownLatch subscribed = new CountDownLatch(config.clients());
+        List<SimulatedClient> clients = new ArrayList<>(config.clients());
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < config.clients(); i++) {
+            UUID clientId = UUID.randomUUID();
+            boolean slow = i < config.clients() * config.slowClientRatio();
+            SimulatedClient client = new SimulatedClient(clientId, slow, config.slowClientDelay(), slowReader,
+                    metrics, subscribed);
+            Metadata headers = new Metadata();
+            headers.put(Metadata.Key.of("authorization", Metadata.ASCII_STRING_MARSHALLER), "Bearer " + clientId);
+            TwinfaceSubscribeServiceGrpc.newStub(channels.get(i % channels.size()))
+                    .withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers))
+                    .getDataUpdates(TwinfaceSubscribeRequest.newBuilder().setClientId(clientId.toString()).build(), client);
+            clients.add(client);
+        }
+        if (!subscribed.await(5, TimeUnit.MINUTES)) {
+            System.out.println("FAIL: only " + (config.clients() - subscribed.getCount()) + " of "
+                    + config.clients() + " clients subscribed within 5 minutes");
+            return false;
+        }
+        double connectSeconds = (System.nanoTime() - connectStart) / 1e9;
+        long heapAfter = settledHeapUsed(memory);
+        double heapPerConnKb = (heapAfter - heapBefore) / 1024.0 / config.clients();
+
+        // inject notifications at the configured rate
+        UUID[] clientIds = clients.stream().map(SimulatedClient::clientId).toArray(UUID[]::new);
+        AtomicBoolean producing = new AtomicBoolean(true);
+        LongAdder injected = new LongAdder();
+        ExecutorService producers = Executors.newFixedThreadPool(config.producers());
+        long intervalNanos = (long) (config.producers() * 1e9 / config.rate());
+        for (int p = 0; p < config.producers(); p++) {
+            producers.execute(() -> {
+                long next = System.nanoTime();
+                while (producing.get()) {
+                    consumer.handleNotification(notification(clientIds, config.fanOut()), null, null);
+                    injected.increment();
+                    next += intervalNanos;
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+            });
+        }
+
+        Thread.sleep(config.warmup().toMillis());
+        long injectedBefore = injected.sum();
+        GcPauseMonitor gcPauses = new GcPauseMonitor();
+        metrics.startMeasuring();
+        long measureStart = System.nanoTime();
+        Thread.sleep(config.duration().toMillis());
+        metrics.stopMeasuring();
+        double seconds = (System.nanoTime() - measureStart) / 1e9;
+        gcPauses.close();
+        long injectedDuringRun = injected.sum() - injectedBefore;
+        producing.set(false);
+        producers.shutdown();
+        producers.awaitTermination(10, TimeUnit.SECONDS);
+
+        Histogram fast = metrics.fastLatencyMicros();
+        Histogram slow = metrics.slowLatencyMicros();
+        double throughput = metrics.fastDelivered() / seconds;
+        double p99Millis = fast.getValueAtPercentile(99.0) / 1000.0;
+        double p999Millis = fast.getValueAtPercentile(99.9) / 1000.0;
+
+        System.out.printf("Connected %d streams over %d channels in %.1f s (%.0f streams/s)%n",
+                config.clients(), config.channels(), connectSeconds, config.clients() / connectSeconds);
+        System.out.printf("Injected %.0f notifications/s (fan-out %d), delivered %.0f updates/s to fast clients, "
+                        + "%.0f updates/s to slow clients%n",
+                injectedDuringRun / seconds, config.fanOut(), throughput, metrics.slowDelivered() / seconds);
+        System.out.printf("Latency fast clients: p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms%n",
+                fast.getValueAtPercentile(50.0) / 1000.0, p99Millis, p999Millis, fast.getMaxValue() / 1000.0);
+        System.out.printf("Latency slow clients: p50 %.2f ms, p99 %.2f ms (informational)%n",
+                slow.getValueAtPercentile(50.0) / 1000.0, slow.getValueAtPercentile(99.0) / 1000.0);
+        System.out.printf("Heap per connection: %.1f KB (server and in-JVM client), registry estimate %d B%n",
+                heapPerConnKb, registry.estimatedFootprintBytes() / Math.max(1, registry.clientCount()));
+        System.out.printf("GC: %d pauses, %d ms total, max %d ms; failed streams: %d; queued updates: %d%n",
+                gcPauses.pauses(), gcPauses.totalPauseMillis(), gcPauses.maxPauseMillis(), metrics.failedStreams(),
+                registry.queueDepthSummary().totalQueued());
+
+        boolean passed = check("throughput", throughput >= config.minThroughput(),
+                "%.0f updates/s >= %.0f", throughput, config.minThroughput());
+        passed &= check("p99 latency", p99Millis <= config.maxP99Millis(),
+                "%.2f ms <= %.2f ms", p99Millis, config.maxP99Millis());
+        passed &= check("p99.9 latency", p999Millis <= config.maxP999Millis(),
+                "%.2f ms <= %.2f ms", p999Millis, config.maxP999Millis());
+        passed &= check("heap per connection", heapPerConnKb <= config.maxHeapPerConnKb(),
+                "%.1f KB <= %.1f KB", heapPerConnKb, config.maxHeapPerConnKb());
+        passed &= check("max GC pause", gcPauses.maxPauseMillis() <= config.maxGcPauseMillis(),
+                "%d ms <= %.0f ms", gcPauses.maxPauseMillis(), config.maxGcPauseMillis());
+        passed &= check("failed streams", metrics.failedStreams() == 0,
+                "%d == 0", metrics.failedStreams());
+
+        clients.forEach(SimulatedClient::cancel);
+        channels.forEach(ManagedChannel::shutdownNow);
+        slowReader.shutdownNow();
+        consumer.shutdown();
+        server.server.shutdownNow();
+        callExecutor.shutdownNow();
+        System.out.println(passed ? "PASSED" : "FAILED");
+        return passed;
+    }
+
+    private static byte[] notification(UUID[] clientIds, int fanOut) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        TwinsNotifyResponse.Builder builder = TwinsNotifyResponse.newBuilder()
+                .setUpdateId(UUID.randomUUID().toString())
+                .setTwinId(UUID.randomUUID().toString())
+                .setTimestamp(Instant.now().toString())
+                .setStatus(ResponseStatus.SUCCESS);
+        for (int i = 0; i < fanOut; i++) {
+            builder.addClientIds(clientIds[random.nextInt(clientIds.length)].toString());
+        }
+        return builder.build().toByteArray();
+    }
+
+    private static boolean check(String name, boolean ok, String format, Object... args) {
+        System.out.printf("%s %s: %s%n", ok ? "PASS" : "FAIL", name, String.format(format, args));
+        return ok;
+    }
+
+    private static long settledHeapUsed(MemoryMXBean memory) throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,74 @@
+package org.twins.horn.load;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parameters of a load or soak run, given as {@code --name=value} arguments.
+ *
+ * @param clients             simulated clients, one stream each
+ * @param slowClientRatio     share of clients that read slowly (0..1)
+ * @param slowClientDelay     pause of a slow client before it requests the next update
+ * @param channels            client connections the streams are spread over
+ * @param rate                notifications injected per second
+ * @param fanOut              client ids per notification
+ * @param producers           injecting threads, like the listener threads of {@code twins-notify}
+ * @param warmup              run time excluded from the measurements
+ * @param duration            measured run time; hours for a soak run
+ * @param minThroughput       required updates per second delivered to fast clients, {@code 0} to skip
+ * @param maxP99Millis        p99 delivery latency allowed for fast clients
+ * @param maxP999Millis       p99.9 delivery latency allowed for fast clients
+ * @param maxHeapPerConnKb    heap growth allowed per connected stream (server and in-JVM client)
+ * @param maxGcPauseMillis    longest stop-the-world GC pause allowed during the run
+ */
+record LoadTestConfig(int clients,
+                      double slowClientRatio,
+                      Duration slowClientDelay,
+                      int channels,
+                      int rate,
+                      int fanOut,
+                      int producers,
+                      Duration warmup,
+                      Duration duration,
+                      double minThroughput,
+                      double maxP99Millis,
+                      double maxP999Millis,
+                      double maxHeapPerConnKb,
+                      double maxGcPauseMillis) {
+
+    static LoadTestConfig parse(String[] args) {
+        Map<String, String> values = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value, got: " + arg);
+            }
+            int separator = arg.indexOf('=');
+            values.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        LoadTestConfig config = new LoadTestConfig(
+                Integer.parseInt(take(values, "clients", "10000")),
+                Double.parseDouble(take(values, "slow-client-ratio", "0.05")),
+                Duration.parse(take(values, "slow-client-delay", "PT0.05S")),
+                Integer.parseInt(take(values, "channels", "16")),
+                Integer.parseInt(take(values, "rate", "5000")),
+                Integer.parseInt(take(values, "fan-out", "10")),
+                Integer.parseInt(take(values, "producers", "3")),
+                Duration.parse(take(values, "warmup", "PT10S")),
+                Duration.parse(take(values, "duration", "PT60S")),
+                Double.parseDouble(take(values, "min-throughput", "0")),
+                Double.parseDouble(take(values, "max-p99-ms", "250")),
+                Double.parseDouble(take(values, "max-p999-ms", "1000")),
+                Double.parseDouble(take(values, "max-heap-per-conn-kb", "64")),
+                Double.parseDouble(take(values, "max-gc-pause-ms", "200")));
+        if (!values.isEmpty()) {
+            throw new IllegalArgumentException("Unknown options: " + values.keySet());
+        }
+        return config;
+    }
+
+    private static String take(Map<String, String> values, String name, String defaultValue) {
+        String value = values.remove(name);
+        return value == null ? defaultValue : value;
+    }
+}
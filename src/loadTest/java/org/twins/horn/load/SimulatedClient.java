@@ -0,0 +1,88 @@
+package org.twins.horn.load;
+
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto.TwinfaceSubscribeRequest;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto.TwinfaceSubscribeUpdate;
+
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One subscribed client. A fast client reads as fast as the transport delivers; a slow one asks
+ * for the next update only after {@code slowDelay}, so its server-side queue fills up and the
+ * overflow policy kicks in.
+ */
+final class SimulatedClient implements ClientResponseObserver<TwinfaceSubscribeRequest, TwinfaceSubscribeUpdate> {
+
+    private final UUID clientId;
+    private final boolean slow;
+    private final Duration slowDelay;
+    private final ScheduledExecutorService scheduler;
+    private final ClientMetrics metrics;
+    private final CountDownLatch subscribed;
+    private ClientCallStreamObserver<TwinfaceSubscribeRequest> requestStream;
+    private boolean confirmed; // only touched from the call's serialized callbacks
+
+    SimulatedClient(UUID clientId, boolean slow, Duration slowDelay, ScheduledExecutorService scheduler,
+                    ClientMetrics metrics, CountDownLatch subscribed) {
+        this.clientId = clientId;
+        this.slow = slow;
+        this.slowDelay = slowDelay;
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+        this.subscribed = subscribed;
+    }
+
+    UUID clientId() {
+        return clientId;
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<TwinfaceSubscribeRequest> requestStream) {
+        this.requestStream = requestStream;
+        if (slow) {
+            requestStream.disableAutoRequestWithInitial(1);
+        }
+    }
+
+    @Override
+    public void onNext(TwinfaceSubscribeUpdate update) {
+        if (update.getUpdatedTwinIdsCount() == 0) {
+            // initial confirmation of the subscription
+            confirm();
+        } else {
+            metrics.delivered(slow, update.getTimestamp());
+        }
+        if (slow) {
+            scheduler.schedule(() -> requestStream.request(1), slowDelay.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        metrics.streamFailed();
+        confirm();
+    }
+
+    @Override
+    public void onCompleted() {
+        confirm();
+    }
+
+    void cancel() {
+        if (requestStream != null) {
+            requestStream.cancel("Load test finished", null);
+        }
+    }
+
+    private void confirm() {
+        if (!confirmed) {
+            confirmed = true;
+            subscribed.countDown();
+        }
+    }
+}
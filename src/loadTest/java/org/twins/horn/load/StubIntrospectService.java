@@ -0,0 +1,39 @@
+package org.twins.horn.load;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.twins.horn.service.auth.TwinsTokenIntrospectService;
+import org.twins.horn.service.auth.dto.TokenIntrospectRsDTOv1;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Introspection endpoint stand-in: every token is active and names its client, i.e. the bearer
+ * token of a simulated client is its client id. Tokens stay valid for a day so no expiry timer
+ * fires during a run.
+ */
+final class StubIntrospectService extends TwinsTokenIntrospectService {
+
+    StubIntrospectService() {
+        super(null, null, null, null, "http://localhost/introspect", Duration.ofSeconds(1), Runnable::run,
+                new SimpleMeterRegistry());
+    }
+
+    @Override
+    public TokenIntrospectRsDTOv1 validateToken(String authToken) {
+        return introspect(authToken);
+    }
+
+    @Override
+    public CompletableFuture<TokenIntrospectRsDTOv1> validateTokenAsync(String authToken) {
+        return CompletableFuture.completedFuture(introspect(authToken));
+    }
+
+    private static TokenIntrospectRsDTOv1 introspect(String authToken) {
+        TokenIntrospectRsDTOv1 tokenInfo = new TokenIntrospectRsDTOv1();
+        tokenInfo.setActive("true");
+        tokenInfo.setClientId(authToken);
+        tokenInfo.setExp(System.currentTimeMillis() / 1000 + Duration.ofDays(1).toSeconds());
+        return tokenInfo;
+    }
+}
@@ -1,16 +1,29 @@
 package org.twins.horn;
 
 import org.springframework.amqp.core.Queue;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.thread.Threading;
 import org.springframework.context.annotation.Bean;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+import org.twins.horn.config.ConflationProperties;
+import org.twins.horn.config.GrpcTransportProperties;
 import org.twins.horn.service.auth.TwinsTokenIntrospectService;
+import org.twins.horn.service.auth.session.SessionExpiryScheduler;
+import org.twins.horn.service.grpc.ConnectionRegistry;
 import org.twins.horn.service.grpc.TwinfaceDataStreamingServer;
+import org.twins.horn.service.grpc.TwinSubscriptionIndex;
 import org.twins.horn.service.grpc.TwinfaceGrpcNotifier;
 import org.twins.horn.service.grpc.security.AuthInterceptor;
 import org.twins.horn.service.queue.TwinsNotificationsConsumer;
 
 import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
  * Entry point for the Horn micro-service.
@@ -21,8 +34,12 @@ import java.io.IOException;
  * <ul>
  *   <li>Runs {@link SpringApplication} with package scan rooted at {@code org.twins.horn}.</li>
  *   <li>Declares a durable RabbitMQ queue {@code twins-notify}; its message TTL is
- *       taken from the system property {@code twins-notify.ttl} (default&nbsp;60&nbsp;s).</li>
- *   <li>Instantiates and starts {@link TwinfaceDataStreamingServer} which forwards
+ *       taken from the system property {@code twins-notify.ttl} (default&nbsp;60&nbsp;s), and with
+ *       {@code twins-notify.retry.mode=BROKER} the delay queue {@code twins-notify.retry}
+ *       that feeds retried notifications back into it. The per-node queues of cluster routing
+ *       are declared by {@link org.twins.horn.config.ClusterRoutingConfig}.</li>
+ *   <li>Instantiates and starts {@link TwinfaceDataStreamingServer} (on virtual threads when
+ *       {@code spring.threads.virtual.enabled} is set and the JVM supports them) which forwards
  *       queue notifications to connected gRPC clients while securing calls via
  *       {@link AuthInterceptor}.</li>
  * </ul>
@@ -49,16 +66,50 @@ public class Application {
     }
 
     @Bean
-    public AuthInterceptor authInterceptor (TwinsTokenIntrospectService twinsTokenIntrospectService) {
+    @ConditionalOnProperty(name = "twins-notify.retry.mode", havingValue = "BROKER")
+    public Queue twinsNotificationRetryQueue() {
+        // delay queue for broker-side retries: each message carries its back-off as expiration and is
+        // dead-lettered back to twins-notify when it expires
+        java.util.Map<String, Object> args = java.util.Map.of(
+                "x-dead-letter-exchange", "",
+                "x-dead-letter-routing-key", "twins-notify");
+        return new Queue(TwinsNotificationsConsumer.RETRY_QUEUE, true, false, false, args);
+    }
+
+    /**
+     * Executor of the gRPC calls, also used by {@link AuthInterceptor} to start calls once their token
+     * is validated and by {@link TwinsTokenIntrospectService} to record sessions.
+     */
+    @Bean
+    public Executor grpcCallExecutor(Environment environment) {
+        // Calls block on introspection and session persistence: with spring.threads.virtual.enabled (JDK 21+)
+        // every call gets its own virtual thread, otherwise they share a fixed pool
+        return Threading.VIRTUAL.isActive(environment)
+                ? new VirtualThreadTaskExecutor("grpc-call-")
+                : Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    @Bean
+    public AuthInterceptor authInterceptor (TwinsTokenIntrospectService twinsTokenIntrospectService,
+                                            @Value("${twins.introspection.async.enabled:true}") boolean asyncAuth,
+                                            @Qualifier("grpcCallExecutor") Executor grpcCallExecutor) {
         // Create the AuthInterceptor bean for gRPC authentication
-        return new AuthInterceptor(twinsTokenIntrospectService);
+        return new AuthInterceptor(twinsTokenIntrospectService, asyncAuth, grpcCallExecutor);
     }
 
     @Bean
-    public TwinfaceDataStreamingServer twinfaceDataStreamingServer(                                                                  TwinsTokenIntrospectService introspectService) {
+    public TwinfaceDataStreamingServer twinfaceDataStreamingServer(AuthInterceptor authInterceptor,
+                                                                   ConnectionRegistry connectionRegistry,
+                                                                   TwinSubscriptionIndex twinSubscriptionIndex,
+                                                                   ConflationProperties conflationProperties,
+                                                                   SessionExpiryScheduler sessionExpiryScheduler,
+                                                                   GrpcTransportProperties grpcTransportProperties,
+                                                                   @Value("${grpc.server.port:9090}") int grpcServerPort,
+                                                                   @Qualifier("grpcCallExecutor") Executor grpcCallExecutor) {
         // Build the gRPC server wrapper
-        TwinfaceDataStreamingServer server = new TwinfaceDataStreamingServer(
-                authInterceptor(introspectService));
+        TwinfaceDataStreamingServer server = new TwinfaceDataStreamingServer(authInterceptor, connectionRegistry,
+                twinSubscriptionIndex, conflationProperties, sessionExpiryScheduler, grpcCallExecutor,
+                grpcTransportProperties, grpcServerPort);
         try {
             server.start();
         } catch (IOException e) { //todo - handle properly
@@ -0,0 +1,91 @@
+package org.twins.horn.config;
+
+import org.springframework.amqp.core.Binding;
+import org.springframework.amqp.core.DirectExchange;
+import org.springframework.amqp.core.ExchangeBuilder;
+import org.springframework.amqp.core.FanoutExchange;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.core.QueueBuilder;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.twins.horn.service.cluster.NotificationRouter;
+import org.twins.horn.service.queue.TwinsNotificationsConsumer;
+
+/**
+ * RabbitMQ topology of cluster routing ({@code twinhorn.cluster.routing.enabled=true}), see
+ * {@link NotificationRouter}.
+ * <p>
+ * The node queue {@code twins-notify.node.<node id>} is non-durable and auto-delete: it goes away
+ * with its node's last consumer, after which messages published for that node are unroutable and
+ * the direct exchange hands them to its alternate exchange, which feeds {@code twins-notify}.
+ * Its message TTL matches {@code twins-notify}.
+ * <p>
+ * With {@code twins-notify.retry.mode=BROKER} the node also has its own delay queue
+ * {@code twins-notify.retry.node.<node id>} for notifications it routed already. Expired messages are
+ * dead-lettered to the node exchange with the node id as routing key, back to the node queue, or
+ * through the alternate exchange to {@code twins-notify} once the node is gone. The queue is
+ * exclusive to the node's connection, so it does not outlive the node; retries parked in it are lost
+ * when the connection drops.
+ */
+@Configuration
+@ConditionalOnProperty(name = "twinhorn.cluster.routing.enabled", havingValue = "true")
+public class ClusterRoutingConfig {
+
+    private static final String INGRESS_QUEUE = "twins-notify";
+
+    @Bean
+    public FanoutExchange unroutedNotificationExchange() {
+        return new FanoutExchange(NotificationRouter.UNROUTED_EXCHANGE, true, false);
+    }
+
+    @Bean
+    public Binding unroutedNotificationBinding() {
+        return new Binding(INGRESS_QUEUE, Binding.DestinationType.QUEUE, NotificationRouter.UNROUTED_EXCHANGE, "", null);
+    }
+
+    @Bean
+    public DirectExchange nodeNotificationExchange() {
+        return ExchangeBuilder.directExchange(NotificationRouter.NODE_EXCHANGE)
+                .durable(true)
+                .alternate(NotificationRouter.UNROUTED_EXCHANGE)
+                .build();
+    }
+
+    @Bean
+    public FanoutExchange broadcastNotificationExchange() {
+        return new FanoutExchange(NotificationRouter.BROADCAST_EXCHANGE, true, false);
+    }
+
+    @Bean
+    public Queue nodeNotificationQueue(NodeIdentity nodeIdentity) {
+        String ttlProp = System.getProperty("twins-notify.ttl", "60000"); // same TTL as twins-notify
+        return QueueBuilder.nonDurable(NotificationRouter.NODE_QUEUE_PREFIX + nodeIdentity.getNodeId())
+                .autoDelete()
+                .ttl(Integer.parseInt(ttlProp))
+                .build();
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "twins-notify.retry.mode", havingValue = "BROKER")
+    public Queue nodeRetryQueue(NodeIdentity nodeIdentity) {
+        return QueueBuilder.nonDurable(TwinsNotificationsConsumer.NODE_RETRY_QUEUE_PREFIX + nodeIdentity.getNodeId())
+                .exclusive()
+                .autoDelete()
+                .deadLetterExchange(NotificationRouter.NODE_EXCHANGE)
+                .deadLetterRoutingKey(nodeIdentity.getNodeId())
+                .build();
+    }
+
+    @Bean
+    public Binding nodeNotificationBinding(NodeIdentity nodeIdentity) {
+        return new Binding(NotificationRouter.NODE_QUEUE_PREFIX + nodeIdentity.getNodeId(), Binding.DestinationType.QUEUE,
+                NotificationRouter.NODE_EXCHANGE, nodeIdentity.getNodeId(), null);
+    }
+
+    @Bean
+    public Binding broadcastNotificationBinding(NodeIdentity nodeIdentity) {
+        return new Binding(NotificationRouter.NODE_QUEUE_PREFIX + nodeIdentity.getNodeId(), Binding.DestinationType.QUEUE,
+                NotificationRouter.BROADCAST_EXCHANGE, "", null);
+    }
+}
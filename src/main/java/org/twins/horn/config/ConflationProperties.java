@@ -0,0 +1,84 @@
+package org.twins.horn.config;
+
+import lombok.AccessLevel;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto.TwinEventType;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Conflation windows of outbound stream updates ({@code grpc.stream.conflation.*}).
+ * <p>
+ * Updates of an event type with a window are not written immediately; everything a stream receives
+ * within the window is merged into one update whose {@code updated_twin_ids} is the de-duplicated
+ * union. A stream may ask for its own {@code TWIN_UPDATE} window through
+ * {@code conflation_window_ms}, bounded by {@link #maxWindow}.
+ * <p>
+ * The resolved windows are shared by all streams that end up with the same ones, so a stream
+ * costs no array of its own; there are at most {@link #maxWindow} in milliseconds plus one of them.
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "grpc.stream.conflation")
+public class ConflationProperties {
+
+    /**
+     * Server default window per event type; types without an entry are never delayed.
+     */
+    private Map<TwinEventType, Duration> window = new EnumMap<>(TwinEventType.class);
+
+    /**
+     * Upper bound of a window requested by a client.
+     */
+    private Duration maxWindow = Duration.ofSeconds(1);
+
+    /**
+     * Hard cap on the merged twin id set; a full set is flushed before the window ends.
+     */
+    private int maxTwinIds = 1000;
+
+    /**
+     * Resolution of the conflation timers.
+     */
+    private Duration tick = Duration.ofMillis(10);
+
+    // resolved windows by effective TWIN_UPDATE request, 0 for the server default
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private final Map<Integer, int[]> resolvedWindows = new ConcurrentHashMap<>();
+
+    /**
+     * Resolves the windows of one stream.
+     *
+     * @param requestedWindowMs {@code conflation_window_ms} of the subscription, {@code 0} for the default
+     * @return window in milliseconds indexed by {@code TwinEventType} number; shared, must not be modified
+     */
+    public int[] windowsMillis(int requestedWindowMs) {
+        int effectiveWindowMs = requestedWindowMs > 0 ? (int) Math.min(requestedWindowMs, maxWindow.toMillis()) : 0;
+        return resolvedWindows.computeIfAbsent(effectiveWindowMs, this::resolveWindowsMillis);
+    }
+
+    private int[] resolveWindowsMillis(int requestedWindowMs) {
+        int[] windows = new int[TwinEventType.values().length - 1]; // without UNRECOGNIZED
+        window.forEach((eventType, duration) -> {
+            if (eventType != TwinEventType.UNRECOGNIZED) {
+                windows[eventType.getNumber()] = (int) duration.toMillis();
+            }
+        });
+        if (requestedWindowMs > 0) {
+            windows[TwinEventType.TWIN_UPDATE_VALUE] = requestedWindowMs;
+        }
+        return windows;
+    }
+}
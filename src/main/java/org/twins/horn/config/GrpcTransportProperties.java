@@ -0,0 +1,91 @@
+package org.twins.horn.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+/**
+ * Netty transport profile of the streaming server ({@code grpc.server.transport.*}).
+ * <p>
+ * Keepalive pings and {@link #maxConnectionIdle} reap half-open and abandoned connections: gRPC
+ * cancels their calls, which unregisters the streams from {@code ConnectionRegistry}. A
+ * {@code null} duration disables the corresponding limit.
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "grpc.server.transport")
+public class GrpcTransportProperties {
+
+    /**
+     * Use native epoll event loops when available (Linux), NIO otherwise.
+     */
+    private boolean nativeTransport = true;
+
+    /**
+     * Threads accepting connections.
+     */
+    private int bossThreads = 1;
+
+    /**
+     * Threads serving connection I/O; {@code 0} lets Netty choose (2 x CPUs).
+     */
+    private int workerThreads = 0;
+
+    /**
+     * Initial HTTP/2 flow-control window per stream.
+     */
+    private DataSize flowControlWindow = DataSize.ofMegabytes(1);
+
+    /**
+     * Concurrent calls a single connection may open; {@code 0} for no limit.
+     */
+    private int maxConcurrentCallsPerConnection = 0;
+
+    /**
+     * Idle time after which the server pings the client.
+     */
+    private Duration keepAliveTime = Duration.ofSeconds(30);
+
+    /**
+     * Time to wait for the ping ack before the connection is closed.
+     */
+    private Duration keepAliveTimeout = Duration.ofSeconds(10);
+
+    /**
+     * Most frequent client keepalive accepted; clients pinging faster get {@code GOAWAY}.
+     */
+    private Duration permitKeepAliveTime = Duration.ofSeconds(20);
+
+    /**
+     * Whether clients may ping while they have no open call.
+     */
+    private boolean permitKeepAliveWithoutCalls = false;
+
+    /**
+     * Connections without any open call are closed after this time.
+     */
+    private Duration maxConnectionIdle = Duration.ofMinutes(5);
+
+    /**
+     * Connections are asked to reconnect after this age, spreading clients across replicas.
+     */
+    private Duration maxConnectionAge;
+
+    /**
+     * Time open calls get to finish once {@link #maxConnectionAge} is reached.
+     */
+    private Duration maxConnectionAgeGrace;
+
+    /**
+     * Outbound bytes buffered per connection below which Netty reports it writable again.
+     */
+    private DataSize writeBufferLowWaterMark = DataSize.ofKilobytes(32);
+
+    /**
+     * Outbound bytes buffered per connection above which Netty reports it not writable.
+     */
+    private DataSize writeBufferHighWaterMark = DataSize.ofKilobytes(64);
+}
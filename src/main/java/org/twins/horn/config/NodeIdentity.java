@@ -0,0 +1,41 @@
+package org.twins.horn.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.net.InetAddress;
+import java.util.UUID;
+
+/**
+ * Identity of this Twinhorn replica inside a cluster.
+ * <p>
+ * Taken from {@code twinhorn.node-id} when set (e.g. the pod name); otherwise generated once per
+ * process as {@code <hostname>-<random>} so a restarted node never reuses the leases or stream
+ * ownership of its previous incarnation.
+ */
+@Slf4j
+@Component
+public class NodeIdentity {
+
+    private final String nodeId;
+
+    public NodeIdentity(@Value("${twinhorn.node-id:}") String configuredNodeId) {
+        this.nodeId = configuredNodeId.isBlank() ? generate() : configuredNodeId;
+        log.info("Twinhorn node id: {}", nodeId);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    private static String generate() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            host = "twinhorn";
+        }
+        return host + "-" + UUID.randomUUID().toString().substring(0, 8);
+    }
+}
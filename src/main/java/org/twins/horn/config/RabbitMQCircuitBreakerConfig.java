@@ -4,6 +4,8 @@ import io.github.resilience4j.circuitbreaker.CircuitBreaker;
 import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
 import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
 import io.github.resilience4j.circuitbreaker.event.CircuitBreakerEvent;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -32,7 +34,7 @@ import java.time.Duration;
 public class RabbitMQCircuitBreakerConfig {
 
     @Bean(name = "rabbitCircuitBreaker")
-    public CircuitBreaker rabbitCircuitBreaker() {
+    public CircuitBreaker rabbitCircuitBreaker(MeterRegistry meterRegistry) {
         CircuitBreakerConfig cbConfig = CircuitBreakerConfig.custom()
                 .failureRateThreshold(50f)
                 .slidingWindowSize(50)
@@ -47,6 +49,11 @@ public class RabbitMQCircuitBreakerConfig {
         // Optional: log state transitions for observability
         circuitBreaker.getEventPublisher().onEvent(this::logEvent);
 
+        // 0 CLOSED, 1 OPEN, 2 HALF_OPEN (see CircuitBreaker.State#getOrder)
+        Gauge.builder("twinhorn.rabbit.circuit-breaker.state", circuitBreaker, cb -> cb.getState().getOrder())
+                .description("State of the RabbitMQ circuit breaker")
+                .register(meterRegistry);
+
         return circuitBreaker;
     }
 
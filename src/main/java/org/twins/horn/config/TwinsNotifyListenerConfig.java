@@ -0,0 +1,50 @@
+package org.twins.horn.config;
+
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.SimpleRabbitListenerContainerFactoryConfigurer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+/**
+ * Listener container used by the batch mode of the {@code twins-notify} consumer
+ * ({@code twins-notify.batch.enabled=true}).
+ * <p>
+ * Each consumer collects up to {@code twins-notify.batch.size} messages, or whatever arrived within
+ * {@code twins-notify.batch.receive-timeout}, and hands them to the listener as one list. The
+ * container acknowledges the whole batch with a single {@code basic.ack(multiple=true)} after the
+ * listener returns. Prefetch defaults to two batches so the next batch is already buffered on the
+ * client while the current one is delivered.
+ * <p>
+ * The factory is built through Boot's configurer, so {@code spring.rabbitmq.listener.simple.*} and,
+ * with {@code spring.threads.virtual.enabled}, the virtual-thread consumer executor apply as for the
+ * single-message listener.
+ */
+@Configuration
+public class TwinsNotifyListenerConfig {
+
+    @Bean
+    public SimpleRabbitListenerContainerFactory twinsNotifyBatchContainerFactory(
+            SimpleRabbitListenerContainerFactoryConfigurer configurer,
+            ConnectionFactory connectionFactory,
+            @Value("${twins-notify.batch.size:100}") int batchSize,
+            @Value("${twins-notify.batch.receive-timeout:PT0.05S}") Duration receiveTimeout,
+            @Value("${twins-notify.batch.prefetch:0}") int prefetch,
+            @Value("${twins-notify.concurrency:3}") int concurrency) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setDeBatchingEnabled(true);
+        factory.setBatchSize(batchSize);
+        factory.setReceiveTimeout(receiveTimeout.toMillis());
+        factory.setPrefetchCount(prefetch > 0 ? prefetch : batchSize * 2);
+        factory.setAcknowledgeMode(AcknowledgeMode.AUTO);
+        factory.setConcurrentConsumers(concurrency);
+        return factory;
+    }
+}
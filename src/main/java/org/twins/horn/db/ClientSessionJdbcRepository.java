@@ -0,0 +1,98 @@
+package org.twins.horn.db;
+
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Set-based JDBC access to {@code client_session} for paths where the per-entity JPA
+ * round-trips of {@link ClientSessionRepository} are too expensive.
+ */
+@Repository
+public class ClientSessionJdbcRepository {
+
+    private static final String UPSERT_SQL = """
+            INSERT INTO client_session (client_id, created_at, expires_at, status)
+            VALUES (?, ?, ?, ?)
+            ON CONFLICT (client_id) DO UPDATE
+               SET created_at = EXCLUDED.created_at,
+                   expires_at = EXCLUDED.expires_at,
+                   status     = EXCLUDED.status
+            """;
+
+    /**
+     * Moves one page of expired sessions to the next status. {@code SKIP LOCKED} lets concurrent
+     * sweepers work on disjoint pages instead of blocking each other. The hash predicate restricts
+     * the page to one partition of {@code client_id} (a single partition matches every row).
+     */
+    private static final String TRANSITION_SQL = """
+            UPDATE client_session
+               SET status = ?
+             WHERE client_id IN (SELECT client_id
+                                   FROM client_session
+                                  WHERE status = ?
+                                    AND expires_at < ?
+                                    AND (hashtext(client_id::text)::bigint & 2147483647) % ? = ?
+                                  ORDER BY expires_at
+                                  LIMIT ?
+                                    FOR UPDATE SKIP LOCKED)
+               AND status = ?
+            RETURNING client_id
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public ClientSessionJdbcRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Inserts or updates all sessions with a single JDBC batch ({@code INSERT ... ON CONFLICT}).
+     */
+    public void upsertAll(List<ClientSessionEntity> sessions) {
+        if (sessions.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate(UPSERT_SQL, new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                ClientSessionEntity session = sessions.get(i);
+                ps.setObject(1, session.getClientId());
+                ps.setTimestamp(2, Timestamp.from(session.getCreatedAt()));
+                if (session.getExpiresAt() != null) {
+                    ps.setTimestamp(3, Timestamp.from(session.getExpiresAt()));
+                } else {
+                    ps.setNull(3, Types.TIMESTAMP);
+                }
+                ps.setString(4, session.getStatus());
+            }
+
+            @Override
+            public int getBatchSize() {
+                return sessions.size();
+            }
+        });
+    }
+
+    /**
+     * Bulk status transition of at most {@code pageSize} sessions in {@code fromStatus} whose
+     * {@code expires_at} is before {@code deadline}, served by the partial index of the source status.
+     *
+     * @param partition      partition to sweep, {@code 0 <= partition < partitionCount}
+     * @param partitionCount number of hash partitions of {@code client_id}
+     * @return ids of the transitioned sessions; fewer than {@code pageSize} means nothing is left
+     */
+    public List<UUID> transitionExpired(String fromStatus, String toStatus, Instant deadline,
+                                        int partition, int partitionCount, int pageSize) {
+        return jdbcTemplate.queryForList(TRANSITION_SQL, UUID.class,
+                toStatus, fromStatus, Timestamp.from(deadline), partitionCount, partition, pageSize, fromStatus);
+    }
+}
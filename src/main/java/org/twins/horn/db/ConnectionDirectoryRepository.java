@@ -0,0 +1,157 @@
+package org.twins.horn.db;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * JDBC access to {@code connection_directory} and {@code cluster_node}. Changes of a node are
+ * written set-based, one statement per chunk of clients; liveness uses the database clock like
+ * {@link SchedulerLeaseRepository}, so replicas with skewed clocks agree on which nodes are alive.
+ */
+@Repository
+public class ConnectionDirectoryRepository {
+
+    private static final String INSERT_SQL = """
+            INSERT INTO connection_directory (client_id, node_id)
+            SELECT client_id, ? FROM unnest(?) AS client_id
+            ON CONFLICT (client_id, node_id) DO NOTHING
+            """;
+
+    private static final String DELETE_SQL = """
+            DELETE FROM connection_directory
+             WHERE node_id = ?
+               AND client_id = ANY (?)
+            """;
+
+    private static final String DELETE_NODE_SQL = "DELETE FROM connection_directory WHERE node_id = ?";
+
+    private static final String HEARTBEAT_SQL = """
+            INSERT INTO cluster_node (node_id, expires_at)
+            VALUES (?, now() + ? * INTERVAL '1 millisecond')
+            ON CONFLICT (node_id) DO UPDATE
+               SET expires_at = EXCLUDED.expires_at
+            """;
+
+    private static final String REMOVE_NODE_SQL = "DELETE FROM cluster_node WHERE node_id = ?";
+
+    /**
+     * Owners among live nodes other than {@code ?}, served by the primary key.
+     */
+    private static final String FIND_OWNERS_SQL = """
+            SELECT d.client_id, d.node_id
+              FROM connection_directory d
+              JOIN cluster_node n ON n.node_id = d.node_id
+             WHERE d.client_id = ANY (?)
+               AND d.node_id <> ?
+               AND n.expires_at > now()
+            """;
+
+    private static final String PURGE_EXPIRED_SQL = """
+            DELETE FROM connection_directory
+             WHERE (client_id, node_id) IN (SELECT d.client_id, d.node_id
+                                              FROM connection_directory d
+                                              JOIN cluster_node n ON n.node_id = d.node_id
+                                             WHERE n.expires_at < now()
+                                             LIMIT ?
+                                               FOR UPDATE OF d SKIP LOCKED)
+            """;
+
+    /**
+     * Expired nodes whose rows are all gone; a node that comes back simply inserts itself again.
+     */
+    private static final String PURGE_NODES_SQL = """
+            DELETE FROM cluster_node n
+             WHERE n.expires_at < now()
+               AND NOT EXISTS (SELECT 1 FROM connection_directory d WHERE d.node_id = n.node_id)
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public ConnectionDirectoryRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Records the node as holding streams of the clients; already recorded ones are skipped.
+     */
+    public void insert(String nodeId, Collection<UUID> clientIds) {
+        if (clientIds.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.update(INSERT_SQL, ps -> {
+            ps.setString(1, nodeId);
+            ps.setArray(2, ps.getConnection().createArrayOf("uuid", clientIds.toArray()));
+        });
+    }
+
+    public void delete(String nodeId, Collection<UUID> clientIds) {
+        if (clientIds.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.update(DELETE_SQL, ps -> {
+            ps.setString(1, nodeId);
+            ps.setArray(2, ps.getConnection().createArrayOf("uuid", clientIds.toArray()));
+        });
+    }
+
+    /**
+     * Drops every row of the node, e.g. those left by its previous run under the same id.
+     */
+    public void deleteNode(String nodeId) {
+        jdbcTemplate.update(DELETE_NODE_SQL, nodeId);
+    }
+
+    /**
+     * Marks the node alive for {@code ttl} after this call.
+     */
+    public void heartbeat(String nodeId, Duration ttl) {
+        jdbcTemplate.update(HEARTBEAT_SQL, nodeId, ttl.toMillis());
+    }
+
+    public void removeNode(String nodeId) {
+        jdbcTemplate.update(REMOVE_NODE_SQL, nodeId);
+    }
+
+    /**
+     * @return live nodes other than {@code excludedNodeId} holding streams of each client; clients
+     * without any are absent
+     */
+    public Map<UUID, Set<String>> findOwners(Collection<UUID> clientIds, String excludedNodeId) {
+        Map<UUID, Set<String>> owners = new HashMap<>();
+        if (clientIds.isEmpty()) {
+            return owners;
+        }
+        jdbcTemplate.query(FIND_OWNERS_SQL, ps -> {
+            ps.setArray(1, ps.getConnection().createArrayOf("uuid", clientIds.toArray()));
+            ps.setString(2, excludedNodeId);
+        }, rs -> {
+            owners.computeIfAbsent(rs.getObject("client_id", UUID.class), id -> new HashSet<>())
+                    .add(rs.getString("node_id"));
+        });
+        return owners;
+    }
+
+    /**
+     * Deletes up to {@code limit} rows of expired nodes.
+     *
+     * @return number of rows deleted; fewer than {@code limit} means nothing is left
+     */
+    public int purgeExpired(int limit) {
+        return jdbcTemplate.update(PURGE_EXPIRED_SQL, limit);
+    }
+
+    /**
+     * @return number of expired nodes removed
+     */
+    public int purgeNodes() {
+        return jdbcTemplate.update(PURGE_NODES_SQL);
+    }
+}
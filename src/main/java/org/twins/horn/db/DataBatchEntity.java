@@ -18,9 +18,12 @@ import java.util.UUID;
  *   batch_id          UUID      PRIMARY KEY NOT NULL,
  *   created_at        TIMESTAMP NOT NULL,
  *   batch_data        JSONB,
- *   status            VARCHAR   NOT NULL DEFAULT 'PENDING'
+ *   status            VARCHAR   NOT NULL DEFAULT 'PENDING',
+ *   payload_id        UUID REFERENCES data_batch_payload(payload_id)
  * )
  * </pre>
+ * A payload shared by many clients is stored once in {@code data_batch_payload} and referenced
+ * through {@code payload_id}; {@code batch_data} is then empty.
  */
 @Data
 @NoArgsConstructor // required by JPA
@@ -46,6 +49,12 @@ public class DataBatchEntity {
     @Column(name = "batch_data", columnDefinition = "jsonb")
     private String batchData;
 
+    /**
+     * Shared payload in {@code data_batch_payload}, used instead of {@link #batchData}.
+     */
+    @Column(name = "payload_id")
+    private UUID payloadId;
+
     @Enumerated(EnumType.STRING)
     @Column(name = "status", nullable = false)
     private Status status = Status.PENDING;
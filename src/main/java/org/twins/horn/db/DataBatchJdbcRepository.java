@@ -0,0 +1,276 @@
+package org.twins.horn.db;
+
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Set-based JDBC access to {@code data_batch} used as the offline mailbox of clients: rows are
+ * written in JDBC batches and moved between statuses in bulk instead of through
+ * {@link DataBatchRepository} one entity at a time.
+ * <p>
+ * A payload addressed to many clients is stored once in {@code data_batch_payload}; the per-client
+ * rows reference it through {@code payload_id} and leave {@code batch_data} empty.
+ * {@code DataBatchMailbox} owns every row: the mailbox reads any pending row as one of its
+ * updates, so nothing else may insert rows in another payload format.
+ * <p>
+ * Status meaning for mailbox rows: {@code PENDING} waits for the client, {@code COMPLETED} was
+ * delivered, {@code FAILED} was dropped by the count or age bound and only marks that the client
+ * missed something.
+ */
+@Repository
+public class DataBatchJdbcRepository {
+
+    private static final String INSERT_PAYLOAD_SQL = """
+            INSERT INTO data_batch_payload (payload_id, created_at, payload)
+            VALUES (?, ?, ?::jsonb)
+            """;
+
+    /**
+     * Rows of clients without a session are skipped instead of violating the foreign key; the
+     * check is a primary key probe of {@code client_session}.
+     */
+    private static final String INSERT_PENDING_SQL = """
+            INSERT INTO data_batch (batch_id, client_session_id, created_at, payload_id, status)
+            SELECT ?, ?, ?, ?, 'PENDING'
+             WHERE EXISTS (SELECT 1 FROM client_session WHERE client_id = ?)
+            """;
+
+    /**
+     * Keeps the newest {@code ?} pending rows of each listed client.
+     */
+    private static final String TRIM_TO_NEWEST_SQL = """
+            UPDATE data_batch
+               SET status = 'FAILED'
+             WHERE batch_id IN (SELECT batch_id
+                                  FROM (SELECT batch_id,
+                                               row_number() OVER (PARTITION BY client_session_id
+                                                                  ORDER BY created_at DESC, batch_id DESC) AS position
+                                          FROM data_batch
+                                         WHERE status = 'PENDING'
+                                           AND client_session_id = ANY (?)) ranked
+                                 WHERE position > ?)
+               AND status = 'PENDING'
+            """;
+
+    private static final String FIND_PENDING_SQL = """
+            SELECT b.batch_id, coalesce(p.payload, b.batch_data) AS batch_data
+              FROM data_batch b
+              LEFT JOIN data_batch_payload p ON p.payload_id = b.payload_id
+             WHERE b.client_session_id = ?
+               AND b.status = 'PENDING'
+             ORDER BY b.created_at, b.batch_id
+             LIMIT ?
+            """;
+
+    private static final String COMPLETE_SQL = """
+            UPDATE data_batch
+               SET status = 'COMPLETED'
+             WHERE batch_id = ANY (?)
+            """;
+
+    private static final String ACKNOWLEDGE_FAILED_SQL = """
+            UPDATE data_batch
+               SET status = 'COMPLETED'
+             WHERE client_session_id = ?
+               AND status = 'FAILED'
+            """;
+
+    private static final String EXPIRE_PENDING_SQL = """
+            UPDATE data_batch
+               SET status = 'FAILED'
+             WHERE batch_id IN (SELECT batch_id
+                                  FROM data_batch
+                                 WHERE status = 'PENDING'
+                                   AND created_at < ?
+                                 LIMIT ?
+                                   FOR UPDATE SKIP LOCKED)
+            """;
+
+    /**
+     * Delivered rows go at once; dropped rows stay as a marker until {@code ?}.
+     */
+    private static final String PURGE_SQL = """
+            DELETE FROM data_batch
+             WHERE batch_id IN (SELECT batch_id
+                                  FROM data_batch
+                                 WHERE status = 'COMPLETED'
+                                    OR (status = 'FAILED' AND created_at < ?)
+                                 LIMIT ?
+                                   FOR UPDATE SKIP LOCKED)
+            """;
+
+    /**
+     * Payloads no row references any more; {@code ?} keeps those whose rows are still being inserted.
+     */
+    private static final String PURGE_PAYLOADS_SQL = """
+            DELETE FROM data_batch_payload
+             WHERE payload_id IN (SELECT payload_id
+                                    FROM data_batch_payload p
+                                   WHERE created_at < ?
+                                     AND NOT EXISTS (SELECT 1 FROM data_batch b WHERE b.payload_id = p.payload_id)
+                                   LIMIT ?
+                                     FOR UPDATE SKIP LOCKED)
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public DataBatchJdbcRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * A shared payload; {@code payload} is JSON.
+     */
+    public record Payload(UUID payloadId, Instant createdAt, String payload) {
+    }
+
+    /**
+     * A pending row of a client referencing a {@link Payload}.
+     */
+    public record MailboxRow(UUID batchId, UUID clientId, Instant createdAt, UUID payloadId) {
+    }
+
+    /**
+     * A pending row as read back; {@code batchData} is the JSON of its payload.
+     */
+    public record PendingBatch(UUID batchId, String batchData) {
+    }
+
+    /**
+     * Inserts payloads with a single JDBC batch; insert them before the rows referencing them.
+     */
+    public void insertPayloads(List<Payload> payloads) {
+        if (payloads.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate(INSERT_PAYLOAD_SQL, new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                Payload payload = payloads.get(i);
+                ps.setObject(1, payload.payloadId());
+                ps.setTimestamp(2, Timestamp.from(payload.createdAt()));
+                ps.setString(3, payload.payload());
+            }
+
+            @Override
+            public int getBatchSize() {
+                return payloads.size();
+            }
+        });
+    }
+
+    /**
+     * Inserts pending rows with a single JDBC batch, skipping clients without a session.
+     *
+     * @return number of rows inserted
+     */
+    public int insertPending(List<MailboxRow> rows) {
+        if (rows.isEmpty()) {
+            return 0;
+        }
+        int[] counts = jdbcTemplate.batchUpdate(INSERT_PENDING_SQL, new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                MailboxRow row = rows.get(i);
+                ps.setObject(1, row.batchId());
+                ps.setObject(2, row.clientId());
+                ps.setTimestamp(3, Timestamp.from(row.createdAt()));
+                ps.setObject(4, row.payloadId());
+                ps.setObject(5, row.clientId());
+            }
+
+            @Override
+            public int getBatchSize() {
+                return rows.size();
+            }
+        });
+        int inserted = 0;
+        for (int count : counts) {
+            // SUCCESS_NO_INFO (-2) when the driver does not report counts
+            inserted += count == Statement.SUCCESS_NO_INFO ? 1 : count;
+        }
+        return inserted;
+    }
+
+    /**
+     * Marks pending rows beyond the newest {@code maxPerClient} of each client as {@code FAILED}.
+     *
+     * @return number of rows dropped
+     */
+    public int trimToNewest(Collection<UUID> clientIds, int maxPerClient) {
+        if (clientIds.isEmpty()) {
+            return 0;
+        }
+        return jdbcTemplate.update(TRIM_TO_NEWEST_SQL, ps -> {
+            ps.setArray(1, ps.getConnection().createArrayOf("uuid", clientIds.toArray()));
+            ps.setInt(2, maxPerClient);
+        });
+    }
+
+    /**
+     * @return up to {@code pageSize} oldest pending rows of the client, served by the partial index
+     * on pending rows
+     */
+    public List<PendingBatch> findPending(UUID clientId, int pageSize) {
+        return jdbcTemplate.query(FIND_PENDING_SQL,
+                (rs, rowNum) -> new PendingBatch(rs.getObject("batch_id", UUID.class), rs.getString("batch_data")),
+                clientId, pageSize);
+    }
+
+    /**
+     * Marks the rows delivered with one statement.
+     */
+    public void complete(Collection<UUID> batchIds) {
+        if (batchIds.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.update(COMPLETE_SQL,
+                ps -> ps.setArray(1, ps.getConnection().createArrayOf("uuid", batchIds.toArray())));
+    }
+
+    /**
+     * Clears the dropped-row markers of a client.
+     *
+     * @return whether the client had missed updates
+     */
+    public boolean acknowledgeFailed(UUID clientId) {
+        return jdbcTemplate.update(ACKNOWLEDGE_FAILED_SQL, clientId) > 0;
+    }
+
+    /**
+     * Marks up to {@code limit} pending rows created before {@code cutoff} as {@code FAILED}.
+     *
+     * @return number of rows marked; fewer than {@code limit} means nothing is left
+     */
+    public int expirePending(Instant cutoff, int limit) {
+        return jdbcTemplate.update(EXPIRE_PENDING_SQL, Timestamp.from(cutoff), limit);
+    }
+
+    /**
+     * Deletes up to {@code limit} delivered rows and dropped-row markers created before {@code failedCutoff}.
+     *
+     * @return number of rows deleted; fewer than {@code limit} means nothing is left
+     */
+    public int purge(Instant failedCutoff, int limit) {
+        return jdbcTemplate.update(PURGE_SQL, Timestamp.from(failedCutoff), limit);
+    }
+
+    /**
+     * Deletes up to {@code limit} payloads created before {@code cutoff} that no row references.
+     *
+     * @return number of payloads deleted; fewer than {@code limit} means nothing is left
+     */
+    public int purgePayloads(Instant cutoff, int limit) {
+        return jdbcTemplate.update(PURGE_PAYLOADS_SQL, Timestamp.from(cutoff), limit);
+    }
+}
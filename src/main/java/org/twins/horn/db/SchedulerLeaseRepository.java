@@ -0,0 +1,57 @@
+package org.twins.horn.db;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.time.Duration;
+
+/**
+ * JDBC access to {@code scheduler_lease}. All expiry arithmetic uses the database clock so that
+ * replicas with skewed clocks still agree on who holds a lease.
+ */
+@Repository
+public class SchedulerLeaseRepository {
+
+    /**
+     * Takes the lease if it is free or expired, or renews it if {@code owner} already holds it.
+     */
+    private static final String ACQUIRE_SQL = """
+            INSERT INTO scheduler_lease (name, owner, expires_at)
+            VALUES (?, ?, now() + ? * INTERVAL '1 millisecond')
+            ON CONFLICT (name) DO UPDATE
+               SET owner      = EXCLUDED.owner,
+                   expires_at = EXCLUDED.expires_at
+             WHERE scheduler_lease.owner = EXCLUDED.owner
+                OR scheduler_lease.expires_at < now()
+            """;
+
+    private static final String RELEASE_SQL = "DELETE FROM scheduler_lease WHERE name = ? AND owner = ?";
+
+    private static final String COUNT_LIVE_SQL =
+            "SELECT count(*) FROM scheduler_lease WHERE name LIKE ? AND expires_at >= now()";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public SchedulerLeaseRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * @return {@code true} if {@code owner} holds the lease for {@code ttl} after this call
+     */
+    public boolean tryAcquire(String name, String owner, Duration ttl) {
+        return jdbcTemplate.update(ACQUIRE_SQL, name, owner, ttl.toMillis()) == 1;
+    }
+
+    public void release(String name, String owner) {
+        jdbcTemplate.update(RELEASE_SQL, name, owner);
+    }
+
+    /**
+     * @return number of unexpired leases whose name starts with {@code namePrefix}
+     */
+    public int countLive(String namePrefix) {
+        Integer count = jdbcTemplate.queryForObject(COUNT_LIVE_SQL, Integer.class, namePrefix + "%");
+        return count == null ? 0 : count;
+    }
+}
@@ -0,0 +1,215 @@
+package org.twins.horn.service.auth;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Ticker;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.twins.horn.service.auth.dto.TokenIntrospectRsDTOv1;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded cache of token introspection results placed in front of
+ * {@link TwinsTokenIntrospectService#validateToken(String)}.
+ * <p>
+ * Characteristics:
+ * <ul>
+ *   <li>Keys are SHA-256 digests of the raw token, so bearer tokens never stay in heap
+ *       longer than the request that carried them.</li>
+ *   <li>Positive entries live for {@code twins.introspection.cache.ttl} but never past the
+ *       token {@code exp} reported by the introspection endpoint; a lookup also checks
+ *       {@code exp} against the wall clock, so a token is not served past it even if the clock
+ *       jumped since the entry was stored.</li>
+ *   <li>Negative entries (inactive / rejected tokens) live for
+ *       {@code twins.introspection.cache.negative-ttl}, which protects the endpoint from
+ *       clients hammering it with a revoked token.</li>
+ *   <li>A hit on a positive entry records the client session again once
+ *       {@code twins.introspection.cache.session-refresh} has passed since the entry last did (see
+ *       {@link #sessionRefreshDue(CachedIntrospection)}), so cached tokens keep the session's
+ *       last-seen time current without a write per authentication.</li>
+ *   <li>Hit, miss, eviction and size meters ({@code cache.gets}, {@code cache.evictions},
+ *       {@code cache.size}, ...) are published with the tag {@code cache=twinhorn.introspection.cache}.</li>
+ * </ul>
+ * When {@code twins.introspection.cache.enabled=false} every lookup is a miss and nothing
+ * is stored.
+ */
+@Slf4j
+@Component
+public class TokenIntrospectionCache {
+
+    private final boolean enabled;
+    private final Duration maxTtl;
+    private final Duration negativeTtl;
+    private final long sessionRefreshNanos;
+    private final Clock clock;
+    private final Cache<String, CachedIntrospection> cache;
+
+    @Autowired
+    public TokenIntrospectionCache(@Value("${twins.introspection.cache.enabled:true}") boolean enabled,
+                                   @Value("${twins.introspection.cache.max-size:100000}") long maxSize,
+                                   @Value("${twins.introspection.cache.ttl:PT5M}") Duration maxTtl,
+                                   @Value("${twins.introspection.cache.negative-ttl:PT10S}") Duration negativeTtl,
+                                   @Value("${twins.introspection.cache.session-refresh:PT1M}") Duration sessionRefresh,
+                                   MeterRegistry meterRegistry) {
+        this(enabled, maxSize, maxTtl, negativeTtl, sessionRefresh, Ticker.systemTicker(), Clock.systemUTC(),
+                meterRegistry);
+    }
+
+    /**
+     * @param ticker time source of the entry TTLs
+     * @param clock  wall clock the token {@code exp} is compared with
+     */
+    TokenIntrospectionCache(boolean enabled, long maxSize, Duration maxTtl, Duration negativeTtl,
+                            Duration sessionRefresh, Ticker ticker, Clock clock, MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.maxTtl = maxTtl;
+        this.negativeTtl = negativeTtl;
+        this.sessionRefreshNanos = sessionRefresh.toNanos();
+        this.clock = clock;
+        this.cache = Caffeine.newBuilder()
+                .ticker(ticker)
+                .maximumSize(maxSize)
+                .expireAfter(new IntrospectionExpiry())
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "twinhorn.introspection.cache");
+        log.info("Token introspection cache {} (max-size={}, ttl={}, negative-ttl={})",
+                enabled ? "enabled" : "disabled", maxSize, maxTtl, negativeTtl);
+    }
+
+    /**
+     * Derives the cache key for a raw access token: URL-safe Base64 of its SHA-256 digest.
+     */
+    public String keyOf(String authToken) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(authToken.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is mandatory for every JRE implementation
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * @return cached result for the key or {@code null} on a miss
+     */
+    public CachedIntrospection get(String key) {
+        if (!enabled) {
+            return null;
+        }
+        CachedIntrospection value = cache.getIfPresent(key);
+        if (value != null && !value.isRejected() && value.result().getExp() != null
+                && value.result().getExp() * 1000 <= clock.millis()) {
+            cache.invalidate(key);
+            return null;
+        }
+        return value;
+    }
+
+    public void put(String key, CachedIntrospection value) {
+        if (enabled && ttlOf(value) > 0) {
+            cache.put(key, value);
+        }
+    }
+
+    /**
+     * Decides whether a cache hit has to record the client session. Returns {@code true} at most once
+     * per {@code twins.introspection.cache.session-refresh} for an entry, counted from the
+     * introspection that created it, and never for rejections.
+     */
+    public boolean sessionRefreshDue(CachedIntrospection value) {
+        if (value.isRejected()) {
+            return false;
+        }
+        long now = System.nanoTime();
+        long recorded = value.sessionRecordedNanos.get();
+        return now - recorded >= sessionRefreshNanos && value.sessionRecordedNanos.compareAndSet(recorded, now);
+    }
+
+    public long size() {
+        return cache.estimatedSize();
+    }
+
+    private long ttlOf(CachedIntrospection value) {
+        if (value.isRejected()) {
+            return negativeTtl.toNanos();
+        }
+        Long exp = value.result().getExp();
+        if (exp == null) {
+            return maxTtl.toNanos();
+        }
+        long untilExpiryMs = exp * 1000 - clock.millis();
+        if (untilExpiryMs <= 0) {
+            return 0;
+        }
+        return Math.min(maxTtl.toNanos(), Duration.ofMillis(untilExpiryMs).toNanos());
+    }
+
+    /**
+     * Per-entry expiry: creation and update compute the TTL from the entry itself, reads keep it.
+     */
+    private class IntrospectionExpiry implements Expiry<String, CachedIntrospection> {
+        @Override
+        public long expireAfterCreate(String key, CachedIntrospection value, long currentTime) {
+            return ttlOf(value);
+        }
+
+        @Override
+        public long expireAfterUpdate(String key, CachedIntrospection value, long currentTime, long currentDuration) {
+            return ttlOf(value);
+        }
+
+        @Override
+        public long expireAfterRead(String key, CachedIntrospection value, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+
+    /**
+     * Outcome of a single introspection: either an active token ({@code result}) or a rejection
+     * ({@code rejectReason}). It also remembers when the client session was last recorded for it.
+     */
+    public static final class CachedIntrospection {
+        private final TokenIntrospectRsDTOv1 result;
+        private final String rejectReason;
+        private final AtomicLong sessionRecordedNanos = new AtomicLong(System.nanoTime());
+
+        private CachedIntrospection(TokenIntrospectRsDTOv1 result, String rejectReason) {
+            this.result = result;
+            this.rejectReason = rejectReason;
+        }
+
+        public static CachedIntrospection active(TokenIntrospectRsDTOv1 result) {
+            return new CachedIntrospection(result, null);
+        }
+
+        public static CachedIntrospection rejected(String reason) {
+            return new CachedIntrospection(null, reason);
+        }
+
+        public TokenIntrospectRsDTOv1 result() {
+            return result;
+        }
+
+        public String rejectReason() {
+            return rejectReason;
+        }
+
+        public boolean isRejected() {
+            return rejectReason != null;
+        }
+    }
+}
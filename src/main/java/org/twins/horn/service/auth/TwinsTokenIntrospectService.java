@@ -1,68 +1,292 @@
 package org.twins.horn.service.auth;
 
-import lombok.RequiredArgsConstructor;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nimbusds.jwt.SignedJWT;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.RestTemplate;
+import org.twins.horn.service.auth.TokenIntrospectionCache.CachedIntrospection;
 import org.twins.horn.service.auth.dto.TokenIntrospectRsDTOv1;
+import org.twins.horn.service.auth.jwt.LocalJwtValidator;
 import org.twins.horn.service.auth.session.ClientSessionService;
 import org.twins.horn.exception.TwinhornException;
 import org.twins.horn.exception.TwinhornException.TwinhornErrorType;
+import org.twins.horn.util.SingleFlight;
 
-import java.sql.Timestamp;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
 import java.time.Instant;
-import java.time.LocalDateTime;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
-@RequiredArgsConstructor
+@Slf4j
 @Service
 public class TwinsTokenIntrospectService {
-    private final RestTemplate restTemplate = new RestTemplate(); //todo - correct initialization, use @Bean in config
-    @Value("${twins.introspection.url}")
-    private String introspectUrl;
+    private final HttpClient httpClient;
+    private final URI introspectUri;
+    private final Duration requestTimeout;
+    private final ObjectMapper objectMapper;
 
     private final ClientSessionService clientSessionService;
+    private final TokenIntrospectionCache introspectionCache;
+    private final LocalJwtValidator localJwtValidator;
+    private final Executor sessionExecutor;
+    private final SingleFlight<String, CachedIntrospection> inFlightIntrospections = new SingleFlight<>();
+    private final Timer activeIntrospections;
+    private final Timer rejectedIntrospections;
+    private final Timer failedIntrospections;
+
+    public TwinsTokenIntrospectService(ClientSessionService clientSessionService,
+                                       TokenIntrospectionCache introspectionCache,
+                                       LocalJwtValidator localJwtValidator,
+                                       ObjectMapper objectMapper,
+                                       @Value("${twins.introspection.url}") String introspectUrl,
+                                       @Value("${twins.introspection.timeout:PT5S}") Duration requestTimeout,
+                                       @Qualifier("grpcCallExecutor") Executor sessionExecutor,
+                                       MeterRegistry meterRegistry) {
+        this.clientSessionService = clientSessionService;
+        this.introspectionCache = introspectionCache;
+        this.localJwtValidator = localJwtValidator;
+        this.sessionExecutor = sessionExecutor;
+        this.objectMapper = objectMapper;
+        this.introspectUri = URI.create(introspectUrl);
+        this.requestTimeout = requestTimeout;
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(requestTimeout)
+                .build();
+        this.activeIntrospections = introspectionTimer(meterRegistry, "active");
+        this.rejectedIntrospections = introspectionTimer(meterRegistry, "rejected");
+        this.failedIntrospections = introspectionTimer(meterRegistry, "error");
+    }
+
+    private static Timer introspectionTimer(MeterRegistry meterRegistry, String outcome) {
+        return Timer.builder("twinhorn.introspection.latency")
+                .description("Round-trips to the introspection endpoint")
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    /**
+     * Blocking variant of {@link #validateToken(String)} kept for callers that run on their own
+     * threads. The calling thread waits for the (possibly shared) introspection to finish.
+     *
+     * @param authToken raw access token (without the "Bearer " prefix)
+     * @return the introspection result of an active token
+     * @throws TwinhornException {@code UNAUTHORIZED} for rejected tokens,
+     *                           {@code INTROSPECT_SERVICE_CONNECTION_ERROR} when the endpoint is unreachable
+     */
+    public TokenIntrospectRsDTOv1 validateToken(String authToken) throws TwinhornException {
+        try {
+            return validateTokenAsync(authToken).join();
+        } catch (CompletionException e) {
+            throw asTwinhornException(e.getCause());
+        }
+    }
 
     /**
      * Sends the provided access token to the Twins introspection endpoint and
-     * returns the parsed response.
+     * completes with the parsed response.
      * <p>
      * A JSON body {@code {"token": "<authToken>"}} is POSTed to the URL specified
-     * by the {@code twins.introspection.url} property. If the endpoint responds
-     * with a 2xx status and a non-null body, the payload is deserialized into
-     * {@link TokenIntrospectRsDTOv1} and returned. Any error (non-2xx status,
-     * null body, networking issues, etc.) results in {@code null}.
+     * by the {@code twins.introspection.url} property without blocking the caller. If the
+     * endpoint responds with a 2xx status and a non-null body, the payload is deserialized into
+     * {@link TokenIntrospectRsDTOv1}.
+     * <p>
+     * Results are looked up in {@link TokenIntrospectionCache} first; only a miss
+     * reaches the endpoint. Inactive tokens and 4xx rejections are cached briefly as
+     * negative entries, connectivity failures are never cached. Concurrent misses for the same
+     * token share a single request (also with caching disabled), so every waiter observes the
+     * same result or the same failure.
      * <p>
-     * The broad exception handling is temporary and will be migrated to an aspect.
+     * Every introspection of an active token records the client session through
+     * {@link ClientSessionService#saveClientSession(UUID, Instant)}. Cache hits record it again
+     * once {@code twins.introspection.cache.session-refresh} has passed, see
+     * {@link TokenIntrospectionCache#sessionRefreshDue(CachedIntrospection)}. The session is saved on
+     * the gRPC call executor: without write-behind the save blocks on the database, and an
+     * introspection completes on a thread of the HttpClient. A failed save is logged, the token stays
+     * valid.
+     * <p>
+     * With {@code twins.auth.jwt.enabled=true} signed JWTs are verified by {@link LocalJwtValidator}
+     * without any network call; only opaque tokens are sent to the endpoint.
      *
      * @param authToken raw access token (without the "Bearer " prefix)
-     * @return the introspection result, or {@code null} when validation fails
+     * @return future completed with the token information, or exceptionally with a
+     * {@link TwinhornException} ({@code UNAUTHORIZED} / {@code INTROSPECT_SERVICE_CONNECTION_ERROR})
      */
-    public TokenIntrospectRsDTOv1 validateToken(String authToken) throws TwinhornException {
-        try {
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_JSON);
-            Map<String, String> body = new HashMap<>();
-            body.put("token", authToken);
-            HttpEntity<Map<String, String>> request = new HttpEntity<>(body, headers);
-
-            ResponseEntity<TokenIntrospectRsDTOv1> response = restTemplate.postForEntity(introspectUrl, request, TokenIntrospectRsDTOv1.class);
-            if (!response.getStatusCode().is2xxSuccessful() || response.getBody() == null) {
-                throw new TwinhornException(TwinhornErrorType.UNAUTHORIZED, "Invalid response from introspection service");
+    public CompletableFuture<TokenIntrospectRsDTOv1> validateTokenAsync(String authToken) {
+        String cacheKey = introspectionCache.keyOf(authToken);
+        CachedIntrospection cached = introspectionCache.get(cacheKey);
+        if (cached == null) {
+            return inFlightIntrospections.submit(cacheKey, () -> loadIntrospection(cacheKey, authToken))
+                    .thenApply(TwinsTokenIntrospectService::unwrap);
+        }
+        if (introspectionCache.sessionRefreshDue(cached)) {
+            recordSession(cached.result());
+        }
+        return CompletableFuture.completedFuture(cached).thenApply(TwinsTokenIntrospectService::unwrap);
+    }
+
+    /**
+     * Cache-miss path executed once per token by the single-flight leader.
+     */
+    private CompletableFuture<CachedIntrospection> loadIntrospection(String cacheKey, String authToken) {
+        // a previous leader may have filled the cache between our lookup and acquiring the flight
+        CachedIntrospection cached = introspectionCache.get(cacheKey);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        CompletableFuture<CachedIntrospection> introspection = localJwtValidator.isEnabled()
+                ? verifyLocally(authToken) : null;
+        if (introspection == null) {
+            introspection = introspect(authToken);
+        }
+        return introspection.thenApply(fresh -> {
+            if (!fresh.isRejected()) {
+                recordSession(fresh.result());
+            }
+            introspectionCache.put(cacheKey, fresh);
+            return fresh;
+        });
+    }
+
+    private void recordSession(TokenIntrospectRsDTOv1 tokenInfo) {
+        UUID clientId = UUID.fromString(tokenInfo.getClientId());
+        Instant expiresAt = tokenInfo.getExp() == null ? null : Instant.ofEpochSecond(tokenInfo.getExp());
+        sessionExecutor.execute(() -> {
+            try {
+                clientSessionService.saveClientSession(clientId, expiresAt);
+            } catch (TwinhornException e) {
+                log.warn("Failed to record session of client {}: {}", clientId, e.getMessage());
             }
-            TokenIntrospectRsDTOv1 introspectRsDTOv1 = response.getBody();
-            clientSessionService.saveClientSession(
-                    UUID.fromString(introspectRsDTOv1.getClientId()),
-                    Instant.ofEpochSecond(introspectRsDTOv1.getExp()));
-            return response.getBody();
+        });
+    }
+
+    /**
+     * Local JWT verification used when {@code twins.auth.jwt.enabled=true}.
+     *
+     * @return the verification outcome, or {@code null} for opaque tokens and tokens signed with a key not loaded
+     * yet, which fall back to remote introspection
+     */
+    private CompletableFuture<CachedIntrospection> verifyLocally(String authToken) {
+        SignedJWT jwt = LocalJwtValidator.parseOrNull(authToken);
+        if (jwt == null) {
+            return null;
+        }
+        try {
+            TokenIntrospectRsDTOv1 tokenInfo = localJwtValidator.validate(jwt);
+            return tokenInfo == null ? null : CompletableFuture.completedFuture(CachedIntrospection.active(tokenInfo));
+        } catch (TwinhornException e) {
+            return CompletableFuture.completedFuture(CachedIntrospection.rejected(e.getMessage()));
+        }
+    }
+
+    /**
+     * Performs the actual HTTP round-trip. Definitive answers (inactive token, 4xx) are returned as
+     * rejections so they can be cached; everything else is reported as a connection error.
+     */
+    private CompletableFuture<CachedIntrospection> introspect(String authToken) {
+        HttpRequest request;
+        try {
+            request = HttpRequest.newBuilder(introspectUri)
+                    .timeout(requestTimeout)
+                    .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(
+                            objectMapper.writeValueAsBytes(Map.of("token", authToken))))
+                    .build();
         } catch (Exception e) {
-            throw new TwinhornException(TwinhornErrorType.INTROSPECT_SERVICE_CONNECTION_ERROR, "Failed to introspect token", e);
+            return CompletableFuture.failedFuture(new TwinhornException(
+                    TwinhornErrorType.INTROSPECT_SERVICE_CONNECTION_ERROR, "Failed to introspect token", e));
+        }
+        long start = System.nanoTime();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                .handle((response, ex) -> {
+                    if (ex != null) {
+                        failedIntrospections.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                        throw new TwinhornException(TwinhornErrorType.INTROSPECT_SERVICE_CONNECTION_ERROR,
+                                "Failed to introspect token", ex);
+                    }
+                    CachedIntrospection introspection;
+                    try {
+                        introspection = toIntrospection(response);
+                    } catch (TwinhornException e) {
+                        failedIntrospections.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                        throw e;
+                    }
+                    (introspection.isRejected() ? rejectedIntrospections : activeIntrospections)
+                            .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    return introspection;
+                });
+    }
+
+    private CachedIntrospection toIntrospection(HttpResponse<byte[]> response) throws TwinhornException {
+        int status = response.statusCode();
+        if (status >= 400 && status < 500) {
+            return CachedIntrospection.rejected("Token rejected by introspection service: " + status);
+        }
+        if (status < 200 || status >= 300) {
+            throw new TwinhornException(TwinhornErrorType.INTROSPECT_SERVICE_CONNECTION_ERROR,
+                    "Invalid response from introspection service: " + status);
+        }
+        TokenIntrospectRsDTOv1 introspectRsDTOv1;
+        try {
+            introspectRsDTOv1 = objectMapper.readValue(response.body(), TokenIntrospectRsDTOv1.class);
+        } catch (IOException e) {
+            throw new TwinhornException(TwinhornErrorType.INTROSPECT_SERVICE_CONNECTION_ERROR,
+                    "Invalid response from introspection service", e);
+        }
+        if (introspectRsDTOv1 == null) {
+            throw new TwinhornException(TwinhornErrorType.INTROSPECT_SERVICE_CONNECTION_ERROR,
+                    "Invalid response from introspection service");
+        }
+        if (!"true".equals(introspectRsDTOv1.getActive()) || !isUuid(introspectRsDTOv1.getClientId())) {
+            return CachedIntrospection.rejected("Token is not active");
+        }
+        return CachedIntrospection.active(introspectRsDTOv1);
+    }
+
+    private static TokenIntrospectRsDTOv1 unwrap(CachedIntrospection introspection) throws TwinhornException {
+        if (introspection.isRejected()) {
+            throw new TwinhornException(TwinhornErrorType.UNAUTHORIZED, introspection.rejectReason());
+        }
+        return introspection.result();
+    }
+
+    /**
+     * Normalises a failure of {@link #validateTokenAsync(String)} to a {@link TwinhornException}.
+     */
+    public static TwinhornException asTwinhornException(Throwable failure) {
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                ? failure.getCause() : failure;
+        if (cause instanceof TwinhornException twinhornException) {
+            return twinhornException;
+        }
+        return new TwinhornException(TwinhornErrorType.INTROSPECT_SERVICE_CONNECTION_ERROR, "Failed to introspect token", cause);
+    }
+
+    private static boolean isUuid(String value) {
+        if (value == null) {
+            return false;
+        }
+        try {
+            UUID.fromString(value);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
         }
     }
 }
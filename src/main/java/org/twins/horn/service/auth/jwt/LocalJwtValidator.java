@@ -0,0 +1,261 @@
+package org.twins.horn.service.auth.jwt;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jose.crypto.factories.DefaultJWSVerifierFactory;
+import com.nimbusds.jose.jwk.AsymmetricJWK;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.OctetSequenceKey;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+import org.twins.horn.exception.TwinhornException;
+import org.twins.horn.exception.TwinhornException.TwinhornErrorType;
+import org.twins.horn.service.auth.dto.TokenIntrospectRsDTOv1;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.security.Key;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Validates signed JWT access tokens locally instead of calling the remote introspection
+ * endpoint.
+ * <p>
+ * Verification steps:
+ * <ol>
+ *   <li>the JWS signature is checked against a key from the configured JWKS document
+ *       ({@code twins.auth.jwt.jwks-uri}: {@code http(s)://}, {@code file:} or {@code classpath:});</li>
+ *   <li>{@code exp} must be present and not in the past, and {@code nbf}, if present, not in the
+ *       future, both with a tolerance of {@code twins.auth.jwt.clock-skew};</li>
+ *   <li>the {@code client_id} claim (configurable) must be a UUID.</li>
+ * </ol>
+ * The outcome is mapped to the same {@link TokenIntrospectRsDTOv1} the remote endpoint returns.
+ * <p>
+ * Keys are cached by {@code kid} and never loaded on the calling thread: a background thread
+ * loads the JWKS document at startup and reloads it every {@code twins.auth.jwt.jwks-reload-interval}.
+ * An unknown {@code kid} queues an early reload – this is how key rotation is picked up quickly –
+ * but at most once per {@code twins.auth.jwt.jwks-refresh-interval} so forged key ids cannot hammer
+ * the JWKS host. Until its key is known a token is not judged locally: {@link #validate} returns
+ * {@code null} and the caller falls back to remote introspection.
+ */
+@Slf4j
+@Component
+public class LocalJwtValidator {
+
+    private static final int JWKS_SIZE_LIMIT = 512 * 1024;
+
+    private final boolean enabled;
+    private final String jwksUri;
+    private final Duration refreshInterval;
+    private final Duration clockSkew;
+    private final String clientIdClaim;
+    private final DefaultJWSVerifierFactory verifierFactory = new DefaultJWSVerifierFactory();
+    private final ScheduledExecutorService refreshExecutor;
+    private final AtomicBoolean refreshQueued = new AtomicBoolean(false);
+
+    private volatile Map<String, JWK> keysById = Map.of();
+    private volatile List<JWK> keys = List.of();
+    // start of the last load attempt, successful or not
+    private volatile long lastRefreshNanos = System.nanoTime() - Long.MAX_VALUE / 2;
+
+    public LocalJwtValidator(@Value("${twins.auth.jwt.enabled:false}") boolean enabled,
+                             @Value("${twins.auth.jwt.jwks-uri:}") String jwksUri,
+                             @Value("${twins.auth.jwt.jwks-refresh-interval:PT30S}") Duration refreshInterval,
+                             @Value("${twins.auth.jwt.jwks-reload-interval:PT5M}") Duration reloadInterval,
+                             @Value("${twins.auth.jwt.clock-skew:PT30S}") Duration clockSkew,
+                             @Value("${twins.auth.jwt.client-id-claim:client_id}") String clientIdClaim) {
+        if (enabled && jwksUri.isBlank()) {
+            throw new IllegalStateException("twins.auth.jwt.jwks-uri must be set when twins.auth.jwt.enabled=true");
+        }
+        this.enabled = enabled;
+        this.jwksUri = jwksUri;
+        this.refreshInterval = refreshInterval;
+        this.clockSkew = clockSkew;
+        this.clientIdClaim = clientIdClaim;
+        if (enabled) {
+            this.refreshExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "jwks-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+            refreshExecutor.scheduleWithFixedDelay(this::refreshSafely, 0, reloadInterval.toMillis(), TimeUnit.MILLISECONDS);
+        } else {
+            this.refreshExecutor = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Parses the token as a signed JWT.
+     *
+     * @return the parsed token, or {@code null} for opaque tokens that must go to remote introspection
+     */
+    public static SignedJWT parseOrNull(String token) {
+        int firstDot = token.indexOf('.');
+        if (firstDot <= 0 || token.indexOf('.', firstDot + 1) < 0) {
+            return null;
+        }
+        try {
+            return SignedJWT.parse(token);
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Verifies signature and claims of the token. Never blocks on the JWKS host.
+     *
+     * @return the token information, or {@code null} if the signing key is not (yet) known locally
+     * @throws TwinhornException {@code UNAUTHORIZED} if the token is invalid
+     */
+    public TokenIntrospectRsDTOv1 validate(SignedJWT jwt) throws TwinhornException {
+        JWK jwk = lookup(jwt.getHeader().getKeyID());
+        if (jwk == null) {
+            requestRefresh();
+            log.debug("Signing key {} not loaded, token left to remote introspection", jwt.getHeader().getKeyID());
+            return null;
+        }
+        JWTClaimsSet claims;
+        try {
+            JWSVerifier verifier = verifierFactory.createJWSVerifier(jwt.getHeader(), toKey(jwk));
+            if (!jwt.verify(verifier)) {
+                throw new TwinhornException(TwinhornErrorType.UNAUTHORIZED, "Invalid token signature");
+            }
+            claims = jwt.getJWTClaimsSet();
+        } catch (JOSEException | ParseException e) {
+            throw new TwinhornException(TwinhornErrorType.UNAUTHORIZED, "Failed to verify token", e);
+        }
+
+        Instant now = Instant.now();
+        Date expiration = claims.getExpirationTime();
+        if (expiration == null || expiration.toInstant().plus(clockSkew).isBefore(now)) {
+            throw new TwinhornException(TwinhornErrorType.UNAUTHORIZED, "Token expired");
+        }
+        Date notBefore = claims.getNotBeforeTime();
+        if (notBefore != null && notBefore.toInstant().minus(clockSkew).isAfter(now)) {
+            throw new TwinhornException(TwinhornErrorType.UNAUTHORIZED, "Token not yet valid");
+        }
+        String clientId = clientIdOf(claims);
+
+        TokenIntrospectRsDTOv1 tokenInfo = new TokenIntrospectRsDTOv1();
+        tokenInfo.setActive("true");
+        tokenInfo.setClientId(clientId);
+        tokenInfo.setExp(expiration.toInstant().getEpochSecond());
+        return tokenInfo;
+    }
+
+    private String clientIdOf(JWTClaimsSet claims) throws TwinhornException {
+        try {
+            String clientId = claims.getStringClaim(clientIdClaim);
+            if (clientId != null) {
+                UUID.fromString(clientId);
+                return clientId;
+            }
+        } catch (ParseException | IllegalArgumentException e) {
+            // fall through – reported below
+        }
+        throw new TwinhornException(TwinhornErrorType.UNAUTHORIZED, "Token has no valid " + clientIdClaim + " claim");
+    }
+
+    private static Key toKey(JWK jwk) throws JOSEException {
+        if (jwk instanceof AsymmetricJWK asymmetricJWK) {
+            return asymmetricJWK.toPublicKey();
+        }
+        if (jwk instanceof OctetSequenceKey octetSequenceKey) {
+            return octetSequenceKey.toSecretKey();
+        }
+        throw new JOSEException("Unsupported key type: " + jwk.getKeyType());
+    }
+
+    /**
+     * Looks the key up in the cached JWKS. A token without {@code kid} is accepted only when the
+     * JWKS holds exactly one key.
+     */
+    private JWK lookup(String keyId) {
+        if (keyId == null) {
+            List<JWK> current = keys;
+            return current.size() == 1 ? current.get(0) : null;
+        }
+        return keysById.get(keyId);
+    }
+
+    /**
+     * Queues a reload on the refresh thread unless one is queued or the last attempt is more recent
+     * than {@code jwks-refresh-interval}.
+     */
+    private void requestRefresh() {
+        if (System.nanoTime() - lastRefreshNanos < refreshInterval.toNanos()
+                || !refreshQueued.compareAndSet(false, true)) {
+            return;
+        }
+        refreshExecutor.execute(() -> {
+            refreshQueued.set(false);
+            refreshSafely();
+        });
+    }
+
+    /**
+     * Reloads the key set; runs on the refresh thread only. On failure the previous keys stay in use.
+     */
+    private void refreshSafely() {
+        lastRefreshNanos = System.nanoTime();
+        try {
+            JWKSet jwkSet = load();
+            Map<String, JWK> byId = new HashMap<>();
+            for (JWK jwk : jwkSet.getKeys()) {
+                if (jwk.getKeyID() != null) {
+                    byId.put(jwk.getKeyID(), jwk);
+                }
+            }
+            keys = List.copyOf(jwkSet.getKeys());
+            keysById = byId;
+            log.info("Loaded {} signing keys from {}", byId.size(), jwksUri);
+        } catch (TwinhornException e) {
+            log.error("{}: {}", e.getMessage(), e.getCause() == null ? "" : e.getCause().getMessage());
+        }
+    }
+
+    private JWKSet load() throws TwinhornException {
+        try {
+            if (jwksUri.startsWith("http://") || jwksUri.startsWith("https://")) {
+                int timeoutMs = 5000;
+                return JWKSet.load(URI.create(jwksUri).toURL(), timeoutMs, timeoutMs, JWKS_SIZE_LIMIT);
+            }
+            Resource resource = new DefaultResourceLoader().getResource(jwksUri);
+            try (InputStream in = resource.getInputStream()) {
+                return JWKSet.load(in);
+            }
+        } catch (Exception e) {
+            throw new TwinhornException(TwinhornErrorType.INTROSPECT_SERVICE_CONNECTION_ERROR,
+                    "Failed to load JWKS from " + jwksUri, e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
+        }
+    }
+}
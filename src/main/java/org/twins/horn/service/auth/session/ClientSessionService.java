@@ -1,12 +1,17 @@
 package org.twins.horn.service.auth.session;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.twins.horn.db.ClientSessionEntity;
+import org.twins.horn.db.ClientSessionJdbcRepository;
 import org.twins.horn.db.ClientSessionRepository;
 import org.twins.horn.service.grpc.ConnectionRegistry;
+import org.twins.horn.service.grpc.SerializedUpdate;
 import org.twins.horn.subscribe.TwinfaceSubscribeProto;
 import org.twins.horn.exception.TwinhornException;
 import org.twins.horn.exception.TwinhornException.TwinhornErrorType;
@@ -16,32 +21,70 @@ import java.time.Instant;
 import java.util.List;
 import java.util.UUID;
 
+@Slf4j
 @Service
 public class ClientSessionService {
 
+    private static final String STATUS_ACTIVE = "ACTIVE";
+    private static final String STATUS_WARNING = "WARNING";
+    private static final String STATUS_CLOSED = "CLOSED";
+
     private final ClientSessionRepository clientSessionRepository;
+    private final ClientSessionJdbcRepository clientSessionJdbcRepository;
+    private final ClientSessionWriter clientSessionWriter;
+    private final SessionExpiryScheduler sessionExpiryScheduler;
+    private final SessionSweepLeadership sessionSweepLeadership;
+    private final ConnectionRegistry connectionRegistry;
+    private final Timer sweepTimer;
+
+    @Value("${session.write-behind.enabled:true}")
+    private boolean writeBehind;
 
     @Autowired
-    public ClientSessionService(ClientSessionRepository clientSessionRepository) {
+    public ClientSessionService(ClientSessionRepository clientSessionRepository,
+                                ClientSessionJdbcRepository clientSessionJdbcRepository,
+                                ClientSessionWriter clientSessionWriter,
+                                SessionExpiryScheduler sessionExpiryScheduler,
+                                SessionSweepLeadership sessionSweepLeadership,
+                                ConnectionRegistry connectionRegistry,
+                                MeterRegistry meterRegistry) {
         this.clientSessionRepository = clientSessionRepository;
+        this.clientSessionJdbcRepository = clientSessionJdbcRepository;
+        this.clientSessionWriter = clientSessionWriter;
+        this.sessionExpiryScheduler = sessionExpiryScheduler;
+        this.sessionSweepLeadership = sessionSweepLeadership;
+        this.connectionRegistry = connectionRegistry;
+        this.sweepTimer = Timer.builder("twinhorn.session.sweep")
+                .description("Duration of a session sweep run that owned at least one partition")
+                .register(meterRegistry);
+        if (!sessionExpiryScheduler.isEnabled()) {
+            log.warn("session.expiry.timer.enabled=false: expiry notifications are sent by the sweeping node " +
+                    "to its own streams only, clients connected to other replicas are not notified");
+        }
     }
 
     /**
      * Stores a new or updated client session in the database.
      * <p>
      * The {@code createdAt} field is automatically set to the current instant
-     * when this method is invoked.
+     * when this method is invoked. With {@code session.write-behind.enabled} (default) the
+     * update is handed to {@link ClientSessionWriter} and persisted asynchronously in batches;
+     * otherwise it is saved synchronously through JPA.
      *
      * @param clientId         unique identifier of the client
      * @param tokenExpiryDate  instant when the token should expire (nullable)
      */
     public void saveClientSession(UUID clientId, Instant tokenExpiryDate) throws TwinhornException {
+        if (writeBehind) {
+            clientSessionWriter.enqueue(clientId, Instant.now(), tokenExpiryDate);
+            return;
+        }
         try {
             ClientSessionEntity entity = new ClientSessionEntity();
             entity.setClientId(clientId);
             entity.setCreatedAt(Instant.now());
             entity.setExpiresAt(tokenExpiryDate);
-            entity.setStatus("ACTIVE");
+            entity.setStatus(STATUS_ACTIVE);
             clientSessionRepository.save(entity);
         } catch (Exception e) {
             throw new TwinhornException(TwinhornErrorType.DB_DATA_PROCESSING_ERROR,
@@ -52,51 +95,76 @@ public class ClientSessionService {
     @Value("${session.expiry.grace:PT5M}")
     private Duration gracePeriod;
 
+    @Value("${session.sweep.page-size:1000}")
+    private int sweepPageSize;
+
     /**
      * Scans for sessions with expired tokens and triggers reminders / disconnects.
      * <p>
      * Runs at a fixed delay configured by {@code session.scan.interval.ms} (default 60 s).
+     * Both transitions (ACTIVE&rarr;WARNING at expiry, WARNING&rarr;CLOSED after the grace period)
+     * are bulk {@code UPDATE ... RETURNING client_id} statements executed in pages of
+     * {@code session.sweep.page-size}, so no entities are loaded.
+     * <p>
+     * In a cluster only the owner of a sweep partition (see {@link SessionSweepLeadership}) runs
+     * these statements, so the database load does not grow with the number of replicas.
+     * Notifications never travel between nodes: while {@link SessionExpiryScheduler} is enabled
+     * (required for multi-replica deployments) each node notifies the streams it holds from its
+     * own timers, and the scan only moves the persisted status forward (the database stays the
+     * recovery source after a restart).
      */
     @Scheduled(fixedDelayString = "${session.scan.interval.ms:60000}")
     public void handleExpiredSessions() throws TwinhornException {
         try {
+            List<Integer> partitions = sessionSweepLeadership.acquirePartitions();
+            if (partitions.isEmpty()) {
+                return;
+            }
             Instant now = Instant.now();
+            int warned = 0;
+            int closed = 0;
+            for (int partition : partitions) {
+                // 1) Send reminder for tokens that have just expired and are still ACTIVE
+                warned += transitionExpired(STATUS_ACTIVE, STATUS_WARNING, now, partition,
+                        TwinfaceSubscribeProto.TwinEventType.TOKEN_EXPIRED_WARNING);
 
-            // 1) Send reminder for tokens that have just expired and are still ACTIVE
-            List<ClientSessionEntity> justExpired = clientSessionRepository.findByStatusAndExpiresAtBefore("ACTIVE", now);
-            if (!justExpired.isEmpty()) {
-                for (ClientSessionEntity sess : justExpired) {
-                    TwinfaceSubscribeProto.TwinfaceSubscribeUpdate warning = TwinfaceSubscribeProto.TwinfaceSubscribeUpdate.newBuilder()
-                            .setUpdateId(UUID.randomUUID().toString())
-                            .setTimestamp(now.toString())
-                            .setEventType(TwinfaceSubscribeProto.TwinEventType.TOKEN_EXPIRED_WARNING)
-                            .setStatus(TwinfaceSubscribeProto.UpdateStatus.GENERAL_ERROR)
-                            .build();
-                    ConnectionRegistry.broadcast(sess.getClientId().toString(), warning);
-                    sess.setStatus("WARNING");
-                }
-                clientSessionRepository.saveAll(justExpired);
+                // 2) Close connections that ignored the warning for longer than gracePeriod
+                closed += transitionExpired(STATUS_WARNING, STATUS_CLOSED, now.minus(gracePeriod), partition,
+                        TwinfaceSubscribeProto.TwinEventType.CONNECTION_CLOSED);
             }
 
-            // 2) Close connections that ignored the warning for longer than gracePeriod
-            Instant deadline = now.minus(gracePeriod);
-            List<ClientSessionEntity> stale = clientSessionRepository.findByStatusAndExpiresAtBefore("WARNING", deadline);
-            if (!stale.isEmpty()) {
-                for (ClientSessionEntity sess : stale) {
-                    TwinfaceSubscribeProto.TwinfaceSubscribeUpdate closeMsg = TwinfaceSubscribeProto.TwinfaceSubscribeUpdate.newBuilder()
-                            .setUpdateId(UUID.randomUUID().toString())
-                            .setTimestamp(now.toString())
-                            .setEventType(TwinfaceSubscribeProto.TwinEventType.CONNECTION_CLOSED)
-                            .setStatus(TwinfaceSubscribeProto.UpdateStatus.GENERAL_ERROR)
-                            .build();
-                    ConnectionRegistry.broadcast(sess.getClientId().toString(), closeMsg);
-                    sess.setStatus("CLOSED");
-                }
-                clientSessionRepository.saveAll(stale);
+            sweepTimer.record(Duration.between(now, Instant.now()));
+            if (warned > 0 || closed > 0) {
+                log.debug("Session sweep of partitions {}: {} warned, {} closed in {} ms", partitions, warned, closed,
+                        Duration.between(now, Instant.now()).toMillis());
             }
         } catch (Exception e) {
             throw new TwinhornException(TwinhornErrorType.DB_DATA_PROCESSING_ERROR,
                     "Failed to process expired sessions", e);
         }
     }
+
+    private int transitionExpired(String fromStatus, String toStatus, Instant deadline, int partition,
+                                  TwinfaceSubscribeProto.TwinEventType eventType) {
+        boolean notifyStreams = !sessionExpiryScheduler.isEnabled();
+        int total = 0;
+        List<UUID> page;
+        do {
+            page = clientSessionJdbcRepository.transitionExpired(fromStatus, toStatus, deadline,
+                    partition, sessionSweepLeadership.partitionCount(), sweepPageSize);
+            total += page.size();
+            if (notifyStreams && !page.isEmpty()) {
+                // every client gets its own update_id, the rest of the notification is shared by the page
+                TwinfaceSubscribeProto.TwinfaceSubscribeUpdate.Builder update = TwinfaceSubscribeProto.TwinfaceSubscribeUpdate.newBuilder()
+                        .setTimestamp(Instant.now().toString())
+                        .setEventType(eventType)
+                        .setStatus(TwinfaceSubscribeProto.UpdateStatus.GENERAL_ERROR);
+                for (UUID clientId : page) {
+                    connectionRegistry.broadcast(clientId,
+                            SerializedUpdate.of(update.setUpdateId(UUID.randomUUID().toString()).build()));
+                }
+            }
+        } while (page.size() == sweepPageSize);
+        return total;
+    }
 }
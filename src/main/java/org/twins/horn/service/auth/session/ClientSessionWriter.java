@@ -0,0 +1,230 @@
+package org.twins.horn.service.auth.session;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+import org.springframework.stereotype.Component;
+import org.twins.horn.db.ClientSessionEntity;
+import org.twins.horn.db.ClientSessionJdbcRepository;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Write-behind buffer for {@code client_session} rows.
+ * <p>
+ * Session updates are coalesced per {@code clientId} in memory (the latest expiry wins) and
+ * flushed by a single background thread as batched {@code INSERT ... ON CONFLICT} statements,
+ * either when {@code session.write-behind.batch-size} updates are pending or every
+ * {@code session.write-behind.flush-interval}, whichever comes first. The authentication path
+ * therefore never waits for the database.
+ * <p>
+ * Safety valves and observability:
+ * <ul>
+ *   <li>at most {@code session.write-behind.max-pending} distinct clients are buffered; updates for
+ *       new clients beyond that are dropped and counted in {@code twinhorn.session.writes.dropped};</li>
+ *   <li>a failed flush puts the batch back (newer updates win) and is retried on the next tick; an
+ *       update that failed {@code session.write-behind.max-attempts} times is dropped and counted in
+ *       {@code twinhorn.session.writes.failed};</li>
+ *   <li>{@code twinhorn.session.writes.flushed} counts persisted updates,
+ *       {@code twinhorn.session.writes.pending} the buffered ones, and
+ *       {@code twinhorn.session.writes.flush.lag} reports how long the oldest entry of the last
+ *       batch waited;</li>
+ *   <li>pending updates are flushed on shutdown.</li>
+ * </ul>
+ */
+@Slf4j
+@Component
+public class ClientSessionWriter {
+
+    private final ClientSessionJdbcRepository clientSessionJdbcRepository;
+    private final int batchSize;
+    private final int maxPending;
+    private final int maxAttempts;
+    private final Duration flushInterval;
+    private final ConcurrentHashMap<UUID, PendingSession> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flushExecutor;
+    private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+
+    private final Counter droppedWrites;
+    private final Counter flushedWrites;
+    private final Counter failedWrites;
+    private volatile long lastFlushLagMillis;
+
+    public ClientSessionWriter(ClientSessionJdbcRepository clientSessionJdbcRepository,
+                               @Value("${session.write-behind.batch-size:500}") int batchSize,
+                               @Value("${session.write-behind.max-pending:100000}") int maxPending,
+                               @Value("${session.write-behind.flush-interval:PT1S}") Duration flushInterval,
+                               @Value("${session.write-behind.max-attempts:5}") int maxAttempts,
+                               Environment environment,
+                               MeterRegistry meterRegistry) {
+        this.clientSessionJdbcRepository = clientSessionJdbcRepository;
+        this.batchSize = batchSize;
+        this.maxPending = maxPending;
+        this.maxAttempts = maxAttempts;
+        this.flushInterval = flushInterval;
+        // flushes block on JDBC; with spring.threads.virtual.enabled they run on a virtual thread
+        ThreadFactory threadFactory = Threading.VIRTUAL.isActive(environment)
+                ? new VirtualThreadTaskExecutor("session-writer-").getVirtualThreadFactory()
+                : r -> {
+                    Thread thread = new Thread(r, "session-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                };
+        this.flushExecutor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        this.droppedWrites = Counter.builder("twinhorn.session.writes.dropped")
+                .description("Session updates dropped because the write buffer was full")
+                .register(meterRegistry);
+        this.flushedWrites = Counter.builder("twinhorn.session.writes.flushed")
+                .description("Session updates written to client_session")
+                .register(meterRegistry);
+        this.failedWrites = Counter.builder("twinhorn.session.writes.failed")
+                .description("Session updates dropped after failing to be written max-attempts times")
+                .register(meterRegistry);
+        Gauge.builder("twinhorn.session.writes.pending", pending, ConcurrentHashMap::size)
+                .description("Session updates waiting to be written")
+                .register(meterRegistry);
+        TimeGauge.builder("twinhorn.session.writes.flush.lag", this, TimeUnit.MILLISECONDS, w -> w.lastFlushLagMillis)
+                .description("How long the oldest update of the last written batch waited")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Starts the periodic flush once the writer is fully constructed.
+     */
+    @PostConstruct
+    public void start() {
+        long intervalMs = flushInterval.toMillis();
+        flushExecutor.scheduleWithFixedDelay(this::flushSafely, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Buffers a session update; returns immediately.
+     */
+    public void enqueue(UUID clientId, Instant createdAt, Instant expiresAt) {
+        if (pending.size() >= maxPending && !pending.containsKey(clientId)) {
+            droppedWrites.increment();
+            log.warn("Session write buffer full ({} pending) – dropped update for client {}", maxPending, clientId);
+            return;
+        }
+        pending.merge(clientId, new PendingSession(createdAt, expiresAt, System.nanoTime(), 0), PendingSession::mergeNewer);
+        if (pending.size() >= batchSize && flushRequested.compareAndSet(false, true)) {
+            flushExecutor.execute(this::flushSafely);
+        }
+    }
+
+    public int pendingCount() {
+        return pending.size();
+    }
+
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.error("Failed to flush client sessions, {} updates remain pending: {}", pending.size(), e.getMessage());
+        }
+    }
+
+    /**
+     * Drains the buffer in batches of {@code batchSize}. Only ever runs on the writer thread
+     * (or on the shutdown thread once the writer thread has stopped).
+     */
+    private void flush() {
+        flushRequested.set(false);
+        while (!pending.isEmpty()) {
+            List<UUID> clientIds = new ArrayList<>(batchSize);
+            List<PendingSession> sessions = new ArrayList<>(batchSize);
+            Iterator<UUID> keys = pending.keySet().iterator();
+            while (keys.hasNext() && clientIds.size() < batchSize) {
+                UUID clientId = keys.next();
+                PendingSession session = pending.remove(clientId);
+                if (session != null) {
+                    clientIds.add(clientId);
+                    sessions.add(session);
+                }
+            }
+            if (clientIds.isEmpty()) {
+                return;
+            }
+            writeBatch(clientIds, sessions);
+        }
+    }
+
+    private void writeBatch(List<UUID> clientIds, List<PendingSession> sessions) {
+        List<ClientSessionEntity> entities = new ArrayList<>(clientIds.size());
+        long oldestEnqueued = Long.MAX_VALUE;
+        for (int i = 0; i < clientIds.size(); i++) {
+            PendingSession session = sessions.get(i);
+            entities.add(new ClientSessionEntity(clientIds.get(i), session.createdAt(), session.expiresAt(), "ACTIVE"));
+            oldestEnqueued = Math.min(oldestEnqueued, session.enqueuedNanos());
+        }
+        try {
+            clientSessionJdbcRepository.upsertAll(entities);
+        } catch (RuntimeException e) {
+            // put the batch back unless a newer update for the same client arrived meanwhile
+            int failed = 0;
+            for (int i = 0; i < clientIds.size(); i++) {
+                PendingSession retry = sessions.get(i).failedAttempt();
+                if (retry.attempts() >= maxAttempts) {
+                    failed++;
+                    continue;
+                }
+                pending.merge(clientIds.get(i), retry, (current, previous) -> previous.mergeNewer(current));
+            }
+            if (failed > 0) {
+                failedWrites.increment(failed);
+                log.error("Dropped {} client session updates after {} failed writes", failed, maxAttempts);
+            }
+            throw e;
+        }
+        flushedWrites.increment(entities.size());
+        lastFlushLagMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldestEnqueued);
+        log.debug("Flushed {} client sessions, lag {} ms", entities.size(), lastFlushLagMillis);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        flushExecutor.shutdown();
+        if (!flushExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+            log.warn("Session writer did not stop in time");
+            flushExecutor.shutdownNow();
+        }
+        flushSafely();
+        if (!pending.isEmpty()) {
+            log.error("{} client session updates lost on shutdown", pending.size());
+        }
+    }
+
+    /**
+     * Buffered state of one client; {@code enqueuedNanos} is the time of the oldest unflushed update,
+     * {@code attempts} the number of failed writes of the buffered values.
+     */
+    private record PendingSession(Instant createdAt, Instant expiresAt, long enqueuedNanos, int attempts) {
+        PendingSession mergeNewer(PendingSession newer) {
+            return new PendingSession(newer.createdAt, newer.expiresAt, Math.min(enqueuedNanos, newer.enqueuedNanos),
+                    newer.attempts);
+        }
+
+        PendingSession failedAttempt() {
+            return new PendingSession(createdAt, expiresAt, enqueuedNanos, attempts + 1);
+        }
+    }
+}
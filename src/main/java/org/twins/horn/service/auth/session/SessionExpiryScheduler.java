@@ -0,0 +1,144 @@
+package org.twins.horn.service.auth.session;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.twins.horn.service.grpc.ClientStream;
+import org.twins.horn.service.grpc.ConnectionRegistry;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto.TwinfaceSubscribeUpdate;
+import org.twins.horn.util.HierarchicalTimingWheel;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-stream token-expiry notifications driven by an in-memory {@link HierarchicalTimingWheel}.
+ * <p>
+ * When a stream is registered two timers are armed from the token {@code exp}:
+ * <ul>
+ *   <li>at {@code exp} – {@code TOKEN_EXPIRED_WARNING} is pushed to the stream;</li>
+ *   <li>at {@code exp + session.expiry.grace} – {@code CONNECTION_CLOSED} is pushed and the stream
+ *       is completed and unregistered.</li>
+ * </ul>
+ * Both timers are cancelled from the stream's termination hook, so they go away however the
+ * stream ends – cancelled by the client, closed on overflow or failed by the server. Arming and cancelling are O(1) and firing is
+ * accurate to {@code session.expiry.timer.tick}, so no periodic database scan is needed to notify
+ * clients; {@link ClientSessionService#handleExpiredSessions()} only keeps the persisted session
+ * status up to date for recovery after a restart.
+ * <p>
+ * Disabled with {@code session.expiry.timer.enabled=false}, in which case the database sweep
+ * sends the notifications as before.
+ */
+@Slf4j
+@Component
+public class SessionExpiryScheduler {
+
+    private final ConnectionRegistry connectionRegistry;
+    private final boolean enabled;
+    private final Duration gracePeriod;
+    private final HierarchicalTimingWheel timingWheel;
+    private final Clock clock;
+
+    @Autowired
+    public SessionExpiryScheduler(ConnectionRegistry connectionRegistry,
+                                  @Value("${session.expiry.timer.enabled:true}") boolean enabled,
+                                  @Value("${session.expiry.grace:PT5M}") Duration gracePeriod,
+                                  @Value("${session.expiry.timer.tick:PT0.1S}") Duration tick,
+                                  @Value("${session.expiry.timer.wheel-size:512}") int wheelSize) {
+        this(connectionRegistry, gracePeriod,
+                enabled ? new HierarchicalTimingWheel("session-expiry-wheel", tick, wheelSize) : null, Clock.systemUTC());
+    }
+
+    /**
+     * @param timingWheel wheel the timers are armed on, {@code null} when disabled
+     * @param clock       wall clock the token {@code exp} is compared with
+     */
+    SessionExpiryScheduler(ConnectionRegistry connectionRegistry, Duration gracePeriod,
+                           HierarchicalTimingWheel timingWheel, Clock clock) {
+        this.connectionRegistry = connectionRegistry;
+        this.enabled = timingWheel != null;
+        this.gracePeriod = gracePeriod;
+        this.timingWheel = timingWheel;
+        this.clock = clock;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Arms the expiry timers of a freshly registered stream.
+     *
+     * @param expEpochSeconds token {@code exp}; streams without expiry get no timers
+     * @return handle to cancel the timers, to be run when the stream terminates (never {@code null})
+     */
+    public ExpiryTimers schedule(ClientStream stream, Long expEpochSeconds) {
+        if (!enabled || expEpochSeconds == null) {
+            return ExpiryTimers.NONE;
+        }
+        long untilExpiryMs = Instant.ofEpochSecond(expEpochSeconds).toEpochMilli() - clock.millis();
+        HierarchicalTimingWheel.Timer warning = timingWheel.schedule(
+                () -> sendWarning(stream), untilExpiryMs, TimeUnit.MILLISECONDS);
+        HierarchicalTimingWheel.Timer close = timingWheel.schedule(
+                () -> closeStream(stream), untilExpiryMs + gracePeriod.toMillis(), TimeUnit.MILLISECONDS);
+        return new ExpiryTimers(warning, close);
+    }
+
+    /**
+     * @return number of armed (not yet fired or cancelled) timers
+     */
+    public int pendingTimers() {
+        return enabled ? timingWheel.pendingTimers() : 0;
+    }
+
+    private void sendWarning(ClientStream stream) {
+        if (stream.accepts(TwinfaceSubscribeProto.TwinEventType.TOKEN_EXPIRED_WARNING_VALUE)
+                && stream.sendImmediate(buildUpdate(TwinfaceSubscribeProto.TwinEventType.TOKEN_EXPIRED_WARNING))) {
+            log.debug("Sent token expiry warning to client {}", stream.clientId());
+        }
+    }
+
+    private void closeStream(ClientStream stream) {
+        connectionRegistry.unregister(stream);
+        stream.complete(buildUpdate(TwinfaceSubscribeProto.TwinEventType.CONNECTION_CLOSED));
+        log.info("Closed stream of client {} after token expiry", stream.clientId());
+    }
+
+    private static TwinfaceSubscribeUpdate buildUpdate(TwinfaceSubscribeProto.TwinEventType eventType) {
+        return TwinfaceSubscribeUpdate.newBuilder()
+                .setUpdateId(UUID.randomUUID().toString())
+                .setTimestamp(Instant.now().toString())
+                .setEventType(eventType)
+                .setStatus(TwinfaceSubscribeProto.UpdateStatus.GENERAL_ERROR)
+                .build();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (timingWheel != null) {
+            timingWheel.close();
+        }
+    }
+
+    /**
+     * Timers armed for one stream.
+     */
+    public record ExpiryTimers(HierarchicalTimingWheel.Timer warning, HierarchicalTimingWheel.Timer close) {
+        public static final ExpiryTimers NONE = new ExpiryTimers(null, null);
+
+        public void cancel() {
+            if (warning != null) {
+                warning.cancel();
+            }
+            if (close != null) {
+                close.cancel();
+            }
+        }
+    }
+}
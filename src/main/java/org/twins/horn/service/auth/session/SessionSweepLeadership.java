@@ -0,0 +1,161 @@
+package org.twins.horn.service.auth.session;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.twins.horn.config.NodeIdentity;
+import org.twins.horn.db.SchedulerLeaseRepository;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Elects the replica that runs the session sweep, using time-bounded leases in
+ * {@code scheduler_lease}.
+ * <p>
+ * The sessions are split into {@code session.sweep.partitions} hash partitions of
+ * {@code client_id}, each guarded by its own lease named {@code session-sweep-<n>}. Every node also
+ * renews a membership lease {@code session-sweep-node-<id>} on each sweep, so the live nodes can be
+ * counted. A node holds at most {@code ceil(partitions / live nodes)} partitions: on every sweep it
+ * renews the leases it holds up to that share, releases the rest, and tries to take free or expired
+ * ones while below it; it then sweeps only the partitions it owns. A node that joins gets its share
+ * once the others have released their excess on their next sweep. A crashed owner is replaced
+ * after {@code session.sweep.lease-ttl}, which must
+ * be comfortably longer than {@code session.scan.interval.ms} so a healthy owner keeps its
+ * partitions between runs. With one partition (default) exactly one node sweeps; more partitions
+ * spread the work across replicas. Either way the database sees one sweep per partition per
+ * interval no matter how many replicas run, plus one membership upsert and count per replica and
+ * at most one lease upsert per partition and replica.
+ * <p>
+ * With {@code session.sweep.leader-election.enabled=false} every node sweeps every partition, as
+ * in a single-node deployment.
+ */
+@Slf4j
+@Component
+public class SessionSweepLeadership {
+
+    private static final String LEASE_PREFIX = "session-sweep-";
+    private static final String MEMBER_LEASE_PREFIX = "session-sweep-node-";
+
+    private final SchedulerLeaseRepository schedulerLeaseRepository;
+    private final String nodeId;
+    private final String memberLease;
+    private final boolean enabled;
+    private final int partitionCount;
+    private final Duration leaseTtl;
+    private final Set<Integer> ownedPartitions = ConcurrentHashMap.newKeySet();
+
+    public SessionSweepLeadership(SchedulerLeaseRepository schedulerLeaseRepository,
+                                  NodeIdentity nodeIdentity,
+                                  @Value("${session.sweep.leader-election.enabled:true}") boolean enabled,
+                                  @Value("${session.sweep.partitions:1}") int partitionCount,
+                                  @Value("${session.sweep.lease-ttl:PT3M}") Duration leaseTtl) {
+        if (partitionCount < 1) {
+            throw new IllegalArgumentException("session.sweep.partitions must be positive");
+        }
+        this.schedulerLeaseRepository = schedulerLeaseRepository;
+        this.nodeId = nodeIdentity.getNodeId();
+        // node ids may exceed the 64 characters of a lease name
+        this.memberLease = MEMBER_LEASE_PREFIX
+                + UUID.nameUUIDFromBytes(nodeId.getBytes(StandardCharsets.UTF_8));
+        this.enabled = enabled;
+        this.partitionCount = partitionCount;
+        this.leaseTtl = leaseTtl;
+    }
+
+    public int partitionCount() {
+        return partitionCount;
+    }
+
+    /**
+     * Renews or acquires the partition leases.
+     *
+     * @return partitions this node must sweep now; empty if another node owns all of them
+     */
+    public List<Integer> acquirePartitions() {
+        List<Integer> partitions = new ArrayList<>(partitionCount);
+        if (!enabled) {
+            for (int partition = 0; partition < partitionCount; partition++) {
+                partitions.add(partition);
+            }
+            return partitions;
+        }
+        int share = fairShare();
+        // renew the held partitions first so they stay with this node, up to its share
+        for (Integer partition : new TreeSet<>(ownedPartitions)) {
+            if (partitions.size() >= share) {
+                release(partition);
+                log.info("Node {} released session sweep partition {} ({} per node)", nodeId, partition, share);
+            } else if (tryAcquire(partition)) {
+                partitions.add(partition);
+            } else if (ownedPartitions.remove(partition)) {
+                log.info("Node {} lost session sweep partition {}", nodeId, partition);
+            }
+        }
+        for (int partition = 0; partition < partitionCount && partitions.size() < share; partition++) {
+            if (!ownedPartitions.contains(partition) && tryAcquire(partition)) {
+                ownedPartitions.add(partition);
+                log.info("Node {} took over session sweep partition {}", nodeId, partition);
+                partitions.add(partition);
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * Renews this node's membership and returns how many partitions it may hold.
+     */
+    private int fairShare() {
+        int liveNodes;
+        try {
+            schedulerLeaseRepository.tryAcquire(memberLease, nodeId, leaseTtl);
+            liveNodes = schedulerLeaseRepository.countLive(MEMBER_LEASE_PREFIX);
+        } catch (RuntimeException e) {
+            log.warn("Failed to count session sweep nodes: {}", e.getMessage());
+            liveNodes = 1;
+        }
+        return (partitionCount + Math.max(liveNodes, 1) - 1) / Math.max(liveNodes, 1);
+    }
+
+    private boolean tryAcquire(int partition) {
+        try {
+            return schedulerLeaseRepository.tryAcquire(LEASE_PREFIX + partition, nodeId, leaseTtl);
+        } catch (RuntimeException e) {
+            log.warn("Failed to acquire session sweep lease {}: {}", partition, e.getMessage());
+            return false;
+        }
+    }
+
+    private void release(int partition) {
+        ownedPartitions.remove(partition);
+        try {
+            schedulerLeaseRepository.release(LEASE_PREFIX + partition, nodeId);
+        } catch (RuntimeException e) {
+            log.debug("Failed to release session sweep lease {}: {}", partition, e.getMessage());
+        }
+    }
+
+    /**
+     * Hands the held leases back so another replica can take over without waiting for expiry.
+     */
+    @PreDestroy
+    public void releaseAll() {
+        for (Integer partition : new ArrayList<>(ownedPartitions)) {
+            release(partition);
+        }
+        if (enabled) {
+            try {
+                schedulerLeaseRepository.release(memberLease, nodeId);
+            } catch (RuntimeException e) {
+                log.debug("Failed to release session sweep membership: {}", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,556 @@
+package org.twins.horn.service.batch;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.twins.horn.db.DataBatchJdbcRepository;
+import org.twins.horn.db.DataBatchJdbcRepository.MailboxRow;
+import org.twins.horn.db.DataBatchJdbcRepository.Payload;
+import org.twins.horn.db.DataBatchJdbcRepository.PendingBatch;
+import org.twins.horn.service.grpc.ClientStream;
+import org.twins.horn.service.grpc.OfflineMailbox;
+import org.twins.horn.service.grpc.SerializedUpdate;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto.TwinfaceSubscribeUpdate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * {@link OfflineMailbox} kept in {@code data_batch} ({@code grpc.stream.mailbox.*}).
+ * <p>
+ * Writes: updates for clients without a stream are buffered in memory and inserted by a single
+ * background thread in JDBC batches of {@code batch-size}, at least every {@code flush-interval};
+ * the listener threads never wait for the database. A batch that failed {@code max-attempts}
+ * inserts is dropped. An update kept for several clients is
+ * serialised and stored once in {@code data_batch_payload} and referenced by their rows. After
+ * each batch the mailboxes it touched are
+ * trimmed to the newest {@code max-per-client} rows with one statement. A full buffer
+ * ({@code max-pending}) drops new updates.
+ * <p>
+ * Reads: when a client connects, its pending rows are read in pages of {@code page-size} on a
+ * drain thread and queued through {@link ClientStream#sendImmediate(SerializedUpdate)}, i.e. the
+ * normal outbound queue with its event filter but without a conflation window. A
+ * {@link ClientStream.WriteListener} reports the updates actually written; only their rows are
+ * marked {@code COMPLETED}, with one statement per page once the page has been written. The next
+ * page is read only when the outbound queue has room for it, so a slow client paces its own drain
+ * instead of overflowing; the drain thread sleeps until a write or the end of the stream wakes it.
+ * Rows not written (the stream closed, the overflow policy dropped them, or the client did not
+ * read for {@code drain-timeout}) stay pending for the next connection. A row is thus delivered at
+ * least once; it is sent again only if the stream ended before its write was acknowledged.
+ * Offline updates may interleave with live ones sent meanwhile.
+ * <p>
+ * Rows that were dropped, by count or because they outlived {@code max-age}, leave a
+ * {@code FAILED} marker; the next connection of the client gets a {@code REPLAY_GAP} update
+ * first, so it knows to refresh instead of trusting the mailbox to be complete.
+ * <p>
+ * Each replica only knows its own streams; the mailbox is meant for deployments where a client's
+ * notifications reach the replica holding its stream, i.e. a single replica or cluster routing
+ * ({@code twinhorn.cluster.routing.enabled}), otherwise it would keep updates another replica
+ * already delivered. With routing, other replicas learn of a new stream only after the directory
+ * flush and their lookup cache; {@code drain-delay} postpones the drain past that window so updates
+ * kept for the client meanwhile are part of it.
+ */
+@Slf4j
+@Component
+public class DataBatchMailbox implements OfflineMailbox {
+
+    /**
+     * Age below which an unreferenced payload may still be waiting for its rows to be inserted.
+     */
+    private static final Duration PAYLOAD_GRACE = Duration.ofMinutes(10);
+
+    private final DataBatchJdbcRepository dataBatchJdbcRepository;
+    private final ObjectMapper objectMapper;
+    private final TransactionTemplate transactionTemplate;
+    private final boolean enabled;
+    private final int maxPerClient;
+    private final Duration maxAge;
+    private final int batchSize;
+    private final int maxPending;
+    private final Duration flushInterval;
+    private final int pageSize;
+    private final int outboundCapacity;
+    private final Duration drainTimeout;
+    private final Duration drainDelay;
+    private final int maxAttempts;
+
+    private final ConcurrentLinkedQueue<PendingUpdate> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+    private final Set<UUID> draining = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService flushExecutor;
+    private final ExecutorService drainExecutor;
+
+    private final Counter stored;
+    private final Counter dropped;
+    private final Counter delivered;
+
+    public DataBatchMailbox(DataBatchJdbcRepository dataBatchJdbcRepository,
+                            ObjectMapper objectMapper,
+                            TransactionTemplate transactionTemplate,
+                            @Value("${grpc.stream.mailbox.enabled:false}") boolean enabled,
+                            @Value("${grpc.stream.mailbox.max-per-client:1000}") int maxPerClient,
+                            @Value("${grpc.stream.mailbox.max-age:P1D}") Duration maxAge,
+                            @Value("${grpc.stream.mailbox.batch-size:500}") int batchSize,
+                            @Value("${grpc.stream.mailbox.max-pending:100000}") int maxPending,
+                            @Value("${grpc.stream.mailbox.flush-interval:PT0.2S}") Duration flushInterval,
+                            @Value("${grpc.stream.mailbox.page-size:100}") int pageSize,
+                            @Value("${grpc.stream.mailbox.drain-threads:2}") int drainThreads,
+                            @Value("${grpc.stream.mailbox.drain-timeout:PT1M}") Duration drainTimeout,
+                            @Value("${grpc.stream.mailbox.drain-delay:PT0S}") Duration drainDelay,
+                            @Value("${grpc.stream.mailbox.max-attempts:5}") int maxAttempts,
+                            @Value("${grpc.stream.outbound.capacity:256}") int outboundCapacity,
+                            Environment environment,
+                            MeterRegistry meterRegistry) {
+        this.dataBatchJdbcRepository = dataBatchJdbcRepository;
+        this.objectMapper = objectMapper;
+        this.transactionTemplate = transactionTemplate;
+        this.enabled = enabled;
+        this.maxPerClient = maxPerClient;
+        this.maxAge = maxAge;
+        this.batchSize = batchSize;
+        this.maxPending = maxPending;
+        this.flushInterval = flushInterval;
+        this.pageSize = Math.min(pageSize, outboundCapacity);
+        this.outboundCapacity = outboundCapacity;
+        this.drainTimeout = drainTimeout;
+        this.drainDelay = drainDelay;
+        this.maxAttempts = maxAttempts;
+        boolean virtual = Threading.VIRTUAL.isActive(environment);
+        this.flushExecutor = Executors.newSingleThreadScheduledExecutor(threadFactory(virtual, "mailbox-writer"));
+        this.drainExecutor = Executors.newFixedThreadPool(drainThreads, threadFactory(virtual, "mailbox-drain"));
+        this.stored = Counter.builder("twinhorn.mailbox.stored")
+                .description("Updates kept for clients without a stream")
+                .register(meterRegistry);
+        this.dropped = Counter.builder("twinhorn.mailbox.dropped")
+                .description("Updates not kept or dropped from a mailbox by its bounds")
+                .register(meterRegistry);
+        this.delivered = Counter.builder("twinhorn.mailbox.delivered")
+                .description("Kept updates sent to a reconnected client")
+                .register(meterRegistry);
+        log.info("Offline mailbox {} (max-per-client={}, max-age={})",
+                enabled ? "enabled" : "disabled", maxPerClient, maxAge);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (enabled) {
+            long intervalMs = flushInterval.toMillis();
+            flushExecutor.scheduleWithFixedDelay(this::flushSafely, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Body of {@code batch_data} of a mailbox row.
+     */
+    record MailboxUpdate(String updateId, int eventType, String timestamp, List<String> twinIds,
+                         int status, long sequence) {
+    }
+
+    /**
+     * Buffered update of one client; the update itself is shared by all its recipients.
+     * {@code attempts} counts the failed inserts of its batch.
+     */
+    private record PendingUpdate(UUID clientId, SerializedUpdate update, Instant createdAt, int attempts) {
+    }
+
+    @Override
+    public boolean store(UUID clientId, SerializedUpdate update) {
+        if (!enabled) {
+            return false;
+        }
+        if (pendingCount.get() >= maxPending) {
+            dropped.increment();
+            log.warn("Mailbox write buffer full ({} pending) – dropped update for client {}", maxPending, clientId);
+            return false;
+        }
+        pending.add(new PendingUpdate(clientId, update, Instant.now(), 0));
+        if (pendingCount.incrementAndGet() >= batchSize && flushRequested.compareAndSet(false, true)) {
+            flushExecutor.execute(this::flushSafely);
+        }
+        return true;
+    }
+
+    @Override
+    public void deliver(ClientStream stream, Set<Long> skipSequences) {
+        if (!enabled || !draining.add(stream.clientId())) {
+            return;
+        }
+        Runnable drain = () -> drainExecutor.execute(() -> {
+            try {
+                drain(stream, skipSequences);
+            } catch (Exception e) {
+                log.error("Failed to deliver mailbox of client {}: {}", stream.clientId(), e.getMessage());
+            } finally {
+                draining.remove(stream.clientId());
+            }
+        });
+        if (drainDelay.isZero()) {
+            drain.run();
+        } else {
+            flushExecutor.schedule(drain, drainDelay.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Expires pending rows older than {@code max-age} and deletes delivered rows and unreferenced
+     * payloads, in pages. Safe to run on every replica at once: the statements skip rows locked by
+     * another sweeper.
+     */
+    @Scheduled(fixedDelayString = "${grpc.stream.mailbox.sweep-interval:PT5M}")
+    public void sweep() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            Instant now = Instant.now();
+            int expired = 0;
+            int page;
+            do {
+                page = dataBatchJdbcRepository.expirePending(now.minus(maxAge), batchSize);
+                expired += page;
+            } while (page == batchSize);
+            int purged = 0;
+            do {
+                page = dataBatchJdbcRepository.purge(now.minus(maxAge.multipliedBy(2)), batchSize);
+                purged += page;
+            } while (page == batchSize);
+            do {
+                page = dataBatchJdbcRepository.purgePayloads(now.minus(PAYLOAD_GRACE), batchSize);
+                purged += page;
+            } while (page == batchSize);
+            dropped.increment(expired);
+            if (expired > 0 || purged > 0) {
+                log.debug("Mailbox sweep: {} expired, {} purged", expired, purged);
+            }
+        } catch (Exception e) {
+            log.error("Failed to sweep mailboxes: {}", e.getMessage());
+        }
+    }
+
+    private void drain(ClientStream stream, Set<Long> skipSequences) {
+        UUID clientId = stream.clientId();
+        // rows of this client may still sit in the write buffer
+        flushSafely();
+        if (dataBatchJdbcRepository.acknowledgeFailed(clientId) && !stream.sendImmediate(gapUpdate())) {
+            return;
+        }
+        DrainProgress progress = new DrainProgress();
+        stream.setWriteListener(progress);
+        int written = 0;
+        try {
+            List<PendingBatch> rows;
+            do {
+                if (!progress.awaitRoom(stream)) {
+                    log.debug("Client {} is not reading, mailbox drain postponed after {} updates", clientId, written);
+                    return;
+                }
+                rows = dataBatchJdbcRepository.findPending(clientId, pageSize);
+                List<UUID> skipped = new ArrayList<>();
+                boolean open = true;
+                for (PendingBatch row : rows) {
+                    TwinfaceSubscribeUpdate update = toUpdate(row);
+                    if (update == null || skipSequences.contains(update.getSequence())
+                            || !stream.accepts(update.getEventTypeValue())) {
+                        skipped.add(row.batchId());
+                        continue;
+                    }
+                    SerializedUpdate serialized = SerializedUpdate.of(update);
+                    // track before queueing, the write may happen before sendImmediate returns
+                    progress.track(serialized, row.batchId());
+                    if (!stream.sendImmediate(serialized)) {
+                        open = false;
+                        break;
+                    }
+                }
+                dataBatchJdbcRepository.complete(skipped);
+                boolean pageWritten = open && progress.awaitWritten();
+                List<UUID> done = progress.takeWritten();
+                dataBatchJdbcRepository.complete(done);
+                written += done.size();
+                if (!pageWritten) {
+                    log.debug("Mailbox drain of client {} stopped after {} updates, the rest stays pending",
+                            clientId, written);
+                    return;
+                }
+            } while (rows.size() == pageSize);
+        } finally {
+            stream.setWriteListener(null);
+            delivered.increment(written);
+        }
+        if (written > 0) {
+            log.debug("Delivered {} kept updates to client {}", written, clientId);
+        }
+    }
+
+    /**
+     * Write progress of one drain: which queued updates belong to which row, and which of them the
+     * stream has written. The listener side runs on the writing thread and only records and signals.
+     */
+    private final class DrainProgress implements ClientStream.WriteListener {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition progressed = lock.newCondition();
+        // guarded by lock
+        private final Map<SerializedUpdate, UUID> inFlight = new IdentityHashMap<>();
+        private List<UUID> written = new ArrayList<>();
+        private boolean terminated;
+
+        void track(SerializedUpdate update, UUID batchId) {
+            lock.lock();
+            try {
+                inFlight.put(update, batchId);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void written(SerializedUpdate update) {
+            lock.lock();
+            try {
+                UUID batchId = inFlight.remove(update);
+                if (batchId != null) {
+                    written.add(batchId);
+                }
+                progressed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void terminated() {
+            lock.lock();
+            try {
+                terminated = true;
+                progressed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Waits until the outbound queue can take a page without overflowing.
+         *
+         * @return {@code false} if it did not within {@code drain-timeout} or the stream ended
+         */
+        boolean awaitRoom(ClientStream stream) {
+            return await(() -> stream.queueDepth() + pageSize <= outboundCapacity);
+        }
+
+        /**
+         * Waits until every tracked update has been written.
+         *
+         * @return {@code false} if some were not within {@code drain-timeout}, or the stream ended first
+         */
+        boolean awaitWritten() {
+            return await(inFlight::isEmpty);
+        }
+
+        /**
+         * @return rows written since the last call
+         */
+        List<UUID> takeWritten() {
+            lock.lock();
+            try {
+                List<UUID> taken = written;
+                written = new ArrayList<>();
+                return taken;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean await(BooleanSupplier done) {
+            long remaining = drainTimeout.toNanos();
+            lock.lock();
+            try {
+                while (!done.getAsBoolean()) {
+                    if (terminated || remaining <= 0) {
+                        return false;
+                    }
+                    remaining = progressed.awaitNanos(remaining);
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the update of a row, {@code null} (and the row is discarded) if it cannot be read
+     */
+    private TwinfaceSubscribeUpdate toUpdate(PendingBatch row) {
+        try {
+            MailboxUpdate kept = objectMapper.readValue(row.batchData(), MailboxUpdate.class);
+            return TwinfaceSubscribeUpdate.newBuilder()
+                    .setUpdateId(kept.updateId())
+                    .setEventTypeValue(kept.eventType())
+                    .setTimestamp(kept.timestamp())
+                    .addAllUpdatedTwinIds(kept.twinIds())
+                    .setStatusValue(kept.status())
+                    .setSequence(kept.sequence())
+                    .build();
+        } catch (JsonProcessingException | RuntimeException e) {
+            log.warn("Discarding unreadable mailbox row {}: {}", row.batchId(), e.getMessage());
+            return null;
+        }
+    }
+
+    private static TwinfaceSubscribeUpdate gapUpdate() {
+        return TwinfaceSubscribeUpdate.newBuilder()
+                .setUpdateId(UUID.randomUUID().toString())
+                .setTimestamp(Instant.now().toString())
+                .setEventType(TwinfaceSubscribeProto.TwinEventType.REPLAY_GAP)
+                .setStatus(TwinfaceSubscribeProto.UpdateStatus.SUCCESS)
+                .build();
+    }
+
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.error("Failed to flush mailbox, {} updates remain pending: {}", pendingCount.get(), e.getMessage());
+        }
+    }
+
+    /**
+     * Inserts the buffer in batches of {@code batchSize}; serialised because drains flush too.
+     */
+    private synchronized void flush() {
+        flushRequested.set(false);
+        while (!pending.isEmpty()) {
+            List<PendingUpdate> batch = new ArrayList<>(batchSize);
+            PendingUpdate next;
+            while (batch.size() < batchSize && (next = pending.poll()) != null) {
+                batch.add(next);
+            }
+            try {
+                transactionTemplate.executeWithoutResult(status -> writeBatch(batch));
+            } catch (RuntimeException e) {
+                // put the batch back, it is retried on the next flush until it runs out of attempts
+                int failed = 0;
+                for (PendingUpdate update : batch) {
+                    if (update.attempts() + 1 < maxAttempts) {
+                        pending.add(new PendingUpdate(update.clientId(), update.update(), update.createdAt(),
+                                update.attempts() + 1));
+                    } else {
+                        failed++;
+                    }
+                }
+                if (failed > 0) {
+                    pendingCount.addAndGet(-failed);
+                    dropped.increment(failed);
+                    log.error("Dropped {} mailbox updates after {} failed inserts", failed, maxAttempts);
+                }
+                throw e;
+            }
+            pendingCount.addAndGet(-batch.size());
+        }
+    }
+
+    /**
+     * Writes one payload per distinct update and one row per client with two JDBC batches, then
+     * trims the touched mailboxes; runs in one transaction so a retried batch is never half written.
+     */
+    private void writeBatch(List<PendingUpdate> batch) {
+        Map<SerializedUpdate, UUID> payloadIds = new IdentityHashMap<>();
+        List<Payload> payloads = new ArrayList<>();
+        List<MailboxRow> rows = new ArrayList<>(batch.size());
+        Set<UUID> clientIds = new LinkedHashSet<>();
+        for (PendingUpdate pendingUpdate : batch) {
+            UUID payloadId = payloadIds.get(pendingUpdate.update());
+            if (payloadId == null && !payloadIds.containsKey(pendingUpdate.update())) {
+                String payload = toPayload(pendingUpdate.update().message());
+                payloadId = payload == null ? null : UUID.randomUUID();
+                payloadIds.put(pendingUpdate.update(), payloadId);
+                if (payload != null) {
+                    payloads.add(new Payload(payloadId, pendingUpdate.createdAt(), payload));
+                }
+            }
+            if (payloadId != null) {
+                rows.add(new MailboxRow(UUID.randomUUID(), pendingUpdate.clientId(), pendingUpdate.createdAt(), payloadId));
+                clientIds.add(pendingUpdate.clientId());
+            }
+        }
+        dataBatchJdbcRepository.insertPayloads(payloads);
+        stored.increment(dataBatchJdbcRepository.insertPending(rows));
+        dropped.increment(dataBatchJdbcRepository.trimToNewest(clientIds, maxPerClient));
+    }
+
+    /**
+     * @return the {@code batch_data} JSON of an update, {@code null} if it cannot be written
+     */
+    private String toPayload(TwinfaceSubscribeUpdate message) {
+        try {
+            return objectMapper.writeValueAsString(new MailboxUpdate(message.getUpdateId(),
+                    message.getEventTypeValue(), message.getTimestamp(), message.getUpdatedTwinIdsList(),
+                    message.getStatusValue(), message.getSequence()));
+        } catch (JsonProcessingException e) {
+            log.error("Failed to serialize update {}, not kept: {}", message.getUpdateId(), e.getMessage());
+            return null;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        drainExecutor.shutdownNow();
+        flushExecutor.shutdown();
+        if (!flushExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+            log.warn("Mailbox writer did not stop in time");
+            flushExecutor.shutdownNow();
+        }
+        flushSafely();
+        if (pendingCount.get() > 0) {
+            log.error("{} mailbox updates lost on shutdown", pendingCount.get());
+        }
+    }
+
+    private static ThreadFactory threadFactory(boolean virtual, String name) {
+        // both pools block on JDBC; with spring.threads.virtual.enabled they run on virtual threads
+        if (virtual) {
+            return new VirtualThreadTaskExecutor(name + "-").getVirtualThreadFactory();
+        }
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,51 @@
+package org.twins.horn.service.cluster;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.twins.horn.config.NodeIdentity;
+import org.twins.horn.service.grpc.ConnectionDirectory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link ConnectionDirectory} that only knows this node's clients
+ * ({@code twinhorn.cluster.directory.type=memory}, the default). Stand-in for a single replica, or
+ * for development: with it every notification is handled by the node that consumed it.
+ */
+@Component
+@ConditionalOnProperty(name = "twinhorn.cluster.directory.type", havingValue = "memory", matchIfMissing = true)
+public class InMemoryConnectionDirectory implements ConnectionDirectory {
+
+    private final Set<String> self;
+    private final Set<UUID> clients = ConcurrentHashMap.newKeySet();
+
+    public InMemoryConnectionDirectory(NodeIdentity nodeIdentity) {
+        this.self = Set.of(nodeIdentity.getNodeId());
+    }
+
+    @Override
+    public void register(UUID clientId) {
+        clients.add(clientId);
+    }
+
+    @Override
+    public void unregister(UUID clientId) {
+        clients.remove(clientId);
+    }
+
+    @Override
+    public Map<UUID, Set<String>> owners(Collection<UUID> clientIds) {
+        Map<UUID, Set<String>> owners = new HashMap<>();
+        for (UUID clientId : clientIds) {
+            if (clients.contains(clientId)) {
+                owners.put(clientId, self);
+            }
+        }
+        return owners;
+    }
+}
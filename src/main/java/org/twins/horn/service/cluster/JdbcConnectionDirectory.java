@@ -0,0 +1,248 @@
+package org.twins.horn.service.cluster;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.twins.horn.config.NodeIdentity;
+import org.twins.horn.db.ConnectionDirectoryRepository;
+import org.twins.horn.service.grpc.ConnectionDirectory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ConnectionDirectory} shared by the replicas through {@code connection_directory}
+ * ({@code twinhorn.cluster.directory.type=jdbc}, settings under {@code twinhorn.cluster.directory.*}).
+ * <p>
+ * Writes: register and unregister only update the in-memory set of this node's clients and mark
+ * the client dirty. A single background thread writes the dirty clients every
+ * {@code flush-interval}, as one insert and one delete per {@code batch-size} clients, taking the
+ * state each client has at flush time, so a client that reconnects within an interval costs a
+ * single idempotent insert. A failed flush keeps the clients dirty for the next one.
+ * <p>
+ * Liveness: the node renews its {@code cluster_node} row every third of {@code node-ttl}; rows of a
+ * node that stopped renewing are ignored by lookups and deleted by the {@code sweep-interval}
+ * sweep of any replica. A node that could not renew in time writes all its clients again once it
+ * can. At start the node first drops the rows a previous run under the same id left behind, and
+ * on shutdown it removes all of its rows.
+ * <p>
+ * Reads: this node's own clients are answered from memory; the owners on other nodes are read
+ * with one query per lookup for all clients missing from a cache that keeps answers, including
+ * "no other owner", for {@code lookup-cache-ttl}. A client that moved to another node may
+ * therefore be routed to its previous node, or treated as offline, for up to
+ * {@code flush-interval + lookup-cache-ttl}.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "twinhorn.cluster.directory.type", havingValue = "jdbc")
+public class JdbcConnectionDirectory implements ConnectionDirectory {
+
+    private final ConnectionDirectoryRepository connectionDirectoryRepository;
+    private final String nodeId;
+    private final Set<String> self;
+    private final int batchSize;
+    private final Duration nodeTtl;
+    private final Set<UUID> localClients = ConcurrentHashMap.newKeySet();
+    private final Set<UUID> dirty = ConcurrentHashMap.newKeySet();
+    private final Cache<UUID, Set<String>> remoteOwners;
+    private final ScheduledExecutorService executor;
+    // set once the rows of a previous run are gone; nothing is written before
+    private volatile boolean started;
+    // start of the last successful heartbeat, directory thread only
+    private long lastHeartbeatNanos;
+
+    public JdbcConnectionDirectory(ConnectionDirectoryRepository connectionDirectoryRepository,
+                                   NodeIdentity nodeIdentity,
+                                   @Value("${twinhorn.cluster.directory.batch-size:1000}") int batchSize,
+                                   @Value("${twinhorn.cluster.directory.flush-interval:PT0.5S}") Duration flushInterval,
+                                   @Value("${twinhorn.cluster.directory.node-ttl:PT30S}") Duration nodeTtl,
+                                   @Value("${twinhorn.cluster.directory.sweep-interval:PT1M}") Duration sweepInterval,
+                                   @Value("${twinhorn.cluster.directory.lookup-cache-ttl:PT1S}") Duration lookupCacheTtl,
+                                   @Value("${twinhorn.cluster.directory.lookup-cache-size:100000}") long lookupCacheSize,
+                                   MeterRegistry meterRegistry) {
+        this.connectionDirectoryRepository = connectionDirectoryRepository;
+        this.nodeId = nodeIdentity.getNodeId();
+        this.self = Set.of(nodeId);
+        this.batchSize = batchSize;
+        this.nodeTtl = nodeTtl;
+        this.remoteOwners = Caffeine.newBuilder()
+                .maximumSize(lookupCacheSize)
+                .expireAfterWrite(lookupCacheTtl)
+                .build();
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "connection-directory");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // one thread: the heartbeat (and the cleanup before it) always runs ahead of the first flush
+        long heartbeatMs = Math.max(1, nodeTtl.toMillis() / 3);
+        executor.scheduleWithFixedDelay(this::heartbeat, 0, heartbeatMs, TimeUnit.MILLISECONDS);
+        long flushMs = flushInterval.toMillis();
+        executor.scheduleWithFixedDelay(this::flushSafely, flushMs, flushMs, TimeUnit.MILLISECONDS);
+        long sweepMs = sweepInterval.toMillis();
+        executor.scheduleWithFixedDelay(this::sweep, sweepMs, sweepMs, TimeUnit.MILLISECONDS);
+        Gauge.builder("twinhorn.cluster.directory.pending", dirty, Set::size)
+                .description("Clients whose directory entry is not written yet")
+                .register(meterRegistry);
+        log.info("Connection directory in database (node={}, flush-interval={}, node-ttl={})",
+                nodeId, flushInterval, nodeTtl);
+    }
+
+    @Override
+    public void register(UUID clientId) {
+        localClients.add(clientId);
+        dirty.add(clientId);
+    }
+
+    @Override
+    public void unregister(UUID clientId) {
+        localClients.remove(clientId);
+        dirty.add(clientId);
+    }
+
+    @Override
+    public Map<UUID, Set<String>> owners(Collection<UUID> clientIds) {
+        Map<UUID, Set<String>> remote = remoteOwners.getAll(clientIds, this::loadRemoteOwners);
+        Map<UUID, Set<String>> owners = new HashMap<>();
+        for (UUID clientId : clientIds) {
+            Set<String> nodes = remote.getOrDefault(clientId, Set.of());
+            if (localClients.contains(clientId)) {
+                if (nodes.isEmpty()) {
+                    nodes = self;
+                } else {
+                    nodes = new HashSet<>(nodes);
+                    nodes.add(nodeId);
+                }
+            }
+            if (!nodes.isEmpty()) {
+                owners.put(clientId, nodes);
+            }
+        }
+        return owners;
+    }
+
+    /**
+     * @return other nodes of every requested client, an empty set for those without any
+     */
+    private Map<UUID, Set<String>> loadRemoteOwners(Set<? extends UUID> clientIds) {
+        Map<UUID, Set<String>> found = connectionDirectoryRepository.findOwners(List.copyOf(clientIds), nodeId);
+        Map<UUID, Set<String>> loaded = new HashMap<>(found);
+        for (UUID clientId : clientIds) {
+            loaded.putIfAbsent(clientId, Set.of());
+        }
+        return loaded;
+    }
+
+    private void heartbeat() {
+        long now = System.nanoTime();
+        try {
+            if (!started) {
+                connectionDirectoryRepository.deleteNode(nodeId);
+                started = true;
+            } else if (now - lastHeartbeatNanos > nodeTtl.toNanos()) {
+                // the node may have expired meanwhile and its rows been swept; write them all again
+                log.warn("Node {} missed its directory heartbeat, re-registering {} clients", nodeId, localClients.size());
+                dirty.addAll(localClients);
+            }
+            connectionDirectoryRepository.heartbeat(nodeId, nodeTtl);
+            lastHeartbeatNanos = now;
+        } catch (Exception e) {
+            log.error("Failed to renew directory entry of node {}: {}", nodeId, e.getMessage());
+        }
+    }
+
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.error("Failed to flush connection directory, {} clients remain pending: {}", dirty.size(),
+                    e.getMessage());
+        }
+    }
+
+    private void flush() {
+        if (!started || dirty.isEmpty()) {
+            return;
+        }
+        List<UUID> connected = new ArrayList<>();
+        List<UUID> disconnected = new ArrayList<>();
+        for (UUID clientId : dirty) {
+            dirty.remove(clientId);
+            // read after the removal: a change racing with the flush marks the client dirty again
+            (localClients.contains(clientId) ? connected : disconnected).add(clientId);
+        }
+        try {
+            for (int from = 0; from < connected.size(); from += batchSize) {
+                connectionDirectoryRepository.insert(nodeId,
+                        connected.subList(from, Math.min(from + batchSize, connected.size())));
+            }
+            for (int from = 0; from < disconnected.size(); from += batchSize) {
+                connectionDirectoryRepository.delete(nodeId,
+                        disconnected.subList(from, Math.min(from + batchSize, disconnected.size())));
+            }
+        } catch (RuntimeException e) {
+            // statements are idempotent, the whole set is retried on the next flush
+            dirty.addAll(connected);
+            dirty.addAll(disconnected);
+            throw e;
+        }
+        log.debug("Connection directory flushed: {} connected, {} disconnected", connected.size(), disconnected.size());
+    }
+
+    /**
+     * Deletes the rows of expired nodes in pages, then the expired nodes themselves. Safe to run on
+     * every replica at once: the statements skip rows locked by another sweeper.
+     */
+    private void sweep() {
+        try {
+            int purged = 0;
+            int page;
+            do {
+                page = connectionDirectoryRepository.purgeExpired(batchSize);
+                purged += page;
+            } while (page == batchSize);
+            int nodes = connectionDirectoryRepository.purgeNodes();
+            if (purged > 0 || nodes > 0) {
+                log.info("Connection directory sweep: {} rows of {} expired nodes removed", purged, nodes);
+            }
+        } catch (Exception e) {
+            log.error("Failed to sweep connection directory: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Removes this node from the directory so other replicas stop routing to it at once instead of
+     * after {@code node-ttl}.
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            log.warn("Connection directory writer did not stop in time");
+            executor.shutdownNow();
+        }
+        try {
+            connectionDirectoryRepository.removeNode(nodeId);
+            connectionDirectoryRepository.deleteNode(nodeId);
+        } catch (Exception e) {
+            log.warn("Failed to remove node {} from the connection directory: {}", nodeId, e.getMessage());
+        }
+    }
+}
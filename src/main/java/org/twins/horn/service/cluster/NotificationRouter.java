@@ -0,0 +1,188 @@
+package org.twins.horn.service.cluster;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.twins.horn.config.NodeIdentity;
+import org.twins.horn.notify.TwinsNotifyProto.TwinsNotifyResponse;
+import org.twins.horn.service.grpc.ConnectionDirectory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Sends each notification consumed from {@code twins-notify} to the nodes holding streams of its
+ * clients ({@code twinhorn.cluster.routing.enabled}).
+ * <p>
+ * Every node has its own queue {@code twins-notify.node.<node id>}, bound to the direct exchange
+ * {@value #NODE_EXCHANGE} with its node id as routing key (see
+ * {@link org.twins.horn.config.ClusterRoutingConfig}). For a notification with {@code client_ids}
+ * the {@link ConnectionDirectory} is asked for the owners of all clients of the batch at once; the
+ * notification is then republished once per other owner node, carrying only the clients of that
+ * node, and the part for this node's clients is returned for local delivery. Clients no node
+ * holds stay local too, so they reach the offline mailbox. A notification without
+ * {@code client_ids} is for twin subscribers, which the directory does not know; it is
+ * published to the fan-out exchange {@value #BROADCAST_EXCHANGE} that every node queue is bound to.
+ * <p>
+ * Republished messages carry {@value #ROUTED_BY_HEADER} and are never routed again. A message for
+ * a node whose queue is gone (the node died before the directory noticed) goes through the
+ * alternate exchange {@value #UNROUTED_EXCHANGE} back to {@code twins-notify}, where any node
+ * delivers it locally.
+ * <p>
+ * A notification is routed once: when its delivery fails afterwards, the consumer retries only the
+ * local part, marked with {@value #ROUTED_BY_HEADER}. When routing is disabled every notification is
+ * delivered by the node that consumed it.
+ */
+@Slf4j
+@Service
+public class NotificationRouter {
+
+    public static final String NODE_EXCHANGE = "twins-notify.nodes";
+    public static final String BROADCAST_EXCHANGE = "twins-notify.all";
+    public static final String UNROUTED_EXCHANGE = "twins-notify.unrouted";
+    public static final String NODE_QUEUE_PREFIX = "twins-notify.node.";
+    /**
+     * Node id of the node that republished a notification.
+     */
+    public static final String ROUTED_BY_HEADER = "x-routed-by";
+
+    private final ConnectionDirectory connectionDirectory;
+    private final RabbitTemplate rabbitTemplate;
+    private final String nodeId;
+    private final boolean enabled;
+    private final Counter forwarded;
+    private final Counter broadcast;
+
+    public NotificationRouter(ConnectionDirectory connectionDirectory,
+                              RabbitTemplate rabbitTemplate,
+                              NodeIdentity nodeIdentity,
+                              @Value("${twinhorn.cluster.routing.enabled:false}") boolean enabled,
+                              MeterRegistry meterRegistry) {
+        this.connectionDirectory = connectionDirectory;
+        this.rabbitTemplate = rabbitTemplate;
+        this.nodeId = nodeIdentity.getNodeId();
+        this.enabled = enabled;
+        this.forwarded = Counter.builder("twinhorn.cluster.forwarded")
+                .description("Notifications republished to the queue of another node")
+                .register(meterRegistry);
+        this.broadcast = Counter.builder("twinhorn.cluster.broadcast")
+                .description("Notifications for twin subscribers published to all nodes")
+                .register(meterRegistry);
+        log.info("Cluster routing {}", enabled ? "enabled" : "disabled");
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Publishes the parts of the notifications that belong to other nodes.
+     *
+     * @param responses notifications consumed from {@code twins-notify}, in delivery order
+     * @return the part of each notification to deliver on this node, by index; {@code null} where
+     * there is none
+     */
+    public List<TwinsNotifyResponse> route(List<TwinsNotifyResponse> responses) {
+        if (!enabled) {
+            return responses;
+        }
+        Map<String, UUID> clientIds = new HashMap<>();
+        for (TwinsNotifyResponse response : responses) {
+            for (String clientId : response.getClientIdsList()) {
+                clientIds.computeIfAbsent(clientId, NotificationRouter::parseClientId);
+            }
+        }
+        Set<UUID> lookup = new HashSet<>(clientIds.values());
+        lookup.remove(null);
+        Map<UUID, Set<String>> owners = lookup.isEmpty() ? Map.of() : connectionDirectory.owners(lookup);
+
+        List<TwinsNotifyResponse> local = new ArrayList<>(responses.size());
+        for (TwinsNotifyResponse response : responses) {
+            if (response.getClientIdsCount() == 0) {
+                if (response.getTwinId().isEmpty()) {
+                    // invalid, left to the notifier to report
+                    local.add(response);
+                } else {
+                    publish(BROADCAST_EXCHANGE, "", response);
+                    broadcast.increment();
+                    local.add(null);
+                }
+                continue;
+            }
+            List<String> localClients = new ArrayList<>();
+            Map<String, List<String>> remoteClients = new LinkedHashMap<>();
+            for (String clientId : response.getClientIdsList()) {
+                UUID uuid = clientIds.get(clientId);
+                Set<String> nodes = uuid == null ? null : owners.get(uuid);
+                if (nodes == null || nodes.contains(nodeId)) {
+                    localClients.add(clientId);
+                }
+                if (nodes != null) {
+                    for (String node : nodes) {
+                        if (!node.equals(nodeId)) {
+                            remoteClients.computeIfAbsent(node, n -> new ArrayList<>()).add(clientId);
+                        }
+                    }
+                }
+            }
+            remoteClients.forEach((node, nodeClients) -> {
+                publish(NODE_EXCHANGE, node, withClients(response, nodeClients));
+                forwarded.increment();
+            });
+            if (localClients.size() == response.getClientIdsCount()) {
+                local.add(response);
+            } else {
+                local.add(localClients.isEmpty() ? null : withClients(response, localClients));
+            }
+            log.debug("Routed notification {}: {} clients local, {} other nodes", response.getUpdateId(),
+                    localClients.size(), remoteClients.size());
+        }
+        return local;
+    }
+
+    /**
+     * Single-message variant of {@link #route(List)}.
+     *
+     * @return the part to deliver on this node, {@code null} if there is none
+     */
+    public TwinsNotifyResponse route(TwinsNotifyResponse response) {
+        return route(List.of(response)).get(0);
+    }
+
+    private void publish(String exchange, String routingKey, TwinsNotifyResponse response) {
+        Message message = MessageBuilder.withBody(response.toByteArray())
+                .setHeader(ROUTED_BY_HEADER, nodeId)
+                .build();
+        rabbitTemplate.send(exchange, routingKey, message);
+    }
+
+    private static TwinsNotifyResponse withClients(TwinsNotifyResponse response, List<String> clientIds) {
+        return response.toBuilder().clearClientIds().addAllClientIds(clientIds).build();
+    }
+
+    /**
+     * @return the id, or {@code null} if it is not a UUID and so cannot have streams
+     */
+    private static UUID parseClientId(String clientId) {
+        try {
+            return UUID.fromString(clientId);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
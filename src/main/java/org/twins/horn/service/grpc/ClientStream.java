@@ -0,0 +1,696 @@
+package org.twins.horn.service.grpc;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto.TwinfaceSubscribeUpdate;
+import org.twins.horn.util.HierarchicalTimingWheel;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * One registered server stream of a client, as stored in {@link ConnectionRegistry}.
+ * <p>
+ * The client id is kept as the two halves of its UUID and the handle remembers its position in the
+ * client's stream array, so it can be unregistered in O(1) without searching.
+ * <p>
+ * Writes never touch the transport on the caller's thread. Every update is put into a bounded
+ * per-stream queue which is drained only while gRPC reports the stream as ready
+ * ({@link ServerCallStreamObserver#isReady()}); the drain resumes from the
+ * {@link ServerCallStreamObserver#setOnReadyHandler(Runnable) on-ready handler} once the client has
+ * caught up. A slow client therefore only fills its own queue instead of Netty's buffers. When the
+ * queue is full the configured {@link OverflowPolicy} applies. At most one thread drains at a time,
+ * so the observer is never called concurrently.
+ * <p>
+ * A stream may subscribe to a subset of event types; the set is kept as a bitmask of
+ * {@code TwinEventType} numbers and checked through {@link #accepts(int)} by the fan-out before an
+ * update is queued or encoded.
+ * <p>
+ * With a conflation window for an event type (see {@link StreamOptions}) updates of that type are
+ * held back and merged per status: when the window closes one update carrying the de-duplicated
+ * union of {@code updated_twin_ids} is queued, so a burst on hot twins costs the client a single
+ * message. The merged set is capped; a full set is queued before the window ends.
+ * <p>
+ * A stream that resumes ({@link StreamOptions#resumeFrom()} {@code > 0}) queues but does not write
+ * until {@link #resume(List)} has put the replayed updates in front of the live ones.
+ * <p>
+ * Whoever ends the stream – the client, {@link #complete}, {@link #fail}, the overflow policy or a
+ * failed write – the {@link #onTerminate(Runnable) termination hook} runs exactly once afterwards.
+ * <p>
+ * A {@link WriteListener} learns of every update actually handed to the transport, and of the
+ * termination, e.g. to acknowledge kept updates only once they were written.
+ */
+@Slf4j
+public final class ClientStream {
+
+    /**
+     * What to do with a new update when the outbound queue of a stream is full.
+     */
+    public enum OverflowPolicy {
+        /** Discard the oldest queued update. */
+        DROP_OLDEST,
+        /**
+         * Merge the twin ids into the newest queued twin update, in place; drop the oldest if there is
+         * none or the merge would reorder the updates of a twin.
+         */
+        CONFLATE,
+        /** Close the stream with {@code RESOURCE_EXHAUSTED}; the client is expected to reconnect. */
+        DISCONNECT
+    }
+
+    /**
+     * Outbound queue settings shared by all streams.
+     *
+     * @param conflationWheel     timers of the conflation windows
+     * @param maxConflatedTwinIds hard cap on the twin ids merged within one window
+     * @param deliveryLatency     time from the source event to the write of an update
+     */
+    public record OutboundSettings(int capacity, OverflowPolicy overflowPolicy,
+                                   HierarchicalTimingWheel conflationWheel, int maxConflatedTwinIds,
+                                   Timer deliveryLatency) {
+    }
+
+    /**
+     * Observer of the writes of a stream. Called on the thread that writes, outside the stream
+     * monitor; implementations must not block.
+     */
+    public interface WriteListener {
+        /**
+         * {@code update} was passed to {@code onNext} without error.
+         */
+        void written(SerializedUpdate update);
+
+        /**
+         * The stream terminated; nothing more will be written.
+         */
+        void terminated();
+    }
+
+    /**
+     * Event mask of a stream that did not restrict {@code event_types}.
+     */
+    public static final int ALL_EVENT_TYPES = -1;
+
+    private static final AtomicIntegerFieldUpdater<ClientStream> WIP =
+            AtomicIntegerFieldUpdater.newUpdater(ClientStream.class, "wip");
+
+    private final long clientIdMsb;
+    private final long clientIdLsb;
+    private final StreamObserver<SerializedUpdate> observer;
+    private final OutboundSettings settings;
+    // copied out of StreamOptions, which is not retained; the windows array is usually shared
+    private final int eventMask;
+    private final TwinSubscriptionIndex.TwinSubscription twinSubscription;
+    private final int[] conflationWindowsMillis;
+
+    /**
+     * Index in the client's stream array, {@code -1} once unregistered; guarded by the registry stripe lock.
+     */
+    int slot = -1;
+
+    private volatile int wip;
+
+    // guarded by this
+    private ArrayDeque<SerializedUpdate> queue;
+    private boolean completing;
+    private Throwable failure;
+    private boolean terminated;
+    private boolean held;
+    private long droppedUpdates;
+    private Map<Integer, ConflationWindow> openWindows;
+    private Runnable terminationHook;
+    private WriteListener writeListener;
+
+    ClientStream(UUID clientId, StreamObserver<SerializedUpdate> observer, OutboundSettings settings,
+                 StreamOptions options) {
+        this.clientIdMsb = clientId.getMostSignificantBits();
+        this.clientIdLsb = clientId.getLeastSignificantBits();
+        this.observer = observer;
+        this.settings = settings;
+        this.eventMask = options.eventMask();
+        this.twinSubscription = options.twinSubscription();
+        this.conflationWindowsMillis = options.conflationWindowsMillis();
+        this.held = options.resumeFrom() > 0;
+        if (observer instanceof ServerCallStreamObserver<SerializedUpdate> serverObserver) {
+            serverObserver.setOnReadyHandler(this::drain);
+        }
+    }
+
+    long clientIdMsb() {
+        return clientIdMsb;
+    }
+
+    long clientIdLsb() {
+        return clientIdLsb;
+    }
+
+    public UUID clientId() {
+        return new UUID(clientIdMsb, clientIdLsb);
+    }
+
+    TwinSubscriptionIndex.TwinSubscription twinSubscription() {
+        return twinSubscription;
+    }
+
+    /**
+     * Builds the event mask of a subscription from {@code TwinfaceSubscribeRequest.event_types}.
+     * An empty list subscribes to every event type.
+     */
+    public static int eventMaskOf(List<Integer> eventTypeValues) {
+        if (eventTypeValues.isEmpty()) {
+            return ALL_EVENT_TYPES;
+        }
+        int mask = 0;
+        for (int value : eventTypeValues) {
+            if (value < 0 || value >= Integer.SIZE) {
+                throw new IllegalArgumentException("Unsupported event type: " + value);
+            }
+            mask |= 1 << value;
+        }
+        return mask;
+    }
+
+    /**
+     * @return whether the client subscribed to updates of the given {@code event_type} value
+     */
+    public boolean accepts(int eventTypeValue) {
+        return eventTypeValue < 0 || eventTypeValue >= Integer.SIZE || (eventMask & (1 << eventTypeValue)) != 0;
+    }
+
+    /**
+     * Queues an update for the client and drains as far as flow control allows. Updates of an event
+     * type with a conflation window are held back and merged until the window closes.
+     *
+     * @return {@code false} if the stream is closed, including when this update made it overflow
+     * under {@link OverflowPolicy#DISCONNECT}
+     */
+    public boolean send(TwinfaceSubscribeUpdate update) {
+        return send(SerializedUpdate.of(update));
+    }
+
+    /**
+     * {@link #send(TwinfaceSubscribeUpdate)} for an update that is fanned out to several streams
+     * and must be encoded only once.
+     */
+    public boolean send(SerializedUpdate update) {
+        int eventTypeValue = update.message().getEventTypeValue();
+        int windowMillis = eventTypeValue >= 0 && eventTypeValue < conflationWindowsMillis.length
+                ? conflationWindowsMillis[eventTypeValue] : 0;
+        return windowMillis > 0 ? mergeInWindow(update, windowMillis) : enqueue(update);
+    }
+
+    /**
+     * Queues a control update, such as the initial confirmation or an expiry warning, bypassing the
+     * conflation window of its event type so it is neither delayed nor merged into twin updates.
+     *
+     * @return {@code false} if the stream is closed
+     */
+    public boolean sendImmediate(TwinfaceSubscribeUpdate update) {
+        return enqueue(SerializedUpdate.of(update));
+    }
+
+    /**
+     * {@link #sendImmediate(TwinfaceSubscribeUpdate)} for an update already encoded, e.g. one a
+     * {@link WriteListener} waits for.
+     */
+    public boolean sendImmediate(SerializedUpdate update) {
+        return enqueue(update);
+    }
+
+    /**
+     * Sets or, with {@code null}, clears the listener of written updates; there is at most one.
+     * Tells a new listener at once if the stream has already terminated.
+     */
+    public void setWriteListener(WriteListener listener) {
+        synchronized (this) {
+            writeListener = listener;
+            if (!terminated || listener == null) {
+                return;
+            }
+        }
+        listener.terminated();
+    }
+
+    private boolean enqueue(SerializedUpdate update) {
+        boolean accepted;
+        synchronized (this) {
+            if (completing || failure != null || terminated) {
+                return false;
+            }
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+            }
+            if (queue.size() < settings.capacity()) {
+                queue.addLast(update);
+                accepted = true;
+            } else {
+                accepted = handleOverflow(update);
+            }
+        }
+        drain();
+        return accepted;
+    }
+
+    /**
+     * Completes the stream normally once the already queued updates and {@code lastUpdate}
+     * (optional, never dropped, skipped if its event type is filtered out) have been written.
+     */
+    public void complete(TwinfaceSubscribeUpdate lastUpdate) {
+        SerializedUpdate last = lastUpdate == null || !accepts(lastUpdate.getEventTypeValue())
+                ? null : SerializedUpdate.of(lastUpdate);
+        synchronized (this) {
+            if (completing || failure != null || terminated) {
+                return;
+            }
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+            }
+            // updates held in open windows go out first, the stream is closing anyway
+            for (ConflationWindow window : closeWindows()) {
+                queue.addLast(window.toUpdate());
+            }
+            if (last != null) {
+                queue.addLast(last);
+            }
+            completing = true;
+        }
+        drain();
+    }
+
+    /**
+     * Terminates the stream with an error status, discarding queued updates.
+     */
+    public void fail(Throwable error) {
+        synchronized (this) {
+            if (failure != null || terminated) {
+                return;
+            }
+            closeWindows();
+            failure = error;
+        }
+        drain();
+    }
+
+    /**
+     * Releases a held stream. The queue becomes: control updates queued so far (no sequence), then
+     * {@code replay} (not subject to the capacity), then the other queued updates minus those
+     * already replayed.
+     */
+    void resume(List<SerializedUpdate> replay) {
+        synchronized (this) {
+            if (!held) {
+                return;
+            }
+            held = false;
+            if (!replay.isEmpty() && !terminated && failure == null) {
+                ArrayDeque<SerializedUpdate> live = queue == null ? new ArrayDeque<>() : queue;
+                queue = new ArrayDeque<>(live.size() + replay.size());
+                Set<Long> replayed = new HashSet<>();
+                for (SerializedUpdate update : replay) {
+                    replayed.add(update.message().getSequence());
+                }
+                for (SerializedUpdate update : live) {
+                    if (update.message().getSequence() == 0) {
+                        queue.addLast(update);
+                    }
+                }
+                queue.addAll(replay);
+                for (SerializedUpdate update : live) {
+                    long sequence = update.message().getSequence();
+                    if (sequence != 0 && !replayed.contains(sequence)) {
+                        queue.addLast(update);
+                    }
+                }
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Marks the stream closed after the client cancelled it; queued and further updates are discarded.
+     */
+    void markCancelled() {
+        Runnable hook;
+        synchronized (this) {
+            if (terminated) {
+                return;
+            }
+            hook = terminate();
+            queue = null;
+            closeWindows();
+        }
+        runTerminationHook(hook);
+    }
+
+    /**
+     * Sets the action to run once the stream has terminated, such as cancelling its timers. Runs it
+     * at once if the stream is already terminated.
+     */
+    public void onTerminate(Runnable hook) {
+        synchronized (this) {
+            if (!terminated) {
+                terminationHook = hook;
+                return;
+            }
+        }
+        runTerminationHook(hook);
+    }
+
+    /**
+     * Marks the stream terminated; guarded by this.
+     *
+     * @return the hook to run once the monitor is released
+     */
+    private Runnable terminate() {
+        terminated = true;
+        Runnable hook = terminationHook;
+        terminationHook = null;
+        WriteListener listener = writeListener;
+        if (listener == null) {
+            return hook;
+        }
+        return hook == null ? listener::terminated : () -> {
+            try {
+                hook.run();
+            } finally {
+                listener.terminated();
+            }
+        };
+    }
+
+    private void runTerminationHook(Runnable hook) {
+        if (hook == null) {
+            return;
+        }
+        try {
+            hook.run();
+        } catch (Exception e) {
+            log.warn("Termination hook of client {} failed: {}", clientId(), e.getMessage());
+        }
+    }
+
+    /**
+     * @return number of updates waiting for the client
+     */
+    public synchronized int queueDepth() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * @return updates discarded or merged away by the overflow policy
+     */
+    public synchronized long droppedUpdates() {
+        return droppedUpdates;
+    }
+
+    /**
+     * Adds the update to the open conflation window of its event type and status, opening one if
+     * needed. A window is flushed when its timer fires or, early, when its twin id set reaches
+     * {@link OutboundSettings#maxConflatedTwinIds()}.
+     */
+    private boolean mergeInWindow(SerializedUpdate serializedUpdate, int windowMillis) {
+        TwinfaceSubscribeUpdate update = serializedUpdate.message();
+        SerializedUpdate full = null;
+        SerializedUpdate overflow = null;
+        synchronized (this) {
+            if (completing || failure != null || terminated) {
+                return false;
+            }
+            if (openWindows == null) {
+                openWindows = new HashMap<>(4);
+            }
+            int key = update.getEventTypeValue() << 8 | update.getStatusValue() & 0xFF;
+            int cap = settings.maxConflatedTwinIds();
+            ConflationWindow window = openWindows.get(key);
+            if (window != null && window.twinIds.size() + update.getUpdatedTwinIdsCount() > cap) {
+                openWindows.remove(key);
+                window.timer.cancel();
+                full = window.toUpdate();
+                window = null;
+            }
+            if (window == null) {
+                window = new ConflationWindow();
+                window.timer = settings.conflationWheel().schedule(
+                        () -> flushWindow(key), windowMillis, TimeUnit.MILLISECONDS);
+                openWindows.put(key, window);
+            }
+            window.merge(serializedUpdate);
+            if (window.twinIds.size() >= cap) {
+                openWindows.remove(key);
+                window.timer.cancel();
+                overflow = window.toUpdate();
+            }
+        }
+        boolean open = full == null || enqueue(full);
+        return overflow == null ? open : enqueue(overflow) && open;
+    }
+
+    private void flushWindow(int key) {
+        ConflationWindow window;
+        synchronized (this) {
+            window = openWindows == null ? null : openWindows.remove(key);
+        }
+        if (window != null) {
+            enqueue(window.toUpdate());
+        }
+    }
+
+    /**
+     * Cancels all window timers; guarded by this.
+     *
+     * @return the windows that were open
+     */
+    private Collection<ConflationWindow> closeWindows() {
+        if (openWindows == null || openWindows.isEmpty()) {
+            return List.of();
+        }
+        List<ConflationWindow> windows = new ArrayList<>(openWindows.values());
+        openWindows.clear();
+        for (ConflationWindow window : windows) {
+            window.timer.cancel();
+        }
+        return windows;
+    }
+
+    /**
+     * Applies the overflow policy to a full queue; guarded by this.
+     *
+     * @return {@code true} if the update was queued or merged
+     */
+    private boolean handleOverflow(SerializedUpdate update) {
+        if (droppedUpdates == 0) {
+            log.warn("Outbound queue of client {} is full ({} updates), applying {}",
+                    clientId(), settings.capacity(), settings.overflowPolicy());
+        }
+        droppedUpdates++;
+        switch (settings.overflowPolicy()) {
+            case DISCONNECT -> {
+                failure = Status.RESOURCE_EXHAUSTED
+                        .withDescription("Client is not consuming updates fast enough")
+                        .asRuntimeException();
+                return false;
+            }
+            case CONFLATE -> {
+                if (conflate(update)) {
+                    return true;
+                }
+                queue.pollFirst();
+            }
+            default -> queue.pollFirst();
+        }
+        queue.addLast(update);
+        return true;
+    }
+
+    /**
+     * Folds a twin update into the newest queued twin update with the same status, in place: the
+     * merged update keeps the queue position of the queued one, so updates queued after it still
+     * follow it. Declines if one of those later updates names a twin of the new update, as moving
+     * that twin's newer ids in front of them would reorder its updates. The merged update takes the
+     * {@code sequence} of the new one only when nothing is queued after it; otherwise it keeps the
+     * older sequence, so a client resuming from it gets the later updates replayed rather than
+     * skipped.
+     */
+    private boolean conflate(SerializedUpdate serializedUpdate) {
+        TwinfaceSubscribeUpdate update = serializedUpdate.message();
+        if (update.getEventType() != TwinfaceSubscribeProto.TwinEventType.TWIN_UPDATE) {
+            return false;
+        }
+        Set<String> newTwinIds = new HashSet<>(update.getUpdatedTwinIdsList());
+        int later = 0;
+        Iterator<SerializedUpdate> newestFirst = queue.descendingIterator();
+        while (newestFirst.hasNext()) {
+            TwinfaceSubscribeUpdate queued = newestFirst.next().message();
+            if (queued.getEventType() == TwinfaceSubscribeProto.TwinEventType.TWIN_UPDATE
+                    && queued.getStatus() == update.getStatus()) {
+                break;
+            }
+            for (String twinId : queued.getUpdatedTwinIdsList()) {
+                if (newTwinIds.contains(twinId)) {
+                    return false;
+                }
+            }
+            later++;
+        }
+        if (later == queue.size()) {
+            return false;
+        }
+        SerializedUpdate[] tail = new SerializedUpdate[later];
+        for (int i = later - 1; i >= 0; i--) {
+            tail[i] = queue.pollLast();
+        }
+        SerializedUpdate queuedUpdate = queue.pollLast();
+        TwinfaceSubscribeUpdate queued = queuedUpdate.message();
+        Set<String> twinIds = new LinkedHashSet<>(queued.getUpdatedTwinIdsList());
+        twinIds.addAll(update.getUpdatedTwinIdsList());
+        TwinfaceSubscribeUpdate merged = queued.toBuilder()
+                .setUpdateId(update.getUpdateId())
+                .setTimestamp(update.getTimestamp())
+                .setSequence(later == 0 ? update.getSequence() : queued.getSequence())
+                .clearUpdatedTwinIds()
+                .addAllUpdatedTwinIds(twinIds)
+                .build();
+        // the merged update is as late as its oldest part
+        queue.addLast(SerializedUpdate.of(merged, queuedUpdate.originEpochMillis()));
+        for (SerializedUpdate laterUpdate : tail) {
+            queue.addLast(laterUpdate);
+        }
+        return true;
+    }
+
+    /**
+     * Writes queued updates while the transport is ready. Only one thread runs the loop; other
+     * callers just flag that there is more work.
+     */
+    private void drain() {
+        if (WIP.getAndIncrement(this) != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            while (emitNext()) {
+                // keep writing
+            }
+            missed = WIP.addAndGet(this, -missed);
+        } while (missed != 0);
+    }
+
+    /**
+     * @return {@code true} if something was written and the loop should continue
+     */
+    private boolean emitNext() {
+        SerializedUpdate next;
+        WriteListener listener;
+        Throwable error = null;
+        boolean complete = false;
+        Runnable hook = null;
+        synchronized (this) {
+            if (terminated) {
+                return false;
+            }
+            listener = writeListener;
+            if (failure != null) {
+                error = failure;
+                hook = terminate();
+                queue = null;
+                next = null;
+            } else if (held) {
+                return false;
+            } else if (queue == null || queue.isEmpty()) {
+                if (!completing) {
+                    return false;
+                }
+                complete = true;
+                hook = terminate();
+                next = null;
+            } else if (!(observer instanceof ServerCallStreamObserver<SerializedUpdate> flowControlled)
+                    || flowControlled.isReady()) {
+                next = queue.pollFirst();
+            } else {
+                return false;
+            }
+        }
+        try {
+            if (error != null) {
+                observer.onError(error);
+                return false;
+            }
+            if (complete) {
+                observer.onCompleted();
+                return false;
+            }
+            observer.onNext(next);
+            if (listener != null) {
+                listener.written(next);
+            }
+            if (next.originEpochMillis() > 0) {
+                settings.deliveryLatency().record(
+                        Math.max(0, System.currentTimeMillis() - next.originEpochMillis()), TimeUnit.MILLISECONDS);
+            }
+            return true;
+        } catch (Exception e) {
+            log.debug("Failed to write to stream of client {}: {}", clientId(), e.getMessage());
+            synchronized (this) {
+                if (!terminated) {
+                    hook = terminate();
+                }
+                queue = null;
+            }
+            if (error == null && !complete) {
+                // the call is still open unless the write failed because it was closed already
+                try {
+                    observer.onError(Status.INTERNAL.withCause(e).asRuntimeException());
+                } catch (Exception closed) {
+                    log.debug("Stream of client {} already closed: {}", clientId(), closed.getMessage());
+                }
+            }
+            return false;
+        } finally {
+            runTerminationHook(hook);
+        }
+    }
+
+    /**
+     * Updates merged within one open window; guarded by the stream monitor.
+     */
+    private static final class ConflationWindow {
+        private final Set<String> twinIds = new LinkedHashSet<>();
+        private TwinfaceSubscribeUpdate latest;
+        private long originEpochMillis;
+        private HierarchicalTimingWheel.Timer timer;
+
+        void merge(SerializedUpdate update) {
+            twinIds.addAll(update.message().getUpdatedTwinIdsList());
+            latest = update.message();
+            if (originEpochMillis == 0 || update.originEpochMillis() > 0 && update.originEpochMillis() < originEpochMillis) {
+                originEpochMillis = update.originEpochMillis();
+            }
+        }
+
+        /**
+         * @return the latest update carrying the union of all twin ids seen in the window, dated by
+         * the oldest source event merged into it
+         */
+        SerializedUpdate toUpdate() {
+            return SerializedUpdate.of(latest.toBuilder()
+                    .clearUpdatedTwinIds()
+                    .addAllUpdatedTwinIds(twinIds)
+                    .build(), originEpochMillis);
+        }
+    }
+}
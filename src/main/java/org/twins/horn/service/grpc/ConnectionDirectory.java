@@ -0,0 +1,48 @@
+package org.twins.horn.service.grpc;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Cluster-wide view of which nodes hold streams of which clients, kept up to date by
+ * {@link ConnectionRegistry} and consulted to route notifications to those nodes.
+ */
+public interface ConnectionDirectory {
+
+    /**
+     * Records nothing and knows no owners; for registries built outside the application context.
+     */
+    ConnectionDirectory NONE = new ConnectionDirectory() {
+        @Override
+        public void register(UUID clientId) {
+        }
+
+        @Override
+        public void unregister(UUID clientId) {
+        }
+
+        @Override
+        public Map<UUID, Set<String>> owners(Collection<UUID> clientIds) {
+            return Map.of();
+        }
+    };
+
+    /**
+     * The client got its first stream on this node. Called under a registry lock: must only
+     * record the change and return.
+     */
+    void register(UUID clientId);
+
+    /**
+     * The client's last stream on this node is gone. Called under a registry lock: must only
+     * record the change and return.
+     */
+    void unregister(UUID clientId);
+
+    /**
+     * @return ids of the nodes holding streams of each client; clients without any are absent
+     */
+    Map<UUID, Set<String>> owners(Collection<UUID> clientIds);
+}
@@ -1,113 +1,719 @@
 package org.twins.horn.service.grpc;
 
+import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.twins.horn.config.ConflationProperties;
 import org.twins.horn.subscribe.TwinfaceSubscribeProto;
+import org.twins.horn.util.HierarchicalTimingWheel;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
- * Thread-safe utility that maps a client identifier to a list of gRPC
- * {@link StreamObserver StreamObservers} interested in
+ * Thread-safe index that maps a client identifier to the gRPC streams interested in
  * {@link TwinfaceSubscribeProto.TwinfaceSubscribeUpdate} events.
  *
  * <p>Key characteristics:
  * <ul>
- *   <li>Backed by a {@link ConcurrentHashMap} and per-client
- *       {@link CopyOnWriteArrayList} to allow lock-free reads and writes.</li>
- *   <li>Static API – the registry is a singleton; instantiation is prevented by
- *       a private constructor.</li>
- *   <li>Supports three basic operations:
- *     <ul>
- *       <li>{@code add(clientId, observer)} – register a new observer.</li>
- *       <li>{@code remove(clientId, observer)} – deregister an observer and
- *           clean up empty lists.</li>
- *       <li>{@code broadcast(clientId, update)} – push an update to all
- *           observers for the specified client, logging failures but leaving
- *           cleanup to the caller.</li>
- *     </ul>
- *   </li>
+ *   <li>Client ids are UUIDs stored as two {@code long}s; no {@code String} or {@code UUID}
+ *       object is retained per client.</li>
+ *   <li>The index is split into {@code grpc.connections.stripes} stripes (power of two), each an
+ *       open-addressing hash table (linear probing, backward-shift deletion) guarded by its own
+ *       lock. Register and unregister are O(1) and never copy more than one client's array.</li>
+ *   <li>A client's streams live in a plain array; a {@link ClientStream} remembers its slot, so
+ *       removal swaps the last stream into the hole. The client entry is dropped in the same
+ *       critical section that removes its last stream, so a concurrent {@code register} for the
+ *       same client either sees the entry or creates a new one – it can never be lost.</li>
+ *   <li>Deliveries take a snapshot of the target streams under the stripe lock and hand the
+ *       update to each stream's bounded outbound queue outside of it (see {@link ClientStream}),
+ *       so neither registration nor the delivering thread waits for a slow client.</li>
  * </ul>
  *
- * <p>All methods are safe to invoke concurrently from multiple threads.
+ * <p>Memory budget per connected client with a single stream (64-bit JVM, compressed oops), not
+ * counting the gRPC call objects behind the observer:
+ * <pre>
+ *   table slot: msb + lsb + array ref + count = 24 B, load factor 0.25 - 0.5    48 - 96 B
+ *   ClientStream[] of length 1                                                 24 B
+ *   ClientStream (ids, observer, settings, event mask, subscription and
+ *                 conflation refs, slot, queue state)                          88 B
+ *                                                                       160 - 208 B
+ * </pre>
+ * {@link StreamOptions} is not retained and the conflation windows are shared (see
+ * {@link ConflationProperties}), as is the subscription of a stream that follows no twins. With
+ * 100k clients the retained heap measures about 175 B per client; {@code ConnectionRegistryFootprintTest}
+ * checks it against the upper bound. Not included: the outbound queue of streams that ever had to
+ * buffer updates and the twin subscriptions of streams that have them. Each additional stream of
+ * the same client adds 88 B plus 4 B of array. {@link #estimatedFootprintBytes()} reports the
+ * figure at runtime. Tables grow at 50 % load and shrink below 12.5 %.
+ *
+ * <p>Updates addressed to a client and carrying a {@code sequence} are also kept in the client's
+ * {@link ReplayBufferStore} buffer, before its streams are looked up: a stream registered while the
+ * update is in flight receives it live and {@link #resume} finds it in the buffer as well, the
+ * duplicate is dropped there. Updates routed by twin subscription are not buffered, since the
+ * subscriptions of a disconnected client are unknown; a stream that follows twins is resumed with
+ * a gap.
+ *
+ * <p>An update with a {@code sequence} addressed to a client that has no stream is handed to the
+ * {@link OfflineMailbox} and delivered by {@link #deliverOffline} when the client connects again.
+ *
+ * <p>The {@link ConnectionDirectory} learns about a client when its first stream is added and when
+ * its last stream is removed, inside the stripe lock, so a concurrent register and unregister of
+ * the same client reach it in the order they took effect.
  */
 @Slf4j
+@Component
 public class ConnectionRegistry {
-    private static final ConcurrentHashMap<String, CopyOnWriteArrayList<StreamObserver<TwinfaceSubscribeProto.TwinfaceSubscribeUpdate>>> observers =
-            new ConcurrentHashMap<>();
+
+    private static final int INITIAL_STRIPE_CAPACITY = 16;
+    private static final int SLOT_BYTES = 24;
+    // ClientStream; its StreamOptions is not retained and the conflation windows are shared
+    private static final int STREAM_BYTES = 88;
+    private static final int ARRAY_HEADER_BYTES = 16;
+    // well below any scrape interval
+    private static final long QUEUE_DEPTH_SAMPLE_AGE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Stripe[] stripes;
+    private final int stripeShift;
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final ClientStream.OutboundSettings outboundSettings;
+    private final TwinSubscriptionIndex twinSubscriptionIndex;
+    private final HierarchicalTimingWheel conflationWheel;
+    private final ReplayBufferStore replayBufferStore;
+    private final OfflineMailbox offlineMailbox;
+    private final ConnectionDirectory connectionDirectory;
+    private volatile QueueDepthSample queueDepthSample;
+
+    public ConnectionRegistry(TwinSubscriptionIndex twinSubscriptionIndex,
+                              ConflationProperties conflationProperties,
+                              ReplayBufferStore replayBufferStore,
+                              OfflineMailbox offlineMailbox,
+                              ConnectionDirectory connectionDirectory,
+                              @Value("${grpc.connections.stripes:64}") int stripeCount,
+                              @Value("${grpc.stream.outbound.capacity:256}") int outboundCapacity,
+                              @Value("${grpc.stream.outbound.overflow:DROP_OLDEST}") ClientStream.OverflowPolicy overflowPolicy,
+                              MeterRegistry meterRegistry) {
+        if (outboundCapacity < 1) {
+            throw new IllegalArgumentException("grpc.stream.outbound.capacity must be positive");
+        }
+        this.conflationWheel = new HierarchicalTimingWheel("stream-conflation-wheel", conflationProperties.getTick(), 512);
+        Timer deliveryLatency = Timer.builder("twinhorn.notify.delivery.latency")
+                .description("Time from TwinsNotifyResponse.timestamp to the write of the update to a stream")
+                .publishPercentileHistogram()
+                .maximumExpectedValue(Duration.ofMinutes(1))
+                .register(meterRegistry);
+        this.outboundSettings = new ClientStream.OutboundSettings(outboundCapacity, overflowPolicy,
+                conflationWheel, conflationProperties.getMaxTwinIds(), deliveryLatency);
+        this.twinSubscriptionIndex = twinSubscriptionIndex;
+        this.replayBufferStore = replayBufferStore;
+        this.offlineMailbox = offlineMailbox;
+        this.connectionDirectory = connectionDirectory;
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(2, stripeCount) - 1);
+        this.stripes = new Stripe[1 << bits];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.stripeShift = 64 - bits;
+        Gauge.builder("twinhorn.grpc.streams", this, ConnectionRegistry::connectionCount)
+                .description("Registered streams")
+                .register(meterRegistry);
+        Gauge.builder("twinhorn.grpc.clients", this, ConnectionRegistry::clientCount)
+                .description("Clients with at least one registered stream")
+                .register(meterRegistry);
+        // the gauges of one scrape share a single walk over all streams
+        Gauge.builder("twinhorn.grpc.outbound.queued", this, r -> r.sampledQueueDepthSummary().totalQueued())
+                .description("Updates waiting in the outbound queues of all streams")
+                .register(meterRegistry);
+        Gauge.builder("twinhorn.grpc.outbound.depth.max", this, r -> r.sampledQueueDepthSummary().maxDepth())
+                .description("Updates waiting in the deepest outbound queue")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Registers a new stream of the client that receives every event type.
+     *
+     * @return handle used to write to the stream and to unregister it
+     */
+    public ClientStream register(UUID clientId, StreamObserver<SerializedUpdate> observer) {
+        return register(clientId, observer, StreamOptions.DEFAULT);
+    }
+
+    /**
+     * Registers a new stream of the client; its twin subscriptions are added to {@link TwinSubscriptionIndex}.
+     *
+     * @param options event types, twin subscriptions and conflation windows of the stream
+     * @return handle used to write to the stream and to unregister it
+     */
+    public ClientStream register(UUID clientId, StreamObserver<SerializedUpdate> observer, StreamOptions options) {
+        TwinSubscriptionIndex.TwinSubscription subscription = options.twinSubscription();
+        ClientStream stream = new ClientStream(clientId, observer, outboundSettings, options);
+        long hash = hash(stream.clientIdMsb(), stream.clientIdLsb());
+        Stripe stripe = stripeOf(hash);
+        int streamsOfClient;
+        synchronized (stripe) {
+            streamsOfClient = stripe.add(stream, (int) hash);
+            if (streamsOfClient == 1) {
+                connectionDirectory.register(clientId);
+            }
+        }
+        connectionCount.incrementAndGet();
+        if (!subscription.isEmpty()) {
+            twinSubscriptionIndex.subscribe(stream, subscription);
+        }
+        log.debug("Added stream for client: {}, streams of client: {}", clientId, streamsOfClient);
+        return stream;
+    }
+
+    /**
+     * Releases a stream registered with {@link StreamOptions#resumeFrom()} {@code > 0}: queues the
+     * client's updates after that sequence, or a single {@code REPLAY_GAP} update if some of them
+     * are no longer buffered, ahead of everything sent to the stream since it was registered.
+     * Must be called once the stream is registered, otherwise its output stays held.
+     *
+     * @return number of updates replayed, {@code -1} for a gap
+     */
+    public int resume(ClientStream stream, long resumeFrom) {
+        UUID clientId = stream.clientId();
+        List<SerializedUpdate> replay = stream.twinSubscription().isEmpty()
+                ? replayBufferStore.replayAfter(clientId, resumeFrom) : null;
+        if (replay == null) {
+            log.debug("Cannot resume client {} from sequence {}, sending gap", clientId, resumeFrom);
+            stream.resume(List.of(SerializedUpdate.of(TwinfaceSubscribeProto.TwinfaceSubscribeUpdate.newBuilder()
+                    .setUpdateId(UUID.randomUUID().toString())
+                    .setTimestamp(Instant.now().toString())
+                    .setEventType(TwinfaceSubscribeProto.TwinEventType.REPLAY_GAP)
+                    .setStatus(TwinfaceSubscribeProto.UpdateStatus.SUCCESS)
+                    .setSequence(replayBufferStore.currentSequence())
+                    .build())));
+            return -1;
+        }
+        List<SerializedUpdate> accepted = new ArrayList<>(replay.size());
+        for (SerializedUpdate update : replay) {
+            if (stream.accepts(update.message().getEventTypeValue())) {
+                accepted.add(update);
+            }
+        }
+        stream.resume(accepted);
+        log.debug("Resumed client {} from sequence {} with {} updates", clientId, resumeFrom, accepted.size());
+        return accepted.size();
+    }
+
+    /**
+     * Sends what the {@link OfflineMailbox} kept for the client while it had no stream, except the
+     * updates its replay buffer holds when the stream resumed without a gap: those were received
+     * before the disconnect or have just been replayed.
+     *
+     * @param resumed whether {@link #resume} replayed without a gap
+     */
+    public void deliverOffline(ClientStream stream, boolean resumed) {
+        offlineMailbox.deliver(stream, resumed ? replayBufferStore.sequences(stream.clientId()) : Set.of());
+    }
+
+    /**
+     * @return the {@code sequence} of a new update for clients, see {@link ReplayBufferStore}
+     */
+    public long nextSequence() {
+        return replayBufferStore.nextSequence();
+    }
+
+    /**
+     * @return a {@code resume_from} that covers every update sent from now on
+     */
+    public long currentSequence() {
+        return replayBufferStore.currentSequence();
+    }
+
+    /**
+     * Removes the stream from the index. Idempotent.
+     *
+     * @return {@code true} if the stream was registered
+     */
+    public boolean unregister(ClientStream stream) {
+        long hash = hash(stream.clientIdMsb(), stream.clientIdLsb());
+        Stripe stripe = stripeOf(hash);
+        int remaining;
+        synchronized (stripe) {
+            remaining = stripe.remove(stream, (int) hash);
+            if (remaining == 0) {
+                connectionDirectory.unregister(stream.clientId());
+            }
+        }
+        if (remaining < 0) {
+            return false;
+        }
+        connectionCount.decrementAndGet();
+        if (!stream.twinSubscription().isEmpty()) {
+            twinSubscriptionIndex.unsubscribe(stream, stream.twinSubscription());
+        }
+        log.debug("Removed stream for client: {}, remaining streams: {}", stream.clientId(), remaining);
+        return true;
+    }
+
+    /**
+     * Sends an update to all streams of the given client that subscribed to its event type;
+     * streams that fail are unregistered.
+     *
+     * @return number of streams the update was queued for
+     */
+    public int broadcast(UUID clientId, TwinfaceSubscribeProto.TwinfaceSubscribeUpdate update) {
+        return broadcast(clientId, SerializedUpdate.of(update));
+    }
+
+    /**
+     * {@link #broadcast(UUID, TwinfaceSubscribeProto.TwinfaceSubscribeUpdate)} for an update shared by
+     * several clients; it is encoded once no matter how many streams receive it.
+     */
+    public int broadcast(UUID clientId, SerializedUpdate update) {
+        long msb = clientId.getMostSignificantBits();
+        long lsb = clientId.getLeastSignificantBits();
+        long hash = hash(msb, lsb);
+        replayBufferStore.append(clientId, update);
+        ClientStream[] targets = snapshot(msb, lsb, hash);
+        if (targets == null) {
+            storeOffline(clientId, update);
+            return 0;
+        }
+        int eventType = update.message().getEventTypeValue();
+        int successful = 0;
+        for (ClientStream stream : targets) {
+            if (!stream.accepts(eventType)) {
+                continue;
+            }
+            if (stream.send(update)) {
+                successful++;
+            } else {
+                unregister(stream);
+            }
+        }
+        log.debug("Sent update to {}/{} streams of client: {}", successful, targets.length, clientId);
+        return successful;
+    }
+
+    /**
+     * Sends several updates to the streams of one client with a single lookup, in list order.
+     * Used by batch consumption, which groups the updates of a batch by client first.
+     *
+     * @return number of streams each update was queued for, by list index
+     */
+    public int[] broadcast(UUID clientId, List<SerializedUpdate> updates) {
+        long msb = clientId.getMostSignificantBits();
+        long lsb = clientId.getLeastSignificantBits();
+        long hash = hash(msb, lsb);
+        for (SerializedUpdate update : updates) {
+            replayBufferStore.append(clientId, update);
+        }
+        ClientStream[] targets = snapshot(msb, lsb, hash);
+        int[] successful = new int[updates.size()];
+        if (targets == null) {
+            for (SerializedUpdate update : updates) {
+                storeOffline(clientId, update);
+            }
+            return successful;
+        }
+        for (ClientStream stream : targets) {
+            for (int i = 0; i < successful.length; i++) {
+                SerializedUpdate update = updates.get(i);
+                if (!stream.accepts(update.message().getEventTypeValue())) {
+                    continue;
+                }
+                if (stream.send(update)) {
+                    successful[i]++;
+                } else {
+                    unregister(stream);
+                    break;
+                }
+            }
+        }
+        log.debug("Sent {} updates to {} streams of client: {}", updates.size(), targets.length, clientId);
+        return successful;
+    }
+
+    /**
+     * {@link #broadcast(UUID, SerializedUpdate)} for ids received as text;
+     * ids that are not UUIDs cannot have streams and are ignored.
+     */
+    public int broadcast(String clientId, SerializedUpdate update) {
+        UUID uuid;
+        try {
+            uuid = UUID.fromString(clientId);
+        } catch (IllegalArgumentException e) {
+            log.debug("Ignoring update for non-UUID client id: {}", clientId);
+            return 0;
+        }
+        return broadcast(uuid, update);
+    }
+
+    /**
+     * Sends an update to every stream following the twin by id or prefix, for notifications that
+     * carry no explicit audience. Costs O(subscribers of the twin).
+     *
+     * @return number of streams the update was queued for
+     */
+    public int broadcastToTwinSubscribers(String twinId, SerializedUpdate update) {
+        int eventType = update.message().getEventTypeValue();
+        int successful = 0;
+        for (ClientStream stream : twinSubscriptionIndex.subscribers(twinId)) {
+            if (!stream.accepts(eventType)) {
+                continue;
+            }
+            if (stream.send(update)) {
+                successful++;
+            } else {
+                unregister(stream);
+            }
+        }
+        log.debug("Sent update of twin {} to {} subscribed streams", twinId, successful);
+        return successful;
+    }
 
     /**
      * Broadcast an update to ALL connected clients. Useful for infrastructure-level
      * heart-beats (e.g. transient errors) that are not bound to a particular client.
+     * The update is encoded once and the same bytes are written to every stream.
      */
-    public static void broadcastAll(TwinfaceSubscribeProto.TwinfaceSubscribeUpdate update) {
-        observers.forEach((clientId, list) -> broadcast(clientId, update));
+    public void broadcastAll(TwinfaceSubscribeProto.TwinfaceSubscribeUpdate update) {
+        SerializedUpdate serialized = SerializedUpdate.of(update);
+        int eventType = update.getEventTypeValue();
+        for (Stripe stripe : stripes) {
+            List<ClientStream> streams;
+            synchronized (stripe) {
+                streams = stripe.snapshotAll(false);
+            }
+            for (ClientStream stream : streams) {
+                if (stream.accepts(eventType) && !stream.send(serialized)) {
+                    unregister(stream);
+                }
+            }
+        }
     }
 
     /**
      * Closes all active streams with the provided gRPC error. Used for permanent
      * infrastructure failures where the service cannot continue streaming.
      */
-    public static void failAll(io.grpc.StatusRuntimeException statusError) {
-        observers.forEach((clientId, list) -> {
-            for (io.grpc.stub.StreamObserver<TwinfaceSubscribeProto.TwinfaceSubscribeUpdate> obs : list) {
-                try {
-                    obs.onError(statusError);
-                } catch (Exception ignore) {
+    public void failAll(StatusRuntimeException statusError) {
+        for (Stripe stripe : stripes) {
+            List<ClientStream> removed;
+            synchronized (stripe) {
+                removed = stripe.snapshotAll(true);
+                removed.stream().map(ClientStream::clientId).distinct().forEach(connectionDirectory::unregister);
+            }
+            connectionCount.addAndGet(-removed.size());
+            for (ClientStream stream : removed) {
+                if (!stream.twinSubscription().isEmpty()) {
+                    twinSubscriptionIndex.unsubscribe(stream, stream.twinSubscription());
                 }
+                stream.fail(statusError);
             }
-        });
-        observers.clear();
+        }
     }
 
-    private ConnectionRegistry() {
+    /**
+     * @return number of registered streams
+     */
+    public int connectionCount() {
+        return connectionCount.get();
     }
 
-    public static void add(String clientId, StreamObserver<TwinfaceSubscribeProto.TwinfaceSubscribeUpdate> observer) {
-        observers.computeIfAbsent(clientId, k -> new CopyOnWriteArrayList<>()).add(observer);
-        log.debug("Added observer for client: {}, total observers: {}", clientId,
-                observers.getOrDefault(clientId, new CopyOnWriteArrayList<>()).size());
+    /**
+     * @return number of clients with at least one registered stream
+     */
+    public int clientCount() {
+        int clients = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                clients += stripe.size;
+            }
+        }
+        return clients;
     }
 
-    public static void remove(String clientId, StreamObserver<TwinfaceSubscribeProto.TwinfaceSubscribeUpdate> observer) {
-        List<StreamObserver<TwinfaceSubscribeProto.TwinfaceSubscribeUpdate>> list = observers.get(clientId);
-        if (list != null) {
-            list.remove(observer);
-            log.debug("Removed observer for client: {}, remaining observers: {}", clientId, list.size());
+    /**
+     * @return approximate heap retained by the index and its stream handles, see the class documentation
+     */
+    public long estimatedFootprintBytes() {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                bytes += (long) stripe.streams.length * SLOT_BYTES;
+                for (ClientStream[] streams : stripe.streams) {
+                    if (streams != null) {
+                        // objects are 8-byte aligned
+                        bytes += (ARRAY_HEADER_BYTES + 4L * streams.length + 7) & ~7L;
+                    }
+                }
+            }
+        }
+        return bytes + (long) connectionCount.get() * STREAM_BYTES;
+    }
 
-            if (list.isEmpty()) {
-                observers.remove(clientId);
-                log.debug("No more observers for client: {}, removed entry", clientId);
+    /**
+     * Visits every registered stream, e.g. to inspect {@link ClientStream#queueDepth()}.
+     */
+    public void forEachStream(Consumer<ClientStream> action) {
+        for (Stripe stripe : stripes) {
+            List<ClientStream> streams;
+            synchronized (stripe) {
+                streams = stripe.snapshotAll(false);
             }
+            streams.forEach(action);
+        }
+    }
+
+    /**
+     * @return outbound queue statistics over all streams, also published as {@code twinhorn.grpc.outbound.*} gauges
+     */
+    public QueueDepthSummary queueDepthSummary() {
+        long[] totals = new long[3];
+        forEachStream(stream -> {
+            int depth = stream.queueDepth();
+            totals[0] += depth;
+            totals[1] = Math.max(totals[1], depth);
+            if (depth >= outboundSettings.capacity()) {
+                totals[2]++;
+            }
+        });
+        return new QueueDepthSummary(totals[0], (int) totals[1], (int) totals[2]);
+    }
+
+    /**
+     * {@link #queueDepthSummary()} taken at most {@link #QUEUE_DEPTH_SAMPLE_AGE_NANOS} ago, so the
+     * outbound gauges read in one scrape cost one walk over the streams. Concurrent scrapes may both
+     * walk; either result is fine.
+     */
+    private QueueDepthSummary sampledQueueDepthSummary() {
+        long now = System.nanoTime();
+        QueueDepthSample sample = queueDepthSample;
+        if (sample == null || now - sample.takenNanos() > QUEUE_DEPTH_SAMPLE_AGE_NANOS) {
+            sample = new QueueDepthSample(queueDepthSummary(), now);
+            queueDepthSample = sample;
+        }
+        return sample.summary();
+    }
+
+    private record QueueDepthSample(QueueDepthSummary summary, long takenNanos) {
+    }
+
+    /**
+     * @param totalQueued total updates waiting in outbound queues
+     * @param maxDepth    deepest single queue
+     * @param fullStreams streams whose queue is at capacity (slow consumers)
+     */
+    public record QueueDepthSummary(long totalQueued, int maxDepth, int fullStreams) {
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        conflationWheel.close();
+    }
+
+    private void storeOffline(UUID clientId, SerializedUpdate update) {
+        // control updates (no sequence) are meaningless once the client reconnects
+        if (update.message().getSequence() != 0 && offlineMailbox.store(clientId, update)) {
+            log.debug("No streams found for client: {}, update kept in mailbox", clientId);
+        } else {
+            log.debug("No streams found for client: {}", clientId);
         }
     }
 
+    private Stripe stripeOf(long hash) {
+        return stripes[(int) (hash >>> stripeShift)];
+    }
+
     /**
-     * Sends an update to all observers of the given client.
+     * @return copy of the client's streams, {@code null} if it has none
      */
-    public static void broadcast(String clientId, TwinfaceSubscribeProto.TwinfaceSubscribeUpdate update) {
-        List<StreamObserver<TwinfaceSubscribeProto.TwinfaceSubscribeUpdate>> list = observers.get(clientId);
-        if (list != null) {
-            log.debug("Broadcasting update to {} observers for client: {}", list.size(), clientId);
+    private ClientStream[] snapshot(long msb, long lsb, long hash) {
+        Stripe stripe = stripeOf(hash);
+        synchronized (stripe) {
+            return stripe.snapshot(msb, lsb, (int) hash);
+        }
+    }
 
-            // iterate over snapshot to prevent ConcurrentModification
-            int successful = 0;
-            for (StreamObserver<TwinfaceSubscribeProto.TwinfaceSubscribeUpdate> obs : list) {
-                try {
-                    obs.onNext(update);
-                    successful++;
-                } catch (Exception e) {
-                    log.error("Failed to send update to client {}: {}", clientId, e.getMessage());
-                    // In a production system, we should remove the failed observer
-                    remove(clientId, obs);
+    /**
+     * 64-bit finaliser of MurmurHash3; the high bits select the stripe, the low bits the table slot.
+     */
+    private static long hash(long msb, long lsb) {
+        long h = msb * 0x9E3779B97F4A7C15L ^ lsb;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Open-addressing table of one stripe; every member is guarded by the stripe monitor, which the
+     * callers hold so that they can act on the result (such as notifying the directory) atomically.
+     * An empty slot has {@code streams[i] == null}.
+     */
+    private static final class Stripe {
+        private long[] msbs = new long[INITIAL_STRIPE_CAPACITY];
+        private long[] lsbs = new long[INITIAL_STRIPE_CAPACITY];
+        private ClientStream[][] streams = new ClientStream[INITIAL_STRIPE_CAPACITY][];
+        private int[] counts = new int[INITIAL_STRIPE_CAPACITY];
+        private int size;
+
+        /**
+         * @return number of streams of the client after adding
+         */
+        int add(ClientStream stream, int hash) {
+            long msb = stream.clientIdMsb();
+            long lsb = stream.clientIdLsb();
+            int index = find(msb, lsb, hash);
+            if (index < 0) {
+                if ((size + 1) * 2 > streams.length) {
+                    rehash(streams.length * 2);
+                    index = find(msb, lsb, hash);
+                }
+                index = ~index;
+                msbs[index] = msb;
+                lsbs[index] = lsb;
+                streams[index] = new ClientStream[1];
+                counts[index] = 0;
+                size++;
+            }
+            ClientStream[] clientStreams = streams[index];
+            int count = counts[index];
+            if (count == clientStreams.length) {
+                clientStreams = Arrays.copyOf(clientStreams, count * 2);
+                streams[index] = clientStreams;
+            }
+            clientStreams[count] = stream;
+            stream.slot = count;
+            counts[index] = count + 1;
+            return count + 1;
+        }
+
+        /**
+         * @return remaining streams of the client, or {@code -1} if the stream was not registered
+         */
+        int remove(ClientStream stream, int hash) {
+            int slot = stream.slot;
+            if (slot < 0) {
+                return -1;
+            }
+            int index = find(stream.clientIdMsb(), stream.clientIdLsb(), hash);
+            if (index < 0 || slot >= counts[index] || streams[index][slot] != stream) {
+                return -1;
+            }
+            ClientStream[] clientStreams = streams[index];
+            int last = counts[index] - 1;
+            ClientStream moved = clientStreams[last];
+            clientStreams[slot] = moved;
+            moved.slot = slot;
+            clientStreams[last] = null;
+            stream.slot = -1;
+            counts[index] = last;
+            if (last == 0) {
+                deleteAt(index);
+                size--;
+                if (streams.length > INITIAL_STRIPE_CAPACITY && size * 8 < streams.length) {
+                    rehash(streams.length / 2);
+                }
+            }
+            return last;
+        }
+
+        ClientStream[] snapshot(long msb, long lsb, int hash) {
+            int index = find(msb, lsb, hash);
+            return index < 0 ? null : Arrays.copyOf(streams[index], counts[index]);
+        }
+
+        /**
+         * @param clear whether to empty the stripe as well
+         */
+        List<ClientStream> snapshotAll(boolean clear) {
+            List<ClientStream> all = new ArrayList<>();
+            for (int i = 0; i < streams.length; i++) {
+                if (streams[i] != null) {
+                    for (int j = 0; j < counts[i]; j++) {
+                        all.add(streams[i][j]);
+                        if (clear) {
+                            streams[i][j].slot = -1;
+                        }
+                    }
+                }
+            }
+            if (clear) {
+                msbs = new long[INITIAL_STRIPE_CAPACITY];
+                lsbs = new long[INITIAL_STRIPE_CAPACITY];
+                streams = new ClientStream[INITIAL_STRIPE_CAPACITY][];
+                counts = new int[INITIAL_STRIPE_CAPACITY];
+                size = 0;
+            }
+            return all;
+        }
+
+        /**
+         * @return the slot of the client, or {@code ~emptySlot} where it would be inserted
+         */
+        private int find(long msb, long lsb, int hash) {
+            int mask = streams.length - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                if (streams[i] == null) {
+                    return ~i;
+                }
+                if (msbs[i] == msb && lsbs[i] == lsb) {
+                    return i;
+                }
+            }
+        }
+
+        /**
+         * Backward-shift deletion: pulls later entries of the probe run into the hole so lookups
+         * never need tombstones.
+         */
+        private void deleteAt(int hole) {
+            int mask = streams.length - 1;
+            for (int i = (hole + 1) & mask; streams[i] != null; i = (i + 1) & mask) {
+                int home = (int) hash(msbs[i], lsbs[i]) & mask;
+                boolean homeBetween = hole <= i ? hole < home && home <= i : hole < home || home <= i;
+                if (!homeBetween) {
+                    msbs[hole] = msbs[i];
+                    lsbs[hole] = lsbs[i];
+                    streams[hole] = streams[i];
+                    counts[hole] = counts[i];
+                    hole = i;
+                }
+            }
+            streams[hole] = null;
+            counts[hole] = 0;
+        }
+
+        private void rehash(int capacity) {
+            long[] oldMsbs = msbs;
+            long[] oldLsbs = lsbs;
+            ClientStream[][] oldStreams = streams;
+            int[] oldCounts = counts;
+            msbs = new long[capacity];
+            lsbs = new long[capacity];
+            streams = new ClientStream[capacity][];
+            counts = new int[capacity];
+            for (int i = 0; i < oldStreams.length; i++) {
+                if (oldStreams[i] != null) {
+                    int index = ~find(oldMsbs[i], oldLsbs[i], (int) hash(oldMsbs[i], oldLsbs[i]));
+                    msbs[index] = oldMsbs[i];
+                    lsbs[index] = oldLsbs[i];
+                    streams[index] = oldStreams[i];
+                    counts[index] = oldCounts[i];
                 }
             }
-            log.debug("Successfully sent updates to {}/{} observers for client: {}",
-                    successful, list.size(), clientId);
-        } else {
-            log.debug("No observers found for client: {}", clientId);
         }
     }
 }
@@ -0,0 +1,39 @@
+package org.twins.horn.service.grpc;
+
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Durable store of updates addressed to clients that have no stream, consulted by
+ * {@link ConnectionRegistry}.
+ */
+public interface OfflineMailbox {
+
+    /**
+     * Keeps nothing; for registries built outside the application context.
+     */
+    OfflineMailbox NONE = new OfflineMailbox() {
+        @Override
+        public boolean store(UUID clientId, SerializedUpdate update) {
+            return false;
+        }
+
+        @Override
+        public void deliver(ClientStream stream, Set<Long> skipSequences) {
+        }
+    };
+
+    /**
+     * Keeps an update for a client without streams; returns immediately.
+     *
+     * @return whether the update was accepted
+     */
+    boolean store(UUID clientId, SerializedUpdate update);
+
+    /**
+     * Sends the updates kept for the client to a newly registered stream, asynchronously.
+     *
+     * @param skipSequences sequences the stream received or was replayed already
+     */
+    void deliver(ClientStream stream, Set<Long> skipSequences);
+}
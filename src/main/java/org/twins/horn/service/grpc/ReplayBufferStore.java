@@ -0,0 +1,217 @@
+package org.twins.horn.service.grpc;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-client ring buffers of recently sent updates, replayed to a stream that reconnects with
+ * {@code resume_from} ({@code grpc.stream.replay.*}).
+ * <p>
+ * Every update produced for clients gets a {@code sequence} from {@link #nextSequence()}. The
+ * counter is node-wide so an update fanned out to many clients is still encoded once; a client
+ * therefore sees increasing but not contiguous numbers. The high bits of a sequence hold a random
+ * id of the run of the node (a new one on every start), the low {@value #COUNTER_BITS} bits the
+ * counter, so the sequences of two nodes, or of two runs of one node, never fall into the same
+ * range unless their run ids collide (one in {@value #RUNS} pairs of runs).
+ * <p>
+ * Buffers hold references to the shared {@link SerializedUpdate}s, bounded per client by
+ * {@code capacity} and {@code max-bytes-per-client} (oldest first out) and overall by
+ * {@code max-total-bytes}; a buffer not written for {@code retention} is dropped. Whatever is
+ * dropped raises a floor below which a resume is answered with a gap instead of a replay, so a
+ * client either gets every update after its {@code resume_from} or is told to refresh.
+ * <p>
+ * Replay is local to the run of the node: a {@code resume_from} issued by another node or by an
+ * earlier run is recognised by its run id and answered with a gap. With several replicas, including
+ * with {@code twinhorn.cluster.routing}, which routes notifications but not resumes, a client only
+ * gets a replay when it reconnects to the replica it was connected to, e.g. through session
+ * affinity on the load balancer; otherwise it refreshes in full.
+ */
+@Slf4j
+@Component
+public class ReplayBufferStore {
+
+    /**
+     * Heap of a buffer besides the encoded updates, for the total weight.
+     */
+    private static final int BUFFER_OVERHEAD_BYTES = 96;
+    static final int COUNTER_BITS = 40;
+    // run ids 1 .. RUNS - 1, so sequences are positive and never 0
+    static final int RUNS = 1 << (63 - COUNTER_BITS);
+
+    private final boolean enabled;
+    private final int capacity;
+    private final long maxBytesPerClient;
+    private final long run;
+    private final AtomicLong sequence;
+    // highest sequence of a buffer dropped by size or retention, any client
+    private final AtomicLong lostThrough = new AtomicLong();
+    private final Cache<UUID, ReplayBuffer> buffers;
+
+    public ReplayBufferStore(@Value("${grpc.stream.replay.enabled:true}") boolean enabled,
+                             @Value("${grpc.stream.replay.capacity:128}") int capacity,
+                             @Value("${grpc.stream.replay.max-bytes-per-client:64KB}") DataSize maxBytesPerClient,
+                             @Value("${grpc.stream.replay.max-total-bytes:256MB}") DataSize maxTotalBytes,
+                             @Value("${grpc.stream.replay.retention:PT10M}") Duration retention) {
+        this(enabled, capacity, maxBytesPerClient, maxTotalBytes, retention, 1 + new SecureRandom().nextInt(RUNS - 1));
+    }
+
+    /**
+     * @param run id of this run of the node, {@code 1 .. RUNS - 1}
+     */
+    ReplayBufferStore(boolean enabled, int capacity, DataSize maxBytesPerClient, DataSize maxTotalBytes,
+                      Duration retention, int run) {
+        this.enabled = enabled && capacity > 0;
+        this.capacity = capacity;
+        this.maxBytesPerClient = maxBytesPerClient.toBytes();
+        this.run = run;
+        this.sequence = new AtomicLong((long) run << COUNTER_BITS);
+        this.buffers = Caffeine.newBuilder()
+                .maximumWeight(maxTotalBytes.toBytes())
+                .<UUID, ReplayBuffer>weigher((clientId, buffer) -> buffer.weight())
+                .expireAfterWrite(retention)
+                // runs inside the eviction, before a new buffer of the same client can be created
+                .evictionListener((clientId, buffer, cause) -> {
+                    if (buffer != null) {
+                        lostThrough.accumulateAndGet(buffer.lastSequence(), Math::max);
+                    }
+                })
+                .build();
+        log.info("Stream replay {} (run={}, capacity={}, max-bytes-per-client={}, max-total-bytes={}, retention={})",
+                this.enabled ? "enabled" : "disabled", run, capacity, maxBytesPerClient, maxTotalBytes, retention);
+    }
+
+    /**
+     * @return the {@code sequence} of a new update
+     */
+    public long nextSequence() {
+        return sequence.incrementAndGet();
+    }
+
+    /**
+     * @return the latest issued sequence, a valid {@code resume_from} for a stream that starts now
+     */
+    public long currentSequence() {
+        return sequence.get();
+    }
+
+    /**
+     * Remembers an update sent to the client; updates without a sequence are not replayable.
+     */
+    void append(UUID clientId, SerializedUpdate update) {
+        long updateSequence = update.message().getSequence();
+        if (!enabled || updateSequence == 0) {
+            return;
+        }
+        // compute re-weighs the entry and resets its retention
+        buffers.asMap().compute(clientId, (id, buffer) -> {
+            if (buffer == null) {
+                buffer = new ReplayBuffer(lostThrough.get());
+            }
+            buffer.add(update, capacity, maxBytesPerClient);
+            return buffer;
+        });
+    }
+
+    /**
+     * @param resumeFrom last sequence the client received, {@code > 0}
+     * @return the client's updates after {@code resumeFrom} in buffer order, or {@code null} if
+     * some of them are no longer available or {@code resumeFrom} was not issued by this run of the node
+     */
+    List<SerializedUpdate> replayAfter(UUID clientId, long resumeFrom) {
+        if (!enabled || resumeFrom >>> COUNTER_BITS != run || resumeFrom > sequence.get()) {
+            return null;
+        }
+        ReplayBuffer buffer = buffers.getIfPresent(clientId);
+        if (buffer == null) {
+            return resumeFrom < lostThrough.get() ? null : List.of();
+        }
+        return buffer.after(resumeFrom);
+    }
+
+    /**
+     * @return sequences buffered for the client
+     */
+    Set<Long> sequences(UUID clientId) {
+        ReplayBuffer buffer = buffers.getIfPresent(clientId);
+        return buffer == null ? Set.of() : buffer.sequences();
+    }
+
+    /**
+     * @return number of clients with a buffer
+     */
+    public long bufferedClients() {
+        return buffers.estimatedSize();
+    }
+
+    /**
+     * Updates of one client, oldest first; guarded by its monitor.
+     */
+    private static final class ReplayBuffer {
+        private final ArrayDeque<SerializedUpdate> updates = new ArrayDeque<>();
+        private long bytes;
+        // updates up to this sequence may be missing
+        private long floor;
+
+        ReplayBuffer(long floor) {
+            this.floor = floor;
+        }
+
+        synchronized void add(SerializedUpdate update, int capacity, long maxBytes) {
+            updates.addLast(update);
+            bytes += update.bytes().length;
+            while (updates.size() > capacity || bytes > maxBytes && updates.size() > 1) {
+                SerializedUpdate evicted = updates.pollFirst();
+                bytes -= evicted.bytes().length;
+                floor = Math.max(floor, evicted.message().getSequence());
+            }
+        }
+
+        synchronized List<SerializedUpdate> after(long resumeFrom) {
+            if (resumeFrom < floor) {
+                return null;
+            }
+            List<SerializedUpdate> replay = new ArrayList<>();
+            for (SerializedUpdate update : updates) {
+                // concurrent producers may append slightly out of sequence order
+                if (update.message().getSequence() > resumeFrom) {
+                    replay.add(update);
+                }
+            }
+            return replay;
+        }
+
+        synchronized Set<Long> sequences() {
+            Set<Long> sequences = new HashSet<>();
+            for (SerializedUpdate update : updates) {
+                sequences.add(update.message().getSequence());
+            }
+            return sequences;
+        }
+
+        synchronized long lastSequence() {
+            long last = floor;
+            for (SerializedUpdate update : updates) {
+                last = Math.max(last, update.message().getSequence());
+            }
+            return last;
+        }
+
+        synchronized int weight() {
+            return (int) Math.min(Integer.MAX_VALUE, BUFFER_OVERHEAD_BYTES + bytes);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.twins.horn.service.grpc;
+
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto.TwinfaceSubscribeUpdate;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A {@link TwinfaceSubscribeUpdate} together with its wire encoding.
+ * <p>
+ * The protobuf encoding is computed at most once, on the first write, and the same byte array is
+ * handed to every stream the update is fanned out to through {@link #MARSHALLER}. Broadcasting to
+ * N streams therefore costs one encode plus N buffer copies instead of N encodes.
+ * <p>
+ * An update may carry the time its source event was produced, used to measure delivery latency.
+ */
+public final class SerializedUpdate {
+
+    /**
+     * Response marshaller of {@code GetDataUpdates}; writes the cached encoding without re-serialising.
+     */
+    public static final MethodDescriptor.Marshaller<SerializedUpdate> MARSHALLER = new Marshaller();
+
+    private final TwinfaceSubscribeUpdate message;
+    private final long originEpochMillis;
+    private volatile byte[] bytes;
+
+    private SerializedUpdate(TwinfaceSubscribeUpdate message, long originEpochMillis) {
+        this.message = message;
+        this.originEpochMillis = originEpochMillis;
+    }
+
+    public static SerializedUpdate of(TwinfaceSubscribeUpdate message) {
+        return new SerializedUpdate(message, 0);
+    }
+
+    /**
+     * @param originEpochMillis when the source event was produced, {@code 0} if unknown
+     */
+    public static SerializedUpdate of(TwinfaceSubscribeUpdate message, long originEpochMillis) {
+        return new SerializedUpdate(message, originEpochMillis);
+    }
+
+    /**
+     * @return when the source event was produced, {@code 0} if unknown
+     */
+    long originEpochMillis() {
+        return originEpochMillis;
+    }
+
+    public TwinfaceSubscribeUpdate message() {
+        return message;
+    }
+
+    /**
+     * @return the protobuf encoding; racing first callers may each encode, which is harmless
+     */
+    byte[] bytes() {
+        byte[] encoded = bytes;
+        if (encoded == null) {
+            encoded = message.toByteArray();
+            bytes = encoded;
+        }
+        return encoded;
+    }
+
+    private static final class Marshaller implements MethodDescriptor.Marshaller<SerializedUpdate> {
+
+        @Override
+        public InputStream stream(SerializedUpdate value) {
+            return new EncodedStream(value.bytes());
+        }
+
+        @Override
+        public SerializedUpdate parse(InputStream stream) {
+            try {
+                return of(TwinfaceSubscribeUpdate.parseFrom(stream));
+            } catch (IOException e) {
+                throw Status.INTERNAL.withDescription("Invalid TwinfaceSubscribeUpdate").withCause(e).asRuntimeException();
+            }
+        }
+    }
+
+    /**
+     * Read-only view of a shared encoding. {@link KnownLength} lets gRPC size the frame up front and
+     * {@link Drainable} lets it copy the array straight into the transport buffer.
+     */
+    private static final class EncodedStream extends ByteArrayInputStream implements KnownLength, Drainable {
+
+        EncodedStream(byte[] encoded) {
+            super(encoded);
+        }
+
+        @Override
+        public synchronized int drainTo(OutputStream target) throws IOException {
+            int length = count - pos;
+            target.write(buf, pos, length);
+            pos = count;
+            return length;
+        }
+    }
+}
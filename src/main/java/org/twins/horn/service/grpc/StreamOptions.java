@@ -0,0 +1,25 @@
+package org.twins.horn.service.grpc;
+
+import java.util.List;
+
+/**
+ * Per-stream subscription settings derived from {@code TwinfaceSubscribeRequest}.
+ *
+ * @param eventMask               event types the stream receives, see {@link ClientStream#eventMaskOf(List)}
+ * @param twinSubscription        twins the stream follows, indexed in {@link TwinSubscriptionIndex}
+ * @param conflationWindowsMillis conflation window per {@code TwinEventType} number, {@code 0} = none;
+ *                                read-only, it may be shared by many streams
+ * @param resumeFrom              {@code resume_from} of the request; a resuming stream holds its output
+ *                                until {@link ConnectionRegistry#resume} has queued the replay
+ */
+public record StreamOptions(int eventMask,
+                            TwinSubscriptionIndex.TwinSubscription twinSubscription,
+                            int[] conflationWindowsMillis,
+                            long resumeFrom) {
+
+    /**
+     * Every event type, no twin subscriptions, no conflation, no resume.
+     */
+    public static final StreamOptions DEFAULT =
+            new StreamOptions(ClientStream.ALL_EVENT_TYPES, TwinSubscriptionIndex.TwinSubscription.NONE, new int[0], 0);
+}
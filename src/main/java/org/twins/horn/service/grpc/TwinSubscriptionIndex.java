@@ -0,0 +1,188 @@
+package org.twins.horn.service.grpc;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inverted index from twin ids and twin id prefixes to the streams that follow them.
+ * <p>
+ * Exact ids and prefixes live in separate maps of concurrent sets. Adding or removing a stream
+ * costs O(1) per id or prefix it follows; the per-key set is created and dropped inside
+ * {@link ConcurrentHashMap#compute} so a stream subscribing while the last subscriber leaves can
+ * never be lost. A lookup costs one probe for the exact id plus one probe per distinct prefix
+ * length in use, and then O(subscribers).
+ * <p>
+ * Maintained by {@link ConnectionRegistry}, which subscribes a stream on registration and
+ * unsubscribes it on every path that unregisters it.
+ */
+@Component
+public class TwinSubscriptionIndex {
+
+    /**
+     * Longest accepted prefix; prefixes are short by nature and this bounds the per-lookup probes.
+     */
+    public static final int MAX_PREFIX_LENGTH = 255;
+
+    private final ConcurrentHashMap<String, Set<ClientStream>> byTwinId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<ClientStream>> byPrefix = new ConcurrentHashMap<>();
+    private final int maxKeysPerStream;
+
+    // prefix length -> number of distinct prefixes of that length; guarded by prefixLengthCounts
+    private final int[] prefixLengthCounts = new int[MAX_PREFIX_LENGTH + 1];
+    private volatile int[] prefixLengths = new int[0];
+
+    public TwinSubscriptionIndex(@Value("${grpc.subscriptions.max-twins-per-stream:1000}") int maxKeysPerStream) {
+        this.maxKeysPerStream = maxKeysPerStream;
+    }
+
+    /**
+     * Validates the twin ids and prefixes requested by a client.
+     *
+     * @throws IllegalArgumentException if there are too many, or an id or prefix is empty or too long
+     */
+    public TwinSubscription subscriptionOf(List<String> twinIds, List<String> twinIdPrefixes) {
+        if (twinIds.size() + twinIdPrefixes.size() > maxKeysPerStream) {
+            throw new IllegalArgumentException("At most " + maxKeysPerStream + " twin ids and prefixes per stream");
+        }
+        if (twinIds.contains("")) {
+            throw new IllegalArgumentException("Empty twin id");
+        }
+        for (String prefix : twinIdPrefixes) {
+            if (prefix.isEmpty() || prefix.length() > MAX_PREFIX_LENGTH) {
+                throw new IllegalArgumentException("Twin id prefix must have 1.." + MAX_PREFIX_LENGTH + " characters");
+            }
+        }
+        return twinIds.isEmpty() && twinIdPrefixes.isEmpty()
+                ? TwinSubscription.NONE : new TwinSubscription(twinIds, twinIdPrefixes);
+    }
+
+    /**
+     * Ids and prefixes a stream follows.
+     */
+    public record TwinSubscription(List<String> twinIds, List<String> twinIdPrefixes) {
+        public static final TwinSubscription NONE = new TwinSubscription(List.of(), List.of());
+
+        public TwinSubscription {
+            twinIds = List.copyOf(twinIds);
+            twinIdPrefixes = List.copyOf(twinIdPrefixes);
+        }
+
+        public boolean isEmpty() {
+            return twinIds.isEmpty() && twinIdPrefixes.isEmpty();
+        }
+    }
+
+    void subscribe(ClientStream stream, TwinSubscription subscription) {
+        for (String twinId : subscription.twinIds()) {
+            add(byTwinId, twinId, stream);
+        }
+        for (String prefix : subscription.twinIdPrefixes()) {
+            if (add(byPrefix, prefix, stream)) {
+                changePrefixLength(prefix.length(), 1);
+            }
+        }
+    }
+
+    void unsubscribe(ClientStream stream, TwinSubscription subscription) {
+        for (String twinId : subscription.twinIds()) {
+            remove(byTwinId, twinId, stream);
+        }
+        for (String prefix : subscription.twinIdPrefixes()) {
+            if (remove(byPrefix, prefix, stream)) {
+                changePrefixLength(prefix.length(), -1);
+            }
+        }
+    }
+
+    /**
+     * @return streams following the twin directly or through a prefix, each stream once
+     */
+    Set<ClientStream> subscribers(String twinId) {
+        Set<ClientStream> exact = byTwinId.get(twinId);
+        int[] lengths = prefixLengths;
+        if (lengths.length == 0) {
+            return exact == null ? Collections.emptySet() : exact;
+        }
+        Set<ClientStream> all = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (exact != null) {
+            all.addAll(exact);
+        }
+        for (int length : lengths) {
+            if (length > twinId.length()) {
+                break;
+            }
+            Set<ClientStream> matching = byPrefix.get(twinId.substring(0, length));
+            if (matching != null) {
+                all.addAll(matching);
+            }
+        }
+        return all;
+    }
+
+    /**
+     * @return distinct lengths of the prefixes with at least one subscriber, ascending
+     */
+    int[] prefixLengths() {
+        return prefixLengths.clone();
+    }
+
+    /**
+     * @return number of distinct twin ids and prefixes with at least one subscriber
+     */
+    public int keyCount() {
+        return byTwinId.size() + byPrefix.size();
+    }
+
+    /**
+     * @return {@code true} if the key had no subscribers before
+     */
+    private static boolean add(ConcurrentHashMap<String, Set<ClientStream>> index, String key, ClientStream stream) {
+        boolean[] created = new boolean[1];
+        index.compute(key, (k, streams) -> {
+            if (streams == null) {
+                streams = ConcurrentHashMap.newKeySet(2);
+                created[0] = true;
+            }
+            streams.add(stream);
+            return streams;
+        });
+        return created[0];
+    }
+
+    /**
+     * @return {@code true} if the key has no subscribers left
+     */
+    private static boolean remove(ConcurrentHashMap<String, Set<ClientStream>> index, String key, ClientStream stream) {
+        boolean[] dropped = new boolean[1];
+        index.computeIfPresent(key, (k, streams) -> {
+            streams.remove(stream);
+            if (streams.isEmpty()) {
+                dropped[0] = true;
+                return null;
+            }
+            return streams;
+        });
+        return dropped[0];
+    }
+
+    private void changePrefixLength(int length, int delta) {
+        synchronized (prefixLengthCounts) {
+            prefixLengthCounts[length] += delta;
+            int[] lengths = new int[prefixLengthCounts.length];
+            int count = 0;
+            for (int i = 1; i < prefixLengthCounts.length; i++) {
+                if (prefixLengthCounts[i] > 0) {
+                    lengths[count++] = i;
+                }
+            }
+            prefixLengths = Arrays.copyOf(lengths, count);
+        }
+    }
+}
@@ -1,16 +1,33 @@
 package org.twins.horn.service.grpc;
 
+import io.grpc.BindableService;
+import io.grpc.MethodDescriptor;
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.netty.shaded.io.netty.channel.ChannelOption;
+import io.grpc.netty.shaded.io.netty.channel.EventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.WriteBufferWaterMark;
+import io.grpc.netty.shaded.io.netty.channel.epoll.Epoll;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollServerSocketChannel;
+import io.grpc.netty.shaded.io.netty.channel.nio.NioEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.grpc.netty.shaded.io.netty.util.concurrent.DefaultThreadFactory;
+import io.grpc.protobuf.ProtoUtils;
 import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.ServerCalls;
 import io.grpc.stub.StreamObserver;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.twins.horn.config.ConflationProperties;
+import org.twins.horn.config.GrpcTransportProperties;
 import org.twins.horn.exception.TwinhornException;
 import org.twins.horn.service.auth.dto.TokenIntrospectRsDTOv1;
+import org.twins.horn.service.auth.session.SessionExpiryScheduler;
 import org.twins.horn.service.grpc.security.AuthInterceptor;
 import org.twins.horn.service.queue.TwinsNotificationsConsumer;
 import org.twins.horn.subscribe.TwinfaceSubscribeProto;
@@ -21,8 +38,9 @@ import org.twins.horn.subscribe.TwinfaceSubscribeServiceGrpc;
 import java.io.IOException;
 import java.time.Instant;
 import java.util.UUID;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -30,12 +48,17 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * <p>
  * Responsibilities:
  * <ul>
- *   <li>Creates a {@link io.grpc.Server} on port {@code 9090} backed by a fixed thread pool.</li>
- *   <li>Publishes a {@link TwinfaceSubscribeServiceGrpc.TwinfaceSubscribeServiceImplBase}
- *       implementation that registers clients in {@link ConnectionRegistry} and pushes
+ *   <li>Creates a {@link io.grpc.Server} on port {@code 9090}; calls are handled by the executor
+ *       passed in (virtual threads with {@code spring.threads.virtual.enabled}, otherwise a fixed
+ *       pool, see {@link org.twins.horn.Application}). The Netty transport (event loops, HTTP/2
+ *       flow control, keepalive, connection limits, write-buffer watermarks) follows
+ *       {@link GrpcTransportProperties}.</li>
+ *   <li>Publishes the {@code TwinfaceSubscribeService} (see {@link TwinfaceSubscribeServiceGrpc})
+ *       with an implementation that registers clients in {@link ConnectionRegistry} and pushes
  *       {@link TwinfaceSubscribeUpdate} messages to them.</li>
  *   <li>Applies {@link AuthInterceptor} to every call, making OAuth2 token
  *       validation transparent to service logic.</li>
+ *   <li>Arms per-stream token-expiry timers through {@link SessionExpiryScheduler}.</li>
  *   <li>Integrates with {@link TwinfaceGrpcNotifier} and
  *       {@link TwinsNotificationsConsumer} to broadcast RabbitMQ
  *       notifications to connected clients.</li>
@@ -48,24 +71,40 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class TwinfaceDataStreamingServer {
     private final TwinfaceSubscribeServiceImpl subscribeService;
     private final AuthInterceptor authInterceptor;
+    private final Executor callExecutor;
+    private final GrpcTransportProperties transport;
+    private final int grpcServerPort;
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
     public Server server;
-    @Value("${grpc.server.port:9090}")
-    private int grpcServerPort;
 
-    public TwinfaceDataStreamingServer(AuthInterceptor authInterceptor) {
+    public TwinfaceDataStreamingServer(AuthInterceptor authInterceptor,
+                                       ConnectionRegistry connectionRegistry,
+                                       TwinSubscriptionIndex twinSubscriptionIndex,
+                                       ConflationProperties conflationProperties,
+                                       SessionExpiryScheduler sessionExpiryScheduler,
+                                       Executor callExecutor,
+                                       GrpcTransportProperties transport,
+                                       int grpcServerPort) {
         this.authInterceptor = authInterceptor;
-        this.subscribeService = new TwinfaceSubscribeServiceImpl();
+        this.callExecutor = callExecutor;
+        this.transport = transport;
+        this.grpcServerPort = grpcServerPort;
+        this.subscribeService = new TwinfaceSubscribeServiceImpl(connectionRegistry, twinSubscriptionIndex,
+                conflationProperties, sessionExpiryScheduler);
     }
 
     public void start() throws IOException {
-        server = ServerBuilder.forPort(grpcServerPort)
-                .executor(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2))
+        NettyServerBuilder builder = NettyServerBuilder.forPort(grpcServerPort)
+                .executor(callExecutor)
                 .addService(subscribeService)
-                .intercept(authInterceptor)
-                .build();
+                .intercept(authInterceptor);
+        configureTransport(builder);
+        server = builder.build();
 
         server.start();
-        log.info("gRPC server started on port {}", grpcServerPort);
+        log.info("gRPC server started on port {} ({} transport)", grpcServerPort,
+                bossGroup instanceof EpollEventLoopGroup ? "epoll" : "nio");
 
         // Graceful shutdown hook
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -74,18 +113,94 @@ public class TwinfaceDataStreamingServer {
         }));
     }
 
+    private void configureTransport(NettyServerBuilder builder) {
+        if (transport.isNativeTransport() && Epoll.isAvailable()) {
+            bossGroup = new EpollEventLoopGroup(transport.getBossThreads(), new DefaultThreadFactory("grpc-boss", true));
+            workerGroup = new EpollEventLoopGroup(transport.getWorkerThreads(), new DefaultThreadFactory("grpc-worker", true));
+            builder.channelType(EpollServerSocketChannel.class);
+        } else {
+            bossGroup = new NioEventLoopGroup(transport.getBossThreads(), new DefaultThreadFactory("grpc-boss", true));
+            workerGroup = new NioEventLoopGroup(transport.getWorkerThreads(), new DefaultThreadFactory("grpc-worker", true));
+            builder.channelType(NioServerSocketChannel.class);
+        }
+        builder.bossEventLoopGroup(bossGroup)
+                .workerEventLoopGroup(workerGroup)
+                .flowControlWindow((int) transport.getFlowControlWindow().toBytes())
+                .keepAliveTime(transport.getKeepAliveTime().toMillis(), TimeUnit.MILLISECONDS)
+                .keepAliveTimeout(transport.getKeepAliveTimeout().toMillis(), TimeUnit.MILLISECONDS)
+                .permitKeepAliveTime(transport.getPermitKeepAliveTime().toMillis(), TimeUnit.MILLISECONDS)
+                .permitKeepAliveWithoutCalls(transport.isPermitKeepAliveWithoutCalls())
+                .withChildOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(
+                        (int) transport.getWriteBufferLowWaterMark().toBytes(),
+                        (int) transport.getWriteBufferHighWaterMark().toBytes()));
+        if (transport.getMaxConcurrentCallsPerConnection() > 0) {
+            builder.maxConcurrentCallsPerConnection(transport.getMaxConcurrentCallsPerConnection());
+        }
+        if (transport.getMaxConnectionIdle() != null) {
+            builder.maxConnectionIdle(transport.getMaxConnectionIdle().toMillis(), TimeUnit.MILLISECONDS);
+        }
+        if (transport.getMaxConnectionAge() != null) {
+            builder.maxConnectionAge(transport.getMaxConnectionAge().toMillis(), TimeUnit.MILLISECONDS);
+        }
+        if (transport.getMaxConnectionAgeGrace() != null) {
+            builder.maxConnectionAgeGrace(transport.getMaxConnectionAgeGrace().toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
     private void stop() {
         if (server != null) {
             server.shutdown();
+            try {
+                server.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // the event loops are ours, the server does not shut them down
+        if (bossGroup != null) {
+            bossGroup.shutdownGracefully();
+            workerGroup.shutdownGracefully();
         }
     }
 
-    private static class TwinfaceSubscribeServiceImpl extends TwinfaceSubscribeServiceGrpc.TwinfaceSubscribeServiceImplBase {
+    /**
+     * {@code TwinfaceSubscribeService} bound by hand instead of through the generated
+     * {@code ImplBase}: the response marshaller of {@code GetDataUpdates} is replaced by
+     * {@link SerializedUpdate#MARSHALLER}, so an update fanned out to many streams is encoded once.
+     * The wire format is unchanged.
+     */
+    private static class TwinfaceSubscribeServiceImpl implements BindableService {
+        private static final MethodDescriptor<TwinfaceSubscribeRequest, SerializedUpdate> GET_DATA_UPDATES_METHOD =
+                TwinfaceSubscribeServiceGrpc.getGetDataUpdatesMethod().toBuilder(
+                                ProtoUtils.marshaller(TwinfaceSubscribeRequest.getDefaultInstance()),
+                                SerializedUpdate.MARSHALLER)
+                        .build();
+
         private static final Logger logger = LoggerFactory.getLogger(TwinfaceSubscribeServiceImpl.class);
+        private final ConnectionRegistry connectionRegistry;
+        private final TwinSubscriptionIndex twinSubscriptionIndex;
+        private final ConflationProperties conflationProperties;
+        private final SessionExpiryScheduler sessionExpiryScheduler;
+
+        private TwinfaceSubscribeServiceImpl(ConnectionRegistry connectionRegistry,
+                                             TwinSubscriptionIndex twinSubscriptionIndex,
+                                             ConflationProperties conflationProperties,
+                                             SessionExpiryScheduler sessionExpiryScheduler) {
+            this.connectionRegistry = connectionRegistry;
+            this.twinSubscriptionIndex = twinSubscriptionIndex;
+            this.conflationProperties = conflationProperties;
+            this.sessionExpiryScheduler = sessionExpiryScheduler;
+        }
 
         @Override
+        public ServerServiceDefinition bindService() {
+            return ServerServiceDefinition.builder(TwinfaceSubscribeServiceGrpc.SERVICE_NAME)
+                    .addMethod(GET_DATA_UPDATES_METHOD, ServerCalls.asyncServerStreamingCall(this::getDataUpdates))
+                    .build();
+        }
+
         public void getDataUpdates(TwinfaceSubscribeRequest request,
-                                   StreamObserver<TwinfaceSubscribeUpdate> responseObserver) {
+                                   StreamObserver<SerializedUpdate> responseObserver) {
             try {
                 // Register this client to receive notifications
                 TokenIntrospectRsDTOv1 tokenInfo = AuthInterceptor.TOKEN_INFO_CTX_KEY.get();
@@ -93,34 +208,65 @@ public class TwinfaceDataStreamingServer {
                     log.error("Unauthorized access attempt to getDataUpdates");
                     throw new TwinhornException(TwinhornException.TwinhornErrorType.UNAUTHORIZED, "Failed to introspect token");
                 }
-                String clientId = tokenInfo.getClientId();
+                UUID clientId = UUID.fromString(tokenInfo.getClientId());
 
                 log.info("Starting data stream for client: {}", clientId);
 
-                // Register this client to receive notifications
-                ConnectionRegistry.add(clientId, responseObserver);
+                // Register this client to receive notifications of the requested event types
+                // and of the twins it follows
+                // merging bursts of twin updates within the conflation windows
+                StreamOptions options;
+                try {
+                    options = new StreamOptions(
+                            ClientStream.eventMaskOf(request.getEventTypesValueList()),
+                            twinSubscriptionIndex.subscriptionOf(request.getTwinIdsList(), request.getTwinIdPrefixesList()),
+                            conflationProperties.windowsMillis(request.getConflationWindowMs()),
+                            request.getResumeFrom());
+                } catch (IllegalArgumentException e) {
+                    // answered here, the generic handler below would turn it into UNKNOWN
+                    log.warn("Rejected subscription of client {}: {}", clientId, e.getMessage());
+                    responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+                    return;
+                }
+                ClientStream stream = connectionRegistry.register(clientId, responseObserver, options);
+
+                // Arm token-expiry warning / close timers for this stream; they go away with the
+                // stream however it ends, including when the server closes it
+                SessionExpiryScheduler.ExpiryTimers expiryTimers =
+                        sessionExpiryScheduler.schedule(stream, tokenInfo.getExp());
+                stream.onTerminate(expiryTimers::cancel);
 
                 // Optional – clean up when the stream terminates
-                ((ServerCallStreamObserver<TwinfaceSubscribeUpdate>) responseObserver).setOnCancelHandler(() ->
-                        ConnectionRegistry.remove(clientId, responseObserver));
+                ((ServerCallStreamObserver<SerializedUpdate>) responseObserver).setOnCancelHandler(() -> {
+                    stream.markCancelled();
+                    connectionRegistry.unregister(stream);
+                });
 
 
-                // Send initial confirmation
-                TwinfaceSubscribeUpdate initialUpdate = TwinfaceSubscribeUpdate.newBuilder()
+                // Send initial confirmation; a fresh stream learns its first resume point from it.
+                // It is a TWIN_UPDATE, so it must skip the stream's conflation window
+                TwinfaceSubscribeUpdate.Builder initialUpdate = TwinfaceSubscribeUpdate.newBuilder()
                         .setUpdateId(UUID.randomUUID().toString())
                         .setTimestamp(Instant.now().toString())
                         .setStatus(TwinfaceSubscribeProto.UpdateStatus.SUCCESS)
-                        .setEventType(TwinfaceSubscribeProto.TwinEventType.TWIN_UPDATE)
-                        .build();
+                        .setEventType(TwinfaceSubscribeProto.TwinEventType.TWIN_UPDATE);
+                if (request.getResumeFrom() == 0) {
+                    initialUpdate.setSequence(connectionRegistry.currentSequence());
+                }
 
-                try {
-                    responseObserver.onNext(initialUpdate);
+                if (stream.sendImmediate(initialUpdate.build())) {
                     log.debug("Sent initial update to client: {}", clientId);
-                } catch (Exception e) {
-                    log.error("Error sending initial update to client {}: {}", clientId, e.getMessage());
-                    // Will be handled by onError in client
-                    responseObserver.onError(e);
+                } else {
+                    log.error("Error sending initial update to client {}", clientId);
+                    connectionRegistry.unregister(stream);
                 }
+
+                // Replay what the client missed (or signal a gap) ahead of the updates queued since registration
+                boolean resumed = request.getResumeFrom() > 0
+                        && connectionRegistry.resume(stream, request.getResumeFrom()) >= 0;
+
+                // Then what was kept for it while it had no stream
+                connectionRegistry.deliverOffline(stream, resumed);
             } catch (Exception e) {
                 throw new TwinhornException(TwinhornException.TwinhornErrorType.STREAMING_PROCESSING_ERROR, "Failed to init streaming", e);
             }
@@ -132,25 +278,21 @@ public class TwinfaceDataStreamingServer {
 
     // Helper class to manage stream connections
     public static class StreamConnection {
-        private final String clientId;
-        private final StreamObserver<TwinfaceSubscribeUpdate> responseObserver;
+        private final ConnectionRegistry connectionRegistry;
+        private final ClientStream stream;
         private final AtomicBoolean active = new AtomicBoolean(true);
         private ScheduledFuture<?> cleanupTask;
 
-        public StreamConnection(String clientId, StreamObserver<TwinfaceSubscribeUpdate> responseObserver) {
-            this.clientId = clientId;
-            this.responseObserver = responseObserver;
-            ConnectionRegistry.add(clientId, responseObserver);
+        public StreamConnection(ConnectionRegistry connectionRegistry, UUID clientId,
+                                StreamObserver<SerializedUpdate> responseObserver) {
+            this.connectionRegistry = connectionRegistry;
+            this.stream = connectionRegistry.register(clientId, responseObserver);
         }
 
         public void sendUpdate(TwinfaceSubscribeUpdate update) {
-            if (active.get()) {
-                try {
-                    responseObserver.onNext(update);
-                } catch (Exception e) {
-                    log.error("Error sending update: {}", e.getMessage());
-                    close();
-                }
+            if (active.get() && !stream.send(update)) {
+                log.error("Error sending update to client {}", stream.clientId());
+                close();
             }
         }
 
@@ -159,17 +301,13 @@ public class TwinfaceDataStreamingServer {
                 if (cleanupTask != null) {
                     cleanupTask.cancel(true);
                 }
-                try {
-                    responseObserver.onCompleted();
-                } catch (Exception e) {
-                    log.error("Error completing stream: {}", e.getMessage());
-                }
-                ConnectionRegistry.remove(clientId, responseObserver);
+                connectionRegistry.unregister(stream);
+                stream.complete(null);
             }
         }
 
-        public String getClientId() {
-            return clientId;
+        public UUID getClientId() {
+            return stream.clientId();
         }
     }
 }
@@ -1,12 +1,23 @@
 package org.twins.horn.service.grpc;
 
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import org.twins.horn.notify.TwinsNotifyProto.TwinsNotifyResponse;
 import org.twins.horn.subscribe.TwinfaceSubscribeProto;
 import org.twins.horn.subscribe.TwinfaceSubscribeProto.TwinfaceSubscribeUpdate;
 
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
 /**
  * Service responsible for notifying gRPC clients about updates
@@ -15,14 +26,35 @@ import java.util.Collections;
 @Slf4j
 @Service
 public class TwinfaceGrpcNotifier {
+    private final ConnectionRegistry connectionRegistry;
+    private final DistributionSummary fanOut;
+
+    public TwinfaceGrpcNotifier(ConnectionRegistry connectionRegistry, MeterRegistry meterRegistry) {
+        this.connectionRegistry = connectionRegistry;
+        this.fanOut = DistributionSummary.builder("twinhorn.notify.fanout")
+                .description("Streams a notification was queued for")
+                .baseUnit("streams")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
 
     /**
      * Processes a TwinsNotifyResponse from RabbitMQ and notifies
-     * all relevant gRPC clients about the update.
+     * all relevant gRPC clients about the update. A notification without
+     * {@code client_ids} goes to the streams subscribed to its twin id or a prefix of it.
      *
      * @param response The notification response from RabbitMQ
      */
     public void notifyClients(TwinsNotifyResponse response) {
+        notifyClients(response, response == null ? null : toSerializedUpdate(response));
+    }
+
+    /**
+     * {@link #notifyClients(TwinsNotifyResponse)} with the update built beforehand by
+     * {@link #toSerializedUpdate}, so that every attempt of a retried delivery sends the same
+     * update under the same {@code sequence}.
+     */
+    public void notifyClients(TwinsNotifyResponse response, SerializedUpdate serialized) {
         if (response == null || response.getTwinId().isEmpty()) {
             log.error("Received empty or invalid notification");
             return;
@@ -32,26 +64,145 @@ public class TwinfaceGrpcNotifier {
         log.debug("Processing notification for twin ID: {} to clients: {}",
                 twinId, response.getClientIdsList());
 
-        // Create the update message
-        TwinfaceSubscribeUpdate update = TwinfaceSubscribeUpdate.newBuilder()
-                .setUpdateId(response.getUpdateId())
-                .setEventType(TwinfaceSubscribeProto.TwinEventType.TWIN_UPDATE)
-                .setTimestamp(response.getTimestamp())
-                .addAllUpdatedTwinIds(Collections.singletonList(twinId))
-                .setStatus(convertResponseStatus(response.getStatus()))
-                .build();
-
-        // For each client in the notification
+        // Encoded once, the same bytes go to every client in the notification
+        if (response.getClientIdsCount() == 0) {
+            // No explicit audience – route to the streams following this twin
+            fanOut.record(connectionRegistry.broadcastToTwinSubscribers(twinId, serialized));
+            return;
+        }
+        int streams = 0;
         for (String clientId : response.getClientIdsList()) {
             try {
                 // Send update to the client's stream
-                ConnectionRegistry.broadcast(clientId, update);
+                streams += connectionRegistry.broadcast(clientId, serialized);
                 log.debug("Sent update for twin {} to client {}", twinId, clientId);
             } catch (Exception e) {
                 log.error("Failed to notify client {} about twin {}: {}",
                         clientId, twinId, e.getMessage());
             }
         }
+        fanOut.record(streams);
+    }
+
+    /**
+     * Batch variant of {@link #notifyClients(TwinsNotifyResponse)}. Each notification is encoded
+     * once; consecutive updates addressed to explicit clients are grouped per client and handed to
+     * {@link ConnectionRegistry#broadcast(UUID, List)}, so a client named in many notifications of
+     * the batch costs one lookup per run. A notification for twin subscribers ends the run: the
+     * grouped updates are sent before it, so every stream receives the batch in delivery order.
+     *
+     * @param responses notifications in delivery order
+     */
+    public void notifyClients(List<TwinsNotifyResponse> responses) {
+        List<SerializedUpdate> updates = new ArrayList<>(responses.size());
+        for (TwinsNotifyResponse response : responses) {
+            updates.add(response == null ? null : toSerializedUpdate(response));
+        }
+        notifyClients(responses, updates);
+    }
+
+    /**
+     * {@link #notifyClients(List)} with the updates built beforehand by {@link #toSerializedUpdate},
+     * see {@link #notifyClients(TwinsNotifyResponse, SerializedUpdate)}.
+     *
+     * @param responses notifications in delivery order; {@code null} entries are skipped
+     * @param updates   update of each notification, by index
+     */
+    public void notifyClients(List<TwinsNotifyResponse> responses, List<SerializedUpdate> updates) {
+        notifyClients(responses, updates, new BitSet(responses.size()));
+    }
+
+    /**
+     * {@link #notifyClients(List, List)} that reports its progress, so that a retry after a failure
+     * part way through the batch sends only what was not queued yet.
+     *
+     * @param delivered receives the index of every notification handed to its streams or skipped,
+     *                  including when a later one fails
+     */
+    public void notifyClients(List<TwinsNotifyResponse> responses, List<SerializedUpdate> updates, BitSet delivered) {
+        Map<String, List<SerializedUpdate>> byClient = new LinkedHashMap<>();
+        Map<SerializedUpdate, int[]> streamsPerUpdate = new IdentityHashMap<>();
+        int clients = 0;
+        // first notification of the current run of grouped updates
+        int runStart = 0;
+        for (int index = 0; index < responses.size(); index++) {
+            TwinsNotifyResponse response = responses.get(index);
+            if (response == null) {
+                continue;
+            }
+            if (response.getTwinId().isEmpty()) {
+                log.error("Received empty or invalid notification");
+                continue;
+            }
+            SerializedUpdate serialized = updates.get(index);
+            if (response.getClientIdsCount() == 0) {
+                clients += sendToClients(byClient, streamsPerUpdate);
+                delivered.set(runStart, index);
+                fanOut.record(connectionRegistry.broadcastToTwinSubscribers(response.getTwinId(), serialized));
+                delivered.set(index);
+                runStart = index + 1;
+                continue;
+            }
+            streamsPerUpdate.put(serialized, new int[1]);
+            for (String clientId : response.getClientIdsList()) {
+                byClient.computeIfAbsent(clientId, id -> new ArrayList<>()).add(serialized);
+            }
+        }
+        clients += sendToClients(byClient, streamsPerUpdate);
+        delivered.set(runStart, responses.size());
+        log.debug("Processed batch of {} notifications for {} clients", responses.size(), clients);
+    }
+
+    /**
+     * Sends the grouped updates, records their fan-out and clears both maps.
+     *
+     * @return number of clients the updates were addressed to
+     */
+    private int sendToClients(Map<String, List<SerializedUpdate>> byClient,
+                              Map<SerializedUpdate, int[]> streamsPerUpdate) {
+        byClient.forEach((clientId, updates) -> {
+            try {
+                int[] streams = connectionRegistry.broadcast(UUID.fromString(clientId), updates);
+                for (int i = 0; i < streams.length; i++) {
+                    streamsPerUpdate.get(updates.get(i))[0] += streams[i];
+                }
+            } catch (IllegalArgumentException e) {
+                log.debug("Ignoring updates for non-UUID client id: {}", clientId);
+            } catch (Exception e) {
+                log.error("Failed to notify client {} about {} updates: {}",
+                        clientId, updates.size(), e.getMessage());
+            }
+        });
+        streamsPerUpdate.values().forEach(streams -> fanOut.record(streams[0]));
+        int clients = byClient.size();
+        byClient.clear();
+        streamsPerUpdate.clear();
+        return clients;
+    }
+
+    /**
+     * Builds the update of a notification, dated by its {@code timestamp} for the delivery latency
+     * metric. Takes the next {@code sequence}, so it is called once per notification.
+     */
+    public SerializedUpdate toSerializedUpdate(TwinsNotifyResponse response) {
+        long origin = 0;
+        try {
+            origin = Instant.parse(response.getTimestamp()).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            log.trace("Notification {} has no ISO 8601 timestamp: {}", response.getUpdateId(), response.getTimestamp());
+        }
+        return SerializedUpdate.of(toUpdate(response), origin);
+    }
+
+    private TwinfaceSubscribeUpdate toUpdate(TwinsNotifyResponse response) {
+        return TwinfaceSubscribeUpdate.newBuilder()
+                .setUpdateId(response.getUpdateId())
+                .setEventType(TwinfaceSubscribeProto.TwinEventType.TWIN_UPDATE)
+                .setTimestamp(response.getTimestamp())
+                .addAllUpdatedTwinIds(Collections.singletonList(response.getTwinId()))
+                .setStatus(convertResponseStatus(response.getStatus()))
+                .setSequence(connectionRegistry.nextSequence())
+                .build();
     }
 
     /**
@@ -1,13 +1,19 @@
 package org.twins.horn.service.grpc.security;
 
+import com.google.common.util.concurrent.MoreExecutors;
 import io.grpc.*;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Autowired;
 import org.twins.horn.service.auth.TwinsTokenIntrospectService;
 import org.twins.horn.service.auth.dto.TokenIntrospectRsDTOv1;
 import org.twins.horn.exception.TwinhornException;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
 /**
  * gRPC {@link io.grpc.ServerInterceptor} that validates incoming OAuth2 Bearer tokens.
  * <p>
@@ -20,6 +26,14 @@ import org.twins.horn.exception.TwinhornException;
  * is stored in the gRPC {@link Context} using {@link #TOKEN_INFO_CTX_KEY}.  Down-stream
  * service implementations can retrieve the data without performing additional network
  * round-trips to the introspection endpoint.
+ * <p>
+ * With {@code asyncEnabled} the interceptor never waits for the introspection endpoint: it
+ * returns a {@link PendingAuthListener} that buffers call events until the asynchronous
+ * validation completes and only then starts the real call, so no gRPC executor thread is held
+ * during the network round-trip. The validation may complete on any thread (the HttpClient's, a
+ * timer's), so the call is started, closed and fed its buffered events on a per-call sequential
+ * executor over {@code callExecutor}, the executor of the gRPC server. All later listener events of
+ * the call pass through the same sequential executor, so none of them overlaps with the start.
  */
 @Slf4j
 @RequiredArgsConstructor
@@ -35,6 +49,8 @@ public class AuthInterceptor implements ServerInterceptor {
             Metadata.Key.of("authorization", Metadata.ASCII_STRING_MARSHALLER);
 
     private final TwinsTokenIntrospectService twinsTokenIntrospectService;
+    private final boolean asyncEnabled;
+    private final Executor callExecutor;
 
     // Default constructor removed – use Lombok-generated constructor for dependency injection
 
@@ -50,22 +66,129 @@ public class AuthInterceptor implements ServerInterceptor {
             }; // empty listener
         }
         String token = authHeader.substring(7);
+        if (asyncEnabled) {
+            return interceptCallAsync(token, call, headers, next);
+        }
         TokenIntrospectRsDTOv1 introspectRsDTOv1;
         try {
             introspectRsDTOv1 = twinsTokenIntrospectService.validateToken(token);
-            log.info("Authentication succeeded for clientId={}", introspectRsDTOv1.getClientId());
         } catch (TwinhornException e) {
             log.error("Authentication failed: {}", e.getMessage());
             call.close(Status.UNAUTHENTICATED.withDescription("Invalid token"), new Metadata());
             return new ServerCall.Listener<>() {};
         }
-        if (introspectRsDTOv1 == null) {
-            log.error("Authentication failed: introspection returned null");
-            call.close(Status.UNAUTHENTICATED.withDescription("Invalid token"), new Metadata());
-            return new ServerCall.Listener<>() {};
+        return startAuthenticatedCall(Context.current(), introspectRsDTOv1, call, headers, next);
+    }
+
+    private <ReqT, RespT> ServerCall.Listener<ReqT> interceptCallAsync(String token,
+                                                                       ServerCall<ReqT, RespT> call,
+                                                                       Metadata headers,
+                                                                       ServerCallHandler<ReqT, RespT> next) {
+        Context callContext = Context.current();
+        CompletableFuture<TokenIntrospectRsDTOv1> validation = twinsTokenIntrospectService.validateTokenAsync(token);
+
+        // Cache hits complete immediately – start the call inline without buffering
+        if (validation.isDone() && !validation.isCompletedExceptionally()) {
+            return startAuthenticatedCall(callContext, validation.join(), call, headers, next);
         }
-        Context ctxWithToken = Context.current().withValue(TOKEN_INFO_CTX_KEY, introspectRsDTOv1);
+
+        PendingAuthListener<ReqT> pending = new PendingAuthListener<>(MoreExecutors.newSequentialExecutor(callExecutor));
+        validation.whenCompleteAsync((tokenInfo, ex) -> {
+            if (ex != null) {
+                log.error("Authentication failed: {}", TwinsTokenIntrospectService.asTwinhornException(ex).getMessage());
+                call.close(Status.UNAUTHENTICATED.withDescription("Invalid token"), new Metadata());
+                pending.setDelegate(new ServerCall.Listener<>() {});
+                return;
+            }
+            if (call.isCancelled()) {
+                log.debug("Call cancelled while authenticating clientId={}", tokenInfo.getClientId());
+                pending.setDelegate(new ServerCall.Listener<>() {});
+                return;
+            }
+            try {
+                pending.setDelegate(startAuthenticatedCall(callContext, tokenInfo, call, headers, next));
+            } catch (RuntimeException e) {
+                log.error("Failed to start authenticated call", e);
+                call.close(Status.INTERNAL.withDescription("Failed to start call"), new Metadata());
+                pending.setDelegate(new ServerCall.Listener<>() {});
+            }
+        }, pending.executor());
+        return pending;
+    }
+
+    private <ReqT, RespT> ServerCall.Listener<ReqT> startAuthenticatedCall(Context callContext,
+                                                                           TokenIntrospectRsDTOv1 introspectRsDTOv1,
+                                                                           ServerCall<ReqT, RespT> call,
+                                                                           Metadata headers,
+                                                                           ServerCallHandler<ReqT, RespT> next) {
+        log.info("Authentication succeeded for clientId={}", introspectRsDTOv1.getClientId());
+        Context ctxWithToken = callContext.withValue(TOKEN_INFO_CTX_KEY, introspectRsDTOv1);
         return Contexts.interceptCall(ctxWithToken, call, headers, next);
+    }
+
+    /**
+     * Listener returned while authentication is in progress. Every event is handed to the call's
+     * sequential executor; events that run before {@link #setDelegate(ServerCall.Listener)} are queued
+     * and replayed in order once the delegate is set, later ones go straight to the delegate.
+     */
+    private static final class PendingAuthListener<ReqT> extends ServerCall.Listener<ReqT> {
+        private final Executor executor;
+        // both only touched on executor
+        private ServerCall.Listener<ReqT> delegate;
+        private List<Consumer<ServerCall.Listener<ReqT>>> pendingEvents = new ArrayList<>();
+
+        PendingAuthListener(Executor executor) {
+            this.executor = executor;
+        }
+
+        Executor executor() {
+            return executor;
+        }
+
+        /**
+         * Must run on {@link #executor()}.
+         */
+        void setDelegate(ServerCall.Listener<ReqT> listener) {
+            delegate = listener;
+            for (Consumer<ServerCall.Listener<ReqT>> event : pendingEvents) {
+                event.accept(listener);
+            }
+            pendingEvents = null;
+        }
+
+        private void dispatch(Consumer<ServerCall.Listener<ReqT>> event) {
+            executor.execute(() -> {
+                if (delegate == null) {
+                    pendingEvents.add(event);
+                } else {
+                    event.accept(delegate);
+                }
+            });
+        }
+
+        @Override
+        public void onMessage(ReqT message) {
+            dispatch(listener -> listener.onMessage(message));
+        }
+
+        @Override
+        public void onHalfClose() {
+            dispatch(ServerCall.Listener::onHalfClose);
+        }
+
+        @Override
+        public void onCancel() {
+            dispatch(ServerCall.Listener::onCancel);
+        }
+
+        @Override
+        public void onComplete() {
+            dispatch(ServerCall.Listener::onComplete);
+        }
 
+        @Override
+        public void onReady() {
+            dispatch(ServerCall.Listener::onReady);
+        }
     }
 }
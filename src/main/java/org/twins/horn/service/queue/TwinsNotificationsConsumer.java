@@ -3,23 +3,88 @@ package org.twins.horn.service.queue;
 import com.google.protobuf.InvalidProtocolBufferException;
 import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
 import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.stereotype.Service;
 import org.twins.horn.notify.TwinsNotifyProto.TwinsNotifyResponse;
+import org.twins.horn.service.cluster.NotificationRouter;
+import org.twins.horn.service.grpc.SerializedUpdate;
 import org.twins.horn.service.grpc.TwinfaceGrpcNotifier;
 import org.twins.horn.util.InfrastructureErrorNotifier;
 import org.twins.horn.util.RetryWithBackoffExecutor;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
 @Service
 public class TwinsNotificationsConsumer {
+
+    /**
+     * Delay queue of {@link RetryMode#BROKER}; expired messages are dead-lettered back to {@code twins-notify}.
+     */
+    public static final String RETRY_QUEUE = "twins-notify.retry";
+    /**
+     * Delay queue of {@link RetryMode#BROKER} for notifications this node routed already, followed by the node id; expired
+     * messages are dead-lettered back to the node's own queue of {@link NotificationRouter}.
+     */
+    public static final String NODE_RETRY_QUEUE_PREFIX = "twins-notify.retry.node.";
+    /**
+     * Number of the next delivery attempt of a message coming back from {@link #RETRY_QUEUE}.
+     */
+    public static final String RETRY_ATTEMPT_HEADER = "x-retry-attempt";
+
+    /**
+     * How a failed delivery is retried (property twins-notify.retry.mode).
+     */
+    public enum RetryMode {
+        /** Back off on the listener thread (the original behaviour and the default). */
+        BLOCKING,
+        /**
+         * Ack the message and re-attempt from the shared retry scheduler. The first attempt still runs on the listener
+         * thread, only the re-attempts run on the scheduler. Pending retries are lost if the node stops;
+         * past twins-notify.retry.max-scheduled deliveries backing off at once, new ones back off on the listener
+         * thread as in {@link #BLOCKING}.
+         */
+        SCHEDULED,
+        /**
+         * Republish the payload to {@link #RETRY_QUEUE} with the back-off delay as per-message TTL. With cluster routing a
+         * notification that was routed already is republished to {@link #NODE_RETRY_QUEUE_PREFIX}{@code <node id>} instead,
+         * carrying only this node's part and {@link NotificationRouter#ROUTED_BY_HEADER}, so it comes back to this node
+         * and is not routed again.
+         */
+        BROKER
+    }
+
     private final TwinfaceGrpcNotifier grpcNotifier;
+    private final NotificationRouter notificationRouter;
     private final CircuitBreaker circuitBreaker;
+    private final InfrastructureErrorNotifier infrastructureErrorNotifier;
+    private final RabbitTemplate rabbitTemplate;
+    private final RetryMode retryMode;
+    private final int maxScheduledRetries;
+    private final AtomicInteger scheduledRetries = new AtomicInteger();
+    private final ScheduledExecutorService retryScheduler;
+    private final Counter consumedMessages;
+    private final Counter parseFailures;
+    private final Counter retries;
+    private final Counter exhaustedRetries;
 
     @Value("${twins-notify.concurrency:3}")
     private int concurrency;
@@ -30,78 +95,361 @@ public class TwinsNotificationsConsumer {
     @Value("${payload.error.threshold:5}")
     private int payloadErrorThreshold;
 
+    // Stateless, shared by all listener threads – could be externalised to application.properties
+    private final RetryWithBackoffExecutor retryExecutor;
+
     public TwinsNotificationsConsumer(TwinfaceGrpcNotifier grpcNotifier,
-                                      CircuitBreaker rabbitCircuitBreaker) {
+                                      NotificationRouter notificationRouter,
+                                      CircuitBreaker rabbitCircuitBreaker,
+                                      InfrastructureErrorNotifier infrastructureErrorNotifier,
+                                      RabbitTemplate rabbitTemplate,
+                                      @Value("${twins-notify.retry.mode:BLOCKING}") RetryMode retryMode,
+                                      @Value("${twins-notify.retry.scheduler-threads:1}") int schedulerThreads,
+                                      @Value("${twins-notify.retry.max-scheduled:1000}") int maxScheduledRetries,
+                                      MeterRegistry meterRegistry) {
         this.grpcNotifier = grpcNotifier;
+        this.notificationRouter = notificationRouter;
         this.circuitBreaker = rabbitCircuitBreaker;
+        this.infrastructureErrorNotifier = infrastructureErrorNotifier;
+        this.rabbitTemplate = rabbitTemplate;
+        this.retryMode = retryMode;
+        this.maxScheduledRetries = maxScheduledRetries;
+        this.retryExecutor = new RetryWithBackoffExecutor(
+                5,                      // max attempts
+                Duration.ofMillis(500), // initial delay
+                Duration.ofSeconds(5),  // max delay
+                2.0,                    // multiplier
+                Duration.ofSeconds(20), // max total wait
+                // spread the retries of deliveries that failed together; BLOCKING keeps its fixed back-off
+                retryMode == RetryMode.BLOCKING ? 0.0 : 0.5
+        );
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.retryScheduler = Executors.newScheduledThreadPool(schedulerThreads, r -> {
+            Thread thread = new Thread(r, "twins-notify-retry-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.consumedMessages = Counter.builder("twinhorn.notify.consumed")
+                .description("Messages received from twins-notify")
+                .register(meterRegistry);
+        this.parseFailures = Counter.builder("twinhorn.notify.parse.failures")
+                .description("Messages dropped because the payload is not a TwinsNotifyResponse")
+                .register(meterRegistry);
+        this.retries = Counter.builder("twinhorn.notify.retries")
+                .description("Delivery re-attempts scheduled after a failure")
+                .register(meterRegistry);
+        this.exhaustedRetries = Counter.builder("twinhorn.notify.retries.exhausted")
+                .description("Deliveries given up after the last attempt")
+                .register(meterRegistry);
+        Gauge.builder("twinhorn.notify.retries.scheduled", scheduledRetries, AtomicInteger::get)
+                .description("Deliveries backing off on the retry scheduler")
+                .register(meterRegistry);
     }
 
     /**
      * Consumer service that listens to "twins-notify" RabbitMQ queue. The message payload is protobuf binary which contains
      * TwinsNotifyResponse from twins-notification.proto. For simplicity we parse it into the generated protobuf class. Pool size is
-     * configurable through property: twins-notify.concurrency (default 3)
+     * configurable through property: twins-notify.concurrency (default 3). Disabled when twins-notify.batch.enabled is set, the
+     * queue is then consumed by {@link #handleNotifications(List)}. With cluster routing the parts of the notification for
+     * clients of other nodes are forwarded to their queues by {@link NotificationRouter} first.
      */
-    @RabbitListener(queues = "twins-notify", concurrency = "${twins-notify.concurrency:3}")
-    public void handleNotification(byte[] message) {
-        // Retry configuration – could be externalised to application.properties
-        RetryWithBackoffExecutor retryExecutor = new RetryWithBackoffExecutor(
-                5,                      // max attempts
-                Duration.ofMillis(500), // initial delay
-                Duration.ofSeconds(5),  // max delay
-                2.0,                    // multiplier
-                Duration.ofSeconds(20)  // max total wait
-        );
+    @RabbitListener(id = "twins-notify", queues = "twins-notify", concurrency = "${twins-notify.concurrency:3}",
+            autoStartup = "#{!${twins-notify.batch.enabled:false}}")
+    public void handleNotification(byte[] message,
+                                   @Header(name = RETRY_ATTEMPT_HEADER, required = false) Integer retryAttempt,
+                                   @Header(name = NotificationRouter.ROUTED_BY_HEADER, required = false) String routedBy) {
+        process(message, retryAttempt, routedBy == null);
+    }
 
+    /**
+     * Consumes this node's queue of {@link NotificationRouter}: notifications other nodes forwarded here, delivered without
+     * routing them again. Runs when twinhorn.cluster.routing.enabled is set and batch mode is not.
+     */
+    @RabbitListener(id = "twins-notify-node", queues = NotificationRouter.NODE_QUEUE_PREFIX + "#{@nodeIdentity.nodeId}",
+            concurrency = "${twins-notify.concurrency:3}",
+            autoStartup = "#{${twinhorn.cluster.routing.enabled:false} && !${twins-notify.batch.enabled:false}}")
+    public void handleRoutedNotification(byte[] message,
+                                         @Header(name = RETRY_ATTEMPT_HEADER, required = false) Integer retryAttempt) {
+        process(message, retryAttempt, false);
+    }
+
+    /**
+     * Batch mode of the consumer (twins-notify.batch.enabled=true), using the container from
+     * {@link org.twins.horn.config.TwinsNotifyListenerConfig}. Every message of the batch is parsed first (bad payloads are
+     * skipped and counted as in single mode), then the notifications are routed with one directory lookup and delivered
+     * together so the updates of a client are queued in one pass. The container acknowledges the batch once after this
+     * method returns.
+     */
+    @RabbitListener(id = "twins-notify-batch", queues = "twins-notify",
+            containerFactory = "twinsNotifyBatchContainerFactory",
+            autoStartup = "${twins-notify.batch.enabled:false}")
+    public void handleNotifications(List<Message> messages) {
+        processBatch(messages, true);
+    }
+
+    /**
+     * Batch variant of {@link #handleRoutedNotification}.
+     */
+    @RabbitListener(id = "twins-notify-node-batch", queues = NotificationRouter.NODE_QUEUE_PREFIX + "#{@nodeIdentity.nodeId}",
+            containerFactory = "twinsNotifyBatchContainerFactory",
+            autoStartup = "#{${twinhorn.cluster.routing.enabled:false} && ${twins-notify.batch.enabled:false}}")
+    public void handleRoutedNotifications(List<Message> messages) {
+        processBatch(messages, false);
+    }
+
+    /**
+     * @param route whether the notification still has to be routed, i.e. it was not forwarded by another node
+     */
+    private void process(byte[] message, Integer retryAttempt, boolean route) {
         // 1) Deserialize payload.  On failure -> skip and count consecutive errors
-        TwinsNotifyResponse response;
+        TwinsNotifyResponse response = parse(message);
+        if (response == null) {
+            return; // skip bad message
+        }
+
+        // 2) Normal processing with retry / transient handling; every attempt sends the same update and sequence
+        PendingNotification pending = new PendingNotification(response, grpcNotifier.toSerializedUpdate(response), message,
+                retryAttempt == null ? 1 : retryAttempt, !route);
+        deliver(() -> {
+            log.debug("Processing TwinsNotifyResponse: {}", response);
+            if (!pending.routed) {
+                pending.routed(notificationRouter.route(response));
+            }
+            if (pending.local != null) {
+                grpcNotifier.notifyClients(pending.local, pending.update);
+            }
+            pending.done = true;
+        }, List.of(pending));
+    }
+
+    /**
+     * @param route whether messages without {@link NotificationRouter#ROUTED_BY_HEADER} have to be routed
+     */
+    private void processBatch(List<Message> messages, boolean route) {
+        List<PendingNotification> batch = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            TwinsNotifyResponse response = parse(message.getBody());
+            if (response != null) {
+                Integer attempt = message.getMessageProperties().getHeader(RETRY_ATTEMPT_HEADER);
+                boolean routed = !route || message.getMessageProperties().getHeader(NotificationRouter.ROUTED_BY_HEADER) != null;
+                // built once, so every attempt sends the same updates and sequences
+                batch.add(new PendingNotification(response, grpcNotifier.toSerializedUpdate(response), message.getBody(),
+                        attempt == null ? 1 : attempt, routed));
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        deliver(() -> {
+            log.debug("Processing batch of {} TwinsNotifyResponse messages", batch.size());
+            List<PendingNotification> unrouted = batch.stream().filter(pending -> !pending.routed).toList();
+            if (!unrouted.isEmpty()) {
+                List<TwinsNotifyResponse> routed = notificationRouter.route(
+                        unrouted.stream().map(pending -> pending.local).toList());
+                for (int i = 0; i < unrouted.size(); i++) {
+                    unrouted.get(i).routed(routed.get(i));
+                }
+            }
+            // a retry sends only what an earlier attempt did not queue; the updates keep their sequences
+            List<PendingNotification> open = batch.stream().filter(pending -> !pending.done).toList();
+            List<TwinsNotifyResponse> local = new ArrayList<>(open.size());
+            List<SerializedUpdate> updates = new ArrayList<>(open.size());
+            for (PendingNotification pending : open) {
+                local.add(pending.local);
+                updates.add(pending.update);
+            }
+            BitSet delivered = new BitSet(open.size());
+            try {
+                grpcNotifier.notifyClients(local, updates, delivered);
+            } finally {
+                delivered.stream().forEach(index -> open.get(index).done = true);
+            }
+        }, batch);
+    }
+
+    /**
+     * @return parsed notification, or {@code null} if the payload is invalid
+     */
+    private TwinsNotifyResponse parse(byte[] message) {
+        consumedMessages.increment();
         try {
-            response = TwinsNotifyResponse.parseFrom(message);
+            TwinsNotifyResponse response = TwinsNotifyResponse.parseFrom(message);
             // success – reset counter
             consecutivePayloadErrors.set(0);
+            return response;
         } catch (InvalidProtocolBufferException | RuntimeException serEx) {
+            parseFailures.increment();
             int failures = consecutivePayloadErrors.incrementAndGet();
             log.error("Failed to deserialize twins notification (consecutive {}): {}", failures, serEx.getMessage());
             if (failures > payloadErrorThreshold) {
-                InfrastructureErrorNotifier.terminateStreamsDataLoss("Repeated payload deserialization errors (" + failures + ")");
+                infrastructureErrorNotifier.terminateStreamsDataLoss("Repeated payload deserialization errors (" + failures + ")");
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Runs the delivery under the circuit breaker and retries it according to {@link RetryMode}. Only the {@link RetryMode#BLOCKING}
+     * mode holds the listener thread while backing off; the others return right away so the listener can take the next message.
+     *
+     * @param batch notifications behind the delivery, republished in {@link RetryMode#BROKER} mode
+     */
+    private void deliver(Runnable delivery, List<PendingNotification> batch) {
+        switch (retryMode) {
+            case BLOCKING -> {
+                try {
+                    retryExecutor.execute(() -> attemptDelivery(delivery), this::onRetry, this::onExhausted);
+                } catch (Exception ex) {
+                    handleFailure(ex);
+                }
+            }
+            case SCHEDULED -> {
+                if (scheduledRetries.get() >= maxScheduledRetries) {
+                    // too many deliveries backing off already: hold this listener, and with it the message, instead
+                    try {
+                        retryExecutor.execute(() -> attemptDelivery(delivery), this::onRetry, this::onExhausted);
+                    } catch (Exception ex) {
+                        handleFailure(ex);
+                    }
+                    return;
+                }
+                CompletableFuture<Void> outcome = retryExecutor.executeAsync(() -> attemptDelivery(delivery), this::onRetry,
+                        this::onExhausted, retryScheduler);
+                if (!outcome.isDone()) {
+                    scheduledRetries.incrementAndGet();
+                    outcome.whenComplete((result, ex) -> scheduledRetries.decrementAndGet());
+                }
+                outcome.exceptionally(ex -> {
+                    handleFailure(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+                    return null;
+                });
+            }
+            case BROKER -> {
+                try {
+                    attemptDelivery(delivery);
+                } catch (Exception ex) {
+                    try {
+                        scheduleBrokerRetries(ex, batch);
+                    } catch (Exception publishFailure) {
+                        handleFailure(publishFailure);
+                    }
+                }
             }
-            return; // skip bad message
         }
+    }
 
-        // 2) Normal processing with retry / transient handling
+    private Void attemptDelivery(Runnable delivery) {
         try {
-            retryExecutor.execute(() -> {
-                        try {
-                            circuitBreaker.executeRunnable(() -> {
-                                try {
-                                    log.debug("Processing TwinsNotifyResponse: {}", response);
-                                    grpcNotifier.notifyClients(response);
-                                } catch (Exception e) {
-                                    throw new RuntimeException("Failed to handle twins notification", e);
-                                }
-                            });
-                            return null; // Callable requires return value
-                        } catch (CallNotPermittedException cbOpen) {
-                            // Circuit breaker OPEN – treat as transient
-                            throw new RuntimeException("RabbitMQ circuit breaker OPEN", cbOpen);
-                        }
-                    },
-                    // onRetry
-                    (attempt, ex) -> InfrastructureErrorNotifier.notifyTransientError(
-                            "Retry " + attempt + " due to: " + ex.getMessage()),
-                    // onExhausted
-                    ex -> InfrastructureErrorNotifier.notifyUnavailable("RabbitMQ unavailable: " + ex.getMessage())
-            );
-        } catch (org.springframework.amqp.AmqpException permanent) {// Handle non-recoverable infrastructure errors
-            log.error("Permanent infrastructure error detected – terminating streams", permanent);
-            InfrastructureErrorNotifier.terminateStreams(permanent.getMessage());
-        } catch (Exception ex) {
-            if (ex instanceof NullPointerException || ex instanceof IllegalStateException) {
-                // Internal logic error – terminate streams with INTERNAL status
-                log.error("Internal logic error detected – terminating streams", ex);
-                InfrastructureErrorNotifier.terminateStreams(ex.getMessage());
-            } else {
-                log.error("All retry attempts for twins notification failed", ex);
+            circuitBreaker.executeRunnable(() -> {
+                try {
+                    delivery.run();
+                } catch (Exception e) {
+                    throw new RuntimeException("Failed to handle twins notification", e);
+                }
+            });
+            return null; // Callable requires return value
+        } catch (CallNotPermittedException cbOpen) {
+            // Circuit breaker OPEN – treat as transient
+            throw new RuntimeException("RabbitMQ circuit breaker OPEN", cbOpen);
+        }
+    }
+
+    /**
+     * Parks the failed notifications in {@link #RETRY_QUEUE} until their back-off delay expires; notifications out of attempts
+     * are dropped. A routed notification keeps {@link NotificationRouter#ROUTED_BY_HEADER} and only this node's part; with
+     * cluster routing it is parked in this node's {@link #NODE_RETRY_QUEUE_PREFIX} queue, so it returns to this node's
+     * queue rather than to {@code twins-notify}, where it would be routed, or for twin subscribers broadcast, again.
+     */
+    private void scheduleBrokerRetries(Exception failure, List<PendingNotification> batch) {
+        int exhausted = 0;
+        int parked = 0;
+        for (PendingNotification pending : batch) {
+            if (pending.done) {
+                // queued to its streams, or routed entirely to other nodes, before the failure
+                continue;
+            }
+            if (!retryExecutor.canRetry(pending.attempt, 0)) {
+                exhausted++;
+                continue;
             }
+            onRetry(pending.attempt, failure);
+            long delayMs = retryExecutor.delayMillis(pending.attempt);
+            MessageBuilder retry = MessageBuilder.withBody(pending.routed ? pending.local.toByteArray() : pending.payload);
+            retry.setExpiration(Long.toString(delayMs));
+            retry.setHeader(RETRY_ATTEMPT_HEADER, pending.attempt + 1);
+            String retryQueue = RETRY_QUEUE;
+            if (pending.routed) {
+                retry.setHeader(NotificationRouter.ROUTED_BY_HEADER, notificationRouter.getNodeId());
+                if (notificationRouter.isEnabled()) {
+                    retryQueue = NODE_RETRY_QUEUE_PREFIX + notificationRouter.getNodeId();
+                }
+            }
+            rabbitTemplate.send("", retryQueue, retry.build());
+            parked++;
+        }
+        if (exhausted > 0) {
+            log.error("All retry attempts exhausted for {} twins notifications", exhausted);
+            exhaustedRetries.increment(exhausted);
+            infrastructureErrorNotifier.notifyUnavailable("RabbitMQ unavailable: " + failure.getMessage());
+        }
+        log.warn("Transient error, {} notifications parked for retry: {}", parked, failure.getMessage());
+    }
+
+    private void onRetry(int attempt, Exception ex) {
+        retries.increment();
+        infrastructureErrorNotifier.notifyTransientError("Retry " + attempt + " due to: " + ex.getMessage());
+    }
+
+    private void onExhausted(Exception ex) {
+        exhaustedRetries.increment();
+        infrastructureErrorNotifier.notifyUnavailable("RabbitMQ unavailable: " + ex.getMessage());
+    }
+
+    private void handleFailure(Throwable ex) {
+        if (ex instanceof org.springframework.amqp.AmqpException permanent) {// Handle non-recoverable infrastructure errors
+            log.error("Permanent infrastructure error detected – terminating streams", permanent);
+            infrastructureErrorNotifier.terminateStreams(permanent.getMessage());
+        } else if (ex instanceof NullPointerException || ex instanceof IllegalStateException) {
+            // Internal logic error – terminate streams with INTERNAL status
+            log.error("Internal logic error detected – terminating streams", ex);
+            infrastructureErrorNotifier.terminateStreams(ex.getMessage());
+        } else {
+            log.error("All retry attempts for twins notification failed", ex);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        retryScheduler.shutdownNow();
+    }
+
+    /**
+     * A consumed notification across the attempts of its delivery. Once routed, later attempts deliver only this node's part
+     * and do not route again; once queued to its streams, it is not sent again.
+     */
+    private static final class PendingNotification {
+        private final SerializedUpdate update;
+        private final byte[] payload;
+        private final int attempt;
+        // the whole notification until routed, then the part for this node's clients or null
+        private TwinsNotifyResponse local;
+        private boolean routed;
+        // nothing left to deliver on this node
+        private boolean done;
+
+        private PendingNotification(TwinsNotifyResponse response, SerializedUpdate update, byte[] payload, int attempt,
+                                    boolean routed) {
+            this.local = response;
+            this.update = update;
+            this.payload = payload;
+            this.attempt = attempt;
+            this.routed = routed;
+        }
+
+        private void routed(TwinsNotifyResponse localPart) {
+            this.local = localPart;
+            this.routed = true;
+            this.done = localPart == null;
         }
     }
 }
@@ -0,0 +1,298 @@
+package org.twins.horn.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * Hierarchical timing wheel (Varghese &amp; Lauck) for large numbers of long-lived timers.
+ * <p>
+ * Time is divided into ticks of {@code tickDuration}. Level {@code L} has {@code wheelSize} buckets
+ * each spanning {@code wheelSize^L} ticks; a timer is placed on the lowest level that can hold its
+ * remaining delay and cascades to lower levels as the wheel turns. Scheduling and cancellation are
+ * O(1) (bucket lists are intrusive and doubly linked), firing precision is one tick.
+ * <p>
+ * A single daemon thread advances the wheel and runs due tasks, so tasks must be short and
+ * non-blocking – hand off heavier work to another executor. Timers beyond the wheel range are
+ * clamped to its maximum delay.
+ * <p>
+ * A {@link #manual manual} wheel has no thread: it reads time from the given clock and runs due
+ * tasks only when {@link #runDueTimers()} is called, which makes timer-driven code testable
+ * without sleeping.
+ */
+@Slf4j
+public class HierarchicalTimingWheel implements AutoCloseable {
+
+    private static final int LEVELS = 4;
+
+    private final long tickNanos;
+    private final int wheelBits;
+    private final int wheelMask;
+    private final long maxDelayTicks;
+    private final Bucket[][] wheels;
+    private final Object lock = new Object();
+    private final LongSupplier nanoClock;
+    private final long startNanos;
+    private final Thread worker;
+
+    private long currentTick; // guarded by lock
+    private int pendingTimers; // guarded by lock
+    private volatile boolean closed;
+
+    /**
+     * @param name         worker thread name
+     * @param tickDuration timer resolution
+     * @param wheelSize    buckets per level, rounded up to a power of two
+     */
+    public HierarchicalTimingWheel(String name, Duration tickDuration, int wheelSize) {
+        this(name, tickDuration, wheelSize, System::nanoTime);
+    }
+
+    /**
+     * Wheel driven by the caller through {@link #runDueTimers()}.
+     *
+     * @param nanoClock time source, read like {@link System#nanoTime()}
+     */
+    public static HierarchicalTimingWheel manual(Duration tickDuration, int wheelSize, LongSupplier nanoClock) {
+        return new HierarchicalTimingWheel(null, tickDuration, wheelSize, nanoClock);
+    }
+
+    // no worker thread without a name
+    private HierarchicalTimingWheel(String name, Duration tickDuration, int wheelSize, LongSupplier nanoClock) {
+        if (tickDuration.isNegative() || tickDuration.isZero()) {
+            throw new IllegalArgumentException("tickDuration must be positive");
+        }
+        this.tickNanos = tickDuration.toNanos();
+        this.wheelBits = 32 - Integer.numberOfLeadingZeros(Math.max(2, wheelSize) - 1);
+        this.wheelMask = (1 << wheelBits) - 1;
+        this.maxDelayTicks = wheelBits * LEVELS >= 62 ? Long.MAX_VALUE / 2 : (1L << (wheelBits * LEVELS)) - 1;
+        this.wheels = new Bucket[LEVELS][1 << wheelBits];
+        for (Bucket[] level : wheels) {
+            for (int i = 0; i < level.length; i++) {
+                level[i] = new Bucket();
+            }
+        }
+        this.nanoClock = nanoClock;
+        this.startNanos = nanoClock.getAsLong();
+        if (name == null) {
+            this.worker = null;
+        } else {
+            this.worker = new Thread(this::run, name);
+            this.worker.setDaemon(true);
+            this.worker.start();
+        }
+    }
+
+    /**
+     * Schedules {@code task} to run once after {@code delay}; a non-positive delay fires on the next tick.
+     */
+    public Timer schedule(Runnable task, long delay, TimeUnit unit) {
+        if (closed) {
+            throw new IllegalStateException("Timing wheel is closed");
+        }
+        // deadline is derived from wall-clock progress, not from currentTick, so a lagging worker
+        // thread cannot make the timer fire early
+        long elapsedNanos = nanoClock.getAsLong() - startNanos + Math.max(0, unit.toNanos(delay));
+        long targetTick = (elapsedNanos + tickNanos - 1) / tickNanos;
+        Timer timer = new Timer(task);
+        synchronized (lock) {
+            timer.deadlineTick = Math.max(currentTick + 1, Math.min(targetTick, currentTick + maxDelayTicks));
+            place(timer);
+            pendingTimers++;
+        }
+        return timer;
+    }
+
+    /**
+     * @return number of scheduled, not yet fired or cancelled timers
+     */
+    public int pendingTimers() {
+        synchronized (lock) {
+            return pendingTimers;
+        }
+    }
+
+    /**
+     * Advances the wheel up to the current time of its clock, running the due tasks on the calling
+     * thread. Meant for {@link #manual} wheels; must not race with the worker thread of a regular one.
+     */
+    public void runDueTimers() {
+        List<Timer> due = new ArrayList<>();
+        while (nanosUntilNextTick() <= 0) {
+            synchronized (lock) {
+                advance(due);
+            }
+            runTasks(due);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    // guarded by lock
+    private void place(Timer timer) {
+        long delta = timer.deadlineTick - currentTick;
+        for (int level = 0; level < LEVELS; level++) {
+            if (level == LEVELS - 1 || (delta >>> (wheelBits * (level + 1))) == 0) {
+                int slot = (int) ((timer.deadlineTick >>> (wheelBits * level)) & wheelMask);
+                wheels[level][slot].add(timer);
+                return;
+            }
+        }
+    }
+
+    private void run() {
+        List<Timer> due = new ArrayList<>();
+        while (!closed) {
+            long sleepNanos = nanosUntilNextTick();
+            if (sleepNanos > 0) {
+                LockSupport.parkNanos(this, sleepNanos);
+                continue;
+            }
+            synchronized (lock) {
+                advance(due);
+            }
+            runTasks(due);
+        }
+    }
+
+    private long nanosUntilNextTick() {
+        long nextTickNanos;
+        synchronized (lock) {
+            nextTickNanos = startNanos + (currentTick + 1) * tickNanos;
+        }
+        return nextTickNanos - nanoClock.getAsLong();
+    }
+
+    private static void runTasks(List<Timer> due) {
+        for (Timer timer : due) {
+            try {
+                timer.task.run();
+            } catch (Throwable t) {
+                log.error("Timer task failed", t);
+            }
+        }
+        due.clear();
+    }
+
+    // guarded by lock: moves the wheel by one tick and collects the timers that became due
+    private void advance(List<Timer> due) {
+        currentTick++;
+        for (int level = LEVELS - 1; level > 0; level--) {
+            int shift = wheelBits * level;
+            if ((currentTick & ((1L << shift) - 1)) == 0) {
+                Bucket bucket = wheels[level][(int) ((currentTick >>> shift) & wheelMask)];
+                for (Timer timer = bucket.drain(); timer != null; ) {
+                    Timer next = timer.next;
+                    timer.next = null;
+                    if (timer.deadlineTick <= currentTick) {
+                        timer.deadlineTick = currentTick;
+                    }
+                    place(timer);
+                    timer = next;
+                }
+            }
+        }
+        Bucket bucket = wheels[0][(int) (currentTick & wheelMask)];
+        for (Timer timer = bucket.drain(); timer != null; ) {
+            Timer next = timer.next;
+            timer.next = null;
+            timer.fired = true;
+            pendingTimers--;
+            due.add(timer);
+            timer = next;
+        }
+    }
+
+    /**
+     * Handle of a scheduled task.
+     */
+    public final class Timer {
+        private final Runnable task;
+        private long deadlineTick;
+        private Bucket bucket;
+        private Timer prev;
+        private Timer next;
+        private boolean fired;
+
+        private Timer(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Cancels the timer in O(1).
+         *
+         * @return {@code true} if the timer was pending and will not fire
+         */
+        public boolean cancel() {
+            synchronized (lock) {
+                if (bucket == null) {
+                    return false;
+                }
+                bucket.remove(this);
+                pendingTimers--;
+                return true;
+            }
+        }
+
+        public boolean isFired() {
+            synchronized (lock) {
+                return fired;
+            }
+        }
+    }
+
+    /**
+     * Intrusive doubly linked list of timers; all access is guarded by the wheel lock.
+     */
+    private static final class Bucket {
+        private Timer head;
+
+        void add(Timer timer) {
+            timer.bucket = this;
+            timer.prev = null;
+            timer.next = head;
+            if (head != null) {
+                head.prev = timer;
+            }
+            head = timer;
+        }
+
+        void remove(Timer timer) {
+            if (timer.prev != null) {
+                timer.prev.next = timer.next;
+            } else {
+                head = timer.next;
+            }
+            if (timer.next != null) {
+                timer.next.prev = timer.prev;
+            }
+            timer.prev = null;
+            timer.next = null;
+            timer.bucket = null;
+        }
+
+        /**
+         * Detaches and returns the whole list (linked through {@code next}).
+         */
+        Timer drain() {
+            Timer first = head;
+            head = null;
+            for (Timer timer = first; timer != null; timer = timer.next) {
+                timer.bucket = null;
+                timer.prev = null;
+            }
+            return first;
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package org.twins.horn.util;
 
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
 import org.twins.horn.service.grpc.ConnectionRegistry;
 import org.twins.horn.subscribe.TwinfaceSubscribeProto;
 import org.twins.horn.subscribe.TwinfaceSubscribeProto.TwinfaceSubscribeUpdate;
@@ -22,39 +24,40 @@ import java.util.UUID;
  * </ul>
  */
 @Slf4j
+@Component
+@RequiredArgsConstructor
 public class InfrastructureErrorNotifier {
     private static final io.grpc.Status PERMANENT_STATUS = io.grpc.Status.INTERNAL;
 
-    private InfrastructureErrorNotifier() {
-    }
+    private final ConnectionRegistry connectionRegistry;
 
-    public static void notifyTransientError(String message) {
+    public void notifyTransientError(String message) {
         TwinfaceSubscribeUpdate update = buildUpdate(TwinfaceSubscribeProto.UpdateStatus.TRANSIENT_ERROR, message);
-        ConnectionRegistry.broadcastAll(update);
+        connectionRegistry.broadcastAll(update);
         log.debug("Broadcasted TRANSIENT_ERROR heartbeat – {}", message);
     }
 
-    public static void notifyUnavailable(String message) {
+    public void notifyUnavailable(String message) {
         TwinfaceSubscribeUpdate update = buildUpdate(TwinfaceSubscribeProto.UpdateStatus.UNAVAILABLE, message);
-        ConnectionRegistry.broadcastAll(update);
+        connectionRegistry.broadcastAll(update);
         log.warn("Broadcasted UNAVAILABLE heartbeat – {}", message);
     }
 
     /**
      * Irrecoverable infrastructure failure – close every stream with INTERNAL status.
      */
-    public static void terminateStreams(String message) {
+    public void terminateStreams(String message) {
         io.grpc.StatusRuntimeException error = io.grpc.Status.INTERNAL.withDescription(message).asRuntimeException();
-        ConnectionRegistry.failAll(error);
+        connectionRegistry.failAll(error);
         log.error("Closed all streams due to permanent error: {}", message);
     }
 
     /**
      * Close all streams with DATA_LOSS status after unrecoverable payload errors.
      */
-    public static void terminateStreamsDataLoss(String message) {
+    public void terminateStreamsDataLoss(String message) {
         io.grpc.StatusRuntimeException error = io.grpc.Status.DATA_LOSS.withDescription(message).asRuntimeException();
-        ConnectionRegistry.failAll(error);
+        connectionRegistry.failAll(error);
         log.error("Closed all streams due to DATA_LOSS: {}", message);
     }
 
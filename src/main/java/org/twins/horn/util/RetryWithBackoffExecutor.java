@@ -4,6 +4,10 @@ import lombok.extern.slf4j.Slf4j;
 
 import java.time.Duration;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Simple synchronous retry helper that performs exponential back-off with
@@ -12,6 +16,12 @@ import java.util.concurrent.Callable;
  *
  * The helper also supports optional listeners for retry and exhaustion events
  * so the caller can emit heart-beats or update metrics.
+ *
+ * {@link #executeAsync} runs the same policy without blocking: re-attempts are
+ * scheduled on a shared {@link ScheduledExecutorService} and the outcome is
+ * reported through a {@link CompletableFuture}.  With a non-zero jitter every
+ * delay is shortened by a random fraction of up to {@code jitter}, so callers
+ * failing together do not retry in lock-step.
  */
 @Slf4j
 public class RetryWithBackoffExecutor {
@@ -31,17 +41,59 @@ public class RetryWithBackoffExecutor {
     private final Duration maxDelay;
     private final double multiplier;
     private final Duration maxTotalWait;
+    private final double jitter;
 
     public RetryWithBackoffExecutor(int maxAttempts,
                                     Duration initialDelay,
                                     Duration maxDelay,
                                     double multiplier,
                                     Duration maxTotalWait) {
+        this(maxAttempts, initialDelay, maxDelay, multiplier, maxTotalWait, 0.0);
+    }
+
+    /**
+     * @param jitter fraction (0..1) by which each delay may be randomly shortened
+     */
+    public RetryWithBackoffExecutor(int maxAttempts,
+                                    Duration initialDelay,
+                                    Duration maxDelay,
+                                    double multiplier,
+                                    Duration maxTotalWait,
+                                    double jitter) {
+        if (jitter < 0.0 || jitter > 1.0) {
+            throw new IllegalArgumentException("jitter must be within 0..1");
+        }
         this.maxAttempts = maxAttempts;
         this.initialDelay = initialDelay;
         this.maxDelay = maxDelay;
         this.multiplier = multiplier;
         this.maxTotalWait = maxTotalWait;
+        this.jitter = jitter;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Delay before the retry that follows the given failed attempt (1-based),
+     * capped by the max delay and with jitter applied.
+     */
+    public long delayMillis(int attempt) {
+        double base = initialDelay.toMillis() * Math.pow(multiplier, attempt - 1);
+        long capped = (long) Math.min(base, maxDelay.toMillis());
+        if (jitter == 0.0) {
+            return capped;
+        }
+        return capped - (long) (capped * jitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * @return whether another attempt is allowed after {@code attempt} failed and
+     * {@code waitedMs} have been spent waiting so far
+     */
+    public boolean canRetry(int attempt, long waitedMs) {
+        return attempt < maxAttempts && waitedMs < maxTotalWait.toMillis();
     }
 
     /**
@@ -54,7 +106,6 @@ public class RetryWithBackoffExecutor {
     public <T> T execute(Callable<T> task,
                          RetryListener onRetry,
                          ExhaustedListener onExhausted) throws Exception {
-        Duration delay = initialDelay;
         long waitedMs = 0;
         int attempt = 1;
 
@@ -62,7 +113,7 @@ public class RetryWithBackoffExecutor {
             try {
                 return task.call();
             } catch (Exception ex) {
-                if (attempt >= maxAttempts || waitedMs >= maxTotalWait.toMillis()) {
+                if (!canRetry(attempt, waitedMs)) {
                     log.error("All retry attempts exhausted ({} attempts, {} ms)", attempt, waitedMs);
                     if (onExhausted != null) {
                         onExhausted.onExhausted(ex);
@@ -75,16 +126,66 @@ public class RetryWithBackoffExecutor {
                     onRetry.onRetry(attempt, ex);
                 }
 
+                long delayMs = delayMillis(attempt);
                 log.warn("Transient error on attempt {} – will retry in {} ms: {}",
-                        attempt, delay.toMillis(), ex.getMessage());
-
-                Thread.sleep(delay.toMillis());
-                waitedMs += delay.toMillis();
+                        attempt, delayMs, ex.getMessage());
 
-                long nextDelayMs = Math.min((long) (delay.toMillis() * multiplier), maxDelay.toMillis());
-                delay = Duration.ofMillis(nextDelayMs);
+                Thread.sleep(delayMs);
+                waitedMs += delayMs;
                 attempt++;
             }
         }
     }
+
+    /**
+     * Non-blocking variant of {@link #execute}.  The first attempt runs on the
+     * calling thread; re-attempts run on {@code scheduler} after the back-off
+     * delay, so no thread is held while waiting.
+     *
+     * @return future completed with the task result, or exceptionally with the
+     * last failure once retries are exhausted
+     */
+    public <T> CompletableFuture<T> executeAsync(Callable<T> task,
+                                                 RetryListener onRetry,
+                                                 ExhaustedListener onExhausted,
+                                                 ScheduledExecutorService scheduler) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(task, onRetry, onExhausted, scheduler, result, 1, 0);
+        return result;
+    }
+
+    private <T> void attempt(Callable<T> task,
+                             RetryListener onRetry,
+                             ExhaustedListener onExhausted,
+                             ScheduledExecutorService scheduler,
+                             CompletableFuture<T> result,
+                             int attempt,
+                             long waitedMs) {
+        try {
+            result.complete(task.call());
+            return;
+        } catch (Exception ex) {
+            try {
+                if (!canRetry(attempt, waitedMs)) {
+                    log.error("All retry attempts exhausted ({} attempts, {} ms)", attempt, waitedMs);
+                    if (onExhausted != null) {
+                        onExhausted.onExhausted(ex);
+                    }
+                    result.completeExceptionally(ex);
+                    return;
+                }
+                if (onRetry != null) {
+                    onRetry.onRetry(attempt, ex);
+                }
+                long delayMs = delayMillis(attempt);
+                log.warn("Transient error on attempt {} – retry scheduled in {} ms: {}",
+                        attempt, delayMs, ex.getMessage());
+                scheduler.schedule(() -> attempt(task, onRetry, onExhausted, scheduler, result,
+                        attempt + 1, waitedMs + delayMs), delayMs, TimeUnit.MILLISECONDS);
+            } catch (Exception listenerOrRejected) {
+                listenerOrRejected.addSuppressed(ex);
+                result.completeExceptionally(listenerOrRejected);
+            }
+        }
+    }
 }
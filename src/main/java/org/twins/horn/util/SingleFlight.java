@@ -0,0 +1,64 @@
+package org.twins.horn.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent invocations for the same key into a single in-flight call.
+ * <p>
+ * The first caller for a key becomes the <em>leader</em> and starts the call; callers arriving
+ * while it is still running receive a view of the leader's future and therefore its result or its
+ * failure. The key is released as soon as the call completes, so nothing is cached here – pair
+ * with a cache if results should outlive the call.
+ * <p>
+ * Returned futures are independent copies: cancelling one of them does not affect the shared call
+ * or the other waiters.
+ *
+ * @param <K> key type (must implement {@code equals}/{@code hashCode})
+ * @param <V> result type
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Starts {@code call} unless a call for {@code key} is already in flight, in which case the
+     * caller joins that call instead. {@code call} is invoked by the leader only and should not
+     * block; a synchronous exception it throws fails the shared future.
+     */
+    public CompletableFuture<V> submit(K key, Supplier<CompletableFuture<V>> call) {
+        CompletableFuture<V> promise = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, promise);
+        if (existing != null) {
+            return existing.copy();
+        }
+        CompletableFuture<V> source;
+        try {
+            source = call.get();
+        } catch (RuntimeException e) {
+            source = CompletableFuture.failedFuture(e);
+        }
+        source.whenComplete((value, ex) -> {
+            inFlight.remove(key, promise);
+            if (ex != null) {
+                promise.completeExceptionally(unwrap(ex));
+            } else {
+                promise.complete(value);
+            }
+        });
+        return promise.copy();
+    }
+
+    /**
+     * @return number of keys with a call currently in flight
+     */
+    public int inFlightCount() {
+        return inFlight.size();
+    }
+
+    private static Throwable unwrap(Throwable ex) {
+        return ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+    }
+}
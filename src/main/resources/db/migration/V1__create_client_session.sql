@@ -0,0 +1,17 @@
+-- Client sessions recorded on every successful token validation.
+CREATE TABLE IF NOT EXISTS client_session
+(
+    client_id  UUID                     NOT NULL PRIMARY KEY,
+    created_at TIMESTAMP WITH TIME ZONE NOT NULL,
+    expires_at TIMESTAMP WITH TIME ZONE,
+    status     VARCHAR(16)              NOT NULL
+);
+
+-- Partial indexes backing the expiry sweep: each transition only scans the rows in its source status.
+CREATE INDEX IF NOT EXISTS idx_client_session_active_expires_at
+    ON client_session (expires_at)
+    WHERE status = 'ACTIVE';
+
+CREATE INDEX IF NOT EXISTS idx_client_session_warning_expires_at
+    ON client_session (expires_at)
+    WHERE status = 'WARNING';
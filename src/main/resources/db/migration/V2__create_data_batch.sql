@@ -0,0 +1,14 @@
+-- Batches of data addressed to a client session.
+CREATE TABLE IF NOT EXISTS data_batch
+(
+    batch_id          UUID                     NOT NULL PRIMARY KEY,
+    client_session_id UUID                     NOT NULL REFERENCES client_session (client_id) ON DELETE CASCADE,
+    created_at        TIMESTAMP WITH TIME ZONE NOT NULL,
+    batch_data        JSONB,
+    status            VARCHAR(16)              NOT NULL DEFAULT 'PENDING'
+);
+
+-- Pending batches are read per client in creation order; completed rows are never scanned.
+CREATE INDEX IF NOT EXISTS idx_data_batch_pending_client_created_at
+    ON data_batch (client_session_id, created_at)
+    WHERE status = 'PENDING';
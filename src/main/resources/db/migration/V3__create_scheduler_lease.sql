@@ -0,0 +1,7 @@
+-- Time-bounded leases used to elect a single owner for cluster-wide scheduled jobs.
+CREATE TABLE IF NOT EXISTS scheduler_lease
+(
+    name       VARCHAR(64)              NOT NULL PRIMARY KEY,
+    owner      VARCHAR(128)             NOT NULL,
+    expires_at TIMESTAMP WITH TIME ZONE NOT NULL
+);
@@ -0,0 +1,8 @@
+-- data_batch as the offline mailbox: the sweep expires pending rows and purges the others by status and age.
+CREATE INDEX IF NOT EXISTS idx_data_batch_status_created_at
+    ON data_batch (status, created_at);
+
+-- Markers of dropped rows are looked up per client on every reconnect; there are few of them.
+CREATE INDEX IF NOT EXISTS idx_data_batch_failed_client
+    ON data_batch (client_session_id)
+    WHERE status = 'FAILED';
@@ -0,0 +1,17 @@
+-- Payload shared by the data_batch rows of all recipients, stored once instead of per client.
+CREATE TABLE IF NOT EXISTS data_batch_payload
+(
+    payload_id UUID                     NOT NULL PRIMARY KEY,
+    created_at TIMESTAMP WITH TIME ZONE NOT NULL,
+    payload    JSONB                    NOT NULL
+);
+
+ALTER TABLE data_batch
+    ADD COLUMN IF NOT EXISTS payload_id UUID REFERENCES data_batch_payload (payload_id);
+
+-- Serves the reference check when unreferenced payloads are purged.
+CREATE INDEX IF NOT EXISTS idx_data_batch_payload_id
+    ON data_batch (payload_id);
+
+CREATE INDEX IF NOT EXISTS idx_data_batch_payload_created_at
+    ON data_batch_payload (created_at);
@@ -0,0 +1,18 @@
+-- Liveness of replicas: a running node keeps pushing expires_at forward; directory rows of an expired node are ignored and swept.
+CREATE TABLE IF NOT EXISTS cluster_node
+(
+    node_id    VARCHAR(128)             NOT NULL PRIMARY KEY,
+    expires_at TIMESTAMP WITH TIME ZONE NOT NULL
+);
+
+-- Nodes holding streams of a client, one row per client and node; notifications are routed by it.
+CREATE TABLE IF NOT EXISTS connection_directory
+(
+    client_id UUID         NOT NULL,
+    node_id   VARCHAR(128) NOT NULL,
+    PRIMARY KEY (client_id, node_id)
+);
+
+-- Rows of one node are dropped together when it restarts, stops or expires.
+CREATE INDEX IF NOT EXISTS idx_connection_directory_node_id
+    ON connection_directory (node_id);
@@ -0,0 +1,133 @@
+package org.twins.horn.service.auth;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.twins.horn.service.auth.TokenIntrospectionCache.CachedIntrospection;
+import org.twins.horn.service.auth.dto.TokenIntrospectRsDTOv1;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Entry lifetimes run on a fake ticker and wall clock that the tests advance by hand.
+ */
+class TokenIntrospectionCacheTest {
+
+    private static final Duration MAX_TTL = Duration.ofMinutes(5);
+    private static final Duration NEGATIVE_TTL = Duration.ofSeconds(10);
+    private static final Instant START = Instant.parse("2026-01-01T00:00:00Z");
+
+    private final AtomicLong tickerNanos = new AtomicLong();
+    // wall clock time on top of the ticker, for clock jumps
+    private final AtomicLong clockJumpMillis = new AtomicLong();
+    private final TokenIntrospectionCache fakeTimeCache = new TokenIntrospectionCache(true, 100, MAX_TTL, NEGATIVE_TTL,
+            Duration.ofMinutes(1), tickerNanos::get, new FakeClock(), new SimpleMeterRegistry());
+
+    @Test
+    void ttlIsCappedAtTokenExpiry() {
+        fakeTimeCache.put("key", active(START.plus(Duration.ofSeconds(30))));
+
+        advance(Duration.ofSeconds(29));
+        assertThat(fakeTimeCache.get("key")).isNotNull();
+        advance(Duration.ofSeconds(1));
+        assertThat(fakeTimeCache.get("key")).isNull();
+    }
+
+    @Test
+    void ttlIsCappedAtMaxTtl() {
+        fakeTimeCache.put("key", active(START.plus(Duration.ofHours(1))));
+
+        advance(MAX_TTL.minusSeconds(1));
+        assertThat(fakeTimeCache.get("key")).isNotNull();
+        advance(Duration.ofSeconds(1));
+        assertThat(fakeTimeCache.get("key")).isNull();
+    }
+
+    @Test
+    void rejectionExpiresAfterNegativeTtl() {
+        fakeTimeCache.put("key", CachedIntrospection.rejected("Token is not active"));
+
+        advance(NEGATIVE_TTL.minusSeconds(1));
+        assertThat(fakeTimeCache.get("key").isRejected()).isTrue();
+        advance(Duration.ofSeconds(1));
+        assertThat(fakeTimeCache.get("key")).isNull();
+    }
+
+    @Test
+    void expiredTokenIsNeverStored() {
+        fakeTimeCache.put("key", active(START));
+
+        assertThat(fakeTimeCache.get("key")).isNull();
+        assertThat(fakeTimeCache.size()).isZero();
+    }
+
+    @Test
+    void tokenPastExpiryIsNotServedAfterAClockJump() {
+        fakeTimeCache.put("key", active(START.plus(Duration.ofSeconds(30))));
+
+        // the entry's TTL has not run out on the ticker, but the wall clock is past exp
+        clockJumpMillis.set(Duration.ofSeconds(30).toMillis());
+
+        assertThat(fakeTimeCache.get("key")).isNull();
+    }
+
+    @Test
+    void hitRefreshesSessionOncePerInterval() throws InterruptedException {
+        TokenIntrospectionCache cache = newCache(Duration.ofMillis(50));
+        CachedIntrospection active = CachedIntrospection.active(new TokenIntrospectRsDTOv1());
+
+        assertThat(cache.sessionRefreshDue(active)).as("recorded by the introspection itself").isFalse();
+        Thread.sleep(60);
+        assertThat(cache.sessionRefreshDue(active)).isTrue();
+        assertThat(cache.sessionRefreshDue(active)).as("claimed by the previous hit").isFalse();
+    }
+
+    @Test
+    void rejectionNeverRefreshesSession() {
+        TokenIntrospectionCache cache = newCache(Duration.ZERO);
+
+        assertThat(cache.sessionRefreshDue(CachedIntrospection.rejected("Token is not active"))).isFalse();
+    }
+
+    private void advance(Duration duration) {
+        tickerNanos.addAndGet(duration.toNanos());
+    }
+
+    private static CachedIntrospection active(Instant expiration) {
+        TokenIntrospectRsDTOv1 tokenInfo = new TokenIntrospectRsDTOv1();
+        tokenInfo.setActive("true");
+        tokenInfo.setExp(expiration.getEpochSecond());
+        return CachedIntrospection.active(tokenInfo);
+    }
+
+    private static TokenIntrospectionCache newCache(Duration sessionRefresh) {
+        return new TokenIntrospectionCache(true, 100, Duration.ofMinutes(5), Duration.ofSeconds(10), sessionRefresh,
+                new SimpleMeterRegistry());
+    }
+
+    /**
+     * Wall clock following the ticker from {@link #START}, plus any jump.
+     */
+    private final class FakeClock extends Clock {
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return START.plusNanos(tickerNanos.get()).plusMillis(clockJumpMillis.get());
+        }
+    }
+}
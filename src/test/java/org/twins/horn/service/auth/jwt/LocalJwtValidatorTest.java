@@ -0,0 +1,187 @@
+package org.twins.horn.service.auth.jwt;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.twins.horn.exception.TwinhornException;
+import org.twins.horn.service.auth.dto.TokenIntrospectRsDTOv1;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Local verification against a JWKS document served from a {@code file:} URI.
+ */
+class LocalJwtValidatorTest {
+
+    private static final Duration CLOCK_SKEW = Duration.ofSeconds(30);
+    private static final Duration WITHIN_SKEW = Duration.ofSeconds(10);
+
+    private static RSAKey signingKey;
+    private static RSAKey otherKey;
+
+    @TempDir
+    Path dir;
+
+    private final List<LocalJwtValidator> validators = new ArrayList<>();
+
+    @BeforeAll
+    static void generateKeys() throws JOSEException {
+        signingKey = new RSAKeyGenerator(2048).keyID("key-1").generate();
+        otherKey = new RSAKeyGenerator(2048).keyID("key-2").generate();
+    }
+
+    @AfterEach
+    void shutdown() {
+        validators.forEach(LocalJwtValidator::shutdown);
+    }
+
+    @Test
+    void validTokenIsMappedToTokenInfo() throws Exception {
+        LocalJwtValidator validator = loadedValidator(CLOCK_SKEW, signingKey);
+        String clientId = UUID.randomUUID().toString();
+        Instant expiration = Instant.now().plus(Duration.ofMinutes(5));
+
+        TokenIntrospectRsDTOv1 tokenInfo = validator.validate(token(signingKey, claims(clientId, expiration, null)));
+
+        assertThat(tokenInfo.getActive()).isEqualTo("true");
+        assertThat(tokenInfo.getClientId()).isEqualTo(clientId);
+        assertThat(tokenInfo.getExp()).isEqualTo(expiration.getEpochSecond());
+    }
+
+    @Test
+    void badSignatureIsUnauthorized() throws Exception {
+        LocalJwtValidator validator = loadedValidator(CLOCK_SKEW, signingKey);
+        // names the loaded key but is signed by another one
+        RSAKey forged = new RSAKey.Builder(otherKey).keyID(signingKey.getKeyID()).build();
+
+        assertUnauthorized(validator, token(forged, validClaims()));
+    }
+
+    @Test
+    void expiredTokenIsAcceptedOnlyWithinClockSkew() throws Exception {
+        JWTClaimsSet claims = claims(UUID.randomUUID().toString(), Instant.now().minus(WITHIN_SKEW), null);
+
+        assertThat(loadedValidator(CLOCK_SKEW, signingKey).validate(token(signingKey, claims))).isNotNull();
+        assertUnauthorized(loadedValidator(Duration.ZERO, signingKey), token(signingKey, claims));
+    }
+
+    @Test
+    void tokenWithoutExpirationIsUnauthorized() throws Exception {
+        JWTClaimsSet claims = claims(UUID.randomUUID().toString(), null, null);
+
+        assertUnauthorized(loadedValidator(CLOCK_SKEW, signingKey), token(signingKey, claims));
+    }
+
+    @Test
+    void futureNotBeforeIsAcceptedOnlyWithinClockSkew() throws Exception {
+        JWTClaimsSet claims = claims(UUID.randomUUID().toString(), Instant.now().plus(Duration.ofMinutes(5)),
+                Instant.now().plus(WITHIN_SKEW));
+
+        assertThat(loadedValidator(CLOCK_SKEW, signingKey).validate(token(signingKey, claims))).isNotNull();
+        assertUnauthorized(loadedValidator(Duration.ZERO, signingKey), token(signingKey, claims));
+    }
+
+    @Test
+    void nonUuidClientIdIsUnauthorized() throws Exception {
+        JWTClaimsSet claims = claims("not-a-uuid", Instant.now().plus(Duration.ofMinutes(5)), null);
+
+        assertUnauthorized(loadedValidator(CLOCK_SKEW, signingKey), token(signingKey, claims));
+    }
+
+    @Test
+    void unknownKeyIdIsLeftToRemoteAndQueuesReload() throws Exception {
+        LocalJwtValidator validator = loadedValidator(CLOCK_SKEW, signingKey);
+        SignedJWT rotated = token(otherKey, validClaims());
+        writeJwks(signingKey, otherKey);
+
+        assertThat(validator.validate(rotated)).isNull();
+
+        // the periodic reload is an hour away, only the queued one can pick up the new key
+        assertThat(awaitValidation(validator, rotated)).isNotNull();
+    }
+
+    @Test
+    void tokenWithoutKeyIdNeedsASingleKey() throws Exception {
+        SignedJWT withoutKeyId = token(new RSAKey.Builder(signingKey).keyID(null).build(), validClaims());
+
+        assertThat(loadedValidator(CLOCK_SKEW, signingKey).validate(withoutKeyId)).isNotNull();
+        assertThat(loadedValidator(CLOCK_SKEW, signingKey, otherKey).validate(withoutKeyId)).isNull();
+    }
+
+    /**
+     * @return a validator that has loaded the given keys
+     */
+    private LocalJwtValidator loadedValidator(Duration clockSkew, RSAKey... keys) throws Exception {
+        writeJwks(keys);
+        LocalJwtValidator validator = new LocalJwtValidator(true, dir.resolve("jwks.json").toUri().toString(),
+                Duration.ZERO, Duration.ofHours(1), clockSkew, "client_id");
+        validators.add(validator);
+        // signed by the first key, known once the initial load is done
+        SignedJWT probe = token(keys[0], validClaims());
+        assertThat(awaitValidation(validator, probe)).as("JWKS loaded").isNotNull();
+        return validator;
+    }
+
+    private static TokenIntrospectRsDTOv1 awaitValidation(LocalJwtValidator validator, SignedJWT jwt)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        TokenIntrospectRsDTOv1 tokenInfo = validator.validate(jwt);
+        while (tokenInfo == null && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+            tokenInfo = validator.validate(jwt);
+        }
+        return tokenInfo;
+    }
+
+    private void writeJwks(RSAKey... keys) throws IOException {
+        Path tmp = dir.resolve("jwks.json.tmp");
+        Files.writeString(tmp, new JWKSet(List.of(keys)).toPublicJWKSet().toString());
+        Files.move(tmp, dir.resolve("jwks.json"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void assertUnauthorized(LocalJwtValidator validator, SignedJWT jwt) {
+        assertThatThrownBy(() -> validator.validate(jwt))
+                .isInstanceOfSatisfying(TwinhornException.class, e ->
+                        assertThat(e.getErrorType()).isEqualTo(TwinhornException.TwinhornErrorType.UNAUTHORIZED));
+    }
+
+    private static JWTClaimsSet validClaims() {
+        return claims(UUID.randomUUID().toString(), Instant.now().plus(Duration.ofMinutes(5)), null);
+    }
+
+    private static JWTClaimsSet claims(String clientId, Instant expiration, Instant notBefore) {
+        return new JWTClaimsSet.Builder()
+                .claim("client_id", clientId)
+                .expirationTime(expiration == null ? null : Date.from(expiration))
+                .notBeforeTime(notBefore == null ? null : Date.from(notBefore))
+                .build();
+    }
+
+    private static SignedJWT token(RSAKey key, JWTClaimsSet claims) throws JOSEException {
+        SignedJWT jwt = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(key.getKeyID()).build(), claims);
+        jwt.sign(new RSASSASigner(key));
+        return jwt;
+    }
+}
@@ -0,0 +1,174 @@
+package org.twins.horn.service.auth.session;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+import org.twins.horn.config.ConflationProperties;
+import org.twins.horn.service.grpc.ClientStream;
+import org.twins.horn.service.grpc.ConnectionDirectory;
+import org.twins.horn.service.grpc.ConnectionRegistry;
+import org.twins.horn.service.grpc.OfflineMailbox;
+import org.twins.horn.service.grpc.ReplayBufferStore;
+import org.twins.horn.service.grpc.SerializedUpdate;
+import org.twins.horn.service.grpc.TwinSubscriptionIndex;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto.TwinEventType;
+import org.twins.horn.util.HierarchicalTimingWheel;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Expiry timers on a {@link HierarchicalTimingWheel#manual manual} wheel; the wheel and the wall
+ * clock read the same fake time.
+ */
+class SessionExpirySchedulerTest {
+
+    private static final Instant START = Instant.parse("2026-01-01T00:00:00Z");
+    private static final Duration TICK = Duration.ofMillis(100);
+    private static final Duration GRACE = Duration.ofMinutes(5);
+    private static final Duration TOKEN_LIFETIME = Duration.ofMinutes(10);
+
+    private final AtomicLong elapsedNanos = new AtomicLong();
+    private final HierarchicalTimingWheel wheel = HierarchicalTimingWheel.manual(TICK, 64, elapsedNanos::get);
+    private final ConnectionRegistry registry = new ConnectionRegistry(new TwinSubscriptionIndex(1000),
+            new ConflationProperties(),
+            new ReplayBufferStore(true, 128, DataSize.ofKilobytes(64), DataSize.ofMegabytes(1), Duration.ofMinutes(10)),
+            OfflineMailbox.NONE, ConnectionDirectory.NONE, 4, 16, ClientStream.OverflowPolicy.DROP_OLDEST,
+            new SimpleMeterRegistry());
+    private final SessionExpiryScheduler scheduler = new SessionExpiryScheduler(registry, GRACE, wheel, new FakeClock());
+    private final RecordingObserver observer = new RecordingObserver();
+
+    @AfterEach
+    void shutdown() {
+        scheduler.shutdown();
+        registry.shutdown();
+    }
+
+    @Test
+    void warningFiresAtExpiry() {
+        schedule(register());
+
+        advance(TOKEN_LIFETIME.minus(TICK));
+        assertThat(observer.eventTypes).isEmpty();
+
+        advance(TICK);
+        assertThat(observer.eventTypes).containsExactly(TwinEventType.TOKEN_EXPIRED_WARNING);
+        assertThat(observer.completed).isFalse();
+        assertThat(scheduler.pendingTimers()).isEqualTo(1);
+    }
+
+    @Test
+    void streamIsClosedAtExpiryPlusGrace() {
+        schedule(register());
+
+        advance(TOKEN_LIFETIME.plus(GRACE).minus(TICK));
+        assertThat(observer.completed).isFalse();
+        assertThat(registry.connectionCount()).isEqualTo(1);
+
+        advance(TICK);
+        assertThat(observer.eventTypes)
+                .containsExactly(TwinEventType.TOKEN_EXPIRED_WARNING, TwinEventType.CONNECTION_CLOSED);
+        assertThat(observer.completed).isTrue();
+        assertThat(registry.connectionCount()).isZero();
+        assertThat(scheduler.pendingTimers()).isZero();
+    }
+
+    @Test
+    void terminatedStreamCancelsItsTimers() {
+        ClientStream stream = register();
+        SessionExpiryScheduler.ExpiryTimers timers = schedule(stream);
+        stream.onTerminate(timers::cancel);
+        assertThat(scheduler.pendingTimers()).isEqualTo(2);
+
+        stream.fail(Status.CANCELLED.asRuntimeException());
+        assertThat(scheduler.pendingTimers()).isZero();
+
+        advance(TOKEN_LIFETIME.plus(GRACE).plus(TICK));
+        assertThat(observer.eventTypes).isEmpty();
+        assertThat(observer.completed).isFalse();
+    }
+
+    @Test
+    void hookSetAfterTerminationCancelsAtOnce() {
+        ClientStream stream = register();
+        SessionExpiryScheduler.ExpiryTimers timers = schedule(stream);
+        stream.complete(null);
+
+        stream.onTerminate(timers::cancel);
+
+        assertThat(scheduler.pendingTimers()).isZero();
+    }
+
+    @Test
+    void tokenWithoutExpiryArmsNoTimers() {
+        assertThat(scheduler.schedule(register(), null)).isSameAs(SessionExpiryScheduler.ExpiryTimers.NONE);
+        assertThat(scheduler.pendingTimers()).isZero();
+    }
+
+    private ClientStream register() {
+        return registry.register(UUID.randomUUID(), observer);
+    }
+
+    private SessionExpiryScheduler.ExpiryTimers schedule(ClientStream stream) {
+        return scheduler.schedule(stream, START.plus(TOKEN_LIFETIME).getEpochSecond());
+    }
+
+    private void advance(Duration duration) {
+        elapsedNanos.addAndGet(duration.toNanos());
+        wheel.runDueTimers();
+    }
+
+    private class FakeClock extends Clock {
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return START.plusNanos(elapsedNanos.get());
+        }
+
+        @Override
+        public long millis() {
+            return START.toEpochMilli() + TimeUnit.NANOSECONDS.toMillis(elapsedNanos.get());
+        }
+    }
+
+    private static class RecordingObserver implements StreamObserver<SerializedUpdate> {
+        private final List<TwinEventType> eventTypes = new ArrayList<>();
+        private boolean completed;
+
+        @Override
+        public void onNext(SerializedUpdate value) {
+            eventTypes.add(value.message().getEventType());
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onCompleted() {
+            completed = true;
+        }
+    }
+}
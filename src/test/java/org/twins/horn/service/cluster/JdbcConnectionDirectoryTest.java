@@ -0,0 +1,149 @@
+package org.twins.horn.service.cluster;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.twins.horn.config.NodeIdentity;
+import org.twins.horn.db.ConnectionDirectoryRepository;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Owner lookups and background writes of the directory, against a mocked repository.
+ */
+class JdbcConnectionDirectoryTest {
+
+    private static final String NODE_ID = "node-a";
+    private static final Duration FLUSH_INTERVAL = Duration.ofMillis(20);
+
+    private final ConnectionDirectoryRepository repository = mock(ConnectionDirectoryRepository.class);
+    private JdbcConnectionDirectory directory;
+
+    @AfterEach
+    void shutdown() throws InterruptedException {
+        if (directory != null) {
+            directory.shutdown();
+        }
+    }
+
+    @Test
+    void ownersMergeThisNodeWithTheOtherNodes() {
+        UUID both = UUID.randomUUID();
+        UUID remote = UUID.randomUUID();
+        UUID local = UUID.randomUUID();
+        UUID unknown = UUID.randomUUID();
+        when(repository.findOwners(anyCollection(), eq(NODE_ID)))
+                .thenReturn(Map.of(both, Set.of("node-b"), remote, Set.of("node-c")));
+        directory = directory(1000);
+        directory.register(both);
+        directory.register(local);
+
+        Map<UUID, Set<String>> owners = directory.owners(List.of(both, remote, local, unknown));
+
+        assertThat(owners).containsOnlyKeys(both, remote, local);
+        assertThat(owners.get(both)).containsExactlyInAnyOrder(NODE_ID, "node-b");
+        assertThat(owners.get(remote)).containsExactly("node-c");
+        assertThat(owners.get(local)).containsExactly(NODE_ID);
+    }
+
+    @Test
+    void lookupsAreCachedIncludingClientsWithoutOwner() {
+        UUID unknown = UUID.randomUUID();
+        when(repository.findOwners(anyCollection(), eq(NODE_ID))).thenReturn(Map.of());
+        directory = directory(1000);
+
+        assertThat(directory.owners(List.of(unknown))).isEmpty();
+        assertThat(directory.owners(List.of(unknown))).isEmpty();
+
+        verify(repository, times(1)).findOwners(anyCollection(), eq(NODE_ID));
+    }
+
+    @Test
+    void unregisteredClientIsNoLongerOwnedHere() {
+        UUID clientId = UUID.randomUUID();
+        when(repository.findOwners(anyCollection(), eq(NODE_ID))).thenReturn(Map.of());
+        directory = directory(1000);
+        directory.register(clientId);
+
+        directory.unregister(clientId);
+
+        assertThat(directory.owners(List.of(clientId))).isEmpty();
+    }
+
+    @Test
+    void connectedClientsAreWrittenInBatches() {
+        directory = directory(2);
+        Set<UUID> clientIds = Set.of(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID());
+
+        clientIds.forEach(directory::register);
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Collection<UUID>> batches = ArgumentCaptor.forClass(Collection.class);
+        verify(repository, timeout(5000).times(2)).insert(eq(NODE_ID), batches.capture());
+        assertThat(batches.getAllValues()).flatExtracting(batch -> batch).containsExactlyInAnyOrderElementsOf(clientIds);
+        // the rows of a previous run are dropped before anything is written
+        verify(repository).deleteNode(NODE_ID);
+    }
+
+    @Test
+    void disconnectedClientIsDeleted() {
+        directory = directory(1000);
+        UUID clientId = UUID.randomUUID();
+        directory.register(clientId);
+        verify(repository, timeout(5000)).insert(eq(NODE_ID), eq(List.of(clientId)));
+
+        directory.unregister(clientId);
+
+        verify(repository, timeout(5000)).delete(eq(NODE_ID), eq(List.of(clientId)));
+    }
+
+    @Test
+    void failedFlushIsRetried() {
+        UUID clientId = UUID.randomUUID();
+        doAnswer(invocation -> {
+            throw new IllegalStateException("database down");
+        }).doNothing()
+                .when(repository).insert(eq(NODE_ID), anyCollection());
+        directory = directory(1000);
+
+        directory.register(clientId);
+
+        verify(repository, timeout(5000).times(2)).insert(eq(NODE_ID), eq(List.of(clientId)));
+    }
+
+    @Test
+    void shutdownRemovesThisNode() throws InterruptedException {
+        directory = directory(1000);
+
+        directory.shutdown();
+        directory = null;
+
+        verify(repository).removeNode(NODE_ID);
+        verify(repository, atLeastOnce()).deleteNode(NODE_ID);
+    }
+
+    /**
+     * Starts the directory threads; stub the repository before, not while they call it.
+     */
+    private JdbcConnectionDirectory directory(int batchSize) {
+        return new JdbcConnectionDirectory(repository, new NodeIdentity(NODE_ID), batchSize, FLUSH_INTERVAL,
+                Duration.ofMinutes(1), Duration.ofHours(1), Duration.ofMinutes(1), 1000, new SimpleMeterRegistry());
+    }
+}
@@ -0,0 +1,226 @@
+package org.twins.horn.service.cluster;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.twins.horn.config.NodeIdentity;
+import org.twins.horn.notify.TwinsNotifyProto.TwinsNotifyResponse;
+import org.twins.horn.service.grpc.ConnectionDirectory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Routing decisions against a {@link ConnectionDirectory} stub; the republished messages are
+ * captured from a mocked {@link RabbitTemplate}.
+ */
+class NotificationRouterTest {
+
+    private static final String NODE_ID = "node-a";
+
+    private final StubDirectory directory = new StubDirectory();
+    private final RabbitTemplate rabbitTemplate = mock(RabbitTemplate.class);
+    private final NotificationRouter router = router(true);
+
+    @Test
+    void clientsAreSplitBetweenThisNodeAndTheirOwners() {
+        UUID local = UUID.randomUUID();
+        UUID remote = UUID.randomUUID();
+        UUID unowned = UUID.randomUUID();
+        UUID shared = UUID.randomUUID();
+        directory.owners.put(local, Set.of(NODE_ID));
+        directory.owners.put(remote, Set.of("node-b"));
+        directory.owners.put(shared, Set.of(NODE_ID, "node-c"));
+        TwinsNotifyResponse notification = notification("twin-1", local, remote, unowned, shared);
+
+        TwinsNotifyResponse localPart = router.route(notification);
+
+        // unowned clients stay local so that they reach the offline mailbox
+        assertThat(localPart.getClientIdsList())
+                .containsExactly(local.toString(), unowned.toString(), shared.toString());
+        assertThat(localPart.getUpdateId()).isEqualTo(notification.getUpdateId());
+        Map<String, TwinsNotifyResponse> forwarded = published(NotificationRouter.NODE_EXCHANGE, 2);
+        assertThat(forwarded.get("node-b").getClientIdsList()).containsExactly(remote.toString());
+        assertThat(forwarded.get("node-c").getClientIdsList()).containsExactly(shared.toString());
+    }
+
+    @Test
+    void notificationForThisNodeOnlyIsReturnedAsIs() {
+        UUID local = UUID.randomUUID();
+        directory.owners.put(local, Set.of(NODE_ID));
+        TwinsNotifyResponse notification = notification("twin-1", local);
+
+        assertThat(router.route(notification)).isSameAs(notification);
+        verify(rabbitTemplate, never()).send(any(), any(), any(Message.class));
+    }
+
+    @Test
+    void notificationForOtherNodesOnlyHasNoLocalPart() {
+        UUID remote = UUID.randomUUID();
+        directory.owners.put(remote, Set.of("node-b"));
+
+        assertThat(router.route(notification("twin-1", remote))).isNull();
+        assertThat(published(NotificationRouter.NODE_EXCHANGE, 1)).containsOnlyKeys("node-b");
+    }
+
+    @Test
+    void notificationWithoutClientsIsBroadcast() {
+        TwinsNotifyResponse notification = notification("twin-1");
+
+        assertThat(router.route(notification)).isNull();
+
+        Map<String, TwinsNotifyResponse> broadcast = published(NotificationRouter.BROADCAST_EXCHANGE, 1);
+        assertThat(broadcast).containsEntry("", notification);
+        assertThat(directory.lookups).isEmpty();
+    }
+
+    @Test
+    void notificationWithoutClientsOrTwinStaysLocal() {
+        TwinsNotifyResponse notification = notification("");
+
+        assertThat(router.route(notification)).isSameAs(notification);
+        verify(rabbitTemplate, never()).send(any(), any(), any(Message.class));
+    }
+
+    @Test
+    void republishedMessagesNameThisNode() {
+        UUID remote = UUID.randomUUID();
+        directory.owners.put(remote, Set.of("node-b"));
+
+        router.route(List.of(notification("twin-1", remote), notification("twin-2")));
+
+        ArgumentCaptor<Message> sent = ArgumentCaptor.forClass(Message.class);
+        verify(rabbitTemplate, times(2)).send(any(), any(), sent.capture());
+        assertThat(sent.getAllValues()).allSatisfy(message -> assertThat(message.getMessageProperties()
+                .<String>getHeader(NotificationRouter.ROUTED_BY_HEADER)).isEqualTo(NODE_ID));
+    }
+
+    @Test
+    void invalidClientIdsStayLocalWithoutALookup() {
+        UUID remote = UUID.randomUUID();
+        directory.owners.put(remote, Set.of("node-b"));
+        TwinsNotifyResponse notification = TwinsNotifyResponse.newBuilder()
+                .setUpdateId(UUID.randomUUID().toString())
+                .setTwinId("twin-1")
+                .addClientIds("not-a-uuid")
+                .addClientIds(remote.toString())
+                .build();
+
+        TwinsNotifyResponse localPart = router.route(notification);
+
+        assertThat(localPart.getClientIdsList()).containsExactly("not-a-uuid");
+        assertThat(directory.lookups).containsExactly(Set.of(remote));
+        assertThat(published(NotificationRouter.NODE_EXCHANGE, 1)).containsOnlyKeys("node-b");
+    }
+
+    @Test
+    void batchIsLookedUpOnceAndKeepsItsOrder() {
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        UUID remote = UUID.randomUUID();
+        directory.owners.put(remote, Set.of("node-b"));
+        List<TwinsNotifyResponse> batch = List.of(notification("twin-1", first, remote), notification("twin-2"),
+                notification("twin-3", second));
+
+        List<TwinsNotifyResponse> local = router.route(batch);
+
+        assertThat(directory.lookups).containsExactly(Set.of(first, second, remote));
+        assertThat(local).hasSize(3);
+        assertThat(local.get(0).getClientIdsList()).containsExactly(first.toString());
+        assertThat(local.get(1)).isNull();
+        assertThat(local.get(2)).isSameAs(batch.get(2));
+    }
+
+    @Test
+    void disabledRoutingDeliversEverythingLocally() {
+        UUID remote = UUID.randomUUID();
+        directory.owners.put(remote, Set.of("node-b"));
+        List<TwinsNotifyResponse> batch = List.of(notification("twin-1", remote), notification("twin-2"));
+
+        assertThat(router(false).route(batch)).isSameAs(batch);
+        assertThat(directory.lookups).isEmpty();
+        verify(rabbitTemplate, never()).send(any(), any(), any(Message.class));
+    }
+
+    private NotificationRouter router(boolean enabled) {
+        return new NotificationRouter(directory, rabbitTemplate, new NodeIdentity(NODE_ID), enabled,
+                new SimpleMeterRegistry());
+    }
+
+    /**
+     * @return the notifications published to the exchange, by routing key
+     */
+    private Map<String, TwinsNotifyResponse> published(String exchange, int count) {
+        ArgumentCaptor<String> routingKeys = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<Message> messages = ArgumentCaptor.forClass(Message.class);
+        verify(rabbitTemplate, times(count))
+                .send(eq(exchange), routingKeys.capture(), messages.capture());
+        Map<String, TwinsNotifyResponse> published = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            published.put(routingKeys.getAllValues().get(i), parse(messages.getAllValues().get(i)));
+        }
+        return published;
+    }
+
+    private static TwinsNotifyResponse parse(Message message) {
+        try {
+            return TwinsNotifyResponse.parseFrom(message.getBody());
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static TwinsNotifyResponse notification(String twinId, UUID... clientIds) {
+        TwinsNotifyResponse.Builder notification = TwinsNotifyResponse.newBuilder()
+                .setUpdateId(UUID.randomUUID().toString())
+                .setTwinId(twinId);
+        for (UUID clientId : clientIds) {
+            notification.addClientIds(clientId.toString());
+        }
+        return notification.build();
+    }
+
+    /**
+     * Answers from a fixed owner map and records every lookup.
+     */
+    private static final class StubDirectory implements ConnectionDirectory {
+        private final Map<UUID, Set<String>> owners = new HashMap<>();
+        private final List<Set<UUID>> lookups = new ArrayList<>();
+
+        @Override
+        public void register(UUID clientId) {
+        }
+
+        @Override
+        public void unregister(UUID clientId) {
+        }
+
+        @Override
+        public Map<UUID, Set<String>> owners(Collection<UUID> clientIds) {
+            lookups.add(Set.copyOf(clientIds));
+            Map<UUID, Set<String>> found = new HashMap<>();
+            for (UUID clientId : clientIds) {
+                if (owners.containsKey(clientId)) {
+                    found.put(clientId, owners.get(clientId));
+                }
+            }
+            return found;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package org.twins.horn.service.grpc;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+import org.springframework.util.unit.DataSize;
+import org.twins.horn.config.ConflationProperties;
+import org.twins.horn.config.GrpcTransportProperties;
+import org.twins.horn.service.auth.TwinsTokenIntrospectService;
+import org.twins.horn.service.auth.dto.TokenIntrospectRsDTOv1;
+import org.twins.horn.service.auth.session.SessionExpiryScheduler;
+import org.twins.horn.service.grpc.security.AuthInterceptor;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto.TwinfaceSubscribeRequest;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto.TwinfaceSubscribeUpdate;
+import org.twins.horn.subscribe.TwinfaceSubscribeServiceGrpc;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Opens {@value #STREAMS} streams at once against the real server on a loopback port and compares
+ * the fixed call pool with virtual threads ({@code spring.threads.virtual.enabled}), once with the
+ * introspection blocking a call thread and once with the asynchronous interceptor. The stubbed
+ * introspection takes {@link #AUTH_LATENCY} per token, like a remote endpoint.
+ * <p>
+ * Prints open throughput and latency per setup. Not part of the regular build, run it with
+ * {@code TWINHORN_BENCHMARKS=true ./gradlew test --tests '*CallExecutorBenchmarkTest'}.
+ */
+@EnabledIfEnvironmentVariable(named = "TWINHORN_BENCHMARKS", matches = "true")
+class CallExecutorBenchmarkTest {
+
+    private static final int STREAMS = 10_000;
+    private static final int CHANNELS = 16;
+    private static final Duration AUTH_LATENCY = Duration.ofMillis(20);
+    private static final Metadata.Key<String> AUTHORIZATION =
+            Metadata.Key.of("authorization", Metadata.ASCII_STRING_MARSHALLER);
+
+    @Test
+    void opensStreamsOnFixedPoolAndVirtualThreads() throws Exception {
+        System.out.printf("%d concurrent stream opens over %d channels, introspection %d ms, %d cores, JDK %s%n",
+                STREAMS, CHANNELS, AUTH_LATENCY.toMillis(), Runtime.getRuntime().availableProcessors(),
+                Runtime.version());
+        for (boolean asyncAuth : new boolean[]{false, true}) {
+            run("fixed pool", asyncAuth);
+            run("virtual threads", asyncAuth);
+        }
+    }
+
+    private static void run(String executorName, boolean asyncAuth) throws Exception {
+        // same choice as Application: virtual threads, or a fixed pool of two threads per core
+        Executor callExecutor = executorName.equals("fixed pool")
+                ? Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2)
+                : new VirtualThreadTaskExecutor("grpc-call-");
+        ConflationProperties conflationProperties = new ConflationProperties();
+        TwinSubscriptionIndex twinSubscriptionIndex = new TwinSubscriptionIndex(1000);
+        ReplayBufferStore replayBufferStore = new ReplayBufferStore(true, 128, DataSize.ofKilobytes(64),
+                DataSize.ofMegabytes(256), Duration.ofMinutes(10));
+        ConnectionRegistry registry = new ConnectionRegistry(twinSubscriptionIndex, conflationProperties,
+                replayBufferStore, OfflineMailbox.NONE, ConnectionDirectory.NONE, 64, 256, ClientStream.OverflowPolicy.DROP_OLDEST,
+                new SimpleMeterRegistry());
+        SessionExpiryScheduler expiryScheduler = new SessionExpiryScheduler(registry, false,
+                Duration.ofMinutes(5), Duration.ofMillis(100), 512);
+        TwinfaceDataStreamingServer server = new TwinfaceDataStreamingServer(
+                new AuthInterceptor(new StubIntrospectService(), asyncAuth, callExecutor), registry, twinSubscriptionIndex,
+                conflationProperties, expiryScheduler, callExecutor, new GrpcTransportProperties(), 0);
+        server.start();
+        List<ManagedChannel> channels = new ArrayList<>(CHANNELS);
+        try {
+            for (int i = 0; i < CHANNELS; i++) {
+                channels.add(NettyChannelBuilder.forAddress("localhost", server.server.getPort()).usePlaintext().build());
+            }
+            long[] openNanos = new long[STREAMS];
+            AtomicInteger failed = new AtomicInteger();
+            CountDownLatch opened = new CountDownLatch(STREAMS);
+            long start = System.nanoTime();
+            for (int i = 0; i < STREAMS; i++) {
+                UUID clientId = UUID.randomUUID();
+                Metadata headers = new Metadata();
+                headers.put(AUTHORIZATION, "Bearer " + clientId);
+                TwinfaceSubscribeServiceGrpc.newStub(channels.get(i % CHANNELS))
+                        .withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers))
+                        .getDataUpdates(TwinfaceSubscribeRequest.newBuilder().setClientId(clientId.toString()).build(),
+                                new OpeningClient(i, System.nanoTime(), openNanos, failed, opened));
+            }
+            assertThat(opened.await(10, TimeUnit.MINUTES)).as("all streams opened").isTrue();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Arrays.sort(openNanos);
+
+            System.out.printf("%s, %s auth: %.0f opens/s, open latency p50 %.0f ms, p99 %.0f ms, max %.0f ms%n",
+                    executorName, asyncAuth ? "async" : "blocking", STREAMS / seconds,
+                    openNanos[STREAMS / 2] / 1e6, openNanos[STREAMS * 99 / 100] / 1e6, openNanos[STREAMS - 1] / 1e6);
+            assertThat(failed.get()).as("failed streams").isZero();
+            assertThat(registry.connectionCount()).isEqualTo(STREAMS);
+        } finally {
+            for (ManagedChannel channel : channels) {
+                channel.shutdownNow();
+            }
+            server.server.shutdownNow().awaitTermination(30, TimeUnit.SECONDS);
+            expiryScheduler.shutdown();
+            if (callExecutor instanceof ExecutorService pool) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Records the time from opening the stream to the server's initial confirmation.
+     */
+    private static final class OpeningClient implements StreamObserver<TwinfaceSubscribeUpdate> {
+        private final int index;
+        private final long startNanos;
+        private final long[] openNanos;
+        private final AtomicInteger failed;
+        private final CountDownLatch opened;
+        private boolean confirmed; // only touched from the call's serialized callbacks
+
+        private OpeningClient(int index, long startNanos, long[] openNanos, AtomicInteger failed, CountDownLatch opened) {
+            this.index = index;
+            this.startNanos = startNanos;
+            this.openNanos = openNanos;
+            this.failed = failed;
+            this.opened = opened;
+        }
+
+        @Override
+        public void onNext(TwinfaceSubscribeUpdate value) {
+            if (!confirmed) {
+                confirmed = true;
+                openNanos[index] = System.nanoTime() - startNanos;
+                opened.countDown();
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (!confirmed) {
+                confirmed = true;
+                failed.incrementAndGet();
+                opened.countDown();
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    }
+
+    /**
+     * Introspection endpoint stand-in: every token is active, names its client and takes
+     * {@link #AUTH_LATENCY} to answer. The blocking variant sleeps on the calling thread, the async
+     * one completes on a timer.
+     */
+    private static final class StubIntrospectService extends TwinsTokenIntrospectService {
+
+        private StubIntrospectService() {
+            super(null, null, null, null, "http://localhost/introspect", Duration.ofSeconds(1), Runnable::run,
+                    new SimpleMeterRegistry());
+        }
+
+        @Override
+        public TokenIntrospectRsDTOv1 validateToken(String authToken) {
+            try {
+                Thread.sleep(AUTH_LATENCY.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return introspect(authToken);
+        }
+
+        @Override
+        public CompletableFuture<TokenIntrospectRsDTOv1> validateTokenAsync(String authToken) {
+            return CompletableFuture.supplyAsync(() -> introspect(authToken),
+                    CompletableFuture.delayedExecutor(AUTH_LATENCY.toMillis(), TimeUnit.MILLISECONDS));
+        }
+
+        private static TokenIntrospectRsDTOv1 introspect(String authToken) {
+            TokenIntrospectRsDTOv1 tokenInfo = new TokenIntrospectRsDTOv1();
+            tokenInfo.setActive("true");
+            tokenInfo.setClientId(authToken);
+            tokenInfo.setExp(Instant.now().plus(Duration.ofDays(1)).getEpochSecond());
+            return tokenInfo;
+        }
+    }
+}
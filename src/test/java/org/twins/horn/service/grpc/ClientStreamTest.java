@@ -0,0 +1,166 @@
+package org.twins.horn.service.grpc;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto.TwinfaceSubscribeUpdate;
+import org.twins.horn.util.HierarchicalTimingWheel;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * {@link ClientStream.OverflowPolicy#CONFLATE} on a full queue. The streams are held (resuming) so
+ * nothing is written until the test releases them.
+ */
+class ClientStreamTest {
+
+    private static final int CAPACITY = 3;
+
+    private final HierarchicalTimingWheel wheel = new HierarchicalTimingWheel("test-wheel", Duration.ofMillis(10), 64);
+    private final RecordingObserver observer = new RecordingObserver();
+
+    @AfterEach
+    void shutdown() {
+        wheel.close();
+    }
+
+    @Test
+    void conflateMergesIntoQueuedUpdateInPlace() {
+        ClientStream stream = heldStream();
+        stream.send(twinUpdate(1, TwinfaceSubscribeProto.UpdateStatus.SUCCESS, "a"));
+        stream.send(twinUpdate(2, TwinfaceSubscribeProto.UpdateStatus.GENERAL_ERROR, "b"));
+        stream.send(twinUpdate(3, TwinfaceSubscribeProto.UpdateStatus.GENERAL_ERROR, "c"));
+
+        assertThat(stream.send(twinUpdate(4, TwinfaceSubscribeProto.UpdateStatus.SUCCESS, "d"))).isTrue();
+        stream.resume(List.of());
+
+        assertThat(observer.updates).extracting(update -> List.copyOf(update.getUpdatedTwinIdsList()))
+                .containsExactly(List.of("a", "d"), List.of("b"), List.of("c"));
+        // later updates stay queued after the merged one, which keeps the older sequence
+        assertThat(observer.updates).extracting(TwinfaceSubscribeUpdate::getSequence).containsExactly(1L, 2L, 3L);
+        assertThat(stream.droppedUpdates()).isEqualTo(1);
+    }
+
+    @Test
+    void conflateIntoNewestUpdateTakesItsSequence() {
+        ClientStream stream = heldStream();
+        stream.send(twinUpdate(1, TwinfaceSubscribeProto.UpdateStatus.GENERAL_ERROR, "a"));
+        stream.send(twinUpdate(2, TwinfaceSubscribeProto.UpdateStatus.GENERAL_ERROR, "b"));
+        stream.send(twinUpdate(3, TwinfaceSubscribeProto.UpdateStatus.SUCCESS, "c"));
+
+        stream.send(twinUpdate(4, TwinfaceSubscribeProto.UpdateStatus.SUCCESS, "d"));
+        stream.resume(List.of());
+
+        assertThat(observer.updates).extracting(TwinfaceSubscribeUpdate::getSequence).containsExactly(1L, 2L, 4L);
+        assertThat(observer.updates.get(2).getUpdatedTwinIdsList()).containsExactly("c", "d");
+    }
+
+    @Test
+    void conflateDeclinesWhenALaterUpdateNamesTheSameTwin() {
+        ClientStream stream = heldStream();
+        stream.send(twinUpdate(1, TwinfaceSubscribeProto.UpdateStatus.SUCCESS, "a"));
+        stream.send(twinUpdate(2, TwinfaceSubscribeProto.UpdateStatus.GENERAL_ERROR, "x"));
+        stream.send(twinUpdate(3, TwinfaceSubscribeProto.UpdateStatus.GENERAL_ERROR, "c"));
+
+        stream.send(twinUpdate(4, TwinfaceSubscribeProto.UpdateStatus.SUCCESS, "x"));
+        stream.resume(List.of());
+
+        // merging "x" into the first update would overtake sequence 2; the oldest is dropped instead
+        assertThat(observer.updates).extracting(TwinfaceSubscribeUpdate::getSequence).containsExactly(2L, 3L, 4L);
+    }
+
+    @Test
+    void writeListenerSeesOnlyWrittenUpdatesAndTheEnd() {
+        ClientStream stream = heldStream();
+        List<Object> events = new ArrayList<>();
+        stream.setWriteListener(new ClientStream.WriteListener() {
+            @Override
+            public void written(SerializedUpdate update) {
+                events.add(update.message().getSequence());
+            }
+
+            @Override
+            public void terminated() {
+                events.add("terminated");
+            }
+        });
+        stream.sendImmediate(SerializedUpdate.of(twinUpdate(1, TwinfaceSubscribeProto.UpdateStatus.SUCCESS, "a")));
+        assertThat(events).as("held, nothing written yet").isEmpty();
+
+        stream.resume(List.of());
+        stream.markCancelled();
+
+        assertThat(events).containsExactly(1L, "terminated");
+    }
+
+    @Test
+    void failedWriteClosesTheCall() {
+        RecordingObserver failingObserver = new RecordingObserver() {
+            @Override
+            public void onNext(SerializedUpdate value) {
+                throw new IllegalStateException("serialization failure");
+            }
+        };
+        ClientStream stream = stream(failingObserver);
+        List<String> events = new ArrayList<>();
+        stream.onTerminate(() -> events.add("terminated"));
+
+        assertThat(stream.send(twinUpdate(1, TwinfaceSubscribeProto.UpdateStatus.SUCCESS, "a"))).isTrue();
+        stream.resume(List.of());
+
+        assertThat(events).containsExactly("terminated");
+        assertThat(Status.fromThrowable(failingObserver.error).getCode()).isEqualTo(Status.Code.INTERNAL);
+        assertThat(failingObserver.error).hasRootCauseMessage("serialization failure");
+    }
+
+    private ClientStream heldStream() {
+        return stream(observer);
+    }
+
+    private ClientStream stream(RecordingObserver observer) {
+        Timer deliveryLatency = Timer.builder("test.delivery").register(new SimpleMeterRegistry());
+        ClientStream.OutboundSettings settings = new ClientStream.OutboundSettings(CAPACITY,
+                ClientStream.OverflowPolicy.CONFLATE, wheel, 1000, deliveryLatency);
+        return new ClientStream(UUID.randomUUID(), observer, settings, new StreamOptions(ClientStream.ALL_EVENT_TYPES,
+                TwinSubscriptionIndex.TwinSubscription.NONE, new int[0], 1));
+    }
+
+    private static TwinfaceSubscribeUpdate twinUpdate(long sequence, TwinfaceSubscribeProto.UpdateStatus status,
+                                                      String twinId) {
+        return TwinfaceSubscribeUpdate.newBuilder()
+                .setUpdateId(UUID.randomUUID().toString())
+                .setEventType(TwinfaceSubscribeProto.TwinEventType.TWIN_UPDATE)
+                .addUpdatedTwinIds(twinId)
+                .setStatus(status)
+                .setSequence(sequence)
+                .build();
+    }
+
+    private static class RecordingObserver implements StreamObserver<SerializedUpdate> {
+        private final List<TwinfaceSubscribeUpdate> updates = new ArrayList<>();
+        private Throwable error;
+
+        @Override
+        public void onNext(SerializedUpdate value) {
+            updates.add(value.message());
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    }
+}
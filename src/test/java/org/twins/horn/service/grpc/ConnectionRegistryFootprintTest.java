@@ -0,0 +1,98 @@
+package org.twins.horn.service.grpc;
+
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+import org.twins.horn.config.ConflationProperties;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks the per-client memory budget documented on {@link ConnectionRegistry} against the heap the
+ * registry actually retains: used heap after a full collection, before and after registering the
+ * clients. The observer is shared, as the gRPC call objects behind it are not part of the budget.
+ */
+class ConnectionRegistryFootprintTest {
+
+    private static final int CLIENTS = 100_000;
+    private static final long MAX_BYTES_PER_CLIENT = 208;
+
+    private static final StreamObserver<SerializedUpdate> DISCARDING_OBSERVER = new StreamObserver<>() {
+        @Override
+        public void onNext(SerializedUpdate value) {
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    };
+
+    @Test
+    void connectedClientStaysWithinBudget() throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ConnectionRegistry registry = newRegistry();
+        long heapBefore = settledHeapUsed(memory);
+        for (int i = 0; i < CLIENTS; i++) {
+            register(registry, clientId(i));
+        }
+
+        long perClient = (settledHeapUsed(memory) - heapBefore) / CLIENTS;
+
+        assertThat(registry.clientCount()).isEqualTo(CLIENTS);
+        assertThat(perClient).isLessThanOrEqualTo(MAX_BYTES_PER_CLIENT);
+    }
+
+    @Test
+    void unregisteringAllStreamsReleasesTheEntries() {
+        ConnectionRegistry registry = newRegistry();
+        long empty = registry.estimatedFootprintBytes();
+        List<ClientStream> streams = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            streams.add(register(registry, clientId(i)));
+            streams.add(register(registry, clientId(i)));
+        }
+        for (ClientStream stream : streams) {
+            assertThat(registry.unregister(stream)).isTrue();
+        }
+
+        assertThat(registry.clientCount()).isZero();
+        assertThat(registry.connectionCount()).isZero();
+        assertThat(registry.estimatedFootprintBytes()).isEqualTo(empty);
+    }
+
+    private static long settledHeapUsed(MemoryMXBean memory) throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static UUID clientId(int i) {
+        return new UUID(0x5EED_0000_0000_0000L + i, i * 0x9E3779B97F4A7C15L);
+    }
+
+    private static ConnectionRegistry newRegistry() {
+        return new ConnectionRegistry(new TwinSubscriptionIndex(1000), new ConflationProperties(),
+                new ReplayBufferStore(true, 128, DataSize.ofKilobytes(64), DataSize.ofMegabytes(256),
+                        Duration.ofMinutes(10)),
+                OfflineMailbox.NONE, ConnectionDirectory.NONE, 64, 256, ClientStream.OverflowPolicy.DROP_OLDEST,
+                new SimpleMeterRegistry());
+    }
+
+    private static ClientStream register(ConnectionRegistry registry, UUID clientId) {
+        return registry.register(clientId, DISCARDING_OBSERVER);
+    }
+}
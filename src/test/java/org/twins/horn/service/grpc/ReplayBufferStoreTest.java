@@ -0,0 +1,145 @@
+package org.twins.horn.service.grpc;
+
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+import org.twins.horn.config.ConflationProperties;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto.TwinfaceSubscribeUpdate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Resume of a stream on the node that sent the updates and on another one, each with its own
+ * {@link ReplayBufferStore} as in a cluster.
+ */
+class ReplayBufferStoreTest {
+
+    private final List<ConnectionRegistry> registries = new ArrayList<>();
+
+    @AfterEach
+    void shutdown() {
+        registries.forEach(ConnectionRegistry::shutdown);
+    }
+
+    @Test
+    void resumeOnSameNodeReplaysMissedUpdates() {
+        ConnectionRegistry node = newNode(1);
+        UUID clientId = UUID.randomUUID();
+        RecordingObserver first = new RecordingObserver();
+        ClientStream stream = node.register(clientId, first);
+        node.broadcast(clientId, twinUpdate(node));
+        long resumeFrom = first.lastSequence();
+        node.unregister(stream);
+        TwinfaceSubscribeUpdate missed = twinUpdate(node);
+        node.broadcast(clientId, missed);
+
+        RecordingObserver second = new RecordingObserver();
+        ClientStream resumed = node.register(clientId, second, resumeOptions(resumeFrom));
+
+        assertThat(node.resume(resumed, resumeFrom)).isEqualTo(1);
+        assertThat(second.updates).extracting(TwinfaceSubscribeUpdate::getSequence).containsExactly(missed.getSequence());
+    }
+
+    @Test
+    void resumeOnOtherNodeIsAGap() {
+        ConnectionRegistry nodeA = newNode(1);
+        ConnectionRegistry nodeB = newNode(2);
+        UUID clientId = UUID.randomUUID();
+        // the client was connected to B before, and B has issued sequences since
+        ClientStream earlier = nodeB.register(clientId, new RecordingObserver());
+        nodeB.broadcast(clientId, twinUpdate(nodeB));
+        nodeB.unregister(earlier);
+        RecordingObserver onA = new RecordingObserver();
+        ClientStream stream = nodeA.register(clientId, onA);
+        nodeA.broadcast(clientId, twinUpdate(nodeA));
+        long resumeFrom = onA.lastSequence();
+        nodeA.unregister(stream);
+        nodeB.broadcast(UUID.randomUUID(), twinUpdate(nodeB));
+
+        RecordingObserver onB = new RecordingObserver();
+        ClientStream resumed = nodeB.register(clientId, onB, resumeOptions(resumeFrom));
+
+        assertThat(nodeB.resume(resumed, resumeFrom)).isEqualTo(-1);
+        assertThat(onB.updates).extracting(TwinfaceSubscribeUpdate::getEventType)
+                .containsExactly(TwinfaceSubscribeProto.TwinEventType.REPLAY_GAP);
+        assertThat(onB.lastSequence()).isEqualTo(nodeB.currentSequence());
+    }
+
+    @Test
+    void resumeAfterRestartIsAGap() {
+        ConnectionRegistry before = newNode(1);
+        UUID clientId = UUID.randomUUID();
+        RecordingObserver observer = new RecordingObserver();
+        before.register(clientId, observer);
+        before.broadcast(clientId, twinUpdate(before));
+        long resumeFrom = observer.lastSequence();
+        ConnectionRegistry after = newNode(2);
+        // the new run has issued more sequences than the old one
+        for (int i = 0; i < 10; i++) {
+            after.nextSequence();
+        }
+
+        RecordingObserver resumedObserver = new RecordingObserver();
+        ClientStream resumed = after.register(clientId, resumedObserver, resumeOptions(resumeFrom));
+
+        assertThat(after.resume(resumed, resumeFrom)).isEqualTo(-1);
+        assertThat(resumedObserver.updates).extracting(TwinfaceSubscribeUpdate::getEventType)
+                .containsExactly(TwinfaceSubscribeProto.TwinEventType.REPLAY_GAP);
+    }
+
+    private ConnectionRegistry newNode(int run) {
+        ReplayBufferStore replayBufferStore = new ReplayBufferStore(true, 128, DataSize.ofKilobytes(64),
+                DataSize.ofMegabytes(256), Duration.ofMinutes(10), run);
+        ConnectionRegistry registry = new ConnectionRegistry(new TwinSubscriptionIndex(1000), new ConflationProperties(),
+                replayBufferStore, OfflineMailbox.NONE, ConnectionDirectory.NONE, 64, 256,
+                ClientStream.OverflowPolicy.DROP_OLDEST, new SimpleMeterRegistry());
+        registries.add(registry);
+        return registry;
+    }
+
+    private static StreamOptions resumeOptions(long resumeFrom) {
+        return new StreamOptions(ClientStream.ALL_EVENT_TYPES, TwinSubscriptionIndex.TwinSubscription.NONE,
+                new int[0], resumeFrom);
+    }
+
+    private static TwinfaceSubscribeUpdate twinUpdate(ConnectionRegistry node) {
+        return TwinfaceSubscribeUpdate.newBuilder()
+                .setUpdateId(UUID.randomUUID().toString())
+                .setEventType(TwinfaceSubscribeProto.TwinEventType.TWIN_UPDATE)
+                .setTimestamp(Instant.now().toString())
+                .addUpdatedTwinIds(UUID.randomUUID().toString())
+                .setStatus(TwinfaceSubscribeProto.UpdateStatus.SUCCESS)
+                .setSequence(node.nextSequence())
+                .build();
+    }
+
+    private static final class RecordingObserver implements StreamObserver<SerializedUpdate> {
+        private final List<TwinfaceSubscribeUpdate> updates = new ArrayList<>();
+
+        @Override
+        public void onNext(SerializedUpdate value) {
+            updates.add(value.message());
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+
+        long lastSequence() {
+            return updates.get(updates.size() - 1).getSequence();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package org.twins.horn.service.grpc;
+
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+import org.twins.horn.config.ConflationProperties;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Lookups and validation of the index, with streams subscribed and unsubscribed through
+ * {@link ConnectionRegistry} as in production.
+ */
+class TwinSubscriptionIndexTest {
+
+    private static final int MAX_KEYS = 3;
+
+    private final TwinSubscriptionIndex index = new TwinSubscriptionIndex(MAX_KEYS);
+    private final ConnectionRegistry registry = new ConnectionRegistry(index, new ConflationProperties(),
+            new ReplayBufferStore(true, 128, DataSize.ofKilobytes(64), DataSize.ofMegabytes(1), Duration.ofMinutes(10)),
+            OfflineMailbox.NONE, ConnectionDirectory.NONE, 4, 16, ClientStream.OverflowPolicy.DROP_OLDEST,
+            new SimpleMeterRegistry());
+
+    @AfterEach
+    void shutdown() {
+        registry.shutdown();
+    }
+
+    @Test
+    void exactIdMatchesOnlyThatTwin() {
+        ClientStream stream = register(List.of("twin-1"), List.of());
+
+        assertThat(index.subscribers("twin-1")).containsExactly(stream);
+        assertThat(index.subscribers("twin-10")).isEmpty();
+        assertThat(index.subscribers("twin-")).isEmpty();
+    }
+
+    @Test
+    void prefixMatchesEveryTwinStartingWithIt() {
+        ClientStream stream = register(List.of(), List.of("tw"));
+
+        assertThat(index.subscribers("tw")).containsExactly(stream);
+        assertThat(index.subscribers("twin-1")).containsExactly(stream);
+        assertThat(index.subscribers("t")).isEmpty();
+        assertThat(index.subscribers("other")).isEmpty();
+    }
+
+    @Test
+    void streamMatchedByIdAndPrefixesIsReturnedOnce() {
+        ClientStream both = register(List.of("twin-1"), List.of("t", "twin-"));
+        ClientStream prefixOnly = register(List.of(), List.of("twin"));
+
+        assertThat(index.subscribers("twin-1")).containsExactlyInAnyOrder(both, prefixOnly);
+        assertThat(index.subscribers("twin-2")).containsExactlyInAnyOrder(both, prefixOnly);
+        assertThat(index.subscribers("tree")).containsExactly(both);
+    }
+
+    @Test
+    void prefixLengthsFollowAddsAndRemoves() {
+        ClientStream first = register(List.of(), List.of("ab", "abcd"));
+        ClientStream second = register(List.of(), List.of("xy", "a"));
+        assertThat(index.prefixLengths()).containsExactly(1, 2, 4);
+
+        registry.unregister(first);
+        // "xy" still has length 2 in use
+        assertThat(index.prefixLengths()).containsExactly(1, 2);
+        assertThat(index.subscribers("abcd")).containsExactly(second);
+
+        registry.unregister(second);
+        assertThat(index.prefixLengths()).isEmpty();
+        assertThat(index.keyCount()).isZero();
+    }
+
+    @Test
+    void sharedPrefixKeepsItsLengthUntilTheLastSubscriberLeaves() {
+        ClientStream first = register(List.of(), List.of("abc"));
+        ClientStream second = register(List.of(), List.of("abc"));
+
+        registry.unregister(first);
+        assertThat(index.prefixLengths()).containsExactly(3);
+        assertThat(index.subscribers("abcdef")).containsExactly(second);
+
+        registry.unregister(second);
+        assertThat(index.prefixLengths()).isEmpty();
+        assertThat(index.subscribers("abcdef")).isEmpty();
+    }
+
+    @Test
+    void unsubscribedStreamIsNoLongerMatched() {
+        ClientStream stream = register(List.of("twin-1"), List.of("twin"));
+
+        registry.unregister(stream);
+
+        assertThat(index.subscribers("twin-1")).isEmpty();
+        assertThat(index.keyCount()).isZero();
+    }
+
+    @Test
+    void tooManyIdsAndPrefixesAreRejected() {
+        assertThat(index.subscriptionOf(List.of("a", "b"), List.of("c")).twinIds()).containsExactly("a", "b");
+
+        assertThatThrownBy(() -> index.subscriptionOf(List.of("a", "b"), List.of("c", "d")))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("At most " + MAX_KEYS);
+    }
+
+    @Test
+    void emptyOrTooLongKeysAreRejected() {
+        String longest = "p".repeat(TwinSubscriptionIndex.MAX_PREFIX_LENGTH);
+        assertThat(index.subscriptionOf(List.of(), List.of(longest)).twinIdPrefixes()).containsExactly(longest);
+
+        assertThatThrownBy(() -> index.subscriptionOf(List.of(), List.of(longest + "p")))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> index.subscriptionOf(List.of(), List.of("")))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> index.subscriptionOf(List.of(""), List.of()))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void noIdsOrPrefixesIsTheSharedEmptySubscription() {
+        assertThat(index.subscriptionOf(List.of(), List.of())).isSameAs(TwinSubscriptionIndex.TwinSubscription.NONE);
+    }
+
+    private ClientStream register(List<String> twinIds, List<String> twinIdPrefixes) {
+        StreamOptions options = new StreamOptions(ClientStream.ALL_EVENT_TYPES,
+                index.subscriptionOf(twinIds, twinIdPrefixes), new int[0], 0);
+        return registry.register(UUID.randomUUID(), new DiscardingObserver(), options);
+    }
+
+    private static final class DiscardingObserver implements StreamObserver<SerializedUpdate> {
+        @Override
+        public void onNext(SerializedUpdate value) {
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    }
+}
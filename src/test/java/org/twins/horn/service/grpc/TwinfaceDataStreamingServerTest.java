@@ -0,0 +1,167 @@
+package org.twins.horn.service.grpc;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import io.grpc.stub.MetadataUtils;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+import org.twins.horn.config.ConflationProperties;
+import org.twins.horn.config.GrpcTransportProperties;
+import org.twins.horn.service.auth.TwinsTokenIntrospectService;
+import org.twins.horn.service.auth.dto.TokenIntrospectRsDTOv1;
+import org.twins.horn.service.auth.session.SessionExpiryScheduler;
+import org.twins.horn.service.grpc.security.AuthInterceptor;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto.TwinfaceSubscribeRequest;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto.TwinfaceSubscribeUpdate;
+import org.twins.horn.subscribe.TwinfaceSubscribeServiceGrpc;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Subscriptions against the real server on a loopback port.
+ */
+class TwinfaceDataStreamingServerTest {
+
+    private static final Metadata.Key<String> AUTHORIZATION =
+            Metadata.Key.of("authorization", Metadata.ASCII_STRING_MARSHALLER);
+
+    // far beyond the deadline of a call, a conflated update would never arrive
+    private static final Duration CONFLATION_WINDOW = Duration.ofMinutes(1);
+    private static final int MAX_TWINS_PER_STREAM = 10;
+
+    private final ExecutorService callExecutor = Executors.newFixedThreadPool(4);
+    private ConnectionRegistry registry;
+    private SessionExpiryScheduler expiryScheduler;
+    private TwinfaceDataStreamingServer server;
+    private ManagedChannel channel;
+
+    @BeforeEach
+    void startServer() throws Exception {
+        ConflationProperties conflationProperties = new ConflationProperties();
+        conflationProperties.setMaxWindow(CONFLATION_WINDOW);
+        TwinSubscriptionIndex twinSubscriptionIndex = new TwinSubscriptionIndex(MAX_TWINS_PER_STREAM);
+        registry = new ConnectionRegistry(twinSubscriptionIndex, conflationProperties,
+                new ReplayBufferStore(true, 128, DataSize.ofKilobytes(64), DataSize.ofMegabytes(256), Duration.ofMinutes(10)),
+                OfflineMailbox.NONE, ConnectionDirectory.NONE, 64, 256, ClientStream.OverflowPolicy.DROP_OLDEST,
+                new SimpleMeterRegistry());
+        expiryScheduler = new SessionExpiryScheduler(registry, false, Duration.ofMinutes(5), Duration.ofMillis(100), 512);
+        server = new TwinfaceDataStreamingServer(new AuthInterceptor(new StubIntrospectService(), false, callExecutor),
+                registry, twinSubscriptionIndex, conflationProperties, expiryScheduler, callExecutor,
+                new GrpcTransportProperties(), 0);
+        server.start();
+        channel = NettyChannelBuilder.forAddress("localhost", server.server.getPort()).usePlaintext().build();
+    }
+
+    @AfterEach
+    void stopServer() throws InterruptedException {
+        channel.shutdownNow();
+        server.server.shutdownNow().awaitTermination(10, TimeUnit.SECONDS);
+        expiryScheduler.shutdown();
+        registry.shutdown();
+        callExecutor.shutdownNow();
+    }
+
+    @Test
+    void malformedSubscriptionIsInvalidArgument() {
+        TwinfaceSubscribeRequest request = TwinfaceSubscribeRequest.newBuilder()
+                .addEventTypesValue(Integer.SIZE + 1)
+                .build();
+
+        Iterator<TwinfaceSubscribeUpdate> updates = subscribe(request);
+
+        assertThatThrownBy(updates::hasNext)
+                .isInstanceOfSatisfying(StatusRuntimeException.class, e -> {
+                    assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.INVALID_ARGUMENT);
+                    assertThat(e.getStatus().getDescription()).contains("Unsupported event type");
+                });
+        assertThat(registry.connectionCount()).isZero();
+    }
+
+    @Test
+    void tooManyTwinsIsInvalidArgument() {
+        TwinfaceSubscribeRequest.Builder request = TwinfaceSubscribeRequest.newBuilder();
+        for (int i = 0; i <= MAX_TWINS_PER_STREAM; i++) {
+            request.addTwinIds("twin-" + i);
+        }
+
+        assertInvalidArgument(subscribe(request.build()), "At most " + MAX_TWINS_PER_STREAM);
+    }
+
+    @Test
+    void tooLongPrefixIsInvalidArgument() {
+        TwinfaceSubscribeRequest request = TwinfaceSubscribeRequest.newBuilder()
+                .addTwinIdPrefixes("p".repeat(TwinSubscriptionIndex.MAX_PREFIX_LENGTH + 1))
+                .build();
+
+        assertInvalidArgument(subscribe(request), "prefix");
+    }
+
+    @Test
+    void initialConfirmationSkipsTheConflationWindow() {
+        TwinfaceSubscribeRequest request = TwinfaceSubscribeRequest.newBuilder()
+                .setConflationWindowMs((int) CONFLATION_WINDOW.toMillis())
+                .build();
+
+        Iterator<TwinfaceSubscribeUpdate> updates = subscribe(request);
+
+        assertThat(updates.hasNext()).isTrue();
+        TwinfaceSubscribeUpdate confirmation = updates.next();
+        assertThat(confirmation.getEventType()).isEqualTo(TwinfaceSubscribeProto.TwinEventType.TWIN_UPDATE);
+        assertThat(confirmation.getUpdatedTwinIdsList()).isEmpty();
+        assertThat(confirmation.getSequence()).isEqualTo(registry.currentSequence());
+    }
+
+    private void assertInvalidArgument(Iterator<TwinfaceSubscribeUpdate> updates, String description) {
+        assertThatThrownBy(updates::hasNext)
+                .isInstanceOfSatisfying(StatusRuntimeException.class, e -> {
+                    assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.INVALID_ARGUMENT);
+                    assertThat(e.getStatus().getDescription()).contains(description);
+                });
+        assertThat(registry.connectionCount()).isZero();
+    }
+
+    private Iterator<TwinfaceSubscribeUpdate> subscribe(TwinfaceSubscribeRequest request) {
+        Metadata headers = new Metadata();
+        headers.put(AUTHORIZATION, "Bearer " + UUID.randomUUID());
+        return TwinfaceSubscribeServiceGrpc.newBlockingStub(channel)
+                .withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers))
+                .withDeadlineAfter(10, TimeUnit.SECONDS)
+                .getDataUpdates(request);
+    }
+
+    /**
+     * Accepts every token as the client it names.
+     */
+    private static final class StubIntrospectService extends TwinsTokenIntrospectService {
+
+        private StubIntrospectService() {
+            super(null, null, null, null, "http://localhost/introspect", Duration.ofSeconds(1), Runnable::run,
+                    new SimpleMeterRegistry());
+        }
+
+        @Override
+        public TokenIntrospectRsDTOv1 validateToken(String authToken) {
+            TokenIntrospectRsDTOv1 tokenInfo = new TokenIntrospectRsDTOv1();
+            tokenInfo.setActive("true");
+            tokenInfo.setClientId(authToken);
+            tokenInfo.setExp(Instant.now().plus(Duration.ofDays(1)).getEpochSecond());
+            return tokenInfo;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.twins.horn.service.grpc.security;
+
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.twins.horn.service.auth.TwinsTokenIntrospectService;
+import org.twins.horn.service.auth.dto.TokenIntrospectRsDTOv1;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Asynchronous authentication completing on a foreign thread, as the HttpClient's does: the call
+ * must still be started and fed its events on the call executor.
+ */
+class AuthInterceptorTest {
+
+    private static final String CALL_THREAD = "grpc-call-test";
+    private static final Metadata.Key<String> AUTHORIZATION =
+            Metadata.Key.of("authorization", Metadata.ASCII_STRING_MARSHALLER);
+
+    private final ExecutorService callExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, CALL_THREAD));
+    private final ExecutorService introspectionThread = Executors.newSingleThreadExecutor();
+
+    @AfterEach
+    void shutdown() {
+        callExecutor.shutdownNow();
+        introspectionThread.shutdownNow();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void startsCallAndReplaysBufferedEventsOnCallExecutor() throws Exception {
+        CompletableFuture<TokenIntrospectRsDTOv1> validation = new CompletableFuture<>();
+        AuthInterceptor interceptor = new AuthInterceptor(new StubIntrospectService(validation), true, callExecutor);
+        List<String> events = new CopyOnWriteArrayList<>();
+        CountDownLatch halfClosed = new CountDownLatch(1);
+        ServerCallHandler<String, String> handler = (call, headers) -> {
+            events.add("start@" + Thread.currentThread().getName());
+            return new ServerCall.Listener<>() {
+                @Override
+                public void onMessage(String message) {
+                    events.add(message + "@" + Thread.currentThread().getName());
+                }
+
+                @Override
+                public void onHalfClose() {
+                    events.add("halfClose@" + Thread.currentThread().getName());
+                    halfClosed.countDown();
+                }
+            };
+        };
+        Metadata headers = new Metadata();
+        headers.put(AUTHORIZATION, "Bearer token");
+
+        ServerCall.Listener<String> listener = interceptor.interceptCall(mock(ServerCall.class), headers, handler);
+        listener.onMessage("request");
+        listener.onHalfClose();
+        introspectionThread.submit(() -> validation.complete(tokenInfo())).get();
+
+        assertThat(halfClosed.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(events).containsExactly(
+                "start@" + CALL_THREAD, "request@" + CALL_THREAD, "halfClose@" + CALL_THREAD);
+    }
+
+    private static TokenIntrospectRsDTOv1 tokenInfo() {
+        TokenIntrospectRsDTOv1 tokenInfo = new TokenIntrospectRsDTOv1();
+        tokenInfo.setActive("true");
+        tokenInfo.setClientId(UUID.randomUUID().toString());
+        return tokenInfo;
+    }
+
+    /**
+     * Introspection whose result the test completes by hand.
+     */
+    private static final class StubIntrospectService extends TwinsTokenIntrospectService {
+        private final CompletableFuture<TokenIntrospectRsDTOv1> result;
+
+        private StubIntrospectService(CompletableFuture<TokenIntrospectRsDTOv1> result) {
+            super(null, null, null, null, "http://localhost/introspect", Duration.ofSeconds(1), Runnable::run,
+                    new SimpleMeterRegistry());
+            this.result = result;
+        }
+
+        @Override
+        public CompletableFuture<TokenIntrospectRsDTOv1> validateTokenAsync(String authToken) {
+            return result;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.twins.horn.service.queue;
+
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.twins.horn.config.NodeIdentity;
+import org.twins.horn.notify.TwinsNotifyProto.TwinsNotifyResponse;
+import org.twins.horn.service.cluster.NotificationRouter;
+import org.twins.horn.service.grpc.ConnectionDirectory;
+import org.twins.horn.service.grpc.SerializedUpdate;
+import org.twins.horn.service.grpc.TwinfaceGrpcNotifier;
+import org.twins.horn.subscribe.TwinfaceSubscribeProto.TwinfaceSubscribeUpdate;
+import org.twins.horn.util.InfrastructureErrorNotifier;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * {@link TwinsNotificationsConsumer.RetryMode#BROKER} after a failed delivery: what is parked for retry, where, and with
+ * which headers.
+ */
+class TwinsNotificationsConsumerTest {
+
+    private static final String NODE_ID = "node-a";
+
+    private final TwinfaceGrpcNotifier grpcNotifier = mock(TwinfaceGrpcNotifier.class);
+    private final RabbitTemplate rabbitTemplate = mock(RabbitTemplate.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final TwinsNotificationsConsumer consumer = new TwinsNotificationsConsumer(grpcNotifier,
+            new NotificationRouter(ConnectionDirectory.NONE, rabbitTemplate, new NodeIdentity(NODE_ID), true, meterRegistry),
+            CircuitBreaker.ofDefaults("test"), mock(InfrastructureErrorNotifier.class), rabbitTemplate,
+            TwinsNotificationsConsumer.RetryMode.BROKER, 1, 1000, meterRegistry);
+
+    @AfterEach
+    void shutdown() {
+        consumer.shutdown();
+    }
+
+    @Test
+    void routedNotificationRetriesThroughNodeRetryQueue() {
+        when(grpcNotifier.toSerializedUpdate(any())).thenAnswer(invocation -> update());
+        doThrow(new IllegalStateException("stream failure"))
+                .when(grpcNotifier).notifyClients(any(TwinsNotifyResponse.class), any(SerializedUpdate.class));
+        TwinsNotifyResponse notification = notification("twin-1");
+
+        consumer.handleRoutedNotification(notification.toByteArray(), null);
+
+        Message retry = sentMessages(1).get(0);
+        assertThat(retry.getMessageProperties().<String>getHeader(NotificationRouter.ROUTED_BY_HEADER)).isEqualTo(NODE_ID);
+        assertThat(retry.getMessageProperties().<Integer>getHeader(TwinsNotificationsConsumer.RETRY_ATTEMPT_HEADER))
+                .isEqualTo(2);
+        assertThat(retry.getBody()).isEqualTo(notification.toByteArray());
+        verify(rabbitTemplate).send(eq(""), eq(TwinsNotificationsConsumer.NODE_RETRY_QUEUE_PREFIX + NODE_ID),
+                any(Message.class));
+    }
+
+    @Test
+    void batchRetriesOnlyTheNotificationsNotQueuedYet() {
+        when(grpcNotifier.toSerializedUpdate(any())).thenAnswer(invocation -> update());
+        doAnswer(invocation -> {
+            // the first notification reached its streams before the second failed
+            invocation.<BitSet>getArgument(2).set(0);
+            throw new IllegalStateException("stream failure");
+        }).when(grpcNotifier).notifyClients(anyList(), anyList(), any(BitSet.class));
+        List<TwinsNotifyResponse> notifications = List.of(notification("twin-1"), notification("twin-2"),
+                notification("twin-3"));
+
+        consumer.handleRoutedNotifications(notifications.stream()
+                .map(notification -> MessageBuilder.withBody(notification.toByteArray()).build())
+                .toList());
+
+        assertThat(sentMessages(2)).extracting(Message::getBody)
+                .containsExactly(notifications.get(1).toByteArray(), notifications.get(2).toByteArray());
+    }
+
+    private List<Message> sentMessages(int count) {
+        ArgumentCaptor<Message> sent = ArgumentCaptor.forClass(Message.class);
+        verify(rabbitTemplate, times(count)).send(any(), any(), sent.capture());
+        return sent.getAllValues();
+    }
+
+    private static TwinsNotifyResponse notification(String twinId) {
+        return TwinsNotifyResponse.newBuilder()
+                .setUpdateId(UUID.randomUUID().toString())
+                .setTwinId(twinId)
+                .addClientIds(UUID.randomUUID().toString())
+                .build();
+    }
+
+    private static SerializedUpdate update() {
+        return SerializedUpdate.of(TwinfaceSubscribeUpdate.newBuilder().setUpdateId(UUID.randomUUID().toString()).build());
+    }
+}
@@ -0,0 +1,122 @@
+package org.twins.horn.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * {@link HierarchicalTimingWheel#manual Manual} wheel of 4 buckets per level, so a delay of more than
+ * 4, 16 or 64 ticks starts on level 1, 2 or 3 and has to cascade down before it fires.
+ */
+class HierarchicalTimingWheelTest {
+
+    private static final Duration TICK = Duration.ofMillis(10);
+    private static final int WHEEL_SIZE = 4;
+
+    private final AtomicLong nanos = new AtomicLong(1_000_000_000L);
+    private final HierarchicalTimingWheel wheel = HierarchicalTimingWheel.manual(TICK, WHEEL_SIZE, nanos::get);
+
+    @Test
+    void timersCascadeAcrossLevelsAndFireOnTheirTick() {
+        Map<Long, Long> firedAtTick = new LinkedHashMap<>();
+        long[] delays = {1, 3, 4, 5, 16, 17, 63, 64, 65, 200};
+        for (long delay : delays) {
+            wheel.schedule(() -> firedAtTick.put(delay, elapsedTicks()), delay * TICK.toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        for (int tick = 0; tick < 200; tick++) {
+            advanceTicks(1);
+        }
+
+        assertThat(firedAtTick).hasSize(delays.length);
+        firedAtTick.forEach((delay, tick) -> assertThat(tick).as("timer of %d ticks", delay).isEqualTo(delay));
+        assertThat(wheel.pendingTimers()).isZero();
+    }
+
+    @Test
+    void timerDoesNotFireBeforeItsDeadline() {
+        List<String> fired = new ArrayList<>();
+        HierarchicalTimingWheel.Timer timer = wheel.schedule(() -> fired.add("timer"), 100, TimeUnit.MILLISECONDS);
+
+        nanos.addAndGet(TICK.toNanos() * 10 - 1);
+        wheel.runDueTimers();
+        assertThat(fired).isEmpty();
+        assertThat(timer.isFired()).isFalse();
+
+        nanos.incrementAndGet();
+        wheel.runDueTimers();
+        assertThat(fired).containsExactly("timer");
+        assertThat(timer.isFired()).isTrue();
+    }
+
+    @Test
+    void cancelledTimerNeverFires() {
+        List<String> fired = new ArrayList<>();
+        HierarchicalTimingWheel.Timer cancelled = wheel.schedule(() -> fired.add("cancelled"), 70 * TICK.toMillis(),
+                TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> fired.add("kept"), 70 * TICK.toMillis(), TimeUnit.MILLISECONDS);
+
+        // after the timers have cascaded from level 3
+        advanceTicks(65);
+        assertThat(cancelled.cancel()).isTrue();
+        assertThat(wheel.pendingTimers()).isEqualTo(1);
+        advanceTicks(10);
+
+        assertThat(fired).containsExactly("kept");
+        assertThat(cancelled.cancel()).isFalse();
+        assertThat(wheel.pendingTimers()).isZero();
+    }
+
+    @Test
+    void firedTimerCannotBeCancelled() {
+        HierarchicalTimingWheel.Timer timer = wheel.schedule(() -> { }, 0, TimeUnit.MILLISECONDS);
+
+        advanceTicks(1);
+
+        assertThat(timer.isFired()).isTrue();
+        assertThat(timer.cancel()).isFalse();
+    }
+
+    @Test
+    void delayBeyondTheWheelRangeIsClamped() {
+        List<Long> firedAtTick = new ArrayList<>();
+        long maxDelayTicks = (long) Math.pow(WHEEL_SIZE, 4) - 1; // 4 levels
+        wheel.schedule(() -> firedAtTick.add(elapsedTicks()), 10 * maxDelayTicks * TICK.toMillis(), TimeUnit.MILLISECONDS);
+
+        for (long tick = 0; tick < 2 * maxDelayTicks; tick++) {
+            advanceTicks(1);
+        }
+
+        assertThat(firedAtTick).containsExactly(maxDelayTicks);
+    }
+
+    @Test
+    void jumpingTheClockFiresEveryTimerThatBecameDue() {
+        List<String> fired = new ArrayList<>();
+        wheel.schedule(() -> fired.add("early"), 2 * TICK.toMillis(), TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> fired.add("late"), 50 * TICK.toMillis(), TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> fired.add("pending"), 80 * TICK.toMillis(), TimeUnit.MILLISECONDS);
+
+        advanceTicks(60);
+
+        assertThat(fired).containsExactly("early", "late");
+        assertThat(wheel.pendingTimers()).isEqualTo(1);
+    }
+
+    private void advanceTicks(long ticks) {
+        nanos.addAndGet(ticks * TICK.toNanos());
+        wheel.runDueTimers();
+    }
+
+    private long elapsedTicks() {
+        return (nanos.get() - 1_000_000_000L) / TICK.toNanos();
+    }
+}
@@ -0,0 +1,140 @@
+package org.twins.horn.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Coalescing of concurrent calls per key, with the remote call completed by hand.
+ */
+class SingleFlightTest {
+
+    private static final int CALLERS = 8;
+
+    private final SingleFlight<String, String> singleFlight = new SingleFlight<>();
+    private final AtomicInteger calls = new AtomicInteger();
+    private final CompletableFuture<String> remote = new CompletableFuture<>();
+    private final ExecutorService callers = Executors.newFixedThreadPool(CALLERS);
+
+    @AfterEach
+    void shutdown() {
+        callers.shutdownNow();
+    }
+
+    @Test
+    void concurrentCallersShareOneCall() throws Exception {
+        List<CompletableFuture<String>> results = submitConcurrently("key");
+
+        assertThat(calls).hasValue(1);
+        assertThat(singleFlight.inFlightCount()).isEqualTo(1);
+        remote.complete("value");
+
+        for (CompletableFuture<String> result : results) {
+            assertThat(result.get(5, TimeUnit.SECONDS)).isEqualTo("value");
+        }
+    }
+
+    @Test
+    void eachCallerGetsItsOwnCopy() throws Exception {
+        CompletableFuture<String> first = singleFlight.submit("key", this::call);
+        CompletableFuture<String> second = singleFlight.submit("key", this::call);
+
+        first.cancel(true);
+        remote.complete("value");
+
+        assertThat(remote.isCancelled()).isFalse();
+        assertThat(first.isCancelled()).isTrue();
+        assertThat(second.get(5, TimeUnit.SECONDS)).isEqualTo("value");
+    }
+
+    @Test
+    void keyIsReleasedAfterSuccess() {
+        singleFlight.submit("key", this::call);
+        remote.complete("value");
+
+        assertThat(singleFlight.inFlightCount()).isZero();
+        singleFlight.submit("key", this::call);
+        assertThat(calls).hasValue(2);
+    }
+
+    @Test
+    void keyIsReleasedAfterFailure() {
+        singleFlight.submit("key", this::call);
+        remote.completeExceptionally(new IllegalStateException("remote down"));
+
+        assertThat(singleFlight.inFlightCount()).isZero();
+        singleFlight.submit("key", this::call);
+        assertThat(calls).hasValue(2);
+    }
+
+    @Test
+    void failureReachesAllWaiters() throws Exception {
+        List<CompletableFuture<String>> results = submitConcurrently("key");
+        IllegalStateException failure = new IllegalStateException("remote down");
+
+        remote.completeExceptionally(failure);
+
+        for (CompletableFuture<String> result : results) {
+            assertThatThrownBy(() -> result.get(5, TimeUnit.SECONDS))
+                    .isInstanceOf(ExecutionException.class)
+                    .hasCause(failure);
+        }
+    }
+
+    @Test
+    void synchronousExceptionFailsTheCallAndReleasesTheKey() {
+        CompletableFuture<String> result = singleFlight.submit("key", () -> {
+            throw new IllegalArgumentException("bad request");
+        });
+
+        assertThat(result).isCompletedExceptionally();
+        assertThat(singleFlight.inFlightCount()).isZero();
+    }
+
+    @Test
+    void differentKeysDoNotShare() {
+        singleFlight.submit("a", this::call);
+        singleFlight.submit("b", this::call);
+
+        assertThat(calls).hasValue(2);
+        assertThat(singleFlight.inFlightCount()).isEqualTo(2);
+    }
+
+    private CompletableFuture<String> call() {
+        calls.incrementAndGet();
+        return remote;
+    }
+
+    /**
+     * Submits {@value #CALLERS} times for the key from as many threads released at once.
+     */
+    private List<CompletableFuture<String>> submitConcurrently(String key) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<CompletableFuture<String>>> submitted = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++) {
+            submitted.add(callers.submit(() -> {
+                start.await();
+                return singleFlight.submit(key, this::call);
+            }));
+        }
+        start.countDown();
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (Future<CompletableFuture<String>> future : submitted) {
+            results.add(future.get(5, TimeUnit.SECONDS));
+        }
+        return results;
+    }
+}